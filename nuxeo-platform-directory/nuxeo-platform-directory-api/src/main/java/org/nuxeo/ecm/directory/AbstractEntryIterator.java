@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.ClientRuntimeException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Base class for {@link EntryIterator} implementations: subclasses fetch the
+ * next entry in {@link #fetchNext} and release their resources in
+ * {@link #doClose}, which is called once, either explicitly or when the
+ * iteration is exhausted or fails.
+ *
+ * @since 5.7.3
+ */
+public abstract class AbstractEntryIterator implements EntryIterator {
+
+    protected DocumentModel next;
+
+    protected boolean closed;
+
+    /**
+     * Returns the next entry, or {@code null} when there are no more entries.
+     */
+    protected abstract DocumentModel fetchNext() throws ClientException;
+
+    /**
+     * Releases the resources held by the iterator.
+     */
+    protected abstract void doClose();
+
+    /**
+     * Returns an iterator over entries already loaded in memory.
+     */
+    public static EntryIterator of(final Iterator<DocumentModel> entries) {
+        return new AbstractEntryIterator() {
+            @Override
+            protected DocumentModel fetchNext() {
+                return entries.hasNext() ? entries.next() : null;
+            }
+
+            @Override
+            protected void doClose() {
+            }
+        };
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = fetchNext();
+            } catch (ClientException e) {
+                close();
+                throw new ClientRuntimeException(e);
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+            if (next == null) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public DocumentModel next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DocumentModel entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            doClose();
+        }
+    }
+
+}
@@ -54,6 +54,9 @@ public abstract class BaseSession implements Session {
      * Returns a bare document model suitable for directory implementations.
      * <p>
      * Can be used for creation screen.
+     * <p>
+     * Entries that are kept in a cache and handed out to several callers
+     * should be exposed through {@link #createSharedEntryModel}.
      *
      * @since 5.2M4
      */
@@ -93,6 +96,17 @@ public abstract class BaseSession implements Session {
         return entry;
     }
 
+    /**
+     * Returns a copy-on-write view of an entry that is shared between several
+     * callers, typically through a {@link DirectoryCache}. The shared entry is
+     * only cloned if the caller modifies the returned entry.
+     *
+     * @since 5.7.3
+     */
+    public static DocumentModel createSharedEntryModel(DocumentModel entry) {
+        return CopyOnWriteEntry.wrap(entry);
+    }
+
     protected static Map<String, Serializable> mkSerializableMap(
             Map<String, Object> map) {
         Map<String, Serializable> serializableMap = null;
@@ -123,6 +137,10 @@ public abstract class BaseSession implements Session {
      * @since 5.3.1
      */
     public static boolean isReadOnlyEntry(DocumentModel entry) {
+        if (entry instanceof CopyOnWriteEntry.Shared) {
+            // do not trigger a copy of a cached entry
+            return ((CopyOnWriteEntry.Shared) entry).isReadOnlyEntry();
+        }
         ScopedMap contextData = entry.getContextData();
         return contextData.getScopedValue(ScopeType.REQUEST,
                 READONLY_ENTRY_FLAG) == Boolean.TRUE;
@@ -163,6 +181,40 @@ public abstract class BaseSession implements Session {
         return String.format(MULTI_TENANT_ID_FORMAT, tenantId, id);
     }
 
+    /**
+     * Default implementation fetching the entries one by one, to be
+     * overridden by directories able to fetch them in bulk.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException {
+        DocumentModelList entries = new DocumentModelListImpl(ids.size());
+        for (String id : new LinkedHashSet<String>(ids)) {
+            DocumentModel entry = getEntry(id, fetchReferences);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Default implementation iterating over the full query results, to be
+     * overridden by directories able to stream their entries.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public EntryIterator iterate(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) throws ClientException,
+            DirectoryException {
+        return AbstractEntryIterator.of(query(filter, fulltext, orderBy,
+                fetchReferences).iterator());
+    }
+
     @Override
     public DocumentModelList query(Map<String, Serializable> filter,
                                    Set<String> fulltext, Map<String, String> orderBy,
@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Copy-on-write view of a directory entry shared by a cache.
+ * <p>
+ * The returned {@link DocumentModel} reads from the shared entry until a
+ * method that may mutate it (or expose mutable internals such as data models,
+ * properties or context data) is called: the shared entry is then cloned once,
+ * the read-only flag is propagated to the copy and all subsequent calls go to
+ * the private copy. The shared entry is therefore never modified and does not
+ * need to be cloned on each cache hit.
+ * <p>
+ * Property values read from the shared entry are returned as is when
+ * immutable, and otherwise copied (lists, arrays, maps, calendars, dates), so
+ * that callers modifying them do not change the shared entry. Values that
+ * cannot be copied cause the entry to be cloned.
+ *
+ * @since 5.7.3
+ */
+public class CopyOnWriteEntry implements InvocationHandler, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Marker interface implemented by copy-on-write entries, giving access to
+     * the read-only flag without triggering a copy.
+     */
+    public interface Shared {
+
+        boolean isReadOnlyEntry();
+
+        boolean isCopied();
+
+    }
+
+    /**
+     * Methods that only read state of the entry and can be called on the
+     * shared instance, the arrays they return being copied.
+     */
+    protected static final Set<String> READ_METHODS = new HashSet<String>(
+            Arrays.asList("getId", "getName", "getRef", "getParentRef",
+                    "getSessionId", "getType", "getSchemas",
+                    "getDeclaredSchemas", "hasSchema", "hasFacet", "getTitle",
+                    "getPathAsString", "getRepositoryName", "getCacheKey",
+                    "isImmutable", "isProxy", "isVersion", "isFolder",
+                    "toString", "hashCode", "equals"));
+
+    /**
+     * Classes of the property values that cannot be mutated by the caller.
+     */
+    protected static final Set<Class<?>> IMMUTABLE_VALUE_CLASSES = new HashSet<Class<?>>(
+            Arrays.<Class<?>> asList(String.class, Boolean.class, Long.class,
+                    Integer.class, Short.class, Byte.class, Double.class,
+                    Float.class, Character.class, BigDecimal.class,
+                    BigInteger.class));
+
+    // returned by copyValue for values it cannot copy
+    protected static final Object NOT_COPIED = new Object();
+
+    protected final DocumentModel shared;
+
+    protected DocumentModel copy;
+
+    protected CopyOnWriteEntry(DocumentModel shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Returns a copy-on-write view of the given shared entry.
+     */
+    public static DocumentModel wrap(DocumentModel shared) {
+        if (shared == null) {
+            return null;
+        }
+        return (DocumentModel) Proxy.newProxyInstance(
+                CopyOnWriteEntry.class.getClassLoader(), new Class<?>[] {
+                        DocumentModel.class, Shared.class },
+                new CopyOnWriteEntry(shared));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Shared.class) {
+            if ("isCopied".equals(name)) {
+                return Boolean.valueOf(isCopied());
+            }
+            return Boolean.valueOf(BaseSession.isReadOnlyEntry(getTarget()));
+        }
+        if (READ_METHODS.contains(name)) {
+            DocumentModel target = getTarget();
+            Object value = invoke(target, method, args);
+            if (target == shared && value instanceof Object[]) {
+                // getSchemas and getDeclaredSchemas may return the arrays
+                // of the shared entry
+                return ((Object[]) value).clone();
+            }
+            return value;
+        }
+        if (isValueRead(name, args)) {
+            DocumentModel target = getTarget();
+            Object value = invoke(target, method, args);
+            if (target != shared) {
+                return value;
+            }
+            // the caller may mutate the value, which must not be the one of
+            // the shared entry
+            Object copied = copyValue(value);
+            if (copied != NOT_COPIED) {
+                return copied;
+            }
+        }
+        return invoke(getCopy(), method, args);
+    }
+
+    protected static Object invoke(DocumentModel target, Method method,
+            Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Checks if the method returns property values, that can be read from the
+     * shared entry if immutable or copied. getProperty(schema, field) returns
+     * a value, while getProperty(xpath) returns a mutable Property.
+     */
+    protected boolean isValueRead(String name, Object[] args) {
+        return "getPropertyValue".equals(name)
+                || ("getProperty".equals(name) && args != null && args.length == 2)
+                || ("getProperties".equals(name) && args != null && args.length == 1);
+    }
+
+    /**
+     * Returns a copy of a property value that can be mutated without changing
+     * the original, the value itself if immutable, or {@link #NOT_COPIED}.
+     */
+    protected static Object copyValue(Object value) {
+        if (value == null || value instanceof Enum
+                || IMMUTABLE_VALUE_CLASSES.contains(value.getClass())) {
+            return value;
+        }
+        if (value instanceof Calendar) {
+            return ((Calendar) value).clone();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        if (value instanceof Object[]) {
+            Object[] array = ((Object[]) value).clone();
+            for (int i = 0; i < array.length; i++) {
+                array[i] = copyValue(array[i]);
+                if (array[i] == NOT_COPIED) {
+                    return NOT_COPIED;
+                }
+            }
+            return array;
+        }
+        if (value.getClass().isArray()) {
+            // array of primitives
+            int length = Array.getLength(value);
+            Object array = Array.newInstance(
+                    value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, array, 0, length);
+            return array;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>(((List<?>) value).size());
+            for (Object item : (List<?>) value) {
+                Object copied = copyValue(item);
+                if (copied == NOT_COPIED) {
+                    return NOT_COPIED;
+                }
+                list.add(copied);
+            }
+            return list;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> map = new HashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                Object copied = copyValue(entry.getValue());
+                if (copied == NOT_COPIED) {
+                    return NOT_COPIED;
+                }
+                map.put(entry.getKey(), copied);
+            }
+            return map;
+        }
+        return NOT_COPIED;
+    }
+
+    protected synchronized boolean isCopied() {
+        return copy != null;
+    }
+
+    protected synchronized DocumentModel getTarget() {
+        return copy != null ? copy : shared;
+    }
+
+    protected synchronized DocumentModel getCopy() {
+        if (copy == null) {
+            try {
+                copy = shared.clone();
+            } catch (CloneNotSupportedException e) {
+                // will never happen as long a DocumentModelImpl is used
+                throw new IllegalStateException(e);
+            }
+            // DocumentModelImpl#clone does not copy context data, hence
+            // propagate the read-only flag manually
+            if (BaseSession.isReadOnlyEntry(shared)) {
+                BaseSession.setReadOnlyEntry(copy);
+            }
+        }
+        return copy;
+    }
+
+}
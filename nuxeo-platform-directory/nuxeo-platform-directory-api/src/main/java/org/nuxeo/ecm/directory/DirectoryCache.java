@@ -18,15 +18,22 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
 import org.nuxeo.runtime.metrics.MetricsService;
 
 import com.codahale.metrics.Counter;
@@ -34,53 +41,58 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 
 /**
- * Very simple cache system to cache directory entry lookups (not search
- * queries).
+ * Cache system for directory entry lookups and, optionally, search queries.
+ * <p>
+ * Entries are kept in a bounded {@link SegmentedLRUCache}: lookups of
+ * different entries do not contend on a global lock, the least recently used
+ * entries are evicted one by one when the maximum size is reached, and
+ * concurrent misses on the same entry only hit the backend once. Cache hits
+ * return a {@link CopyOnWriteEntry} view of the shared entry, which is only
+ * cloned if the caller modifies it.
  * <p>
  * Beware that this cache is not transaction aware (which is not a problem for
  * LDAP directories anyway).
  * <p>
- * If we want to implement a smarter caching strategy we might prefer to base it
- * on jboss-cache instead of reinventing the wheel.
+ * Query results are cached in a separate store, keyed by the normalized query
+ * (filter, fulltext fields, order, references, limit and offset). As any
+ * change to the directory may change the result of any query, the whole query
+ * store is flushed on each invalidation.
  *
  * @author Olivier Grisel <ogrisel@nuxeo.com>
  */
 public class DirectoryCache {
 
-    private final static Log log = LogFactory.getLog(DirectoryCache.class);
-
     protected final String name;
 
-    protected final Map<String, CachedEntry> entryStore = new HashMap<String, CachedEntry>();
-
-    protected final Map<String, CachedEntry> entryStoreWithoutReferences = new HashMap<String, CachedEntry>();
-
     protected final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
 
-    protected final Counter hitsCounter;
-
     protected final Counter invalidationsCounter;
 
-    protected final Counter maxCounter;
-
-    protected final Counter sizeCounter;
-
     // time out in seconds an entry is kept in cache, entryCacheTimeout <= 0
     // means entries are kept in cache till manual invalidation
     protected int timeout = 0;
 
+    // maximum number of entries kept in cache, entryCacheMaxSize <= 0 means
+    // cache disabled; if the limit is reached, least recently used entries
+    // get evicted
+    protected int maxSize = 0;
+
+    protected volatile SegmentedLRUCache<String, DocumentModel> entryStore;
+
+    protected volatile SegmentedLRUCache<String, DocumentModel> entryStoreWithoutReferences;
+
+    // maximum number of query results kept in cache, queryMaxSize <= 0 means
+    // query cache disabled
+    protected int queryMaxSize = 0;
+
+    protected volatile SegmentedLRUCache<QueryKey, DocumentModelList> queryStore;
+
     protected DirectoryCache(String name) {
         this.name = name;
-        hitsCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "hits"));
-        invalidationsCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "invalidations"));
-        sizeCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "size"));
-        maxCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "max"));
+        invalidationsCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "cache", "invalidations"));
     }
 
-    // maximum number of entries kept in cache, entryCacheMaxSize <= 0 means
-    // cache disabled; if the limit is reached, all entries get invalidated
-    protected int maxSize = 0;
-
     protected boolean isCacheEnabled() {
         return maxSize > 0;
     }
@@ -90,84 +102,117 @@ public class DirectoryCache {
         return getEntry(entryId, source, true);
     }
 
-    public DocumentModel getEntry(String entryId, EntrySource source,
-            boolean fetchReferences) throws DirectoryException {
-        if (!isCacheEnabled()) {
+    public DocumentModel getEntry(String entryId, final EntrySource source,
+            final boolean fetchReferences) throws DirectoryException {
+        SegmentedLRUCache<String, DocumentModel> store = fetchReferences ? entryStore
+                : entryStoreWithoutReferences;
+        if (!isCacheEnabled() || store == null) {
             return source.getEntryFromSource(entryId, fetchReferences);
         }
-
-        DocumentModel dm;
-        if (fetchReferences) {
-            CachedEntry entry = entryStore.get(entryId);
-            if (entry == null || entry.isExpired()) {
-                // fetch the entry from the backend and cache it for later reuse
-                dm = source.getEntryFromSource(entryId, fetchReferences);
-                synchronized (this) {
-                    // check that the cache limit has not yet been reached
-                    if (maxSize > 0 && entryStore.size() >= maxSize) {
-                        log.warn("Directory cacheMaxSize for " + name
-                                + " is too small, flushing.");
-                        entryStore.clear();
-                    }
-                    entryStore.put(entryId, new CachedEntry(dm, timeout));
-                    sizeCounter.inc();
-                    if (sizeCounter.getCount() > maxCounter.getCount()) {
-                        maxCounter.inc();
+        DocumentModel dm = store.get(entryId,
+                new SegmentedLRUCache.Loader<String, DocumentModel>() {
+                    @Override
+                    public DocumentModel load(String id)
+                            throws DirectoryException {
+                        return source.getEntryFromSource(id, fetchReferences);
                     }
+                });
+        // cached entries are shared, callers get a copy-on-write view
+        return BaseSession.createSharedEntryModel(dm);
+    }
+
+    /**
+     * Returns the entries with the given ids, in the order of the ids, and
+     * fetches all the ones missing from the cache with a single call to the
+     * source.
+     *
+     * @since 5.7.3
+     */
+    public DocumentModelList getEntries(Collection<String> entryIds,
+            final EntrySource source, final boolean fetchReferences)
+            throws DirectoryException {
+        Set<String> ids = new LinkedHashSet<String>(entryIds);
+        DocumentModelList entries = new DocumentModelListImpl(ids.size());
+        SegmentedLRUCache<String, DocumentModel> store = fetchReferences ? entryStore
+                : entryStoreWithoutReferences;
+        if (!isCacheEnabled() || store == null) {
+            Map<String, DocumentModel> found = source.getEntriesFromSource(
+                    ids, fetchReferences);
+            for (String id : ids) {
+                DocumentModel entry = found.get(id);
+                if (entry != null) {
+                    entries.add(entry);
                 }
-            } else {
-                dm = entry.getDocumentModel();
-                hitsCounter.inc();
             }
-        } else {
-            CachedEntry entry = entryStoreWithoutReferences.get(entryId);
-            if (entry == null || entry.isExpired()) {
-                // fetch the entry from the backend and cache it for later reuse
-                dm = source.getEntryFromSource(entryId, fetchReferences);
-                synchronized (this) {
-                    // check that the cache limit has not yet been reached
-                    if (maxSize > 0
-                            && entryStoreWithoutReferences.size() >= maxSize) {
-                        entryStoreWithoutReferences.clear();
-                    }
-                    entryStoreWithoutReferences.put(entryId, new CachedEntry(
-                            dm, timeout));
-                    sizeCounter.inc();
-                    if (sizeCounter.getCount() > maxCounter.getCount()) {
-                        maxCounter.inc();
+            return entries;
+        }
+        Map<String, DocumentModel> found = store.getAll(ids,
+                new SegmentedLRUCache.BulkLoader<String, DocumentModel>() {
+                    @Override
+                    public Map<String, DocumentModel> loadAll(
+                            Collection<String> missingIds)
+                            throws DirectoryException {
+                        return source.getEntriesFromSource(missingIds,
+                                fetchReferences);
                     }
-                }
-            } else {
-                dm = entry.getDocumentModel();
-                hitsCounter.inc();
+                });
+        for (String id : ids) {
+            DocumentModel entry = found.get(id);
+            if (entry != null) {
+                entries.add(BaseSession.createSharedEntryModel(entry));
             }
         }
-        try {
-            if (dm == null) {
-                return null;
-            }
-            DocumentModel clone = dm.clone();
-            // DocumentModelImpl#clone does not copy context data, hence
-            // propagate the read-only flag manually
-            if (BaseSession.isReadOnlyEntry(dm)) {
-                BaseSession.setReadOnlyEntry(clone);
-            }
-            return clone;
-        } catch (CloneNotSupportedException e) {
-            // will never happen as long a DocumentModelImpl is used
-            return dm;
+        return entries;
+    }
+
+    /**
+     * Returns the result of the query, from the query cache if enabled and if
+     * the query is cacheable, or from the source otherwise.
+     *
+     * @since 5.7.3
+     */
+    public DocumentModelList query(final Map<String, Serializable> filter,
+            final Set<String> fulltext, final Map<String, String> orderBy,
+            final boolean fetchReferences, final int limit, final int offset,
+            final QuerySource source) throws DirectoryException {
+        SegmentedLRUCache<QueryKey, DocumentModelList> store = queryStore;
+        if (store == null || !QueryKey.isCacheable(filter)) {
+            return source.queryFromSource(filter, fulltext, orderBy,
+                    fetchReferences, limit, offset);
+        }
+        QueryKey key = new QueryKey(filter, fulltext, orderBy,
+                fetchReferences, limit, offset);
+        DocumentModelList entries = store.get(key,
+                new SegmentedLRUCache.Loader<QueryKey, DocumentModelList>() {
+                    @Override
+                    public DocumentModelList load(QueryKey key)
+                            throws DirectoryException {
+                        return source.queryFromSource(filter, fulltext,
+                                orderBy, fetchReferences, limit, offset);
+                    }
+                });
+        // cached entries are shared, callers get copy-on-write views in a
+        // list of their own
+        DocumentModelList result = new DocumentModelListImpl(entries.size());
+        for (DocumentModel entry : entries) {
+            result.add(BaseSession.createSharedEntryModel(entry));
         }
+        return result;
     }
 
     public void invalidate(List<String> entryIds) {
+        invalidationsCounter.inc(clear(queryStore));
         if (isCacheEnabled()) {
-            synchronized (this) {
-                for (String entryId : entryIds) {
-                    entryStore.remove(entryId);
-                    entryStoreWithoutReferences.remove(entryId);
-                    sizeCounter.dec();
-                    invalidationsCounter.inc();
+            SegmentedLRUCache<String, DocumentModel> store = entryStore;
+            SegmentedLRUCache<String, DocumentModel> storeWithoutReferences = entryStoreWithoutReferences;
+            for (String entryId : entryIds) {
+                if (store != null) {
+                    store.remove(entryId);
+                }
+                if (storeWithoutReferences != null) {
+                    storeWithoutReferences.remove(entryId);
                 }
+                invalidationsCounter.inc();
             }
         }
     }
@@ -177,44 +222,179 @@ public class DirectoryCache {
     }
 
     public void invalidateAll() {
+        invalidationsCounter.inc(clear(queryStore));
         if (isCacheEnabled()) {
-            synchronized (this) {
-                long count = sizeCounter.getCount();
-                sizeCounter.dec(count);
-                invalidationsCounter.inc(count);
-                entryStore.clear();
-                entryStoreWithoutReferences.clear();
-            }
+            int count = clear(entryStore) + clear(entryStoreWithoutReferences);
+            invalidationsCounter.inc(count);
         }
     }
 
-    public void setTimeout(int timeout) {
+    protected static int clear(SegmentedLRUCache<?, ?> store) {
+        return store == null ? 0 : store.clear();
+    }
+
+    public synchronized void setTimeout(int timeout) {
         this.timeout = timeout;
+        long ttl = getTimeToLive();
+        if (entryStore != null) {
+            entryStore.setTimeToLive(ttl);
+            entryStoreWithoutReferences.setTimeToLive(ttl);
+        }
+        if (queryStore != null) {
+            queryStore.setTimeToLive(ttl);
+        }
     }
 
-    public void setMaxSize(int maxSize) {
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize == this.maxSize) {
+            return;
+        }
+        clear(entryStore);
+        clear(entryStoreWithoutReferences);
         this.maxSize = maxSize;
+        if (maxSize > 0) {
+            // the main store keeps the metric names of the previous cache
+            String metricName = MetricRegistry.name("nuxeo", "directories",
+                    name, "cache");
+            entryStore = new SegmentedLRUCache<String, DocumentModel>(maxSize,
+                    getTimeToLive(), metrics, metricName);
+            entryStoreWithoutReferences = new SegmentedLRUCache<String, DocumentModel>(
+                    maxSize, getTimeToLive(), metrics, MetricRegistry.name(
+                            metricName, "withoutReferences"));
+        } else {
+            entryStore = null;
+            entryStoreWithoutReferences = null;
+        }
     }
 
-    protected static class CachedEntry {
+    /**
+     * Sets the maximum number of query results kept in cache, {@code <= 0}
+     * disables the query cache. Query results expire after the same timeout
+     * as entries.
+     *
+     * @since 5.7.3
+     */
+    public synchronized void setQueryMaxSize(int queryMaxSize) {
+        if (queryMaxSize == this.queryMaxSize) {
+            return;
+        }
+        clear(queryStore);
+        this.queryMaxSize = queryMaxSize;
+        if (queryMaxSize > 0) {
+            queryStore = new SegmentedLRUCache<QueryKey, DocumentModelList>(
+                    queryMaxSize, getTimeToLive(), metrics,
+                    MetricRegistry.name("nuxeo", "directories", name, "cache",
+                            "queries"));
+        } else {
+            queryStore = null;
+        }
+    }
+
+    protected long getTimeToLive() {
+        return timeout > 0 ? TimeUnit.SECONDS.toNanos(timeout) : 0;
+    }
+
+    /**
+     * Normalized query, used as query cache key: filter entries and fulltext
+     * fields are sorted, fulltext fields not in the filter are ignored, and
+     * the order of the sort criteria is kept.
+     *
+     * @since 5.7.3
+     */
+    protected static class QueryKey {
+
+        protected final Map<String, Serializable> filter;
+
+        protected final Set<String> fulltext;
 
-        protected final DocumentModel entry;
+        protected final List<String> orderBy;
 
-        protected final Calendar expirationDate;
+        protected final boolean fetchReferences;
 
-        CachedEntry(DocumentModel entry, int timeout) {
-            this.entry = entry;
-            expirationDate = Calendar.getInstance();
-            expirationDate.add(Calendar.SECOND, timeout);
+        protected final int limit;
+
+        protected final int offset;
+
+        protected final int hashCode;
+
+        protected QueryKey(Map<String, Serializable> filter,
+                Set<String> fulltext, Map<String, String> orderBy,
+                boolean fetchReferences, int limit, int offset) {
+            this.filter = new TreeMap<String, Serializable>(filter);
+            if (fulltext == null || fulltext.isEmpty()) {
+                this.fulltext = Collections.emptySet();
+            } else {
+                this.fulltext = new TreeSet<String>(fulltext);
+                this.fulltext.retainAll(filter.keySet());
+            }
+            if (orderBy == null || orderBy.isEmpty()) {
+                this.orderBy = Collections.emptyList();
+            } else {
+                this.orderBy = new ArrayList<String>(orderBy.size() * 2);
+                for (Map.Entry<String, String> es : orderBy.entrySet()) {
+                    this.orderBy.add(es.getKey());
+                    String order = es.getValue();
+                    this.orderBy.add(order == null ? null : order.toLowerCase());
+                }
+            }
+            this.fetchReferences = fetchReferences;
+            // all negative values mean no limit / no offset
+            this.limit = limit > 0 ? limit : -1;
+            this.offset = offset > 0 ? offset : -1;
+            int h = this.filter.hashCode();
+            h = 31 * h + this.fulltext.hashCode();
+            h = 31 * h + this.orderBy.hashCode();
+            h = 31 * h + (fetchReferences ? 1 : 0);
+            h = 31 * h + this.limit;
+            h = 31 * h + this.offset;
+            hashCode = h;
         }
 
-        public DocumentModel getDocumentModel() {
-            return entry;
+        /**
+         * Only queries on simple immutable values with a proper equals can be
+         * cached, other filters (dates, lists, blobs, backend specific
+         * filters) are always sent to the source.
+         */
+        protected static boolean isCacheable(Map<String, Serializable> filter) {
+            for (Serializable value : filter.values()) {
+                if (value != null && !(value instanceof String)
+                        && !(value instanceof Number)
+                        && !(value instanceof Boolean)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            return hashCode == other.hashCode
+                    && fetchReferences == other.fetchReferences
+                    && limit == other.limit && offset == other.offset
+                    && filter.equals(other.filter)
+                    && fulltext.equals(other.fulltext)
+                    && orderBy.equals(other.orderBy);
         }
 
-        public boolean isExpired() {
-            return expirationDate.before(Calendar.getInstance());
+        @Override
+        public String toString() {
+            return "QueryKey(" + filter + ", " + fulltext + ", " + orderBy
+                    + ", " + fetchReferences + ", " + limit + ", " + offset
+                    + ")";
         }
+
     }
 
 }
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache invalidation event for a directory, exchanged between cluster nodes
+ * through a {@link DirectoryInvalidationTransport}.
+ *
+ * @since 5.7.3
+ */
+public class DirectoryInvalidation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final String directoryName;
+
+    protected final List<String> entryIds;
+
+    protected String nodeId;
+
+    /**
+     * @param directoryName the name of the directory
+     * @param entryIds the invalidated entries, or {@code null} if the whole
+     *            directory cache and the caches of the directories linked by
+     *            references are invalidated
+     */
+    public DirectoryInvalidation(String directoryName,
+            Collection<String> entryIds) {
+        this.directoryName = directoryName;
+        this.entryIds = entryIds == null ? null
+                : Collections.unmodifiableList(new ArrayList<String>(entryIds));
+    }
+
+    public String getDirectoryName() {
+        return directoryName;
+    }
+
+    /**
+     * Returns the invalidated entry ids, or {@code null} if all the entries
+     * are invalidated.
+     */
+    public List<String> getEntryIds() {
+        return entryIds;
+    }
+
+    public boolean isAll() {
+        return entryIds == null;
+    }
+
+    /**
+     * Returns the id of the node that published this invalidation.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + directoryName + ", "
+                + (entryIds == null ? "all" : entryIds) + ", node=" + nodeId
+                + ")";
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+/**
+ * Transport used to propagate directory cache invalidations to the other
+ * nodes of a cluster.
+ * <p>
+ * Implementations are contributed to the {@code invalidationTransport}
+ * extension point of the directory service. They must not deliver an
+ * invalidation back to the node that published it.
+ *
+ * @since 5.7.3
+ */
+public interface DirectoryInvalidationTransport {
+
+    /**
+     * Receives the invalidations published by the other nodes.
+     */
+    interface Listener {
+
+        void invalidationReceived(DirectoryInvalidation invalidation);
+
+    }
+
+    /**
+     * Starts the transport for the given local node.
+     */
+    void activate(String nodeId, Listener listener) throws DirectoryException;
+
+    /**
+     * Sends the invalidation to the other nodes.
+     */
+    void publish(DirectoryInvalidation invalidation) throws DirectoryException;
+
+    /**
+     * Stops the transport.
+     */
+    void deactivate();
+
+}
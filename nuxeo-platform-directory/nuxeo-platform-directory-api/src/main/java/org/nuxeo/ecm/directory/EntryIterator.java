@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.Iterator;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Iterator over directory entries that are fetched from the backend as the
+ * iteration goes, so that the memory used does not depend on the number of
+ * entries.
+ * <p>
+ * The iterator holds backend resources (database cursor, LDAP connection)
+ * until it is exhausted or closed: it must always be closed, typically in a
+ * {@code finally} block. Backend errors during the iteration are thrown as
+ * {@link org.nuxeo.ecm.core.api.ClientRuntimeException}.
+ *
+ * @see Session#iterate
+ * @since 5.7.3
+ */
+public interface EntryIterator extends Iterator<DocumentModel> {
+
+    /**
+     * Releases the resources held by the iterator. Can be called several
+     * times.
+     */
+    void close();
+
+}
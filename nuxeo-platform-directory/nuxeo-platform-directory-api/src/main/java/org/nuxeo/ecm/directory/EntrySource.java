@@ -18,6 +18,9 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
+import java.util.Map;
+
 import org.nuxeo.ecm.core.api.DocumentModel;
 
 /**
@@ -30,4 +33,15 @@ public interface EntrySource {
     DocumentModel getEntryFromSource(String entryId, boolean fetchReferences)
             throws DirectoryException;
 
+    /**
+     * Fetches several entries at once.
+     *
+     * @return the entries found, keyed by requested id; ids not found may be
+     *         absent or mapped to {@code null}
+     * @since 5.7.3
+     */
+    Map<String, DocumentModel> getEntriesFromSource(
+            Collection<String> entryIds, boolean fetchReferences)
+            throws DirectoryException;
+
 }
@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.DocumentModelList;
+
+/**
+ * Interface to make Session behave as a source of query results for a
+ * DirectoryCache instance.
+ *
+ * @since 5.7.3
+ */
+public interface QuerySource {
+
+    DocumentModelList queryFromSource(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset)
+            throws DirectoryException;
+
+}
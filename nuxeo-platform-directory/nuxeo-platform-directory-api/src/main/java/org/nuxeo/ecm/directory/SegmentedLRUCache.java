@@ -0,0 +1,481 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Bounded, lock-striped LRU cache used by the directory caches.
+ * <p>
+ * Keys are spread over a fixed number of segments, each one being an
+ * access-ordered map guarded by its own lock, so that readers of different
+ * keys do not contend on a single monitor and eviction only drops the least
+ * recently used entry of the segment instead of flushing the whole cache.
+ * Expiration uses {@link System#nanoTime()}. Concurrent misses on the same key
+ * are collapsed so that the value is loaded only once.
+ * <p>
+ * {@code null} values are cached as well (negative lookups).
+ * <p>
+ * The following metrics are maintained below the given metric name: {@code
+ * hits}, {@code misses}, {@code evictions}, {@code size}, {@code max} and the
+ * {@code loads} timer.
+ *
+ * @since 5.7.3
+ */
+public class SegmentedLRUCache<K, V> {
+
+    /**
+     * Loads a missing value.
+     */
+    public interface Loader<K, V> {
+
+        V load(K key) throws DirectoryException;
+
+    }
+
+    /**
+     * Loads several missing values at once.
+     *
+     * @since 5.7.3
+     */
+    public interface BulkLoader<K, V> {
+
+        /**
+         * Returns the loaded values; keys that are absent from the returned
+         * map are cached as {@code null}.
+         */
+        Map<K, V> loadAll(Collection<K> keys) throws DirectoryException;
+
+    }
+
+    protected static final int MAX_SEGMENTS = 16;
+
+    // minimum number of entries per segment, to keep LRU meaningful for
+    // small caches
+    protected static final int MIN_SEGMENT_SIZE = 32;
+
+    protected final Segment<K, V>[] segments;
+
+    protected final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    protected final int maxSize;
+
+    // time to live in nanoseconds, <= 0 means no expiration
+    protected volatile long ttlNanos;
+
+    protected final Counter hitsCounter;
+
+    protected final Counter missesCounter;
+
+    protected final Counter evictionsCounter;
+
+    protected final Counter sizeCounter;
+
+    protected final Counter maxCounter;
+
+    protected final Timer loadsTimer;
+
+    @SuppressWarnings("unchecked")
+    public SegmentedLRUCache(int maxSize, long ttlNanos,
+            MetricRegistry registry, String metricName) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 * MIN_SEGMENT_SIZE <= maxSize) {
+            count *= 2;
+        }
+        int segmentSize = (maxSize + count - 1) / count;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>(this, Math.max(1, segmentSize));
+        }
+        hitsCounter = registry.counter(MetricRegistry.name(metricName, "hits"));
+        missesCounter = registry.counter(MetricRegistry.name(metricName,
+                "misses"));
+        evictionsCounter = registry.counter(MetricRegistry.name(metricName,
+                "evictions"));
+        sizeCounter = registry.counter(MetricRegistry.name(metricName, "size"));
+        maxCounter = registry.counter(MetricRegistry.name(metricName, "max"));
+        loadsTimer = registry.timer(MetricRegistry.name(metricName, "loads"));
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setTimeToLive(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    protected int segmentIndex(Object key) {
+        int h = key.hashCode();
+        // spread bits, as the low bits of String hashes are poorly
+        // distributed for sequential ids
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return h & (segments.length - 1);
+    }
+
+    protected Segment<K, V> segmentFor(Object key) {
+        return segments[segmentIndex(key)];
+    }
+
+    /**
+     * Returns the cached value for the key, loading it with the given loader
+     * if absent or expired. Concurrent callers missing on the same key wait
+     * for a single load.
+     */
+    public V get(final K key, final Loader<K, V> loader)
+            throws DirectoryException {
+        Entry<V> entry = segmentFor(key).get(key, System.nanoTime());
+        if (entry != null) {
+            hitsCounter.inc();
+            return entry.value;
+        }
+        missesCounter.inc();
+        final Segment<K, V> segment = segmentFor(key);
+        final long stamp = segment.epoch;
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws DirectoryException {
+                Timer.Context context = loadsTimer.time();
+                V value;
+                try {
+                    value = loader.load(key);
+                } finally {
+                    context.stop();
+                }
+                segment.put(key, newEntry(value), stamp);
+                return value;
+            }
+        });
+        FutureTask<V> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        return waitFor(running);
+    }
+
+    /**
+     * Returns the cached value for the key without loading it.
+     *
+     * @return the value, or {@code null} if absent, expired or cached as
+     *         {@code null}
+     * @since 5.7.3
+     */
+    public V getIfPresent(K key) {
+        Entry<V> entry = segmentFor(key).get(key, System.nanoTime());
+        if (entry == null) {
+            missesCounter.inc();
+            return null;
+        }
+        hitsCounter.inc();
+        return entry.value;
+    }
+
+    /**
+     * Returns the cached values for the keys, loading all the absent or
+     * expired ones with a single call to the given loader.
+     * <p>
+     * Unlike {@link #get}, concurrent misses on the same keys are not
+     * collapsed.
+     *
+     * @return the values, keyed by key (possibly {@code null} values)
+     * @since 5.7.3
+     */
+    public Map<K, V> getAll(Collection<K> keys, BulkLoader<K, V> loader)
+            throws DirectoryException {
+        Map<K, V> values = new HashMap<K, V>();
+        Set<K> missing = new LinkedHashSet<K>();
+        long now = System.nanoTime();
+        for (K key : keys) {
+            if (values.containsKey(key) || missing.contains(key)) {
+                continue;
+            }
+            Entry<V> entry = segmentFor(key).get(key, now);
+            if (entry != null) {
+                hitsCounter.inc();
+                values.put(key, entry.value);
+            } else {
+                missing.add(key);
+            }
+        }
+        if (missing.isEmpty()) {
+            return values;
+        }
+        missesCounter.inc(missing.size());
+        long[] stamps = new long[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            stamps[i] = segments[i].epoch;
+        }
+        Map<K, V> loaded;
+        Timer.Context context = loadsTimer.time();
+        try {
+            loaded = loader.loadAll(missing);
+        } finally {
+            context.stop();
+        }
+        for (K key : missing) {
+            V value = loaded.get(key);
+            values.put(key, value);
+            int index = segmentIndex(key);
+            segments[index].put(key, newEntry(value), stamps[index]);
+        }
+        return values;
+    }
+
+    protected V waitFor(FutureTask<V> task) throws DirectoryException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // the load is in progress in another thread, wait for it
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DirectoryException) {
+                throw (DirectoryException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DirectoryException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void put(K key, V value) {
+        segmentFor(key).put(key, newEntry(value), -1);
+    }
+
+    /**
+     * Returns the invalidation stamp of the key, to be taken before computing
+     * a value outside of {@link #get(Object, Loader)} and passed to
+     * {@link #put(Object, Object, long)}.
+     *
+     * @since 5.7.3
+     */
+    public long getStamp(K key) {
+        return segmentFor(key).epoch;
+    }
+
+    /**
+     * Stores the value unless the key may have been invalidated since the
+     * given stamp was taken.
+     *
+     * @return {@code true} if the value was stored
+     * @since 5.7.3
+     */
+    public boolean put(K key, V value, long stamp) {
+        return segmentFor(key).put(key, newEntry(value), stamp);
+    }
+
+    protected Entry<V> newEntry(V value) {
+        long ttl = ttlNanos;
+        long expiration = ttl > 0 ? System.nanoTime() + ttl : 0;
+        return new Entry<V>(value, expiration);
+    }
+
+    /**
+     * Removes the key from the cache.
+     *
+     * @return {@code true} if an entry was actually removed
+     */
+    public boolean remove(K key) {
+        loading.remove(key);
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Removes all the entries of the cache.
+     *
+     * @return the number of entries removed
+     */
+    public int clear() {
+        loading.clear();
+        int count = 0;
+        for (Segment<K, V> segment : segments) {
+            count += segment.clear();
+        }
+        return count;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    protected static class Entry<V> {
+
+        protected final V value;
+
+        // System.nanoTime() based, 0 means never
+        protected final long expiration;
+
+        protected Entry(V value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        protected boolean isExpired(long now) {
+            return expiration != 0 && now - expiration > 0;
+        }
+
+    }
+
+    @SuppressWarnings("serial")
+    protected static class Segment<SK, SV> extends ReentrantLock {
+
+        protected final SegmentedLRUCache<SK, SV> cache;
+
+        protected final int capacity;
+
+        protected final LinkedHashMap<SK, Entry<SV>> map;
+
+        // bumped under the lock on each invalidation of the segment, so that
+        // loads started before it are not stored afterwards; invalidating a
+        // key does not discard the loads of keys of other segments
+        protected volatile long epoch;
+
+        protected Segment(SegmentedLRUCache<SK, SV> cache, int capacity) {
+            this.cache = cache;
+            this.capacity = capacity;
+            map = new LinkedHashMap<SK, Entry<SV>>(Math.min(capacity, 1024),
+                    0.75f, true);
+        }
+
+        protected Entry<SV> get(SK key, long now) {
+            lock();
+            try {
+                Entry<SV> entry = map.get(key);
+                if (entry != null && entry.isExpired(now)) {
+                    map.remove(key);
+                    cache.sizeCounter.dec();
+                    return null;
+                }
+                return entry;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Stores the entry, unless the segment was invalidated since the
+         * given epoch ({@code -1} to store unconditionally).
+         */
+        protected boolean put(SK key, Entry<SV> entry, long stamp) {
+            int evicted = 0;
+            lock();
+            try {
+                if (stamp != -1 && stamp != epoch) {
+                    return false;
+                }
+                if (map.put(key, entry) == null) {
+                    cache.sizeCounter.inc();
+                }
+                Iterator<Map.Entry<SK, Entry<SV>>> it = map.entrySet().iterator();
+                while (map.size() > capacity && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                    evicted++;
+                }
+            } finally {
+                unlock();
+            }
+            if (evicted > 0) {
+                cache.sizeCounter.dec(evicted);
+                cache.evictionsCounter.inc(evicted);
+            } else if (cache.sizeCounter.getCount() > cache.maxCounter.getCount()) {
+                cache.maxCounter.inc();
+            }
+            return true;
+        }
+
+        protected boolean remove(SK key) {
+            lock();
+            try {
+                epoch++;
+                if (map.remove(key) == null) {
+                    return false;
+                }
+            } finally {
+                unlock();
+            }
+            cache.sizeCounter.dec();
+            return true;
+        }
+
+        protected int clear() {
+            int count;
+            lock();
+            try {
+                epoch++;
+                count = map.size();
+                map.clear();
+            } finally {
+                unlock();
+            }
+            cache.sizeCounter.dec(count);
+            return count;
+        }
+
+        protected int size() {
+            lock();
+            try {
+                return map.size();
+            } finally {
+                unlock();
+            }
+        }
+
+    }
+
+}
@@ -19,6 +19,7 @@
 package org.nuxeo.ecm.directory;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -78,6 +79,22 @@ public interface Session {
      */
     DocumentModelList getEntries() throws ClientException, DirectoryException;
 
+    /**
+     * Retrieves the entries with the given ids, using as few backend requests
+     * as possible.
+     * <p>
+     * Ids for which no entry exists are skipped and duplicate ids are returned
+     * once. The returned entries follow the order of the given ids.
+     *
+     * @param ids the entry ids
+     * @param fetchReferences boolean stating if references have to be fetched
+     * @return the entries found
+     * @throws DirectoryException
+     * @since 5.7.3
+     */
+    DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException;
+
     /**
      * Creates an entry in a directory.
      * 
@@ -255,6 +272,31 @@ public interface Session {
             boolean fetchReferences, int limit, int offset)
             throws ClientException, DirectoryException;
 
+    /**
+     * Executes a query and returns an iterator over the results, fetching the
+     * entries from the backend as the iteration goes instead of loading them
+     * all in memory. Meant for exports and synchronization jobs over large
+     * directories: the size limit configured for the directory does not
+     * apply and the entries do not go through the directory cache.
+     * <p>
+     * The returned iterator must be closed.
+     *
+     * @param filter a filter to apply to entries in directory
+     * @param fulltext a set of field that should be treated as a fulltext
+     *            search
+     * @param orderBy a LinkedHashMap with the 'order by' criterias.The key of
+     *            an entry of this map represents the column name and the value
+     *            of the same entry represent the column order,which may be
+     *            'asc' or 'desc'.
+     * @param fetchReferences boolean stating if references have to be fetched
+     * @see BaseSession#iterate
+     * @since 5.7.3
+     */
+    EntryIterator iterate(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) throws ClientException,
+            DirectoryException;
+
     // TODO: create an API to allow sql AND/OR/NOT/LIKE conditions
     // public DocumentModelList query(Criteria criteria ) throws
     // DirectoryException;
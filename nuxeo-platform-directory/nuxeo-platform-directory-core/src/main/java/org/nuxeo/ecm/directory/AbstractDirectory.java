@@ -19,6 +19,7 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -32,6 +33,9 @@ import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelComparator;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.RuntimeService;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.metrics.MetricsService;
 
 import com.codahale.metrics.Counter;
@@ -71,6 +75,8 @@ public abstract class AbstractDirectory implements Directory {
     }
     /**
      * Invalidate my cache and the caches of linked directories by references.
+     * <p>
+     * The other cluster nodes are notified.
      */
     public void invalidateCaches() throws DirectoryException {
         cache.invalidateAll();
@@ -80,6 +86,62 @@ public abstract class AbstractDirectory implements Directory {
                 targetDir.invalidateDirectoryCache();
             }
         }
+        publishInvalidation(getName(), null);
+    }
+
+    /**
+     * Invalidate the given entries in my cache, without touching the caches
+     * of linked directories.
+     * <p>
+     * The other cluster nodes are notified.
+     *
+     * @since 5.7.3
+     */
+    public void invalidateEntries(Collection<String> entryIds)
+            throws DirectoryException {
+        if (entryIds.isEmpty()) {
+            return;
+        }
+        cache.invalidate(new ArrayList<String>(entryIds));
+        publishInvalidation(getName(), entryIds);
+    }
+
+    /**
+     * Notifies the other cluster nodes that entries of a directory have been
+     * invalidated.
+     *
+     * @param entryIds the entries, or {@code null} for the whole directory and
+     *            its linked directories
+     * @since 5.7.3
+     */
+    public static void publishInvalidation(String directoryName,
+            Collection<String> entryIds) {
+        RuntimeService runtime = Framework.getRuntime();
+        if (runtime == null) {
+            return;
+        }
+        Object service = runtime.getComponent(DirectoryService.NAME);
+        if (service instanceof DirectoryServiceImpl) {
+            ((DirectoryServiceImpl) service).publishInvalidation(new DirectoryInvalidation(
+                    directoryName, entryIds));
+        }
+    }
+
+    /**
+     * Checks if the given directory has been written in the transaction of
+     * the current thread, see
+     * {@link DirectoryServiceImpl#isWrittenInTransaction}.
+     *
+     * @since 5.7.3
+     */
+    public static boolean isWrittenInTransaction(String directoryName) {
+        RuntimeService runtime = Framework.getRuntime();
+        if (runtime == null) {
+            return false;
+        }
+        Object service = runtime.getComponent(DirectoryService.NAME);
+        return service instanceof DirectoryServiceImpl
+                && ((DirectoryServiceImpl) service).isWrittenInTransaction(directoryName);
     }
 
     public DirectoryFieldMapper getFieldMapper() {
@@ -19,6 +19,11 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.runtime.api.Framework;
 
@@ -79,6 +84,42 @@ public abstract class AbstractReference implements Reference {
         return directoryService;
     }
 
+    /**
+     * Returns the target ids of each of the given sources.
+     * <p>
+     * This implementation calls {@link #getTargetIdsForSource} for each
+     * source, references able to resolve several sources at once override it.
+     *
+     * @return the target ids, keyed by source id, for all the given sources
+     * @since 5.7.3
+     */
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException {
+        Map<String, List<String>> targetIds = new HashMap<String, List<String>>();
+        for (String sourceId : sourceIds) {
+            targetIds.put(sourceId, getTargetIdsForSource(sourceId));
+        }
+        return targetIds;
+    }
+
+    /**
+     * Returns the source ids of each of the given targets.
+     * <p>
+     * This implementation calls {@link #getSourceIdsForTarget} for each
+     * target, references able to resolve several targets at once override it.
+     *
+     * @return the source ids, keyed by target id, for all the given targets
+     * @since 5.7.3
+     */
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException {
+        Map<String, List<String>> sourceIds = new HashMap<String, List<String>>();
+        for (String targetId : targetIds) {
+            sourceIds.put(targetId, getSourceIdsForTarget(targetId));
+        }
+        return sourceIds;
+    }
+
     /**
      * @since 5.6
      */
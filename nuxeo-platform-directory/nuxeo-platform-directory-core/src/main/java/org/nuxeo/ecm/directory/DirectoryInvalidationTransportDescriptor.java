@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Contribution of the {@link DirectoryInvalidationTransport} used to notify
+ * the other cluster nodes of directory cache invalidations.
+ *
+ * @since 5.7.3
+ */
+@XObject("transport")
+public class DirectoryInvalidationTransportDescriptor {
+
+    @XNode("@class")
+    protected Class<? extends DirectoryInvalidationTransport> klass;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    public Class<? extends DirectoryInvalidationTransport> getKlass() {
+        return klass;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+}
@@ -21,7 +21,15 @@ package org.nuxeo.ecm.directory;
 import static org.nuxeo.ecm.directory.localconfiguration.DirectoryConfigurationConstants.DIRECTORY_CONFIGURATION_FACET;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,22 +42,39 @@ import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
 import org.nuxeo.ecm.directory.registry.DirectoryFactoryMapper;
 import org.nuxeo.ecm.directory.registry.DirectoryFactoryMapperRegistry;
 import org.nuxeo.ecm.directory.registry.DirectoryFactoryRegistry;
+import org.nuxeo.runtime.api.ConnectionHelper;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.DefaultComponent;
 import org.nuxeo.runtime.model.Extension;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 public class DirectoryServiceImpl extends DefaultComponent implements
-        DirectoryService {
+        DirectoryService, DirectoryInvalidationTransport.Listener {
 
     protected static final String DELIMITER_BETWEEN_DIRECTORY_NAME_AND_SUFFIX = "_";
 
+    /**
+     * @since 5.7.3
+     */
+    protected static final String INVALIDATION_TRANSPORT_XP = "invalidationTransport";
+
     private static final Log log = LogFactory.getLog(DirectoryServiceImpl.class);
 
     protected DirectoryFactoryRegistry factories;
 
     protected DirectoryFactoryMapperRegistry factoriesByDirectoryName;
 
+    // @since 5.7.3
+    protected final String nodeId = UUID.randomUUID().toString();
+
+    // @since 5.7.3
+    protected volatile DirectoryInvalidationTransport invalidationTransport;
+
+    // directories written in the transaction of the current thread
+    // @since 5.7.3
+    protected final ThreadLocal<TransactionWrites> transactionWrites = new ThreadLocal<TransactionWrites>();
+
     @Override
     public void applicationStarted(ComponentContext context) throws Exception {
         if (Framework.isTestModeSet()) {
@@ -188,6 +213,7 @@ public class DirectoryServiceImpl extends DefaultComponent implements
 
     @Override
     public void deactivate(ComponentContext context) throws Exception {
+        setInvalidationTransport(null);
         for (DirectoryFactory factory : factories.getFactories()) {
             factory.shutdown();
         }
@@ -198,6 +224,12 @@ public class DirectoryServiceImpl extends DefaultComponent implements
     @Override
     public void registerExtension(Extension extension) throws Exception {
         Object[] contribs = extension.getContributions();
+        if (INVALIDATION_TRANSPORT_XP.equals(extension.getExtensionPoint())) {
+            for (Object contrib : contribs) {
+                registerInvalidationTransport((DirectoryInvalidationTransportDescriptor) contrib);
+            }
+            return;
+        }
         for (Object contrib : contribs) {
             DirectoryFactoryDescriptor factoryDescriptor = (DirectoryFactoryDescriptor) contrib;
             String factoryName = factoryDescriptor.getFactoryName();
@@ -209,6 +241,10 @@ public class DirectoryServiceImpl extends DefaultComponent implements
     @Override
     public void unregisterExtension(Extension extension) throws Exception {
         Object[] contribs = extension.getContributions();
+        if (INVALIDATION_TRANSPORT_XP.equals(extension.getExtensionPoint())) {
+            setInvalidationTransport(null);
+            return;
+        }
         for (Object contrib : contribs) {
             DirectoryFactoryDescriptor factoryDescriptor = (DirectoryFactoryDescriptor) contrib;
             String factoryName = factoryDescriptor.getFactoryName();
@@ -282,4 +318,187 @@ public class DirectoryServiceImpl extends DefaultComponent implements
         return getDirectoryOrFail(directoryName).getParentDirectory();
     }
 
+    protected void registerInvalidationTransport(
+            DirectoryInvalidationTransportDescriptor descriptor)
+            throws Exception {
+        if (!descriptor.isEnabled()) {
+            setInvalidationTransport(null);
+            return;
+        }
+        setInvalidationTransport(descriptor.getKlass().newInstance());
+        log.info("Directory cache invalidations are propagated using "
+                + descriptor.getKlass().getName());
+    }
+
+    /**
+     * Replaces the transport used to propagate cache invalidations to the
+     * other cluster nodes, {@code null} to stop propagating them.
+     *
+     * @since 5.7.3
+     */
+    public synchronized void setInvalidationTransport(
+            DirectoryInvalidationTransport transport)
+            throws DirectoryException {
+        if (invalidationTransport != null) {
+            invalidationTransport.deactivate();
+        }
+        invalidationTransport = transport;
+        if (transport != null) {
+            transport.activate(nodeId, this);
+        }
+    }
+
+    /**
+     * Returns the id identifying this node on the invalidation transport.
+     *
+     * @since 5.7.3
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sends a cache invalidation to the other cluster nodes, if a transport is
+     * configured. Inside a transaction, it is sent once the transaction is
+     * committed, so that the other nodes do not reload the previous values
+     * (and nothing is sent on rollback).
+     *
+     * @since 5.7.3
+     */
+    public void publishInvalidation(final DirectoryInvalidation invalidation) {
+        markWritten(invalidation.getDirectoryName());
+        if (invalidationTransport == null) {
+            return;
+        }
+        invalidation.setNodeId(nodeId);
+        if (TransactionHelper.isTransactionActive()) {
+            try {
+                ConnectionHelper.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        if (status == Status.STATUS_COMMITTED) {
+                            sendInvalidation(invalidation);
+                        }
+                    }
+                });
+                return;
+            } catch (SystemException e) {
+                log.error("Cannot register in transaction, sending "
+                        + invalidation + " now", e);
+            }
+        }
+        sendInvalidation(invalidation);
+    }
+
+    /**
+     * Remembers that the given directory has been written in the current
+     * transaction, if any.
+     *
+     * @since 5.7.3
+     */
+    protected void markWritten(String directoryName) {
+        if (directoryName == null || !TransactionHelper.isTransactionActive()) {
+            return;
+        }
+        TransactionWrites writes = transactionWrites.get();
+        if (writes == null || writes.completed) {
+            writes = new TransactionWrites();
+            try {
+                ConnectionHelper.registerSynchronization(writes);
+            } catch (SystemException e) {
+                log.error("Cannot register in transaction, writes to "
+                        + directoryName + " are not tracked", e);
+                return;
+            }
+            transactionWrites.set(writes);
+        }
+        writes.directoryNames.add(directoryName);
+    }
+
+    /**
+     * Checks if the given directory has been written in the transaction of
+     * the current thread. Its uncommitted changes are then only seen by the
+     * sessions of this thread.
+     *
+     * @since 5.7.3
+     */
+    public boolean isWrittenInTransaction(String directoryName) {
+        if (!TransactionHelper.isTransactionActiveOrMarkedRollback()) {
+            return false;
+        }
+        TransactionWrites writes = transactionWrites.get();
+        return writes != null && !writes.completed
+                && writes.directoryNames.contains(directoryName);
+    }
+
+    /**
+     * The directories written in a transaction, forgotten when it completes.
+     */
+    protected class TransactionWrites implements Synchronization {
+
+        protected final Set<String> directoryNames = Collections.synchronizedSet(new HashSet<String>());
+
+        protected volatile boolean completed;
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            completed = true;
+            if (transactionWrites.get() == this) {
+                transactionWrites.remove();
+            }
+        }
+    }
+
+    protected void sendInvalidation(DirectoryInvalidation invalidation) {
+        DirectoryInvalidationTransport transport = invalidationTransport;
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.publish(invalidation);
+        } catch (DirectoryException e) {
+            log.error("Cannot publish " + invalidation, e);
+        }
+    }
+
+    /**
+     * Applies a cache invalidation received from another node to the local
+     * caches, without publishing it again.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public void invalidationReceived(DirectoryInvalidation invalidation) {
+        if (nodeId.equals(invalidation.getNodeId())) {
+            return;
+        }
+        try {
+            Directory directory = getDirectory(invalidation.getDirectoryName());
+            if (directory == null) {
+                return;
+            }
+            if (!invalidation.isAll()) {
+                directory.getCache().invalidate(invalidation.getEntryIds());
+                return;
+            }
+            directory.invalidateDirectoryCache();
+            for (Reference reference : directory.getReferences()) {
+                Directory targetDirectory = reference.getTargetDirectory();
+                if (targetDirectory != null) {
+                    targetDirectory.invalidateDirectoryCache();
+                }
+            }
+        } catch (DirectoryException e) {
+            log.error("Cannot apply " + invalidation, e);
+        }
+    }
+
 }
@@ -19,7 +19,9 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XObject;
@@ -127,6 +129,36 @@ public class InverseReference extends AbstractReference {
         return dualReference.getSourceIdsForTarget(sourceId);
     }
 
+    /**
+     * Delegates to the bulk method of the dual reference when available.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException {
+        checkDualReference();
+        if (dualReference instanceof AbstractReference) {
+            return ((AbstractReference) dualReference).getSourceIdsForTargets(sourceIds);
+        }
+        return super.getTargetIdsForSources(sourceIds);
+    }
+
+    /**
+     * Delegates to the bulk method of the dual reference when available.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException {
+        checkDualReference();
+        if (dualReference instanceof AbstractReference) {
+            return ((AbstractReference) dualReference).getTargetIdsForSources(targetIds);
+        }
+        return super.getSourceIdsForTargets(targetIds);
+    }
+
     public void setTargetIdsForSource(String sourceId, List<String> targetIds)
             throws DirectoryException {
         if (readOnly) {
@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-JVM invalidation transport: all the instances created in the same JVM
+ * act as the nodes of a cluster and receive each other's invalidations
+ * synchronously.
+ * <p>
+ * Used for tests and as a reference implementation.
+ *
+ * @since 5.7.3
+ */
+public class LocalDirectoryInvalidationTransport implements
+        DirectoryInvalidationTransport {
+
+    private static final Log log = LogFactory.getLog(LocalDirectoryInvalidationTransport.class);
+
+    protected static final List<LocalDirectoryInvalidationTransport> NODES = new CopyOnWriteArrayList<LocalDirectoryInvalidationTransport>();
+
+    protected String nodeId;
+
+    protected Listener listener;
+
+    @Override
+    public void activate(String nodeId, Listener listener) {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        NODES.add(this);
+    }
+
+    @Override
+    public void publish(DirectoryInvalidation invalidation) {
+        for (LocalDirectoryInvalidationTransport node : NODES) {
+            if (node == this) {
+                continue;
+            }
+            try {
+                node.listener.invalidationReceived(invalidation);
+            } catch (RuntimeException e) {
+                log.error("Cannot deliver " + invalidation + " to node "
+                        + node.nodeId, e);
+            }
+        }
+    }
+
+    @Override
+    public void deactivate() {
+        NODES.remove(this);
+        listener = null;
+    }
+
+}
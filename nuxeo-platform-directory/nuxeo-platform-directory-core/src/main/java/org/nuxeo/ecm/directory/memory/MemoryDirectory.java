@@ -52,6 +52,21 @@ public class MemoryDirectory extends AbstractDirectory {
 
     protected boolean isReadOnly = false;
 
+    /**
+     * Fields having a hash index, used for equality filters.
+     *
+     * @since 5.7.3
+     */
+    protected final Set<String> hashIndexedFields = new HashSet<String>();
+
+    /**
+     * Fields having a sorted index on their lowercase value, used for
+     * fulltext (prefix) filters and case-insensitive equality filters.
+     *
+     * @since 5.7.3
+     */
+    protected final Set<String> sortedIndexedFields = new HashSet<String>();
+
     public MemoryDirectory(String name, String schema, String idField,
             String passwordField) throws DirectoryException {
         this(name, schema, new HashSet<String>(), idField, passwordField);
@@ -137,4 +152,31 @@ public class MemoryDirectory extends AbstractDirectory {
         this.isReadOnly = isReadOnly;
     }
 
+    /**
+     * Adds a hash index on the given field, so that queries filtering on an
+     * exact value of this field do not scan all the entries.
+     *
+     * @since 5.7.3
+     */
+    public void addHashIndex(String fieldName) {
+        hashIndexedFields.add(fieldName);
+        if (session != null) {
+            session.reindex();
+        }
+    }
+
+    /**
+     * Adds a sorted index on the given field, so that fulltext queries on
+     * this field (which match a prefix of the value) do not scan all the
+     * entries.
+     *
+     * @since 5.7.3
+     */
+    public void addSortedIndex(String fieldName) {
+        sortedIndexedFields.add(fieldName);
+        if (session != null) {
+            session.reindex();
+        }
+    }
+
 }
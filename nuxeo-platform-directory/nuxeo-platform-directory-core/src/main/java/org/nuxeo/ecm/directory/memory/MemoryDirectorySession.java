@@ -21,12 +21,16 @@ package org.nuxeo.ecm.directory.memory;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.nuxeo.ecm.core.api.ClientException;
@@ -42,6 +46,9 @@ import org.nuxeo.ecm.directory.DirectoryException;
 
 /**
  * Trivial in-memory implementation of a Directory to use in unit tests.
+ * <p>
+ * Queries use the hash and sorted indexes declared on the
+ * {@link MemoryDirectory} to avoid scanning all the entries.
  *
  * @author Florent Guillaume
  */
@@ -51,9 +58,102 @@ public class MemoryDirectorySession extends BaseSession {
 
     protected final Map<String, Map<String, Object>> data;
 
+    /**
+     * Hash indexes: field name -> value -> ids. Guarded by the {@link #data}
+     * lock, as the sorted indexes.
+     *
+     * @since 5.7.3
+     */
+    protected final Map<String, Map<Object, Set<String>>> hashIndexes = new HashMap<String, Map<Object, Set<String>>>();
+
+    /**
+     * Sorted indexes: field name -> lowercase value -> ids.
+     *
+     * @since 5.7.3
+     */
+    protected final Map<String, NavigableMap<String, Set<String>>> sortedIndexes = new HashMap<String, NavigableMap<String, Set<String>>>();
+
     public MemoryDirectorySession(MemoryDirectory directory) {
         this.directory = directory;
         data = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, Object>>());
+        reindex();
+    }
+
+    /**
+     * Rebuilds the indexes declared on the directory.
+     *
+     * @since 5.7.3
+     */
+    protected void reindex() {
+        synchronized (data) {
+            hashIndexes.clear();
+            for (String fieldName : directory.hashIndexedFields) {
+                hashIndexes.put(fieldName,
+                        new HashMap<Object, Set<String>>());
+            }
+            sortedIndexes.clear();
+            for (String fieldName : directory.sortedIndexedFields) {
+                sortedIndexes.put(fieldName,
+                        new TreeMap<String, Set<String>>());
+            }
+            for (Entry<String, Map<String, Object>> e : data.entrySet()) {
+                index(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    // called with the data lock held
+    protected void index(String id, Map<String, Object> map) {
+        for (Entry<String, Map<Object, Set<String>>> e : hashIndexes.entrySet()) {
+            Object value = map.get(e.getKey());
+            if (value != null) {
+                addToIndex(e.getValue(), value, id);
+            }
+        }
+        for (Entry<String, NavigableMap<String, Set<String>>> e : sortedIndexes.entrySet()) {
+            Object value = map.get(e.getKey());
+            if (value != null) {
+                addToIndex(e.getValue(), value.toString().toLowerCase(), id);
+            }
+        }
+    }
+
+    // called with the data lock held
+    protected void unindex(String id, Map<String, Object> map) {
+        for (Entry<String, Map<Object, Set<String>>> e : hashIndexes.entrySet()) {
+            Object value = map.get(e.getKey());
+            if (value != null) {
+                removeFromIndex(e.getValue(), value, id);
+            }
+        }
+        for (Entry<String, NavigableMap<String, Set<String>>> e : sortedIndexes.entrySet()) {
+            Object value = map.get(e.getKey());
+            if (value != null) {
+                removeFromIndex(e.getValue(), value.toString().toLowerCase(),
+                        id);
+            }
+        }
+    }
+
+    protected static <K> void addToIndex(Map<K, Set<String>> index, K key,
+            String id) {
+        Set<String> ids = index.get(key);
+        if (ids == null) {
+            ids = new LinkedHashSet<String>();
+            index.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    protected static <K> void removeFromIndex(Map<K, Set<String>> index,
+            K key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
     }
 
     public boolean authenticate(String username, String password)
@@ -88,13 +188,7 @@ public class MemoryDirectorySession extends BaseSession {
             throw new DirectoryException("Missing id");
         }
         String id = String.valueOf(rawId);
-        Map<String, Object> map = data.get(id);
-        if (map != null) {
-            throw new DirectoryException(String.format(
-                    "Entry with id %s already exists", id));
-        }
-        map = new HashMap<String, Object>();
-        data.put(id, map);
+        Map<String, Object> map = new HashMap<String, Object>();
         // put fields in map
         for (Entry<String, Object> e : fieldMap.entrySet()) {
             String fieldName = e.getKey();
@@ -103,6 +197,14 @@ public class MemoryDirectorySession extends BaseSession {
             }
             map.put(fieldName, e.getValue());
         }
+        synchronized (data) {
+            if (data.containsKey(id)) {
+                throw new DirectoryException(String.format(
+                        "Entry with id %s already exists", id));
+            }
+            data.put(id, map);
+            index(id, map);
+        }
         return getEntry(id);
     }
 
@@ -135,41 +237,60 @@ public class MemoryDirectorySession extends BaseSession {
             throw new DirectoryException(e);
         }
 
-        Map<String, Object> map = data.get(id);
-        if (map == null) {
-            throw new DirectoryException("UpdateEntry failed: entry '" + id
-                    + "' not found");
-        }
+        synchronized (data) {
+            Map<String, Object> map = data.get(id);
+            if (map == null) {
+                throw new DirectoryException("UpdateEntry failed: entry '"
+                        + id + "' not found");
+            }
 
-        for (String fieldName : directory.schemaSet) {
+            unindex(id, map);
             try {
-                if (!dataModel.isDirty(fieldName)
-                        || fieldName.equals(directory.idField)) {
-                    continue;
+                for (String fieldName : directory.schemaSet) {
+                    try {
+                        if (!dataModel.isDirty(fieldName)
+                                || fieldName.equals(directory.idField)) {
+                            continue;
+                        }
+                    } catch (PropertyNotFoundException e) {
+                        continue;
+                    }
+                    // TODO references
+                    try {
+                        map.put(fieldName, dataModel.getData(fieldName));
+                    } catch (PropertyException e) {
+                        throw new ClientRuntimeException(e);
+                    }
                 }
-            } catch (PropertyNotFoundException e) {
-                continue;
-            }
-            // TODO references
-            try {
-                map.put(fieldName, dataModel.getData(fieldName));
-            } catch (PropertyException e) {
-                throw new ClientRuntimeException(e);
+            } finally {
+                index(id, map);
             }
         }
         dataModel.getDirtyFields().clear();
     }
 
     public DocumentModelList getEntries() throws DirectoryException {
+        List<String> ids;
+        synchronized (data) {
+            ids = new ArrayList<String>(data.keySet());
+        }
         DocumentModelList list = new DocumentModelListImpl();
-        for (String id : data.keySet()) {
-            list.add(getEntry(id));
+        for (String id : ids) {
+            DocumentModel entry = getEntry(id);
+            if (entry != null) {
+                list.add(entry);
+            }
         }
         return list;
     }
 
     public void deleteEntry(String id) throws DirectoryException {
-        data.remove(id);
+        synchronized (data) {
+            Map<String, Object> map = data.remove(id);
+            if (map != null) {
+                unindex(id, map);
+            }
+        }
     }
 
     // given our storage model this doesn't even make sense, as id field is
@@ -228,32 +349,27 @@ public class MemoryDirectorySession extends BaseSession {
             }
             filt.put(fieldName, e.getValue());
         }
-        // do the search
-        data_loop: for (Entry<String, Map<String, Object>> datae : data.entrySet()) {
-            String id = datae.getKey();
-            Map<String, Object> map = datae.getValue();
-            for (Entry<String, Object> e : filt.entrySet()) {
-                String fieldName = e.getKey();
-                Object expected = e.getValue();
-                Object value = map.get(fieldName);
-                if (value == null) {
-                    if (expected != null) {
-                        continue data_loop;
+        // do the search, on the entries selected by the most selective index
+        // if any, on all the entries otherwise
+        List<String> ids = new ArrayList<String>();
+        synchronized (data) {
+            Collection<String> candidates = getIndexedCandidates(filt,
+                    fulltext);
+            if (candidates == null) {
+                for (Entry<String, Map<String, Object>> datae : data.entrySet()) {
+                    if (matches(datae.getValue(), filt, fulltext)) {
+                        ids.add(datae.getKey());
                     }
-                } else {
-                    if (fulltext != null && fulltext.contains(fieldName)) {
-                        if (!value.toString().toLowerCase().startsWith(
-                                expected.toString().toLowerCase())) {
-                            continue data_loop;
-                        }
-                    } else {
-                        if (!value.equals(expected)) {
-                            continue data_loop;
-                        }
+                }
+            } else {
+                for (String id : candidates) {
+                    if (matches(data.get(id), filt, fulltext)) {
+                        ids.add(id);
                     }
                 }
             }
-            // this entry matches
+        }
+        for (String id : ids) {
             results.add(getEntry(id));
         }
         // order entries
@@ -263,6 +379,88 @@ public class MemoryDirectorySession extends BaseSession {
         return results;
     }
 
+    /**
+     * Returns the ids of the entries that may match the filter according to
+     * the indexes (the id being always indexed), or {@code null} if no index
+     * applies. Called with the data lock held.
+     *
+     * @since 5.7.3
+     */
+    protected Collection<String> getIndexedCandidates(Map<String, Object> filt,
+            Set<String> fulltext) {
+        Collection<String> best = null;
+        for (Entry<String, Object> e : filt.entrySet()) {
+            String fieldName = e.getKey();
+            Object expected = e.getValue();
+            if (expected == null) {
+                continue;
+            }
+            Map<Object, Set<String>> hashIndex = hashIndexes.get(fieldName);
+            NavigableMap<String, Set<String>> sortedIndex = sortedIndexes.get(fieldName);
+            Collection<String> ids;
+            if (fulltext != null && fulltext.contains(fieldName)) {
+                String prefix = expected.toString().toLowerCase();
+                if (sortedIndex == null || prefix.length() == 0) {
+                    continue;
+                }
+                ids = new ArrayList<String>();
+                for (Entry<String, Set<String>> ie : sortedIndex.tailMap(
+                        prefix, true).entrySet()) {
+                    if (!ie.getKey().startsWith(prefix)) {
+                        break;
+                    }
+                    ids.addAll(ie.getValue());
+                }
+            } else if (fieldName.equals(directory.idField)) {
+                String id = expected.toString();
+                ids = data.containsKey(id) ? Collections.singletonList(id)
+                        : null;
+            } else if (hashIndex != null) {
+                ids = hashIndex.get(expected);
+            } else if (sortedIndex != null) {
+                ids = sortedIndex.get(expected.toString().toLowerCase());
+            } else {
+                continue;
+            }
+            if (ids == null) {
+                ids = Collections.emptyList();
+            }
+            if (best == null || ids.size() < best.size()) {
+                best = ids;
+            }
+            if (best.isEmpty()) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    protected static boolean matches(Map<String, Object> map,
+            Map<String, Object> filt, Set<String> fulltext) {
+        for (Entry<String, Object> e : filt.entrySet()) {
+            String fieldName = e.getKey();
+            Object expected = e.getValue();
+            Object value = map.get(fieldName);
+            if (value == null) {
+                if (expected != null) {
+                    return false;
+                }
+            } else {
+                if (fulltext != null && fulltext.contains(fieldName)) {
+                    if (!value.toString().toLowerCase().startsWith(
+                            expected.toString().toLowerCase())) {
+                        return false;
+                    }
+                } else {
+                    if (!value.equals(expected)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     public List<String> getProjection(Map<String, Serializable> filter,
             String columnName) throws DirectoryException {
         return getProjection(filter, Collections.<String> emptySet(),
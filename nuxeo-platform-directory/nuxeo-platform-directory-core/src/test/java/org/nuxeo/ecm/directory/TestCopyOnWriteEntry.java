@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+public class TestCopyOnWriteEntry extends NXRuntimeTestCase {
+
+    private static final Log log = LogFactory.getLog(TestCopyOnWriteEntry.class);
+
+    static final String SCHEMA_NAME = "myschema";
+
+    DocumentModel shared;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployContrib("org.nuxeo.ecm.directory.core.tests", "test-schema.xml");
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("i", "1");
+        values.put("a", "AAA");
+        shared = BaseSession.createEntryModel(null, SCHEMA_NAME, "1", values,
+                true);
+    }
+
+    @Test
+    public void testReadsDoNotCopy() throws Exception {
+        DocumentModel entry = BaseSession.createSharedEntryModel(shared);
+        assertEquals("1", entry.getId());
+        assertEquals("AAA", entry.getProperty(SCHEMA_NAME, "a"));
+        assertTrue(BaseSession.isReadOnlyEntry(entry));
+        assertFalse(((CopyOnWriteEntry.Shared) entry).isCopied());
+    }
+
+    @Test
+    public void testWriteCopies() throws Exception {
+        DocumentModel entry = BaseSession.createSharedEntryModel(shared);
+        entry.setProperty(SCHEMA_NAME, "a", "BBB");
+        assertTrue(((CopyOnWriteEntry.Shared) entry).isCopied());
+        assertEquals("BBB", entry.getProperty(SCHEMA_NAME, "a"));
+        // the read-only flag is kept on the copy
+        assertTrue(BaseSession.isReadOnlyEntry(entry));
+        // the shared entry is untouched
+        assertEquals("AAA", shared.getProperty(SCHEMA_NAME, "a"));
+        DocumentModel other = BaseSession.createSharedEntryModel(shared);
+        assertEquals("AAA", other.getProperty(SCHEMA_NAME, "a"));
+    }
+
+    @Test
+    public void testReadOnlyFlagChangeCopies() throws Exception {
+        DocumentModel entry = BaseSession.createSharedEntryModel(shared);
+        BaseSession.setReadWriteEntry(entry);
+        assertFalse(BaseSession.isReadOnlyEntry(entry));
+        assertTrue(BaseSession.isReadOnlyEntry(shared));
+    }
+
+    /**
+     * Mutable values read from the shared entry are copies.
+     */
+    @Test
+    public void testMutableValuesAreCopied() throws Exception {
+        DocumentModel entry = BaseSession.createSharedEntryModel(shared);
+        Map<String, Object> properties = entry.getProperties(SCHEMA_NAME);
+        assertEquals("AAA", properties.get("a"));
+        properties.put("a", "BBB");
+        assertEquals("AAA", shared.getProperty(SCHEMA_NAME, "a"));
+        assertEquals("AAA", entry.getProperty(SCHEMA_NAME, "a"));
+        assertFalse(((CopyOnWriteEntry.Shared) entry).isCopied());
+
+        Calendar calendar = Calendar.getInstance();
+        List<Object> list = new ArrayList<Object>(Arrays.asList("x", calendar));
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", list);
+        map.put("array", new String[] { "y" });
+        map.put("ints", new int[] { 1 });
+        Map<?, ?> copy = (Map<?, ?>) CopyOnWriteEntry.copyValue(map);
+        assertEquals(list, copy.get("list"));
+        assertNotSame(list, copy.get("list"));
+        assertNotSame(calendar, ((List<?>) copy.get("list")).get(1));
+        assertNotSame(map.get("array"), copy.get("array"));
+        assertNotSame(map.get("ints"), copy.get("ints"));
+        assertEquals(1, ((int[]) copy.get("ints"))[0]);
+        assertSame(CopyOnWriteEntry.NOT_COPIED,
+                CopyOnWriteEntry.copyValue(new Object()));
+    }
+
+    @Test
+    public void testSchemasAreCopied() throws Exception {
+        DocumentModel entry = BaseSession.createSharedEntryModel(shared);
+        String[] schemas = entry.getSchemas();
+        assertEquals(SCHEMA_NAME, schemas[0]);
+        schemas[0] = "other";
+        assertEquals(SCHEMA_NAME, shared.getSchemas()[0]);
+        assertEquals(SCHEMA_NAME, entry.getSchemas()[0]);
+        entry.getDeclaredSchemas()[0] = "other";
+        assertEquals(SCHEMA_NAME, shared.getDeclaredSchemas()[0]);
+        assertFalse(((CopyOnWriteEntry.Shared) entry).isCopied());
+    }
+
+    /**
+     * Compares the cost of cloning the cached entry on each hit with the cost
+     * of handing out a shared copy-on-write view.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    public void testBenchmarkCloneVersusSharedHits() throws Exception {
+        int hits = 100000;
+        // warm up
+        readHits(hits, true);
+        readHits(hits, false);
+
+        long t0 = System.nanoTime();
+        readHits(hits, true);
+        long cloneTime = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        readHits(hits, false);
+        long sharedTime = System.nanoTime() - t0;
+        log.info(String.format(
+                "%s cache hits: clone-per-hit %sms, shared entry %sms", hits,
+                cloneTime / 1000000, sharedTime / 1000000));
+    }
+
+    protected void readHits(int hits, boolean clone) throws Exception {
+        for (int i = 0; i < hits; i++) {
+            DocumentModel entry;
+            if (clone) {
+                entry = shared.clone();
+                BaseSession.setReadOnlyEntry(entry);
+            } else {
+                entry = BaseSession.createSharedEntryModel(shared);
+            }
+            assertEquals("AAA", entry.getProperty(SCHEMA_NAME, "a"));
+        }
+    }
+
+}
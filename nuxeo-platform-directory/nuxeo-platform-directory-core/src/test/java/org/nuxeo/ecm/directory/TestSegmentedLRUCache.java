@@ -0,0 +1,183 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestSegmentedLRUCache {
+
+    static class CountingLoader implements
+            SegmentedLRUCache.Loader<String, String> {
+
+        final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public String load(String key) throws DirectoryException {
+            loads.incrementAndGet();
+            return "missing".equals(key) ? null : key.toUpperCase();
+        }
+    }
+
+    protected SegmentedLRUCache<String, String> newCache(int maxSize,
+            long ttlNanos) {
+        return new SegmentedLRUCache<String, String>(maxSize, ttlNanos,
+                new MetricRegistry(), "test");
+    }
+
+    @Test
+    public void testLoadOnceAndHit() throws Exception {
+        SegmentedLRUCache<String, String> cache = newCache(10, 0);
+        CountingLoader loader = new CountingLoader();
+        assertEquals("A", cache.get("a", loader));
+        assertEquals("A", cache.get("a", loader));
+        assertNull(cache.get("missing", loader));
+        assertNull(cache.get("missing", loader));
+        assertEquals(2, loader.loads.get());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        SegmentedLRUCache<String, String> cache = newCache(2, 0);
+        CountingLoader loader = new CountingLoader();
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.get("a", loader); // a is now more recent than b
+        cache.get("c", loader); // evicts b only
+        assertEquals(2, cache.size());
+        cache.get("a", loader);
+        assertEquals(3, loader.loads.get());
+        cache.get("b", loader);
+        assertEquals(4, loader.loads.get());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        SegmentedLRUCache<String, String> cache = newCache(10,
+                TimeUnit.MILLISECONDS.toNanos(10));
+        CountingLoader loader = new CountingLoader();
+        cache.get("a", loader);
+        Thread.sleep(20);
+        cache.get("a", loader);
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        SegmentedLRUCache<String, String> cache = newCache(10, 0);
+        CountingLoader loader = new CountingLoader();
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.remove("a");
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.clear());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidationDuringLoad() throws Exception {
+        final SegmentedLRUCache<String, String> cache = newCache(1024, 0);
+        String other = "b";
+        for (int i = 0; cache.segmentFor(other) == cache.segmentFor("a"); i++) {
+            other = "b" + i;
+        }
+        final String otherKey = other;
+        CountingLoader loader = new CountingLoader() {
+            @Override
+            public String load(String key) throws DirectoryException {
+                // invalidations happening while the value is read
+                cache.remove(key.startsWith("stale") ? key : otherKey);
+                return super.load(key);
+            }
+        };
+        // a load overlapping the invalidation of its own key is not stored
+        cache.get("stale", loader);
+        assertEquals(0, cache.size());
+        // but invalidating an unrelated key does not discard it
+        cache.get("a", loader);
+        assertEquals(1, cache.size());
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void testStampedPut() throws Exception {
+        SegmentedLRUCache<String, String> cache = newCache(10, 0);
+        long stamp = cache.getStamp("a");
+        assertTrue(cache.put("a", "A", stamp));
+        stamp = cache.getStamp("a");
+        cache.remove("a");
+        // computed before the invalidation
+        assertFalse(cache.put("a", "A", stamp));
+        assertNull(cache.getIfPresent("a"));
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        final SegmentedLRUCache<String, String> cache = newCache(10, 0);
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final SegmentedLRUCache.Loader<String, String> slowLoader = new SegmentedLRUCache.Loader<String, String>() {
+            @Override
+            public String load(String key) throws DirectoryException {
+                loads.incrementAndGet();
+                loadStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new DirectoryException(e);
+                }
+                return key;
+            }
+        };
+        int nbThreads = 8;
+        Thread[] threads = new Thread[nbThreads];
+        for (int i = 0; i < nbThreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        cache.get("k", slowLoader);
+                    } catch (DirectoryException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        loadStarted.await();
+        // give the other threads a chance to pile up on the pending load
+        Thread.sleep(50);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, loads.get());
+    }
+
+}
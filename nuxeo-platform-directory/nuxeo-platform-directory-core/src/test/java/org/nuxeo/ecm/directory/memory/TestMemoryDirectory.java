@@ -37,7 +37,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
@@ -51,6 +54,8 @@ import org.nuxeo.runtime.test.NXRuntimeTestCase;
  */
 public class TestMemoryDirectory extends NXRuntimeTestCase {
 
+    private static final Log log = LogFactory.getLog(TestMemoryDirectory.class);
+
     MemoryDirectory memDir;
 
     MemoryDirectorySession dir;
@@ -487,4 +492,169 @@ public class TestMemoryDirectory extends NXRuntimeTestCase {
         assertEquals(Arrays.asList("1", "2"), entryIds(entries));
     }
 
+    @Test
+    public void testIndexedQuery() throws Exception {
+        // indexes declared after the first entry was created
+        memDir.addHashIndex("a");
+        memDir.addSortedIndex("b");
+        Map<String, Object> e2 = new HashMap<String, Object>();
+        e2.put("i", "2");
+        e2.put("a", "AAA222");
+        e2.put("b", "BCD");
+        dir.createEntry(e2);
+
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        Set<String> fulltext = new HashSet<String>();
+        filter.put("a", "AAA");
+        assertEquals(Arrays.asList("1"), entryIds(dir.query(filter)));
+        filter.put("a", "A");
+        assertEquals(0, dir.query(filter).size());
+        filter.clear();
+        filter.put("b", "BCD");
+        assertEquals(Arrays.asList("1", "2"), entryIds(dir.query(filter)));
+        // sorted index is case-insensitive but equality is not
+        filter.put("b", "bcd");
+        assertEquals(0, dir.query(filter).size());
+        fulltext.add("b");
+        filter.put("b", "bc");
+        assertEquals(2, dir.query(filter, fulltext).size());
+        filter.put("a", "AAA2");
+        assertEquals(0, dir.query(filter, fulltext).size());
+        fulltext.add("a");
+        assertEquals(Arrays.asList("2"),
+                entryIds(dir.query(filter, fulltext)));
+        filter.clear();
+        filter.put("i", "2");
+        assertEquals(Arrays.asList("2"), entryIds(dir.query(filter)));
+
+        // indexes follow updates and deletions
+        DocumentModel e = dir.getEntry("1");
+        e.setProperty(SCHEMA_NAME, "a", "XYZ");
+        e.setProperty(SCHEMA_NAME, "b", "zzz");
+        dir.updateEntry(e);
+        filter.clear();
+        filter.put("a", "AAA");
+        assertEquals(0, dir.query(filter).size());
+        filter.put("a", "XYZ");
+        assertEquals(Arrays.asList("1"), entryIds(dir.query(filter)));
+        filter.clear();
+        filter.put("b", "Z");
+        assertEquals(Arrays.asList("1"), entryIds(dir.query(filter, fulltext)));
+        dir.deleteEntry("1");
+        assertEquals(0, dir.query(filter, fulltext).size());
+    }
+
+    /**
+     * Checks that indexed queries only look at the entries selected by the
+     * indexes, and return the same results as the linear scan.
+     */
+    @Test
+    public void testIndexedVersusScan() throws Exception {
+        Set<String> schemaSet = new HashSet<String>(Arrays.asList("i", "a",
+                "b"));
+        MemoryDirectory scanDir = new MemoryDirectory("scandir", SCHEMA_NAME,
+                schemaSet, "i", null);
+        MemoryDirectory indexedDir = new MemoryDirectory("indexeddir",
+                SCHEMA_NAME, schemaSet, "i", null);
+        indexedDir.addHashIndex("a");
+        indexedDir.addSortedIndex("b");
+        MemoryDirectorySession scan = (MemoryDirectorySession) scanDir.getSession();
+        MemoryDirectorySession indexed = (MemoryDirectorySession) indexedDir.getSession();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("i", String.valueOf(i));
+            map.put("a", "value" + (i % 100));
+            map.put("b", "Name" + i);
+            scan.createEntry(map);
+            indexed.createEntry(map);
+        }
+        Set<String> fulltext = Collections.singleton("b");
+        Map<String, Object> filt = new HashMap<String, Object>();
+
+        filt.put("a", "value42");
+        assertNull(scan.getIndexedCandidates(filt, null));
+        assertEquals(10, indexed.getIndexedCandidates(filt, null).size());
+        filt.put("b", "name99");
+        // Name99 and Name990 to Name999
+        assertEquals(11, indexed.getIndexedCandidates(filt, fulltext).size());
+        filt.put("b", "name142");
+        // the most selective index is used
+        assertEquals(1, indexed.getIndexedCandidates(filt, fulltext).size());
+
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        for (int i = 0; i < 100; i += 7) {
+            filter.clear();
+            filter.put("a", "value" + i);
+            assertEquals(sortedIds(scan.query(filter)),
+                    sortedIds(indexed.query(filter)));
+            filter.clear();
+            filter.put("b", "name" + i);
+            assertEquals(sortedIds(scan.query(filter, fulltext)),
+                    sortedIds(indexed.query(filter, fulltext)));
+        }
+    }
+
+    protected static List<String> sortedIds(List<DocumentModel> entries) {
+        List<String> ids = entryIds(entries);
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Compares indexed queries with the linear scan of the entries.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    public void testBenchmarkIndexedVersusScan() throws Exception {
+        Set<String> schemaSet = new HashSet<String>(Arrays.asList("i", "a",
+                "b"));
+        MemoryDirectory scanDir = new MemoryDirectory("scandir", SCHEMA_NAME,
+                schemaSet, "i", null);
+        MemoryDirectory indexedDir = new MemoryDirectory("indexeddir",
+                SCHEMA_NAME, schemaSet, "i", null);
+        indexedDir.addHashIndex("a");
+        indexedDir.addSortedIndex("b");
+        MemoryDirectorySession scan = (MemoryDirectorySession) scanDir.getSession();
+        MemoryDirectorySession indexed = (MemoryDirectorySession) indexedDir.getSession();
+        int size = 10000;
+        for (int i = 0; i < size; i++) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("i", String.valueOf(i));
+            map.put("a", "value" + (i % 1000));
+            map.put("b", "Name" + i);
+            scan.createEntry(map);
+            indexed.createEntry(map);
+        }
+        int queries = 500;
+        // warm up
+        assertEquals(runQueries(scan, queries), runQueries(indexed, queries));
+
+        long t0 = System.nanoTime();
+        runQueries(scan, queries);
+        long scanTime = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        runQueries(indexed, queries);
+        long indexedTime = System.nanoTime() - t0;
+        log.info(String.format("%s equality and prefix queries on %s "
+                + "entries: scan %sms, indexed %sms", queries * 2, size,
+                scanTime / 1000000, indexedTime / 1000000));
+    }
+
+    protected int runQueries(MemoryDirectorySession session, int queries)
+            throws Exception {
+        int count = 0;
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        Set<String> fulltext = Collections.singleton("b");
+        for (int i = 0; i < queries; i++) {
+            filter.clear();
+            filter.put("a", "value" + i);
+            count += session.query(filter).size();
+            filter.clear();
+            filter.put("b", "name" + (i + 1000));
+            count += session.query(filter, fulltext).size();
+        }
+        return count;
+    }
+
 }
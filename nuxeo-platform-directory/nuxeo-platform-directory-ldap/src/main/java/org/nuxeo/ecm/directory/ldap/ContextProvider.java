@@ -21,8 +21,10 @@ package org.nuxeo.ecm.directory.ldap;
 
 import javax.naming.directory.DirContext;
 
+import org.nuxeo.ecm.directory.DirectoryException;
+
 public interface ContextProvider {
 
-    DirContext getContext();
+    DirContext getContext() throws DirectoryException;
 
 }
@@ -0,0 +1,580 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.ldap;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Bounded pool of LDAP contexts bound with the server credentials.
+ * <p>
+ * At most {@link LDAPServerDescriptor#getPoolMaxSize()} contexts are borrowed
+ * at the same time, other callers wait up to the borrow timeout. Closing a
+ * borrowed context gives it back to the pool, unless a communication error
+ * was raised while using it. Idle contexts are validated in the background
+ * by reading the root DSE, and closed after the maximum idle time.
+ * <p>
+ * New contexts are opened on a single server URL chosen at random according
+ * to the weights of the {@code ldapUrl} entries. A server that fails is
+ * skipped during the failover delay, unless all the servers failed.
+ * <p>
+ * The following metrics are maintained below the given metric name: the
+ * {@code borrow} timer, the {@code active}, {@code idle} and {@code failures}
+ * counters, and the {@code failures} counter of each server below {@code
+ * servers}.
+ *
+ * @since 5.7.3
+ */
+public class LDAPContextPool implements ContextProvider {
+
+    private static final Log log = LogFactory.getLog(LDAPContextPool.class);
+
+    protected static final String[] VALIDATION_ATTRIBUTES = { "objectClass" };
+
+    protected final String name;
+
+    protected final LDAPServerDescriptor server;
+
+    protected final Properties environment;
+
+    protected final Semaphore permits;
+
+    protected final BlockingDeque<PooledContext> idle = new LinkedBlockingDeque<PooledContext>();
+
+    protected final ConcurrentMap<String, ServerState> states = new ConcurrentHashMap<String, ServerState>();
+
+    protected final Random random = new Random();
+
+    protected final ScheduledExecutorService validator;
+
+    protected final MetricRegistry registry;
+
+    protected final String metricName;
+
+    protected final Timer borrowTimer;
+
+    protected final Counter activeCounter;
+
+    protected final Counter idleCounter;
+
+    protected final Counter failuresCounter;
+
+    protected volatile boolean closed;
+
+    public LDAPContextPool(String name, LDAPServerDescriptor server,
+            Properties environment, MetricRegistry registry, String metricName) {
+        this.name = name;
+        this.server = server;
+        this.environment = environment;
+        this.registry = registry;
+        this.metricName = metricName;
+        permits = new Semaphore(server.getPoolMaxSize(), true);
+        borrowTimer = registry.timer(MetricRegistry.name(metricName, "borrow"));
+        activeCounter = registry.counter(MetricRegistry.name(metricName,
+                "active"));
+        idleCounter = registry.counter(MetricRegistry.name(metricName, "idle"));
+        failuresCounter = registry.counter(MetricRegistry.name(metricName,
+                "failures"));
+        int interval = server.getPoolValidationInterval();
+        if (interval > 0) {
+            validator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Nuxeo-LDAP-Pool-"
+                            + LDAPContextPool.this.name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            validator.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    validateIdleContexts();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        } else {
+            validator = null;
+        }
+    }
+
+    /**
+     * Borrows a context; closing it gives it back to the pool.
+     */
+    @Override
+    public DirContext getContext() throws DirectoryException {
+        return borrow();
+    }
+
+    /**
+     * Borrows a context; closing it gives it back to the pool.
+     */
+    public LdapContext borrow() throws DirectoryException {
+        if (closed) {
+            throw new DirectoryException("LDAP connection pool of '" + name
+                    + "' is closed");
+        }
+        Timer.Context timerContext = borrowTimer.time();
+        try {
+            try {
+                if (!permits.tryAcquire(server.getPoolBorrowTimeout(),
+                        TimeUnit.MILLISECONDS)) {
+                    failuresCounter.inc();
+                    throw new DirectoryException(String.format(
+                            "LDAP connection pool of '%s' exhausted: "
+                                    + "no context available after %s ms",
+                            name,
+                            Integer.valueOf(server.getPoolBorrowTimeout())));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DirectoryException(e);
+            }
+            PooledContext pooled;
+            try {
+                pooled = takeIdleContext();
+                if (pooled == null) {
+                    pooled = openContext();
+                }
+            } catch (DirectoryException e) {
+                permits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+            activeCounter.inc();
+            return pooled.lend();
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    protected PooledContext takeIdleContext() {
+        long maxIdle = TimeUnit.SECONDS.toNanos(server.getPoolMaxIdleTime());
+        PooledContext pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            idleCounter.dec();
+            if (System.nanoTime() - pooled.lastUsed < maxIdle) {
+                return pooled;
+            }
+            pooled.destroy();
+        }
+        return null;
+    }
+
+    /**
+     * Opens a context on the first server that accepts it, trying the
+     * servers in a random order weighted by their configuration.
+     */
+    protected PooledContext openContext() throws DirectoryException {
+        Map<String, Integer> urls;
+        try {
+            urls = server.getWeightedLdapUrls();
+        } catch (NamingException e) {
+            failuresCounter.inc();
+            throw new DirectoryException(
+                    "Cannot resolve the LDAP servers of directory '" + name
+                            + "': " + e.getMessage(), e);
+        }
+        long now = System.nanoTime();
+        List<ServerState> available = new ArrayList<ServerState>();
+        List<ServerState> backups = new ArrayList<ServerState>();
+        List<ServerState> failed = new ArrayList<ServerState>();
+        for (Map.Entry<String, Integer> entry : urls.entrySet()) {
+            ServerState state = getState(entry.getKey());
+            state.weight = Math.max(0, entry.getValue().intValue());
+            if (state.isDown(now)) {
+                failed.add(state);
+            } else if (state.weight > 0) {
+                available.add(state);
+            } else {
+                backups.add(state);
+            }
+        }
+        // servers with a zero weight are only used when the others fail,
+        // and when all the servers failed they are tried again anyway
+        List<ServerState> candidates = orderByWeight(available);
+        candidates.addAll(backups);
+        candidates.addAll(failed);
+        NamingException lastError = null;
+        for (ServerState state : candidates) {
+            try {
+                LdapContext context = createContext(state.url);
+                state.downUntil = 0;
+                return new PooledContext(context, state);
+            } catch (NamingException e) {
+                lastError = e;
+                if (isServerFailure(e)) {
+                    serverFailed(state, e);
+                } else {
+                    // e.g. bad credentials, the server itself is fine
+                    log.debug("Cannot create an LDAP context on '"
+                            + state.url + "' for " + name, e);
+                }
+            }
+        }
+        throw new DirectoryException("Cannot connect to LDAP directory '"
+                + name + "'"
+                + (lastError == null ? "" : ": " + lastError.getMessage()),
+                lastError);
+    }
+
+    /**
+     * Opens a new context on the given server.
+     */
+    protected LdapContext createContext(String url) throws NamingException {
+        Hashtable<Object, Object> env = new Hashtable<Object, Object>(
+                environment);
+        env.put(Context.PROVIDER_URL, url);
+        return new InitialLdapContext(env, null);
+    }
+
+    protected ServerState getState(String url) {
+        ServerState state = states.get(url);
+        if (state == null) {
+            state = new ServerState(url, registry.counter(MetricRegistry.name(
+                    metricName, "servers", url.length() == 0 ? "default"
+                            : url, "failures")));
+            ServerState previous = states.putIfAbsent(url, state);
+            if (previous != null) {
+                state = previous;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Weighted random ordering: each server is picked with a probability
+     * proportional to its weight among the remaining ones.
+     */
+    protected List<ServerState> orderByWeight(List<ServerState> servers) {
+        List<ServerState> remaining = new ArrayList<ServerState>(servers);
+        List<ServerState> ordered = new ArrayList<ServerState>(servers.size());
+        int total = 0;
+        for (ServerState state : remaining) {
+            total += state.weight;
+        }
+        while (!remaining.isEmpty()) {
+            int pick = random.nextInt(total);
+            Iterator<ServerState> it = remaining.iterator();
+            while (it.hasNext()) {
+                ServerState state = it.next();
+                pick -= state.weight;
+                if (pick < 0) {
+                    ordered.add(state);
+                    total -= state.weight;
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Tells whether the error means that the server cannot be reached or is
+     * not able to serve requests, as opposed to errors caused by the request
+     * or the credentials (e.g. {@link javax.naming.AuthenticationException}).
+     *
+     * @since 5.7.3
+     */
+    protected static boolean isServerFailure(Throwable e) {
+        if (e instanceof CommunicationException
+                || e instanceof ServiceUnavailableException) {
+            return true;
+        }
+        // connection errors not wrapped in a CommunicationException, e.g.
+        // connect or read timeouts
+        return e instanceof NamingException
+                && ((NamingException) e).getRootCause() instanceof IOException;
+    }
+
+    protected void serverFailed(ServerState state, Exception e) {
+        failuresCounter.inc();
+        state.failuresCounter.inc();
+        state.downUntil = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(server.getPoolFailoverDelay());
+        log.warn(String.format("LDAP server '%s' of directory '%s' failed,"
+                + " not used for %s s: %s", state.url, name,
+                Integer.valueOf(server.getPoolFailoverDelay()),
+                e.getMessage()));
+    }
+
+    protected void giveBack(PooledContext pooled) {
+        activeCounter.dec();
+        try {
+            if (closed || pooled.broken) {
+                pooled.destroy();
+                return;
+            }
+            try {
+                // do not leak the controls of the previous borrower
+                pooled.context.setRequestControls(null);
+            } catch (NamingException e) {
+                pooled.destroy();
+                return;
+            }
+            pooled.lastUsed = System.nanoTime();
+            idle.offerFirst(pooled);
+            idleCounter.inc();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the expired idle contexts and checks the other ones.
+     */
+    protected void validateIdleContexts() {
+        long maxIdle = TimeUnit.SECONDS.toNanos(server.getPoolMaxIdleTime());
+        // only check the contexts idle at the start of the validation
+        int count = idle.size();
+        for (int i = 0; i < count && !closed; i++) {
+            PooledContext pooled = idle.pollLast();
+            if (pooled == null) {
+                break;
+            }
+            idleCounter.dec();
+            if (System.nanoTime() - pooled.lastUsed >= maxIdle) {
+                pooled.destroy();
+                continue;
+            }
+            try {
+                pooled.context.getAttributes("", VALIDATION_ATTRIBUTES);
+            } catch (NamingException e) {
+                if (isServerFailure(e)) {
+                    serverFailed(pooled.server, e);
+                }
+                pooled.destroy();
+                continue;
+            } catch (RuntimeException e) {
+                log.debug("Error validating an LDAP context of " + name, e);
+                pooled.destroy();
+                continue;
+            }
+            // validated contexts are used last
+            idle.offerLast(pooled);
+            idleCounter.inc();
+        }
+    }
+
+    /**
+     * Closes the idle contexts; the borrowed ones are closed when given back.
+     */
+    public void shutdown() {
+        closed = true;
+        if (validator != null) {
+            validator.shutdownNow();
+        }
+        PooledContext pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            idleCounter.dec();
+            pooled.destroy();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxSize() {
+        return server.getPoolMaxSize();
+    }
+
+    public long getActiveCount() {
+        return activeCounter.getCount();
+    }
+
+    public long getIdleCount() {
+        return idleCounter.getCount();
+    }
+
+    public long getFailureCount() {
+        return failuresCounter.getCount();
+    }
+
+    public Timer getBorrowTimer() {
+        return borrowTimer;
+    }
+
+    /**
+     * Returns the failure count of each server used so far, keyed by URL;
+     * servers currently skipped are flagged as down.
+     */
+    public Map<String, String> getServerStatus() {
+        long now = System.nanoTime();
+        Map<String, String> status = new LinkedHashMap<String, String>();
+        for (ServerState state : states.values()) {
+            status.put(state.url, String.format("%s (%d failures)",
+                    state.isDown(now) ? "down" : "up",
+                    Long.valueOf(state.failuresCounter.getCount())));
+        }
+        return Collections.unmodifiableMap(status);
+    }
+
+    /**
+     * State of a server URL.
+     */
+    protected static class ServerState {
+
+        protected final String url;
+
+        protected final Counter failuresCounter;
+
+        protected volatile int weight;
+
+        // System.nanoTime() based, 0 when up
+        protected volatile long downUntil;
+
+        protected ServerState(String url, Counter failuresCounter) {
+            this.url = url;
+            this.failuresCounter = failuresCounter;
+        }
+
+        protected boolean isDown(long now) {
+            long until = downUntil;
+            return until != 0 && until - now > 0;
+        }
+
+    }
+
+    /**
+     * A physical context of the pool.
+     */
+    protected class PooledContext {
+
+        protected final LdapContext context;
+
+        protected final ServerState server;
+
+        protected volatile long lastUsed = System.nanoTime();
+
+        protected volatile boolean broken;
+
+        protected PooledContext(LdapContext context, ServerState server) {
+            this.context = context;
+            this.server = server;
+        }
+
+        /**
+         * Returns a proxy of the context, giving it back to the pool when
+         * closed.
+         */
+        protected LdapContext lend() {
+            return (LdapContext) Proxy.newProxyInstance(
+                    LDAPContextPool.class.getClassLoader(),
+                    new Class<?>[] { LdapContext.class }, new Lease(this));
+        }
+
+        protected void destroy() {
+            try {
+                context.close();
+            } catch (NamingException e) {
+                log.debug("Cannot close LDAP context of " + name, e);
+            }
+        }
+
+    }
+
+    /**
+     * Handler of a borrowed context.
+     */
+    protected class Lease implements InvocationHandler {
+
+        protected final PooledContext pooled;
+
+        protected final AtomicBoolean released = new AtomicBoolean();
+
+        protected Lease(PooledContext pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String methodName = method.getName();
+            if ("close".equals(methodName) && method.getParameterTypes().length == 0) {
+                if (released.compareAndSet(false, true)) {
+                    giveBack(pooled);
+                }
+                return null;
+            }
+            if ("equals".equals(methodName) && args != null
+                    && args.length == 1) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(methodName) && args == null) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            if (released.get()) {
+                throw new IllegalStateException(
+                        "LDAP context already given back to the pool");
+            }
+            try {
+                return method.invoke(pooled.context, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getTargetException();
+                if (isServerFailure(cause)) {
+                    // do not give this connection to another borrower
+                    pooled.broken = true;
+                    serverFailed(pooled.server, (Exception) cause);
+                }
+                throw cause;
+            }
+        }
+
+    }
+
+}
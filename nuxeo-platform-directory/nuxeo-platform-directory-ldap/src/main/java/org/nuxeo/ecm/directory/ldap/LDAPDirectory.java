@@ -33,12 +33,17 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.Context;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -57,9 +62,12 @@ import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.DirectoryFieldMapper;
 import org.nuxeo.ecm.directory.Reference;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.runtime.api.Framework;
 
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * Implementation of the Directory interface for servers implementing the
  * Lightweight Directory Access Protocol.
@@ -89,6 +97,15 @@ public class LDAPDirectory extends AbstractDirectory {
     // the following attribute is only used for testing purpose
     protected ContextProvider testServer;
 
+    // normalized DN -> entry id, null if disabled
+    protected final SegmentedLRUCache<String, String> dnCache;
+
+    // OIDs of the controls advertised in the root DSE, read lazily
+    protected volatile Set<String> supportedControls;
+
+    // null if the server relies on JNDI pooling
+    protected final LDAPContextPool contextPool;
+
     public LDAPDirectory(LDAPDirectoryDescriptor config) throws ClientException {
         super(config.name);
         this.config = config;
@@ -140,6 +157,24 @@ public class LDAPDirectory extends AbstractDirectory {
         // cache parameterization
         cache.setMaxSize(config.getCacheMaxSize());
         cache.setTimeout(config.getCacheTimeout());
+        cache.setQueryMaxSize(config.getQueryCacheMaxSize());
+        if (config.getDnCacheMaxSize() > 0) {
+            dnCache = new SegmentedLRUCache<String, String>(
+                    config.getDnCacheMaxSize(),
+                    TimeUnit.SECONDS.toNanos(config.getDnCacheTimeout()),
+                    registry, MetricRegistry.name("nuxeo", "directories",
+                            getName(), "dns"));
+        } else {
+            dnCache = null;
+        }
+        LDAPServerDescriptor serverConfig = getServer();
+        if (serverConfig.getPoolMaxSize() > 0) {
+            contextPool = new LDAPContextPool(getName(), serverConfig,
+                    contextProperties, registry, MetricRegistry.name("nuxeo",
+                            "directories", getName(), "pool"));
+        } else {
+            contextPool = null;
+        }
 
         log.debug(String.format(
                 "initialized LDAP directory %s with fields [%s] and references [%s]",
@@ -200,7 +235,8 @@ public class LDAPDirectory extends AbstractDirectory {
                     serverConfig.getBindPassword());
         }
 
-        if (serverConfig.isPoolingEnabled()) {
+        if (serverConfig.isPoolingEnabled()
+                && serverConfig.getPoolMaxSize() <= 0) {
             // Enable connection pooling
             props.put("com.sun.jndi.ldap.connect.pool", "true");
             props.put("com.sun.jndi.ldap.connect.pool.protocol", "plain ssl");
@@ -288,6 +324,23 @@ public class LDAPDirectory extends AbstractDirectory {
     }
 
     protected DirContext createContext() throws DirectoryException {
+        if (testServer != null) {
+            return testServer.getContext();
+        }
+        return createLdapContext();
+    }
+
+    /**
+     * Creates a new LDAP v3 context, supporting request controls such as
+     * paged results. When the server defines a pool size, the context is
+     * borrowed from the pool and closing it gives it back.
+     *
+     * @since 5.7.3
+     */
+    public LdapContext createLdapContext() throws DirectoryException {
+        if (contextPool != null) {
+            return contextPool.borrow();
+        }
         try {
             /*
              * Dynamic server list requires re-computation on each access
@@ -303,13 +356,95 @@ public class LDAPDirectory extends AbstractDirectory {
                 String ldapUrls = serverConfig.getLdapUrls();
                 contextProperties.put(Context.PROVIDER_URL, ldapUrls);
             }
-            return new InitialDirContext(contextProperties);
+            return new InitialLdapContext(contextProperties, null);
         } catch (NamingException e) {
             throw new DirectoryException("Cannot connect to LDAP directory '"
                     + getName() + "': " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Returns the pool of contexts bound with the server credentials, or
+     * {@code null} if the server relies on JNDI pooling.
+     *
+     * @since 5.7.3
+     */
+    public LDAPContextPool getContextPool() {
+        return contextPool;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        if (contextPool != null) {
+            contextPool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the cache of the ids of the entries of this directory keyed by
+     * their normalized distinguished name, or {@code null} if disabled.
+     *
+     * @since 5.7.3
+     */
+    public SegmentedLRUCache<String, String> getDnCache() {
+        return dnCache;
+    }
+
+    @Override
+    public void invalidateCaches() throws DirectoryException {
+        if (dnCache != null) {
+            dnCache.clear();
+        }
+        super.invalidateCaches();
+    }
+
+    @Override
+    public void invalidateDirectoryCache() throws DirectoryException {
+        if (dnCache != null) {
+            dnCache.clear();
+        }
+        super.invalidateDirectoryCache();
+    }
+
+    /**
+     * Checks whether the server advertises the given control (such as
+     * {@link javax.naming.ldap.PagedResultsControl#OID}) in the {@code
+     * supportedControl} attribute of its root DSE. The root DSE is read using
+     * the given context, and only kept once it could be read: after a failure
+     * no control is used and the root DSE is read again on the next call.
+     *
+     * @since 5.7.3
+     */
+    public boolean supportsControl(DirContext context, String oid) {
+        Set<String> controls = supportedControls;
+        if (controls == null) {
+            controls = new HashSet<String>();
+            try {
+                Attributes attributes = context.getAttributes("",
+                        new String[] { "supportedControl" });
+                Attribute attribute = attributes.get("supportedControl");
+                if (attribute != null) {
+                    NamingEnumeration<?> values = attribute.getAll();
+                    while (values.hasMore()) {
+                        controls.add(String.valueOf(values.next()));
+                    }
+                }
+            } catch (NamingException e) {
+                // may be transient, try again next time
+                log.debug("Cannot read the supported controls of directory "
+                        + getName() + ": " + e.getMessage());
+                return false;
+            } catch (UnsupportedOperationException e) {
+                // Apache DS in embedded mode, that will not change
+                log.debug("Cannot read the supported controls of directory "
+                        + getName() + ": " + e.getMessage());
+            }
+            supportedControls = controls;
+        }
+        return controls.contains(oid);
+    }
+
     @Override
     public String getName() {
         return config.getName();
@@ -345,13 +480,7 @@ public class LDAPDirectory extends AbstractDirectory {
 
     @Override
     public Session getSession() throws DirectoryException {
-        DirContext context;
-        if (testServer != null) {
-            context = testServer.getContext();
-        } else {
-            context = createContext();
-        }
-        Session session = new LDAPSession(this, context);
+        Session session = new LDAPSession(this, createContext());
         addSession(session);
         return session;
     }
@@ -69,6 +69,31 @@ public class LDAPDirectoryDescriptor {
     @XNode("cacheMaxSize")
     public int cacheMaxSize = 0;
 
+    /**
+     * @since 5.7.3
+     */
+    @XNode("queryCacheMaxSize")
+    public int queryCacheMaxSize = 0;
+
+    /**
+     * Maximum number of distinguished names resolved to entry ids kept for
+     * the references targeting this directory, 0 (the default) to disable.
+     * Names not matching any entry are not kept.
+     *
+     * @since 5.7.3
+     */
+    @XNode("dnCacheMaxSize")
+    public int dnCacheMaxSize = 0;
+
+    /**
+     * Time to live in seconds of the resolved distinguished names, 0 for no
+     * expiration.
+     *
+     * @since 5.7.3
+     */
+    @XNode("dnCacheTimeout")
+    public int dnCacheTimeout = 0;
+
     @XNodeMap(value = "fieldMapping", key = "@name", type = HashMap.class, componentType = String.class)
     public Map<String, String> fieldMapping = new HashMap<String, String>();
 
@@ -124,6 +149,15 @@ public class LDAPDirectoryDescriptor {
     @XNode("queryTimeLimit")
     private int queryTimeLimit = 0; // default to wait indefinitely
 
+    /**
+     * Number of entries requested per page when the server supports the
+     * paged results control, 0 to disable paging.
+     *
+     * @since 5.7.3
+     */
+    @XNode("queryPageSize")
+    private int queryPageSize = 500;
+
     protected EntryAdaptor entryAdaptor;
 
     @XObject(value = "entryAdaptor")
@@ -336,6 +370,27 @@ public class LDAPDirectoryDescriptor {
         return cacheMaxSize;
     }
 
+    /**
+     * @since 5.7.3
+     */
+    public int getQueryCacheMaxSize() {
+        return queryCacheMaxSize;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getDnCacheMaxSize() {
+        return dnCacheMaxSize;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getDnCacheTimeout() {
+        return dnCacheTimeout;
+    }
+
     public int getQuerySizeLimit() {
         return querySizeLimit;
     }
@@ -352,6 +407,20 @@ public class LDAPDirectoryDescriptor {
         return queryTimeLimit;
     }
 
+    /**
+     * @since 5.7.3
+     */
+    public int getQueryPageSize() {
+        return queryPageSize;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public void setQueryPageSize(int queryPageSize) {
+        this.queryPageSize = queryPageSize;
+    }
+
     public EntryAdaptor getEntryAdaptor() {
         return entryAdaptor;
     }
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -485,6 +486,36 @@ public class LDAPReference extends AbstractReference {
     @Override
     public List<String> getSourceIdsForTarget(String targetId)
             throws DirectoryException {
+        LDAPDirectory sourceDirectory = getSourceLDAPDirectory();
+        LDAPDirectory targetDirectory = getTargetLDAPDirectory();
+        LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
+        try {
+            LDAPSession targetSession = sourceSession;
+            if (targetDirectory != sourceDirectory) {
+                targetSession = (LDAPSession) targetDirectory.getSession();
+            }
+            try {
+                return getSourceIdsForTarget(targetId, sourceSession,
+                        targetSession);
+            } finally {
+                if (targetSession != sourceSession) {
+                    targetSession.close();
+                }
+            }
+        } finally {
+            sourceSession.close();
+        }
+    }
+
+    /**
+     * Same as {@link #getSourceIdsForTarget(String)}, using the given sessions
+     * for all the searches.
+     *
+     * @since 5.7.3
+     */
+    protected List<String> getSourceIdsForTarget(String targetId,
+            LDAPSession sourceSession, LDAPSession targetSession)
+            throws DirectoryException {
 
         // container to hold merged references
         Set<String> sourceIds = new TreeSet<String>();
@@ -496,9 +527,6 @@ public class LDAPReference extends AbstractReference {
         if (staticAttributeId != null) {
             // step #1.1: fetch the dn of the targetId entry in the target
             // directory by the static dn valued strategy
-            LDAPDirectory targetDir = getTargetLDAPDirectory();
-            LDAPSession targetSession = (LDAPSession) targetDir.getSession();
-
             if (staticAttributeIdIsDn) {
                 try {
                     targetLdapEntry = targetSession.getLdapEntry(targetId, true);
@@ -519,8 +547,6 @@ public class LDAPReference extends AbstractReference {
                     throw new DirectoryException("error fetching " + targetId
                             + " from " + targetDirectoryName + ": "
                             + e.getMessage(), e);
-                } finally {
-                    targetSession.close();
                 }
             }
 
@@ -539,7 +565,6 @@ public class LDAPReference extends AbstractReference {
             }
 
             String searchBaseDn = sourceDirectory.getConfig().getSearchBaseDn();
-            LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
             SearchControls sctls = sourceDirectory.getSearchControls();
             try {
                 if (log.isDebugEnabled()) {
@@ -571,8 +596,6 @@ public class LDAPReference extends AbstractReference {
             } catch (NamingException e) {
                 throw new DirectoryException(
                         "error during reference search for " + filterArgs[0], e);
-            } finally {
-                sourceSession.close();
             }
         }
         // step #2: resolve dynamic references
@@ -580,10 +603,7 @@ public class LDAPReference extends AbstractReference {
         if (dynamicAttributeId != null) {
 
             LDAPDirectory sourceDirectory = getSourceLDAPDirectory();
-            LDAPDirectory targetDirectory = getTargetLDAPDirectory();
             String searchBaseDn = sourceDirectory.getConfig().getSearchBaseDn();
-            LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
-            LDAPSession targetSession = (LDAPSession) targetDirectory.getSession();
 
             try {
                 // step #2.1: fetch the target entry to apply the ldap url
@@ -674,9 +694,6 @@ public class LDAPReference extends AbstractReference {
             } catch (Exception e) {
                 throw new DirectoryException(
                         "error during reference search for " + targetId, e);
-            } finally {
-                sourceSession.close();
-                targetSession.close();
             }
         }
 
@@ -752,12 +769,29 @@ public class LDAPReference extends AbstractReference {
      */
     public List<String> getLdapTargetIds(Attributes attributes)
             throws DirectoryException {
+        LDAPSession targetSession = (LDAPSession) getTargetLDAPDirectory().getSession();
+        try {
+            return getLdapTargetIds(attributes, targetSession);
+        } finally {
+            targetSession.close();
+        }
+    }
+
+    /**
+     * Same as {@link #getLdapTargetIds(Attributes)}, using the given session
+     * on the target directory so that a caller resolving the references of
+     * several entries can reuse it. The distinguished names of the static
+     * references are resolved at once.
+     *
+     * @since 5.7.3
+     */
+    public List<String> getLdapTargetIds(Attributes attributes,
+            LDAPSession targetSession) throws DirectoryException {
 
         Set<String> targetIds = new TreeSet<String>();
 
         LDAPDirectory targetDirectory = (LDAPDirectory) getTargetDirectory();
         LDAPDirectoryDescriptor targetDirconfig = getTargetDirectoryDescriptor();
-        LDAPSession targetSession = (LDAPSession) targetDirectory.getSession();
         String emptyRefMarker = targetDirectory.getConfig().getEmptyRefMarker();
         try {
             String baseDn = pseudoNormalizeDn(targetDirconfig.getSearchBaseDn());
@@ -784,6 +818,7 @@ public class LDAPReference extends AbstractReference {
             }
 
             if (staticAttribute != null && staticAttributeIdIsDn) {
+                List<String> dns = new ArrayList<String>();
                 NamingEnumeration<?> targetDns = staticAttribute.getAll();
                 try {
                     while (targetDns.hasMore()) {
@@ -798,52 +833,59 @@ public class LDAPReference extends AbstractReference {
                             }
                             continue;
                         }
-                        // find the id of the referenced entry
-                        String id = null;
-
-                        if (targetSession.rdnMatchesIdField()) {
-                            // optim: do not fetch the entry to get its true id
-                            // but
-                            // guess it by reading the targetDn
-                            LdapName name = new LdapName(targetDn);
-                            String rdn = name.get(name.size() - 1);
-                            int pos = rdn.indexOf("=");
-                            id = rdn.substring(pos + 1);
-                        } else {
-                            id = getIdForDn(targetSession, targetDn);
-                            if (id == null) {
-                                log.warn(String.format(
-                                        "ignoring target '%s' (missing attribute '%s') while resolving reference '%s'",
-                                        targetDn, targetSession.idAttribute,
-                                        this));
-                                continue;
-                            }
+                        dns.add(targetDn);
+                    }
+                } finally {
+                    targetDns.close();
+                }
+                // find the ids of the referenced entries
+                Map<String, String> idsForDns = null;
+                if (!targetSession.rdnMatchesIdField()) {
+                    idsForDns = targetSession.getIdsForDns(dns);
+                }
+                for (String targetDn : dns) {
+                    String id = null;
+
+                    if (idsForDns == null) {
+                        // optim: do not fetch the entry to get its true id
+                        // but
+                        // guess it by reading the targetDn
+                        LdapName name = new LdapName(targetDn);
+                        String rdn = name.get(name.size() - 1);
+                        int pos = rdn.indexOf("=");
+                        id = rdn.substring(pos + 1);
+                    } else {
+                        id = idsForDns.get(targetDn);
+                        if (id == null) {
+                            log.warn(String.format(
+                                    "ignoring target '%s' (missing attribute '%s') while resolving reference '%s'",
+                                    targetDn, targetSession.idAttribute,
+                                    this));
+                            continue;
                         }
-                        if (forceDnConsistencyCheck) {
-                            // check that the referenced entry is actually part
-                            // of
-                            // the target directory (takes care of the filters
-                            // and
-                            // the scope)
-                            // this check can be very expensive on large groups
-                            // and thus not enabled by default
-                            if (!targetSession.hasEntry(id)) {
-                                if (log.isTraceEnabled()) {
-                                    log.trace(String.format(
-                                            "ignoring target '%s' when resolving '%s' (not part of target"
-                                                    + " directory by forced DN consistency check)",
-                                            targetDn, this));
-                                }
-                                continue;
+                    }
+                    if (forceDnConsistencyCheck) {
+                        // check that the referenced entry is actually part
+                        // of
+                        // the target directory (takes care of the filters
+                        // and
+                        // the scope)
+                        // this check can be very expensive on large groups
+                        // and thus not enabled by default
+                        if (!targetSession.hasEntry(id)) {
+                            if (log.isTraceEnabled()) {
+                                log.trace(String.format(
+                                        "ignoring target '%s' when resolving '%s' (not part of target"
+                                                + " directory by forced DN consistency check)",
+                                        targetDn, this));
                             }
-                        }
-                        // NXP-2461: check that id field is filled
-                        if (id != null) {
-                            targetIds.add(id);
+                            continue;
                         }
                     }
-                } finally {
-                    targetDns.close();
+                    // NXP-2461: check that id field is filled
+                    if (id != null) {
+                        targetIds.add(id);
+                    }
                 }
             }
             // step #2: fetched dynamically referenced ids
@@ -956,8 +998,6 @@ public class LDAPReference extends AbstractReference {
             return new ArrayList<String>(targetIds);
         } catch (NamingException e) {
             throw new DirectoryException("error computing LDAP references", e);
-        } finally {
-            targetSession.close();
         }
     }
 
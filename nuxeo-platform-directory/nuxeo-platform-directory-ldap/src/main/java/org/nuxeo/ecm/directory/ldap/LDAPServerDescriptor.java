@@ -21,8 +21,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.naming.InvalidNameException;
@@ -73,6 +75,50 @@ public class LDAPServerDescriptor {
     @XNode("retries")
     public int retries = 5;
 
+    /**
+     * Maximum number of contexts borrowed at the same time from the
+     * connection pool of each directory using this server; 0 (the default)
+     * relies on the JNDI connection pooling instead.
+     *
+     * @since 5.7.3
+     */
+    @XNode("poolMaxSize")
+    public int poolMaxSize = 0;
+
+    /**
+     * Milliseconds to wait for a context when the pool is exhausted.
+     *
+     * @since 5.7.3
+     */
+    @XNode("poolBorrowTimeout")
+    public int poolBorrowTimeout = 5000;
+
+    /**
+     * Seconds between two background validations of the idle contexts, 0
+     * to disable them.
+     *
+     * @since 5.7.3
+     */
+    @XNode("poolValidationInterval")
+    public int poolValidationInterval = 60;
+
+    /**
+     * Seconds after which an idle context is closed.
+     *
+     * @since 5.7.3
+     */
+    @XNode("poolMaxIdleTime")
+    public int poolMaxIdleTime = 300;
+
+    /**
+     * Seconds during which a server that failed is not used to open new
+     * contexts, unless all the other servers failed as well.
+     *
+     * @since 5.7.3
+     */
+    @XNode("poolFailoverDelay")
+    public int poolFailoverDelay = 30;
+
     protected LinkedHashSet<LdapEntry> ldapEntries;
 
     protected boolean isDynamicServerList = false;
@@ -312,6 +358,68 @@ public class LDAPServerDescriptor {
         return poolingEnabled;
     }
 
+    /**
+     * @since 5.7.3
+     */
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getPoolBorrowTimeout() {
+        return poolBorrowTimeout;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getPoolValidationInterval() {
+        return poolValidationInterval;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getPoolMaxIdleTime() {
+        return poolMaxIdleTime;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getPoolFailoverDelay() {
+        return poolFailoverDelay;
+    }
+
+    /**
+     * Returns the server URLs with their weight, resolving the DNS SRV
+     * records of the dynamic entries.
+     *
+     * @since 5.7.3
+     */
+    public Map<String, Integer> getWeightedLdapUrls() throws NamingException {
+        Map<String, Integer> urls = new LinkedHashMap<String, Integer>();
+        for (LdapEntry entry : ldapEntries) {
+            Integer weight = Integer.valueOf(entry.getWeight());
+            String entryUrls = entry.getUrl();
+            if (StringUtils.isEmpty(entryUrls)) {
+                // JNDI default: ldap://localhost:389
+                if (!urls.containsKey("")) {
+                    urls.put("", weight);
+                }
+                continue;
+            }
+            for (String url : StringUtils.split(entryUrls, ' ')) {
+                if (!urls.containsKey(url)) {
+                    urls.put(url, weight);
+                }
+            }
+        }
+        return urls;
+    }
+
     public boolean isVerifyServerCert() {
         return verifyServerCert;
     }
@@ -335,6 +443,8 @@ public class LDAPServerDescriptor {
      */
     protected interface LdapEntry {
         String getUrl() throws NamingException;
+
+        int getWeight();
     }
 
     /**
@@ -377,6 +487,11 @@ public class LDAPServerDescriptor {
             return url.getValue();
         }
 
+        @Override
+        public int getWeight() {
+            return url.getWeight();
+        }
+
     }
 
     /**
@@ -30,14 +30,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.SimpleTimeZone;
+import java.util.TreeMap;
 
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.LimitExceededException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
@@ -50,7 +53,16 @@ import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.Rdn;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
+import javax.naming.ldap.SortResponseControl;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -67,25 +79,41 @@ import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.core.schema.types.Type;
 import org.nuxeo.ecm.core.utils.SIDGenerator;
+import org.nuxeo.ecm.directory.AbstractEntryIterator;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.DirectoryFieldMapper;
 import org.nuxeo.ecm.directory.EntryAdaptor;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.EntrySource;
+import org.nuxeo.ecm.directory.QuerySource;
 import org.nuxeo.ecm.directory.Reference;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 
 /**
  * This class represents a session against an LDAPDirectory.
  *
  * @author Olivier Grisel <ogrisel@nuxeo.com>
  */
-public class LDAPSession extends BaseSession implements EntrySource {
+public class LDAPSession extends BaseSession implements EntrySource,
+        QuerySource {
 
     protected static final String MISSING_ID_LOWER_CASE = "lower";
 
     protected static final String MISSING_ID_UPPER_CASE = "upper";
 
+    /**
+     * Maximum number of ids in the OR filter of a bulk fetch.
+     */
+    protected static final int GET_ENTRIES_BATCH_SIZE = 100;
+
+    /**
+     * Maximum number of distinguished names in the OR filter of a bulk DN to
+     * id resolution.
+     */
+    protected static final int DN_BATCH_SIZE = 100;
+
     private static final Log log = LogFactory.getLog(LDAPSession.class);
 
     protected final String schemaName;
@@ -112,6 +140,10 @@ public class LDAPSession extends BaseSession implements EntrySource {
 
     protected final String rdnField;
 
+    // sessions on the target directories of the references, opened on first
+    // use and closed with this session
+    protected Map<String, LDAPSession> referenceSessions;
+
     public LDAPSession(LDAPDirectory directory, DirContext dirContext) {
         this.directory = directory;
         this.dirContext = LdapRetryHandler.wrap(dirContext, directory.getServer().getRetries());
@@ -256,6 +288,114 @@ public class LDAPSession extends BaseSession implements EntrySource {
         }
     }
 
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException {
+        return directory.getCache().getEntries(ids, this, fetchReferences);
+    }
+
+    /**
+     * Fetches the entries with a single search per batch of ids, using an OR
+     * filter on the id attribute.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public Map<String, DocumentModel> getEntriesFromSource(
+            Collection<String> ids, boolean fetchReferences)
+            throws DirectoryException {
+        // LDAP ids are compared case-insensitively by most servers
+        Map<String, String> requestedIds = new TreeMap<String, String>(
+                String.CASE_INSENSITIVE_ORDER);
+        for (String id : ids) {
+            if (StringUtils.isEmpty(id)) {
+                continue;
+            }
+            requestedIds.put(id, id);
+        }
+        Map<String, DocumentModel> entries = new HashMap<String, DocumentModel>();
+        int batchSize = GET_ENTRIES_BATCH_SIZE;
+        int querySizeLimit = directory.getConfig().getQuerySizeLimit();
+        if (querySizeLimit > 0 && querySizeLimit < batchSize) {
+            batchSize = querySizeLimit;
+        }
+        List<String> batch = new ArrayList<String>(batchSize);
+        for (String id : requestedIds.values()) {
+            batch.add(id);
+            if (batch.size() == batchSize) {
+                getEntriesBatchFromSource(batch, requestedIds,
+                        fetchReferences, entries);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            getEntriesBatchFromSource(batch, requestedIds, fetchReferences,
+                    entries);
+        }
+        return entries;
+    }
+
+    protected void getEntriesBatchFromSource(List<String> ids,
+            Map<String, String> requestedIds, boolean fetchReferences,
+            Map<String, DocumentModel> entries) throws DirectoryException {
+        StringBuilder filterExpr = new StringBuilder("(&(|");
+        for (int i = 0; i < ids.size(); i++) {
+            filterExpr.append('(').append(idAttribute).append("={").append(
+                    i).append("})");
+        }
+        filterExpr.append(')');
+        String baseFilter = directory.getBaseFilter();
+        if (baseFilter.startsWith("(")) {
+            filterExpr.append(baseFilter);
+        } else {
+            filterExpr.append('(').append(baseFilter).append(')');
+        }
+        filterExpr.append(')');
+        String[] filterArgs = ids.toArray(new String[ids.size()]);
+        SearchControls scts = directory.getSearchControls();
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "LDAPSession.getEntriesFromSource(...): LDAP search base='%s' filter='%s' "
+                            + " args='%s' scope='%s' [%s]", searchBaseDn,
+                    filterExpr, StringUtils.join(filterArgs, ","),
+                    scts.getSearchScope(), this));
+        }
+        try {
+            NamingEnumeration<SearchResult> results;
+            try {
+                results = dirContext.search(searchBaseDn,
+                        filterExpr.toString(), filterArgs, scts);
+            } catch (NameNotFoundException nnfe) {
+                // see getLdapEntry
+                log.error(
+                        "Unexpected response from server while performing query: "
+                                + nnfe.getMessage(), nnfe);
+                return;
+            }
+            try {
+                while (results.hasMore()) {
+                    DocumentModel entry = ldapResultToDocumentModel(
+                            results.next(), null, fetchReferences);
+                    if (entry == null) {
+                        continue;
+                    }
+                    String id = requestedIds.get(entry.getId());
+                    if (id != null) {
+                        entries.put(id, entry);
+                    }
+                }
+            } finally {
+                results.close();
+            }
+        } catch (LimitExceededException e) {
+            throw new org.nuxeo.ecm.directory.SizeLimitExceededException(e);
+        } catch (NamingException e) {
+            throw new DirectoryException("getEntries failed: "
+                    + e.getMessage(), e);
+        }
+    }
+
     @Override
     public boolean hasEntry(String id) throws DirectoryException {
         try {
@@ -357,10 +497,9 @@ public class LDAPSession extends BaseSession implements EntrySource {
                                 + " args=* scope=%s [%s]", searchBaseDn,
                         directory.getBaseFilter(), scts.getSearchScope(), this));
             }
-            NamingEnumeration<SearchResult> results = dirContext.search(
-                    searchBaseDn, directory.getBaseFilter(), scts);
             // skip reference fetching
-            return ldapResultsToDocumentModels(results, false);
+            return search(directory.getBaseFilter(), new String[0], null,
+                    false, -1, -1, true);
         } catch (SizeLimitExceededException e) {
             throw new org.nuxeo.ecm.directory.SizeLimitExceededException(e);
         } catch (NamingException e) {
@@ -518,71 +657,28 @@ public class LDAPSession extends BaseSession implements EntrySource {
     public DocumentModelList query(Map<String, Serializable> filter,
             Set<String> fulltext, boolean fetchReferences,
             Map<String, String> orderBy) throws DirectoryException {
-        try {
-            // building the query using filterExpr / filterArgs to
-            // escape special characters and to fulltext search only on
-            // the explicitly specified fields
-            String[] filters = new String[filter.size()];
-            String[] filterArgs = new String[filter.size()];
-
-            if (fulltext == null) {
-                fulltext = Collections.emptySet();
-            }
-
-            int index = 0;
-            for (String fieldName : filter.keySet()) {
-                if (directory.isReference(fieldName)) {
-                    log.warn(fieldName
-                            + " is a reference and will be ignored as a query criterion");
-                    continue;
-                }
+        return directory.getCache().query(filter, fulltext, orderBy,
+                fetchReferences, -1, -1, this);
+    }
 
-                String backendFieldName = directory.getFieldMapper().getBackendField(
-                        fieldName);
-                Object fieldValue = filter.get(fieldName);
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset)
+            throws DirectoryException {
+        return directory.getCache().query(filter, fulltext, orderBy,
+                fetchReferences, limit, offset, this);
+    }
 
-                StringBuilder currentFilter = new StringBuilder();
-                currentFilter.append("(");
-                if (fieldValue == null) {
-                    currentFilter.append("!(" + backendFieldName + "=*)");
-                } else if ("".equals(fieldValue)) {
-                    if (fulltext.contains(fieldName)) {
-                        currentFilter.append(backendFieldName + "=*");
-                    } else {
-                        currentFilter.append("!(" + backendFieldName + "=*)");
-                    }
-                } else {
-                    currentFilter.append(backendFieldName + "=");
-                    if (fulltext.contains(fieldName)) {
-                        if (LDAPSubstringMatchType.SUBFINAL.equals(substringMatchType)) {
-                            currentFilter.append("*{" + index + "}");
-                        } else if (LDAPSubstringMatchType.SUBANY.equals(substringMatchType)) {
-                            currentFilter.append("*{" + index + "}*");
-                        } else {
-                            // default behavior: subinitial
-                            currentFilter.append("{" + index + "}*");
-                        }
-                    } else {
-                        currentFilter.append("{" + index + "}");
-                    }
-                }
-                currentFilter.append(")");
-                filters[index] = currentFilter.toString();
-                if (fieldValue != null && !"".equals(fieldValue)) {
-                    if (fieldValue instanceof Blob) {
-                        // filter arg could be a sequence of \xx where xx is the
-                        // hexadecimal value of the byte
-                        log.warn("Binary search is not supported");
-                    } else {
-                        // XXX: what kind of Objects can we get here? Is
-                        // toString() enough?
-                        filterArgs[index] = fieldValue.toString();
-                    }
-                }
-                index++;
-            }
-            String filterExpr = "(&" + directory.getBaseFilter()
-                    + StringUtils.join(filters) + ')';
+    @Override
+    public DocumentModelList queryFromSource(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset)
+            throws DirectoryException {
+        try {
+            String[] filterArgs = new String[filter.size()];
+            String filterExpr = buildFilterExpression(filter, fulltext,
+                    filterArgs);
             SearchControls scts = directory.getSearchControls();
 
             if (log.isDebugEnabled()) {
@@ -593,15 +689,8 @@ public class LDAPSession extends BaseSession implements EntrySource {
                         scts.getSearchScope(), this));
             }
             try {
-                NamingEnumeration<SearchResult> results = dirContext.search(
-                        searchBaseDn, filterExpr, filterArgs, scts);
-                DocumentModelList entries = ldapResultsToDocumentModels(
-                        results, fetchReferences);
-
-                if (orderBy != null && !orderBy.isEmpty()) {
-                    directory.orderEntries(entries, orderBy);
-                }
-                return entries;
+                return search(filterExpr, filterArgs, orderBy,
+                        fetchReferences, limit, offset, true);
             } catch (NameNotFoundException nnfe) {
                 // sometimes ActiveDirectory have some query fail with: LDAP:
                 // error code 32 - 0000208D: NameErr: DSID-031522C9, problem
@@ -621,6 +710,428 @@ public class LDAPSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Searches the entries matching the filter, returning at most {@code
+     * limit} of them starting at {@code offset} (ignored if negative).
+     * <p>
+     * When the server supports the paged results control, the entries are
+     * read one page at a time without being subject to the server size limit,
+     * the configured query size limit being applied to unbounded searches
+     * only. When it supports the server side sort control, the entries are
+     * sorted by the server and reading stops once the requested window has
+     * been read. Otherwise the entries are sorted and sliced on the client
+     * side.
+     *
+     * @param serverSort whether server side sorting may be requested
+     * @since 5.7.3
+     */
+    protected DocumentModelList search(String filterExpr, String[] filterArgs,
+            Map<String, String> orderBy, boolean fetchReferences, int limit,
+            int offset, boolean serverSort) throws NamingException,
+            DirectoryException {
+        boolean ordered = orderBy != null && !orderBy.isEmpty();
+        SortKey[] sortKeys = ordered && serverSort ? getSortKeys(orderBy)
+                : null;
+        int pageSize = directory.getConfig().getQueryPageSize();
+        boolean paged = pageSize > 0
+                && supportsControl(PagedResultsControl.OID);
+        SearchControls scts = directory.getSearchControls();
+        if (!paged && sortKeys == null) {
+            NamingEnumeration<SearchResult> results = dirContext.search(
+                    searchBaseDn, filterExpr, filterArgs, scts);
+            DocumentModelList entries = ldapResultsToDocumentModels(results,
+                    fetchReferences);
+            if (ordered) {
+                directory.orderEntries(entries, orderBy);
+            }
+            return slice(entries, limit, offset);
+        }
+
+        // when sorting on the client side, all the entries are needed
+        // before the window can be extracted
+        boolean window = !ordered || sortKeys != null;
+        int skip = window ? Math.max(offset, 0) : 0;
+        int max = window && limit > 0 ? limit : 0;
+        int sizeLimit = 0;
+        if (paged) {
+            // the size limit is applied below to the whole result instead of
+            // each page
+            sizeLimit = max > 0 ? 0 : scts.getCountLimit();
+            scts = new SearchControls(scts.getSearchScope(), 0,
+                    scts.getTimeLimit(), scts.getReturningAttributes(),
+                    scts.getReturningObjFlag(), scts.getDerefLinkFlag());
+        }
+        LdapContext context = (LdapContext) dirContext;
+        DocumentModelListImpl entries = new DocumentModelListImpl();
+        boolean done = false;
+        byte[] cookie = null;
+        try {
+            do {
+                List<Control> controls = new ArrayList<Control>(2);
+                if (sortKeys != null) {
+                    controls.add(new SortControl(sortKeys, Control.NONCRITICAL));
+                }
+                if (paged) {
+                    int size = pageSize;
+                    if (max > 0) {
+                        size = Math.min(size, skip + max - entries.size());
+                    }
+                    controls.add(new PagedResultsControl(size, cookie,
+                            Control.NONCRITICAL));
+                }
+                context.setRequestControls(controls.toArray(new Control[controls.size()]));
+                NamingEnumeration<SearchResult> results = context.search(
+                        searchBaseDn, filterExpr, filterArgs, scts);
+                try {
+                    while (!done && results.hasMore()) {
+                        SearchResult result = results.next();
+                        if (skip > 0) {
+                            // skipped before building the entry, the base
+                            // filter guarantees it has an id
+                            skip--;
+                            continue;
+                        }
+                        if (sizeLimit > 0 && entries.size() >= sizeLimit) {
+                            entries.setTotalSize(-2);
+                            done = true;
+                            break;
+                        }
+                        DocumentModel entry = ldapResultToDocumentModel(
+                                result, null, fetchReferences);
+                        if (entry != null) {
+                            entries.add(entry);
+                        }
+                        done = max > 0 && entries.size() >= max;
+                    }
+                } catch (SizeLimitExceededException e) {
+                    if (entries.isEmpty()) {
+                        throw e;
+                    }
+                    log.debug("SizeLimitExceededException caught,"
+                            + " return truncated results. Original message: "
+                            + e.getMessage());
+                    entries.setTotalSize(-2);
+                    done = true;
+                } finally {
+                    results.close();
+                }
+                cookie = null;
+                boolean sorted = true;
+                Control[] responses = context.getResponseControls();
+                if (responses != null) {
+                    for (Control control : responses) {
+                        if (control instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+                        } else if (control instanceof SortResponseControl) {
+                            sorted = ((SortResponseControl) control).isSorted();
+                        }
+                    }
+                }
+                if (sortKeys != null && !sorted) {
+                    log.debug("LDAP server could not sort by " + orderBy
+                            + ", sorting on the client side [" + this + "]");
+                    context.setRequestControls(null);
+                    return search(filterExpr, filterArgs, orderBy,
+                            fetchReferences, limit, offset, false);
+                }
+            } while (!done && paged && cookie != null && cookie.length > 0);
+        } catch (IOException e) {
+            throw new DirectoryException("Cannot encode LDAP request controls",
+                    e);
+        } finally {
+            context.setRequestControls(null);
+        }
+        if (!window) {
+            directory.orderEntries(entries, orderBy);
+            return slice(entries, limit, offset);
+        }
+        log.debug("LDAP search returned " + entries.size() + " results");
+        return entries;
+    }
+
+    /**
+     * Returns the sort keys matching the given order, or {@code null} if the
+     * server cannot sort the entries.
+     *
+     * @since 5.7.3
+     */
+    protected SortKey[] getSortKeys(Map<String, String> orderBy) {
+        if (!supportsControl(SortControl.OID)) {
+            return null;
+        }
+        DirectoryFieldMapper fieldMapper = directory.getFieldMapper();
+        List<SortKey> sortKeys = new ArrayList<SortKey>(orderBy.size());
+        for (Map.Entry<String, String> order : orderBy.entrySet()) {
+            String fieldName = order.getKey();
+            if (!schemaFieldMap.containsKey(fieldName)
+                    || directory.isReference(fieldName)) {
+                return null;
+            }
+            boolean ascending = !"desc".equalsIgnoreCase(order.getValue());
+            sortKeys.add(new SortKey(fieldMapper.getBackendField(fieldName),
+                    ascending, null));
+        }
+        return sortKeys.toArray(new SortKey[sortKeys.size()]);
+    }
+
+    /**
+     * Checks whether request controls can be used on this session and the
+     * server supports the given one.
+     *
+     * @since 5.7.3
+     */
+    protected boolean supportsControl(String oid) {
+        return dirContext instanceof LdapContext
+                && directory.supportsControl(dirContext, oid);
+    }
+
+    protected static DocumentModelList slice(DocumentModelList entries,
+            int limit, int offset) {
+        if (limit <= 0 && offset <= 0) {
+            return entries;
+        }
+        int fromIndex = Math.min(Math.max(offset, 0), entries.size());
+        int toIndex = entries.size();
+        if (limit > 0 && fromIndex + limit < toIndex) {
+            toIndex = fromIndex + limit;
+        }
+        return new DocumentModelListImpl(entries.subList(fromIndex, toIndex));
+    }
+
+    /**
+     * Streams the matching entries using the LDAP paged results control, on
+     * a dedicated connection held until the iterator is closed. Servers that
+     * do not support paging return all the entries in a single page.
+     * <p>
+     * When the directory uses a test server, that only provides a single
+     * context, the context of the session is used instead: it must not be
+     * used for other operations until the iterator is closed.
+     * <p>
+     * {@code orderBy} is only honored if the server supports the server side
+     * sort control, otherwise the order is the one of the server.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public EntryIterator iterate(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) throws DirectoryException {
+        SortKey[] sortKeys = null;
+        if (orderBy != null && !orderBy.isEmpty()) {
+            sortKeys = getSortKeys(orderBy);
+            if (sortKeys == null) {
+                log.debug("LDAP server cannot sort, ignoring " + orderBy);
+            }
+        }
+        String[] filterArgs = new String[filter.size()];
+        String filterExpr = buildFilterExpression(filter, fulltext, filterArgs);
+        SearchControls scts = directory.getSearchControls();
+        // no size limit: paging is the way to walk large directories
+        scts = new SearchControls(scts.getSearchScope(), 0,
+                scts.getTimeLimit(), scts.getReturningAttributes(),
+                scts.getReturningObjFlag(), scts.getDerefLinkFlag());
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "LDAPSession.iterate(...): LDAP search base='%s' filter='%s' args='%s' scope='%s' [%s]",
+                    searchBaseDn, filterExpr,
+                    StringUtils.join(filterArgs, ","),
+                    scts.getSearchScope(), this));
+        }
+        return new LDAPEntryIterator(directory.createContext(), filterExpr,
+                filterArgs, scts, sortKeys,
+                directory.getConfig().getQueryPageSize(), fetchReferences);
+    }
+
+    /**
+     * Iterates over the results of a search, one page at a time.
+     *
+     * @since 5.7.3
+     */
+    protected class LDAPEntryIterator extends AbstractEntryIterator {
+
+        // not the one of the session, closed with the iterator
+        protected final DirContext context;
+
+        protected final String filterExpr;
+
+        protected final String[] filterArgs;
+
+        protected final SearchControls scts;
+
+        protected final SortKey[] sortKeys;
+
+        // 0 if paging is disabled
+        protected final int pageSize;
+
+        protected final boolean fetchReferences;
+
+        protected NamingEnumeration<SearchResult> results;
+
+        protected byte[] cookie;
+
+        protected boolean lastPage;
+
+        protected LDAPEntryIterator(DirContext context, String filterExpr,
+                String[] filterArgs, SearchControls scts, SortKey[] sortKeys,
+                int pageSize, boolean fetchReferences) {
+            this.context = context;
+            this.filterExpr = filterExpr;
+            this.filterArgs = filterArgs;
+            this.scts = scts;
+            this.sortKeys = sortKeys;
+            this.pageSize = pageSize;
+            this.fetchReferences = fetchReferences;
+        }
+
+        @Override
+        protected DocumentModel fetchNext() throws DirectoryException {
+            try {
+                for (;;) {
+                    if (results == null) {
+                        if (lastPage) {
+                            return null;
+                        }
+                        if (context instanceof LdapContext) {
+                            List<Control> controls = new ArrayList<Control>(2);
+                            if (sortKeys != null) {
+                                controls.add(new SortControl(sortKeys,
+                                        Control.NONCRITICAL));
+                            }
+                            if (pageSize > 0) {
+                                controls.add(new PagedResultsControl(
+                                        pageSize, cookie, Control.NONCRITICAL));
+                            }
+                            ((LdapContext) context).setRequestControls(controls.toArray(new Control[controls.size()]));
+                        }
+                        results = context.search(searchBaseDn, filterExpr,
+                                filterArgs, scts);
+                    }
+                    if (results.hasMore()) {
+                        DocumentModel entry = ldapResultToDocumentModel(
+                                results.next(), null, fetchReferences);
+                        if (entry != null) {
+                            return entry;
+                        }
+                        continue;
+                    }
+                    // end of the page, get the cookie for the next one
+                    results.close();
+                    results = null;
+                    cookie = null;
+                    Control[] controls = null;
+                    if (context instanceof LdapContext) {
+                        controls = ((LdapContext) context).getResponseControls();
+                    }
+                    if (controls != null) {
+                        for (Control control : controls) {
+                            if (control instanceof PagedResultsResponseControl) {
+                                cookie = ((PagedResultsResponseControl) control).getCookie();
+                            }
+                        }
+                    }
+                    lastPage = cookie == null || cookie.length == 0;
+                }
+            } catch (NameNotFoundException nnfe) {
+                // same as query: keep the application usable
+                log.error(
+                        "Unexpected response from server while performing query: "
+                                + nnfe.getMessage(), nnfe);
+                return null;
+            } catch (NamingException e) {
+                throw new DirectoryException("iterate failed", e);
+            } catch (IOException e) {
+                throw new DirectoryException("iterate failed", e);
+            }
+        }
+
+        @Override
+        protected void doClose() {
+            try {
+                if (results != null) {
+                    results.close();
+                }
+                context.close();
+            } catch (NamingException e) {
+                log.debug("Cannot close LDAP context", e);
+            }
+        }
+
+    }
+
+    /**
+     * Builds the search filter expression for the given query filter, the
+     * arguments being stored in the given array so that special characters
+     * are escaped by the LDAP provider.
+     *
+     * @since 5.7.3
+     */
+    protected String buildFilterExpression(Map<String, Serializable> filter,
+            Set<String> fulltext, String[] filterArgs) {
+        // building the query using filterExpr / filterArgs to
+        // escape special characters and to fulltext search only on
+        // the explicitly specified fields
+        String[] filters = new String[filter.size()];
+
+        if (fulltext == null) {
+            fulltext = Collections.emptySet();
+        }
+
+        int index = 0;
+        for (String fieldName : filter.keySet()) {
+            if (directory.isReference(fieldName)) {
+                log.warn(fieldName
+                        + " is a reference and will be ignored as a query criterion");
+                continue;
+            }
+
+            String backendFieldName = directory.getFieldMapper().getBackendField(
+                    fieldName);
+            Object fieldValue = filter.get(fieldName);
+
+            StringBuilder currentFilter = new StringBuilder();
+            currentFilter.append("(");
+            if (fieldValue == null) {
+                currentFilter.append("!(" + backendFieldName + "=*)");
+            } else if ("".equals(fieldValue)) {
+                if (fulltext.contains(fieldName)) {
+                    currentFilter.append(backendFieldName + "=*");
+                } else {
+                    currentFilter.append("!(" + backendFieldName + "=*)");
+                }
+            } else {
+                currentFilter.append(backendFieldName + "=");
+                if (fulltext.contains(fieldName)) {
+                    if (LDAPSubstringMatchType.SUBFINAL.equals(substringMatchType)) {
+                        currentFilter.append("*{" + index + "}");
+                    } else if (LDAPSubstringMatchType.SUBANY.equals(substringMatchType)) {
+                        currentFilter.append("*{" + index + "}*");
+                    } else {
+                        // default behavior: subinitial
+                        currentFilter.append("{" + index + "}*");
+                    }
+                } else {
+                    currentFilter.append("{" + index + "}");
+                }
+            }
+            currentFilter.append(")");
+            filters[index] = currentFilter.toString();
+            if (fieldValue != null && !"".equals(fieldValue)) {
+                if (fieldValue instanceof Blob) {
+                    // filter arg could be a sequence of \xx where xx is the
+                    // hexadecimal value of the byte
+                    log.warn("Binary search is not supported");
+                } else {
+                    // XXX: what kind of Objects can we get here? Is
+                    // toString() enough?
+                    filterArgs[index] = fieldValue.toString();
+                }
+            }
+            index++;
+        }
+        return "(&" + directory.getBaseFilter()
+                + StringUtils.join(filters) + ')';
+    }
+
     @Override
     public DocumentModelList query(Map<String, Serializable> filter)
             throws DirectoryException {
@@ -662,6 +1173,12 @@ public class LDAPSession extends BaseSession implements EntrySource {
     @Override
     public void close() throws DirectoryException {
         try {
+            if (referenceSessions != null) {
+                for (LDAPSession session : referenceSessions.values()) {
+                    session.close();
+                }
+                referenceSessions = null;
+            }
             dirContext.close();
         } catch (NamingException e) {
             throw new DirectoryException("close failed", e);
@@ -926,14 +1443,16 @@ public class LDAPSession extends BaseSession implements EntrySource {
                         // provide the LDAP reference with the needed backend
                         // entries
                         LDAPReference ldapReference = (LDAPReference) reference;
-                        referencedIds = ldapReference.getLdapTargetIds(attributes);
+                        referencedIds = ldapReference.getLdapTargetIds(
+                                attributes,
+                                getReferenceSession(ldapReference.getTargetLDAPDirectory()));
                     } else if (reference instanceof LDAPTreeReference) {
-                        // TODO: optimize using the current LDAPSession
-                        // directly to provide the LDAP reference with the
-                        // needed backend entries (needs to implement
-                        // getLdapTargetIds)
+                        // reuse the current LDAPSession, the entry is still
+                        // fetched again to get its dn
                         LDAPTreeReference ldapReference = (LDAPTreeReference) reference;
-                        referencedIds = ldapReference.getTargetIdsForSource(entryId);
+                        referencedIds = ldapReference.getTargetIdsForSource(
+                                entryId, this,
+                                getReferenceSession(ldapReference.getTargetLDAPDirectory()));
                     } else {
                         try {
                             referencedIds = reference.getTargetIdsForSource(entryId);
@@ -1074,6 +1593,239 @@ public class LDAPSession extends BaseSession implements EntrySource {
         return directory.getConfig().getReadOnly();
     }
 
+    /**
+     * Returns a session on the given directory living as long as this one,
+     * to resolve the references of the entries read by this session.
+     *
+     * @since 5.7.3
+     */
+    protected LDAPSession getReferenceSession(LDAPDirectory targetDirectory)
+            throws DirectoryException {
+        if (referenceSessions == null) {
+            referenceSessions = new HashMap<String, LDAPSession>();
+        }
+        LDAPSession session = referenceSessions.get(targetDirectory.getName());
+        if (session == null) {
+            session = openReferenceSession(targetDirectory);
+            if (session == this) {
+                return session;
+            }
+            referenceSessions.put(targetDirectory.getName(), session);
+        }
+        return session;
+    }
+
+    /**
+     * Opens a session on the given directory. When it is on the same server,
+     * the session shares the connection of this one instead of borrowing
+     * another from the pool, with its own request controls since references
+     * are resolved in the middle of paged searches.
+     */
+    protected LDAPSession openReferenceSession(LDAPDirectory targetDirectory)
+            throws DirectoryException {
+        String serverName = directory.getConfig().getServerName();
+        if (serverName != null
+                && serverName.equals(targetDirectory.getConfig().getServerName())) {
+            if (dirContext instanceof LdapContext) {
+                try {
+                    return new LDAPSession(targetDirectory,
+                            ((LdapContext) dirContext).newInstance(null));
+                } catch (NamingException e) {
+                    throw new DirectoryException(
+                            "failed to open a session on directory "
+                                    + targetDirectory.getName(), e);
+                }
+            }
+            if (targetDirectory == directory) {
+                // no way to isolate the request controls, the reference
+                // lookups do not use any
+                return this;
+            }
+        }
+        return (LDAPSession) targetDirectory.getSession();
+    }
+
+    /**
+     * Resolves the ids of the entries of this directory having the given
+     * distinguished names.
+     * <p>
+     * The names are looked up in the DN cache of the directory first, if
+     * enabled, the missing ones being searched by batches of
+     * {@link #DN_BATCH_SIZE} using an OR filter on their RDNs. Only the names
+     * matching an entry are put in the cache.
+     *
+     * @return the ids keyed by distinguished name, names that do not match
+     *         any entry being absent
+     * @since 5.7.3
+     */
+    public Map<String, String> getIdsForDns(Collection<String> dns)
+            throws DirectoryException {
+        // normalized dn -> dn
+        final Map<String, String> normalizedDns = new LinkedHashMap<String, String>();
+        for (String dn : dns) {
+            try {
+                normalizedDns.put(LDAPReference.pseudoNormalizeDn(dn), dn);
+            } catch (InvalidNameException e) {
+                log.warn(String.format("ignoring invalid dn '%s' [%s]", dn,
+                        this));
+            }
+        }
+        SegmentedLRUCache<String, String> dnCache = directory.getDnCache();
+        Map<String, String> resolved;
+        if (dnCache == null) {
+            resolved = searchIdsForDns(normalizedDns.keySet(), normalizedDns);
+        } else {
+            resolved = new HashMap<String, String>();
+            // stamps taken before the search, so that an invalidation
+            // meanwhile is not overwritten
+            Map<String, Long> missing = new LinkedHashMap<String, Long>();
+            for (String key : normalizedDns.keySet()) {
+                String id = dnCache.getIfPresent(key);
+                if (id != null) {
+                    resolved.put(key, id);
+                } else {
+                    missing.put(key, Long.valueOf(dnCache.getStamp(key)));
+                }
+            }
+            if (!missing.isEmpty()) {
+                Map<String, String> found = searchIdsForDns(missing.keySet(),
+                        normalizedDns);
+                for (Map.Entry<String, String> entry : found.entrySet()) {
+                    // negative lookups are not cached, the entry may be
+                    // created later on
+                    dnCache.put(entry.getKey(), entry.getValue(),
+                            missing.get(entry.getKey()).longValue());
+                }
+                resolved.putAll(found);
+            }
+        }
+        Map<String, String> ids = new HashMap<String, String>();
+        for (Map.Entry<String, String> dn : normalizedDns.entrySet()) {
+            String id = resolved.get(dn.getKey());
+            if (id != null) {
+                ids.put(dn.getValue(), id);
+            }
+        }
+        return ids;
+    }
+
+    protected Map<String, String> searchIdsForDns(Collection<String> keys,
+            Map<String, String> normalizedDns) throws DirectoryException {
+        Map<String, String> ids = new HashMap<String, String>();
+        List<String> batch = new ArrayList<String>(DN_BATCH_SIZE);
+        for (String key : keys) {
+            batch.add(key);
+            if (batch.size() == DN_BATCH_SIZE) {
+                searchIdsForDns(batch, normalizedDns, ids);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            searchIdsForDns(batch, normalizedDns, ids);
+        }
+        return ids;
+    }
+
+    protected void searchIdsForDns(List<String> keys,
+            Map<String, String> normalizedDns, Map<String, String> ids)
+            throws DirectoryException {
+        // match the RDNs, the DNs of the results are checked below
+        StringBuilder filterExpr = new StringBuilder();
+        filterExpr.append("(&(").append(idAttribute).append("=*)(|");
+        List<String> filterArgs = new ArrayList<String>();
+        Map<String, LdapName> names = new LinkedHashMap<String, LdapName>();
+        try {
+            for (String key : keys) {
+                LdapName name = new LdapName(normalizedDns.get(key));
+                names.put(key, name);
+                Rdn rdn = name.getRdn(name.size() - 1);
+                filterExpr.append("(&");
+                NamingEnumeration<? extends Attribute> rdnAttributes = rdn.toAttributes().getAll();
+                while (rdnAttributes.hasMore()) {
+                    Attribute rdnAttribute = rdnAttributes.next();
+                    filterExpr.append('(').append(rdnAttribute.getID()).append(
+                            "={").append(filterArgs.size()).append("})");
+                    filterArgs.add(rdnAttribute.get().toString());
+                }
+                filterExpr.append(')');
+            }
+            filterExpr.append("))");
+            SearchControls scts = new SearchControls();
+            scts.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            scts.setReturningAttributes(new String[] { idAttribute });
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "LDAPSession.getIdsForDns(%s dns): LDAP search base='%s' filter='%s' args='%s' [%s]",
+                        keys.size(), searchBaseDn, filterExpr,
+                        StringUtils.join(filterArgs, ","), this));
+            }
+            NamingEnumeration<SearchResult> results = dirContext.search(
+                    searchBaseDn, filterExpr.toString(), filterArgs.toArray(),
+                    scts);
+            try {
+                while (results.hasMore()) {
+                    SearchResult result = results.next();
+                    LdapName dn;
+                    try {
+                        dn = new LdapName(getDn(result));
+                    } catch (InvalidNameException e) {
+                        log.warn(String.format("ignoring invalid dn '%s' [%s]",
+                                getDn(result), this));
+                        continue;
+                    }
+                    String key = getRequestedDn(names, dn);
+                    if (key == null) {
+                        // same RDN elsewhere in the tree
+                        continue;
+                    }
+                    // NXP-2461: check that id field is filled
+                    Attribute attribute = result.getAttributes().get(
+                            idAttribute);
+                    if (attribute != null && attribute.get() != null) {
+                        ids.put(key, attribute.get().toString());
+                    }
+                }
+            } finally {
+                results.close();
+            }
+        } catch (NamingException e) {
+            throw new DirectoryException("failed to resolve "
+                    + keys.size() + " dns in directory " + directory.getName(),
+                    e);
+        }
+    }
+
+    /**
+     * Returns the requested normalized DN matching the DN of a result, which
+     * lacks the base of the context when the full name is not available. The
+     * names are compared RDN by RDN, ignoring the case of the attribute types
+     * and the escaping of their values.
+     */
+    protected static String getRequestedDn(Map<String, LdapName> names,
+            LdapName dn) {
+        List<Rdn> rdns = dn.getRdns();
+        for (Map.Entry<String, LdapName> name : names.entrySet()) {
+            if (name.getValue().endsWith(rdns)) {
+                return name.getKey();
+            }
+        }
+        return null;
+    }
+
+    protected String getDn(SearchResult result) {
+        try {
+            return result.getNameInNamespace();
+        } catch (UnsupportedOperationException e) {
+            // Apache DS in embedded mode
+            if (!result.isRelative()) {
+                return result.getName();
+            }
+            String name = result.getName();
+            return name.length() == 0 ? searchBaseDn : name + ','
+                    + searchBaseDn;
+        }
+    }
+
     public boolean rdnMatchesIdField() {
         return directory.getConfig().rdnAttribute.equals(idAttribute);
     }
@@ -164,13 +164,37 @@ public class LDAPTreeReference extends AbstractReference {
      */
     public List<String> getSourceIdsForTarget(String targetId)
             throws DirectoryException {
+        LDAPDirectory sourceDirectory = getSourceLDAPDirectory();
+        LDAPDirectory targetDirectory = getTargetLDAPDirectory();
+        LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
+        LDAPSession targetSession = sourceSession;
+        try {
+            if (targetDirectory != sourceDirectory) {
+                targetSession = (LDAPSession) targetDirectory.getSession();
+            }
+            return getSourceIdsForTarget(targetId, sourceSession,
+                    targetSession);
+        } finally {
+            if (targetSession != sourceSession) {
+                targetSession.close();
+            }
+            sourceSession.close();
+        }
+    }
+
+    /**
+     * Same as {@link #getSourceIdsForTarget(String)}, using the given sessions.
+     *
+     * @since 5.7.3
+     */
+    protected List<String> getSourceIdsForTarget(String targetId,
+            LDAPSession sourceSession, LDAPSession targetSession)
+            throws DirectoryException {
         Set<String> sourceIds = new TreeSet<String>();
         String targetDn = null;
 
         // step #1: fetch the dn of the targetId entry in the target
         // directory by the static dn valued strategy
-        LDAPDirectory targetDir = getTargetLDAPDirectory();
-        LDAPSession targetSession = (LDAPSession) targetDir.getSession();
         try {
             SearchResult targetLdapEntry = targetSession.getLdapEntry(targetId,
                     true);
@@ -181,19 +205,16 @@ public class LDAPTreeReference extends AbstractReference {
             targetDn = pseudoNormalizeDn(targetLdapEntry.getNameInNamespace());
         } catch (NamingException e) {
             throw new DirectoryException("error fetching " + targetId, e);
-        } finally {
-            targetSession.close();
         }
 
         // step #2: search for entries that reference parent dn in the
         // source directory and collect its id
-        LDAPDirectory sourceDirectory = getSourceLDAPDirectory();
+        LDAPDirectory sourceDirectory = sourceSession.directory;
         String parentDn = getParentDn(targetDn);
         String filterExpr = String.format("(&%s)",
                 sourceDirectory.getBaseFilter());
         String[] filterArgs = {};
 
-        LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
         // get a copy of original search controls
         SearchControls sctls = sourceDirectory.getSearchControls(true);
         sctls.setSearchScope(SearchControls.OBJECT_SCOPE);
@@ -229,8 +250,6 @@ public class LDAPTreeReference extends AbstractReference {
         } catch (NamingException e) {
             throw new DirectoryException("error during reference search for "
                     + targetDn, e);
-        } finally {
-            sourceSession.close();
         }
 
         return new ArrayList<String>(sourceIds);
@@ -243,17 +262,39 @@ public class LDAPTreeReference extends AbstractReference {
      *
      * @see org.nuxeo.ecm.directory.Reference#getTargetIdsForSource(String)
      */
-    // TODO: optimize reusing the same ldap session (see LdapReference optim
-    // method)
     public List<String> getTargetIdsForSource(String sourceId)
             throws DirectoryException {
+        LDAPDirectory sourceDirectory = getSourceLDAPDirectory();
+        LDAPDirectory targetDirectory = getTargetLDAPDirectory();
+        LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
+        LDAPSession targetSession = sourceSession;
+        try {
+            if (targetDirectory != sourceDirectory) {
+                targetSession = (LDAPSession) targetDirectory.getSession();
+            }
+            return getTargetIdsForSource(sourceId, sourceSession,
+                    targetSession);
+        } finally {
+            if (targetSession != sourceSession) {
+                targetSession.close();
+            }
+            sourceSession.close();
+        }
+    }
+
+    /**
+     * Same as {@link #getTargetIdsForSource(String)}, using the given sessions.
+     *
+     * @since 5.7.3
+     */
+    protected List<String> getTargetIdsForSource(String sourceId,
+            LDAPSession sourceSession, LDAPSession targetSession)
+            throws DirectoryException {
         Set<String> targetIds = new TreeSet<String>();
         String sourceDn = null;
 
         // step #1: fetch the dn of the sourceId entry in the source
         // directory by the static dn valued strategy
-        LDAPDirectory sourceDir = getSourceLDAPDirectory();
-        LDAPSession sourceSession = (LDAPSession) sourceDir.getSession();
         try {
             SearchResult sourceLdapEntry = sourceSession.getLdapEntry(sourceId,
                     true);
@@ -264,19 +305,16 @@ public class LDAPTreeReference extends AbstractReference {
             sourceDn = pseudoNormalizeDn(sourceLdapEntry.getNameInNamespace());
         } catch (NamingException e) {
             throw new DirectoryException("error fetching " + sourceId, e);
-        } finally {
-            sourceSession.close();
         }
 
         // step #2: search for entries with sourceDn as base dn and collect
         // their ids
-        LDAPDirectory targetDirectory = getTargetLDAPDirectory();
+        LDAPDirectory targetDirectory = targetSession.directory;
 
         String filterExpr = String.format("(&%s)",
                 targetDirectory.getBaseFilter());
         String[] filterArgs = {};
 
-        LDAPSession targetSession = (LDAPSession) targetDirectory.getSession();
         // get a copy of original search controls
         SearchControls sctls = targetDirectory.getSearchControls(true);
         sctls.setSearchScope(getScope());
@@ -314,8 +352,6 @@ public class LDAPTreeReference extends AbstractReference {
         } catch (NamingException e) {
             throw new DirectoryException("error during reference search for "
                     + sourceDn, e);
-        } finally {
-            targetSession.close();
         }
 
         return new ArrayList<String>(targetIds);
@@ -30,6 +30,15 @@ public class LDAPUrlDescriptor {
     @XNode
     private String value;
 
+    /**
+     * Relative share of the connections opened to this server by the
+     * connection pool.
+     *
+     * @since 5.7.3
+     */
+    @XNode(value = "@weight")
+    private int weight = 1;
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof LDAPUrlDescriptor) {
@@ -59,4 +68,18 @@ public class LDAPUrlDescriptor {
     public void setValue(String value) {
         this.value = value;
     }
+
+    /**
+     * @since 5.7.3
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
 }
@@ -24,6 +24,7 @@ import java.lang.reflect.Proxy;
 
 import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -69,10 +70,21 @@ public class LdapRetryHandler implements InvocationHandler {
         throw e;
     }
 
+    /**
+     * Wraps the context; the returned proxy also implements
+     * {@link LdapContext} if the context does, to allow request controls.
+     * An already wrapped context is returned as is.
+     */
     public static DirContext wrap(DirContext dirContext, int retries) {
+        if (Proxy.isProxyClass(dirContext.getClass())
+                && Proxy.getInvocationHandler(dirContext) instanceof LdapRetryHandler) {
+            return dirContext;
+        }
         LdapRetryHandler handler = new LdapRetryHandler(dirContext, retries);
+        Class<?> contextInterface = dirContext instanceof LdapContext ? LdapContext.class
+                : DirContext.class;
         return (DirContext) Proxy.newProxyInstance(
                 Thread.currentThread().getContextClassLoader(),
-                new Class<?>[] { DirContext.class }, handler);
+                new Class<?>[] { contextInterface }, handler);
     }
 }
@@ -29,11 +29,14 @@ import org.nuxeo.ecm.core.management.api.ProbeStatus;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.ldap.LDAPContextPool;
 import org.nuxeo.ecm.directory.ldap.LDAPDirectory;
 import org.nuxeo.ecm.directory.ldap.LDAPDirectoryFactory;
 import org.nuxeo.ecm.directory.ldap.LDAPDirectoryProxy;
 import org.nuxeo.runtime.api.Framework;
 
+import com.codahale.metrics.Snapshot;
+
 public class LDAPDirectoriesProbe implements Probe {
 
     protected LDAPDirectoryFactory factory;
@@ -57,11 +60,18 @@ public class LDAPDirectoriesProbe implements Probe {
                 success = false;
             }
             long endTime = Calendar.getInstance().getTimeInMillis();
+            if (ldap == null) {
+                continue;
+            }
             Properties props = ldap.getContextProperties();
             String bindDN = (String)props.get(Context.SECURITY_PRINCIPAL);
 
             infos.put(dirName + "-bind", bindDN);
             infos.put(dirName + "-time", new Long(endTime-startTime).toString());
+            LDAPContextPool pool = ldap.getContextPool();
+            if (pool != null) {
+                putPoolInfos(infos, dirName, pool);
+            }
         }
         if (infos.size()==0) {
             infos.put("info", "No configured LDAP directory");
@@ -72,4 +82,26 @@ public class LDAPDirectoriesProbe implements Probe {
         return ProbeStatus.newSuccess(infos);
     }
 
+    /**
+     * @since 5.7.3
+     */
+    protected void putPoolInfos(Map<String, String> infos, String dirName,
+            LDAPContextPool pool) {
+        Snapshot borrow = pool.getBorrowTimer().getSnapshot();
+        infos.put(dirName + "-pool-max", String.valueOf(pool.getMaxSize()));
+        infos.put(dirName + "-pool-active",
+                String.valueOf(pool.getActiveCount()));
+        infos.put(dirName + "-pool-idle", String.valueOf(pool.getIdleCount()));
+        infos.put(dirName + "-pool-failures",
+                String.valueOf(pool.getFailureCount()));
+        infos.put(dirName + "-pool-borrow-mean-ms",
+                String.format("%.3f", Double.valueOf(borrow.getMean() / 1000000)));
+        infos.put(dirName + "-pool-borrow-p99-ms", String.format("%.3f",
+                Double.valueOf(borrow.get99thPercentile() / 1000000)));
+        for (Map.Entry<String, String> server : pool.getServerStatus().entrySet()) {
+            infos.put(dirName + "-pool-server-" + server.getKey(),
+                    server.getValue());
+        }
+    }
+
 }
@@ -0,0 +1,276 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TestLDAPContextPool {
+
+    protected static final String GOOD = "ldap://good:389";
+
+    protected static final String BAD = "ldap://bad:389";
+
+    protected LDAPServerDescriptor server;
+
+    protected MockPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LDAPServerDescriptor();
+        server.poolMaxSize = 2;
+        server.poolBorrowTimeout = 100;
+        server.poolValidationInterval = 0;
+        server.setLdapUrls(new LDAPUrlDescriptor[] { newUrl(GOOD, 1),
+                newUrl(BAD, 1) });
+        pool = new MockPool(server);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    protected static LDAPUrlDescriptor newUrl(String value, int weight) {
+        LDAPUrlDescriptor url = new LDAPUrlDescriptor();
+        url.setValue(value);
+        url.setWeight(weight);
+        return url;
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        DirContext ctx1 = pool.getContext();
+        DirContext ctx2 = pool.getContext();
+        assertEquals(2, pool.getActiveCount());
+        try {
+            pool.getContext();
+            fail("Should raise a borrow timeout");
+        } catch (DirectoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exhausted"));
+        }
+        ctx1.close();
+        // closing twice gives back the context once
+        ctx1.close();
+        assertEquals(1, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        DirContext ctx3 = pool.getContext();
+        assertEquals(0, pool.getIdleCount());
+        ctx2.close();
+        ctx3.close();
+        // the idle context was reused
+        assertEquals(2, pool.created.size());
+        try {
+            ctx1.getAttributes("");
+            fail("Should not use a context given back to the pool");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        pool.shutdown();
+        // the good server is only a backup
+        server.setLdapUrls(new LDAPUrlDescriptor[] { newUrl(BAD, 1),
+                newUrl(GOOD, 0) });
+        pool = new MockPool(server);
+        DirContext context = pool.getContext();
+        context.close();
+        assertEquals(BAD, pool.created.get(0));
+
+        pool.down.add(BAD);
+        pool.clearIdle();
+        for (int i = 0; i < 10; i++) {
+            context = pool.getContext();
+            context.getAttributes("");
+            context.close();
+            // force a new context for the next borrow
+            pool.clearIdle();
+        }
+        assertEquals(11, pool.created.size());
+        assertEquals(Collections.nCopies(10, GOOD),
+                pool.created.subList(1, 11));
+        // the bad server is not tried again during the failover delay
+        assertEquals(1, pool.getFailureCount());
+        assertTrue(pool.getServerStatus().get(BAD).startsWith("down"));
+        assertTrue(pool.getServerStatus().get(GOOD).startsWith("up"));
+
+        // all the servers down
+        pool.down.add(GOOD);
+        pool.clearIdle();
+        try {
+            pool.getContext();
+            fail("Should not connect");
+        } catch (DirectoryException e) {
+            assertEquals(0, pool.getActiveCount());
+        }
+    }
+
+    @Test
+    public void testAuthenticationErrorKeepsServerUp() throws Exception {
+        pool.rejected.add(GOOD);
+        pool.rejected.add(BAD);
+        try {
+            pool.getContext();
+            fail("Should not connect");
+        } catch (DirectoryException e) {
+            assertTrue(e.getCause() instanceof AuthenticationException);
+        }
+        // bad credentials do not take the servers out of the pool
+        assertEquals(0, pool.getFailureCount());
+        assertTrue(pool.getServerStatus().get(GOOD).startsWith("up"));
+        assertTrue(pool.getServerStatus().get(BAD).startsWith("up"));
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        LDAPContextPool.ServerState heavy = pool.getState("ldap://heavy");
+        heavy.weight = 3;
+        LDAPContextPool.ServerState light = pool.getState("ldap://light");
+        light.weight = 1;
+        List<LDAPContextPool.ServerState> states = Arrays.asList(light,
+                heavy);
+        int heavyFirst = 0;
+        for (int i = 0; i < 4000; i++) {
+            List<LDAPContextPool.ServerState> ordered = pool.orderByWeight(states);
+            assertEquals(2, ordered.size());
+            if (ordered.get(0) == heavy) {
+                heavyFirst++;
+            }
+        }
+        assertTrue(String.valueOf(heavyFirst), heavyFirst > 2700
+                && heavyFirst < 3300);
+    }
+
+    @Test
+    public void testBrokenContextDiscarded() throws Exception {
+        DirContext context = pool.getContext();
+        pool.down.add(pool.created.get(0));
+        try {
+            context.getAttributes("");
+            fail("Should raise a communication error");
+        } catch (CommunicationException e) {
+            // expected
+        }
+        context.close();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.closed.size());
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        DirContext ctx1 = pool.getContext();
+        DirContext ctx2 = pool.getContext();
+        ctx1.close();
+        ctx2.close();
+        assertEquals(2, pool.getIdleCount());
+        pool.validateIdleContexts();
+        assertEquals(2, pool.getIdleCount());
+        pool.down.add(GOOD);
+        pool.down.add(BAD);
+        pool.validateIdleContexts();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.closed.size());
+    }
+
+    /**
+     * Pool opening fake contexts, failing for the servers marked as down.
+     */
+    static class MockPool extends LDAPContextPool {
+
+        final Set<String> down = new HashSet<String>();
+
+        final Set<String> rejected = new HashSet<String>();
+
+        final List<String> created = new ArrayList<String>();
+
+        final List<String> closed = new ArrayList<String>();
+
+        MockPool(LDAPServerDescriptor server) {
+            super("test", server, new Properties(), new MetricRegistry(),
+                    "test.pool");
+        }
+
+        void clearIdle() {
+            PooledContext pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                idleCounter.dec();
+                pooled.destroy();
+            }
+        }
+
+        @Override
+        protected synchronized LdapContext createContext(final String url)
+                throws NamingException {
+            if (down.contains(url)) {
+                throw new CommunicationException(url + " is down");
+            }
+            if (rejected.contains(url)) {
+                throw new AuthenticationException("Invalid credentials");
+            }
+            created.add(url);
+            return (LdapContext) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[] { LdapContext.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) throws Throwable {
+                            String name = method.getName();
+                            if ("close".equals(name)) {
+                                synchronized (MockPool.this) {
+                                    closed.add(url);
+                                }
+                                return null;
+                            }
+                            if (down.contains(url)) {
+                                throw new CommunicationException(url
+                                        + " is down");
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortResponseControl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+
+/**
+ * Checks the request controls sent by the LDAP sessions, using a mock
+ * context simulating a server supporting paging and sorting.
+ */
+public class TestLDAPControls extends LDAPDirectoryTestCase {
+
+    protected LDAPDirectory directory;
+
+    protected int savedPageSize;
+
+    protected MockContext server;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = getLDAPDirectory("userDirectory");
+        directory.supportedControls = null;
+        savedPageSize = directory.getConfig().getQueryPageSize();
+        directory.getConfig().setQueryPageSize(2);
+        server = new MockContext("user1", "user2", "user3", "user4", "user5");
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        directory.getConfig().setQueryPageSize(savedPageSize);
+        directory.supportedControls = null;
+        super.tearDown();
+    }
+
+    protected LDAPSession getMockSession() {
+        return new LDAPSession(directory, server.newContext());
+    }
+
+    protected static List<String> getIds(DocumentModelList entries) {
+        List<String> ids = new ArrayList<String>();
+        for (DocumentModel entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPagedSearchFollowsCookies() throws Exception {
+        LDAPSession session = getMockSession();
+        try {
+            DocumentModelList entries = session.getEntries();
+            assertEquals(Arrays.asList("user1", "user2", "user3", "user4",
+                    "user5"), getIds(entries));
+        } finally {
+            session.close();
+        }
+        // pages of 2, 2 and 1 entries
+        assertEquals(3, server.requests.size());
+        assertNull(server.requests.get(0).cookie);
+        assertArrayEquals(MockContext.cookie(1), server.requests.get(1).cookie);
+        assertArrayEquals(MockContext.cookie(2), server.requests.get(2).cookie);
+        for (Request request : server.requests) {
+            assertEquals(2, request.pageSize);
+            assertNull(request.sort);
+        }
+        // no control left on the context for the other operations
+        assertNull(server.controls);
+    }
+
+    @Test
+    public void testSortedWindow() throws Exception {
+        Map<String, String> orderBy = new LinkedHashMap<String, String>();
+        orderBy.put("username", "asc");
+        LDAPSession session = getMockSession();
+        try {
+            DocumentModelList entries = session.queryFromSource(
+                    Collections.<String, Serializable> emptyMap(),
+                    Collections.<String> emptySet(), orderBy, false, 3, 0);
+            assertEquals(Arrays.asList("user1", "user2", "user3"),
+                    getIds(entries));
+        } finally {
+            session.close();
+        }
+        // the server sorts, so reading stops once the window is read
+        assertEquals(2, server.requests.size());
+        for (Request request : server.requests) {
+            assertNotNull(request.sort);
+        }
+        // the last page is reduced to what is left of the window
+        assertEquals(2, server.requests.get(0).pageSize);
+        assertEquals(1, server.requests.get(1).pageSize);
+    }
+
+    @Test
+    public void testSupportedControlsReadAgainAfterFailure() throws Exception {
+        server.failRootDse = true;
+        LDAPSession session = getMockSession();
+        try {
+            assertEquals(5, session.getEntries().size());
+            // no paging
+            assertEquals(1, server.requests.size());
+            assertEquals(0, server.requests.get(0).pageSize);
+            assertNull(directory.supportedControls);
+
+            server.failRootDse = false;
+            server.requests.clear();
+            assertEquals(5, session.getEntries().size());
+            assertEquals(3, server.requests.size());
+            assertNotNull(directory.supportedControls);
+
+            // read once it succeeded
+            int reads = server.rootDseReads;
+            session.getEntries();
+            assertEquals(reads, server.rootDseReads);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * A search request, with its controls.
+     */
+    protected static class Request {
+
+        // 0 if not paged
+        protected int pageSize;
+
+        protected byte[] cookie;
+
+        protected SortControl sort;
+    }
+
+    /**
+     * State of a mock LDAP server supporting the paged results and the sort
+     * controls, serving entries whose only attribute is their uid.
+     */
+    protected static class MockContext implements InvocationHandler {
+
+        protected final List<String> uids;
+
+        protected final List<Request> requests = new ArrayList<Request>();
+
+        protected boolean failRootDse;
+
+        protected int rootDseReads;
+
+        protected Control[] controls;
+
+        protected Control[] responseControls;
+
+        protected MockContext(String... uids) {
+            this.uids = Arrays.asList(uids);
+        }
+
+        protected LdapContext newContext() {
+            return (LdapContext) Proxy.newProxyInstance(
+                    Thread.currentThread().getContextClassLoader(),
+                    new Class<?>[] { LdapContext.class }, this);
+        }
+
+        protected static byte[] cookie(int offset) {
+            return new byte[] { 'c', (byte) offset };
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if ("getAttributes".equals(name)) {
+                rootDseReads++;
+                if (failRootDse) {
+                    throw new CommunicationException("connection reset");
+                }
+                BasicAttribute supported = new BasicAttribute(
+                        "supportedControl");
+                supported.add(PagedResultsControl.OID);
+                supported.add(SortControl.OID);
+                BasicAttributes attributes = new BasicAttributes(true);
+                attributes.put(supported);
+                return attributes;
+            } else if ("setRequestControls".equals(name)) {
+                controls = (Control[]) args[0];
+                return null;
+            } else if ("getResponseControls".equals(name)) {
+                return responseControls;
+            } else if ("search".equals(name)) {
+                return search();
+            } else if ("close".equals(name)) {
+                return null;
+            } else if ("getEnvironment".equals(name)) {
+                return new Hashtable<Object, Object>();
+            } else if ("toString".equals(name)) {
+                return "MockContext";
+            } else if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        protected NamingEnumeration<SearchResult> search() throws Exception {
+            Request request = new Request();
+            if (controls != null) {
+                for (Control control : controls) {
+                    if (control instanceof PagedResultsControl) {
+                        decodePaging(control.getEncodedValue(), request);
+                    } else if (control instanceof SortControl) {
+                        request.sort = (SortControl) control;
+                    }
+                }
+            }
+            requests.add(request);
+            int from = request.cookie == null ? 0 : request.cookie[1];
+            int to = request.pageSize > 0 ? Math.min(from + request.pageSize,
+                    uids.size()) : uids.size();
+            List<SearchResult> results = new ArrayList<SearchResult>();
+            for (String uid : uids.subList(from, to)) {
+                BasicAttributes attributes = new BasicAttributes(true);
+                attributes.put("uid", uid);
+                results.add(new SearchResult("uid=" + uid, null, attributes));
+            }
+            List<Control> responses = new ArrayList<Control>();
+            if (request.pageSize > 0) {
+                byte[] next = to < uids.size() ? cookie(to) : new byte[0];
+                responses.add(new PagedResultsResponseControl(
+                        PagedResultsResponseControl.OID, false,
+                        encodePagingResponse(next)));
+            }
+            if (request.sort != null) {
+                // SEQUENCE { ENUMERATED success }
+                responses.add(new SortResponseControl(SortResponseControl.OID,
+                        false, new byte[] { 0x30, 0x03, 0x0a, 0x01, 0x00 }));
+            }
+            responseControls = responses.isEmpty() ? null
+                    : responses.toArray(new Control[responses.size()]);
+            return new MockEnumeration(results);
+        }
+
+        /**
+         * Decodes SEQUENCE { INTEGER size, OCTET STRING cookie }, for the
+         * small sizes and cookies of the tests.
+         */
+        protected static void decodePaging(byte[] value, Request request) {
+            // 0x30 len 0x02 len size... 0x04 len cookie...
+            int i = 2;
+            int sizeLength = value[i + 1];
+            int size = 0;
+            for (int j = 0; j < sizeLength; j++) {
+                size = (size << 8) | (value[i + 2 + j] & 0xff);
+            }
+            request.pageSize = size;
+            i += 2 + sizeLength;
+            int cookieLength = value[i + 1];
+            if (cookieLength > 0) {
+                request.cookie = Arrays.copyOfRange(value, i + 2, i + 2
+                        + cookieLength);
+            }
+        }
+
+        protected static byte[] encodePagingResponse(byte[] cookie) {
+            byte[] value = new byte[7 + cookie.length];
+            value[0] = 0x30;
+            value[1] = (byte) (5 + cookie.length);
+            // estimated total size, unknown
+            value[2] = 0x02;
+            value[3] = 0x01;
+            value[4] = 0x00;
+            value[5] = 0x04;
+            value[6] = (byte) cookie.length;
+            System.arraycopy(cookie, 0, value, 7, cookie.length);
+            return value;
+        }
+    }
+
+    protected static class MockEnumeration implements
+            NamingEnumeration<SearchResult> {
+
+        protected final List<SearchResult> results;
+
+        protected int index;
+
+        protected MockEnumeration(List<SearchResult> results) {
+            this.results = results;
+        }
+
+        @Override
+        public boolean hasMore() {
+            return index < results.size();
+        }
+
+        @Override
+        public SearchResult next() {
+            return results.get(index++);
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return hasMore();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return next();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
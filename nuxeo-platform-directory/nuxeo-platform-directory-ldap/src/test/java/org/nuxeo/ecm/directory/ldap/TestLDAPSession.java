@@ -34,10 +34,13 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.naming.ldap.LdapName;
+
 import org.junit.Test;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -49,6 +52,7 @@ import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.management.api.ProbeStatus;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.ldap.management.LDAPDirectoriesProbe;
 
@@ -1039,6 +1043,25 @@ public class TestLDAPSession extends LDAPDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testIterate() throws ClientException {
+        Session session = getLDAPDirectory("userDirectory").getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("lastName", "Manager");
+            EntryIterator it = session.iterate(filter, null, null, false);
+            try {
+                assertTrue(it.hasNext());
+                assertEquals("Administrator", it.next().getId());
+                assertFalse(it.hasNext());
+            } finally {
+                it.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testQuery2() throws ClientException {
         if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
@@ -1149,6 +1172,31 @@ public class TestLDAPSession extends LDAPDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testQueryOrderByWithLimitAndOffset() throws ClientException {
+        Session session = getLDAPDirectory("userDirectory").getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            Map<String, String> orderBy = new HashMap<String, String>();
+            DocumentModelList entries;
+
+            orderBy.put("company", "asc");
+            entries = session.query(filter, Collections.<String> emptySet(),
+                    orderBy, false, 2, 1);
+            assertEquals(2, entries.size());
+            assertEquals("Administrator", entries.get(0).getId());
+            assertEquals("user2", entries.get(1).getId());
+
+            orderBy.put("company", "desc");
+            entries = session.query(filter, Collections.<String> emptySet(),
+                    orderBy, false, 10, 3);
+            assertEquals(1, entries.size());
+            assertEquals("user3", entries.get(0).getId());
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testAuthenticate() throws ClientException {
         if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
@@ -1306,6 +1354,53 @@ public class TestLDAPSession extends LDAPDirectoryTestCase {
         assertTrue(status.isSuccess());
     }
 
+    @Test
+    public void testGetIdsForDns() throws Exception {
+        LDAPSession session = (LDAPSession) getLDAPDirectory("groupDirectory").getSession();
+        try {
+            List<String> dns = Arrays.asList(
+                    "cn=members,ou=editable,ou=groups,dc=example,dc=com",
+                    "cn=subgroup,cn=group,ou=editable,ou=groups,dc=example,dc=com",
+                    "cn=nosuchgroup,ou=editable,ou=groups,dc=example,dc=com");
+            Map<String, String> ids = session.getIdsForDns(dns);
+            assertEquals(2, ids.size());
+            assertEquals("members", ids.get(dns.get(0)));
+            assertEquals("subgroup", ids.get(dns.get(1)));
+            assertNull(ids.get(dns.get(2)));
+
+            // second resolution gives the same result
+            assertEquals(ids, session.getIdsForDns(dns));
+
+            // names compared regardless of the case of the attribute types
+            String dn = "CN=members,OU=editable,ou=groups,DC=example,dc=com";
+            assertEquals("members",
+                    session.getIdsForDns(Arrays.asList(dn)).get(dn));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testGetRequestedDn() throws Exception {
+        Map<String, LdapName> names = new LinkedHashMap<String, LdapName>();
+        names.put("cn=a\\, b,ou=groups,dc=example,dc=com", new LdapName(
+                "cn=a\\, b,ou=groups,dc=example,dc=com"));
+        names.put("cn=members,ou=groups,dc=example,dc=com", new LdapName(
+                "cn=members,ou=groups,dc=example,dc=com"));
+        assertEquals("cn=members,ou=groups,dc=example,dc=com",
+                LDAPSession.getRequestedDn(names, new LdapName(
+                        "CN=Members,OU=groups,dc=example,dc=com")));
+        // relative name of a result
+        assertEquals("cn=a\\, b,ou=groups,dc=example,dc=com",
+                LDAPSession.getRequestedDn(names, new LdapName(
+                        "cn=a\\2C b,ou=groups")));
+        // a longer name must not match through its prefix
+        assertNull(LDAPSession.getRequestedDn(names, new LdapName(
+                "cn=members,ou=groups,dc=other,dc=example,dc=com")));
+        assertNull(LDAPSession.getRequestedDn(names, new LdapName(
+                "cn=members,ou=other")));
+    }
+
     @Test
     public void testPseudoNormalizeDn() throws Exception {
         String normalizedDN = LDAPReference.pseudoNormalizeDn("cn=Lamerand\\, Quentin,OU=developper,ou=PEOPLE, dc=nuxeo,dc=com");
@@ -47,12 +47,46 @@ public class MultiDirectoryDescriptor implements Cloneable {
     @XNode("querySizeLimit")
     public Integer querySizeLimit;
 
+    /**
+     * Queries the sub-directories concurrently instead of one after the
+     * other.
+     *
+     * @since 5.7.3
+     */
+    @XNode("parallel")
+    public Boolean parallel;
+
+    /**
+     * Default sub-directory timeout, in milliseconds.
+     *
+     * @since 5.7.3
+     */
+    public static final long DEFAULT_SUB_DIRECTORY_TIMEOUT = 10000;
+
+    /**
+     * Maximum time in milliseconds to wait for each sub-directory when
+     * querying them concurrently, 0 to wait indefinitely (defaults to
+     * {@link #DEFAULT_SUB_DIRECTORY_TIMEOUT}).
+     *
+     * @since 5.7.3
+     */
+    @XNode("subDirectoryTimeout")
+    public Long subDirectoryTimeout;
+
     @XNode("@remove")
     public boolean remove = false;
 
     @XNodeList(value = "source", type = SourceDescriptor[].class, componentType = SourceDescriptor.class)
     protected SourceDescriptor[] sources;
 
+    /**
+     * @since 5.7.3
+     */
+    public long getSubDirectoryTimeout() {
+        return subDirectoryTimeout == null ? DEFAULT_SUB_DIRECTORY_TIMEOUT
+                : subDirectoryTimeout.longValue();
+    }
+
     public void merge(MultiDirectoryDescriptor other) {
         merge(other, false);
     }
@@ -73,6 +107,12 @@ public class MultiDirectoryDescriptor implements Cloneable {
         if (other.querySizeLimit != null || overwrite) {
             querySizeLimit = other.querySizeLimit;
         }
+        if (other.parallel != null || overwrite) {
+            parallel = other.parallel;
+        }
+        if (other.subDirectoryTimeout != null || overwrite) {
+            subDirectoryTimeout = other.subDirectoryTimeout;
+        }
         if (other.sources != null || overwrite) {
             if (sources == null) {
                 sources = other.sources;
@@ -98,6 +138,8 @@ public class MultiDirectoryDescriptor implements Cloneable {
         clone.passwordField = passwordField;
         clone.readOnly = readOnly;
         clone.querySizeLimit = querySizeLimit;
+        clone.parallel = parallel;
+        clone.subDirectoryTimeout = subDirectoryTimeout;
         clone.remove = remove;
         if (sources != null) {
             clone.sources = new SourceDescriptor[sources.length];
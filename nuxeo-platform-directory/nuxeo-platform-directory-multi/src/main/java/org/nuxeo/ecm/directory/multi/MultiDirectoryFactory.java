@@ -21,6 +21,12 @@ package org.nuxeo.ecm.directory.multi;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,8 +49,21 @@ public class MultiDirectoryFactory extends DefaultComponent implements
 
     private static final Log log = LogFactory.getLog(MultiDirectoryFactory.class);
 
+    /**
+     * Framework property giving the maximum number of threads querying
+     * sub-directories concurrently, for the multi-directories configured to
+     * do so.
+     *
+     * @since 5.7.3
+     */
+    public static final String PARALLEL_THREADS_PROPERTY = "org.nuxeo.ecm.directory.multi.parallelThreads";
+
+    protected static final int DEFAULT_PARALLEL_THREADS = 16;
+
     private static DirectoryService directoryService;
 
+    private static ExecutorService executor;
+
     protected MultiDirectoryRegistry directories;
 
     public Directory getDirectory(String name) {
@@ -63,6 +82,52 @@ public class MultiDirectoryFactory extends DefaultComponent implements
     @Override
     public void deactivate(ComponentContext context) {
         directories = null;
+        shutdownExecutor();
+    }
+
+    /**
+     * Returns the bounded executor used to query sub-directories
+     * concurrently. When all its threads are busy and its queue is full, the
+     * calls run in the calling thread.
+     *
+     * @since 5.7.3
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = DEFAULT_PARALLEL_THREADS;
+            String value = Framework.getProperty(PARALLEL_THREADS_PROPERTY);
+            if (value != null) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    log.error("Invalid value for " + PARALLEL_THREADS_PROPERTY
+                            + ": " + value);
+                }
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+                            threads * 16), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Nuxeo-MultiDirectory-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    protected static synchronized void shutdownExecutor() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
     }
 
     public static DirectoryService getDirectoryService() {
@@ -21,27 +21,42 @@ package org.nuxeo.ecm.directory.multi;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelComparator;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
 import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.directory.AbstractDirectory;
+import org.nuxeo.ecm.directory.AbstractEntryIterator;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.runtime.api.Framework;
@@ -59,6 +74,11 @@ public class MultiDirectorySession extends BaseSession {
 
     private static final Log log = LogFactory.getLog(MultiDirectorySession.class);
 
+    /**
+     * Number of entries completed together when iterating over a source.
+     */
+    protected static final int ITERATE_BATCH_SIZE = 100;
+
     private final DirectoryService directoryService;
 
     private final SchemaManager schemaManager;
@@ -304,6 +324,199 @@ public class MultiDirectorySession extends BaseSession {
         sourceInfos = newSourceInfos;
     }
 
+    /**
+     * Read operation done on one sub-directory.
+     *
+     * @since 5.7.3
+     */
+    protected interface SubDirectoryCall<T> {
+
+        T call(SubDirectoryInfo dirInfo, Session session)
+                throws ClientException;
+
+    }
+
+    /**
+     * Checks if the sub-directories are queried concurrently.
+     *
+     * @since 5.7.3
+     */
+    protected boolean isParallel() {
+        return Boolean.TRUE.equals(descriptor.parallel);
+    }
+
+    protected List<SubDirectoryInfo> getAllSubDirectoryInfos() {
+        List<SubDirectoryInfo> dirInfos = new ArrayList<SubDirectoryInfo>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            dirInfos.addAll(sourceInfo.subDirectoryInfos);
+        }
+        return dirInfos;
+    }
+
+    /**
+     * Calls the given sub-directories and returns the results keyed by
+     * sub-directory.
+     * <p>
+     * When the directory is configured as parallel, the calls are done
+     * concurrently by the shared executor of {@link MultiDirectoryFactory},
+     * each one with a session opened and closed by the executor thread. If
+     * the sub-directory timeout is reached, a required sub-directory fails
+     * the whole call while an optional one is logged and has no result.
+     * <p>
+     * The executor threads are outside of the transaction of the caller, so
+     * they only see committed data. The calls therefore stay sequential, with
+     * the sessions of this session, when one of the sub-directories has been
+     * written in the current transaction. They also stay sequential from the
+     * executor threads, so that nested multi-directories do not wait for the
+     * threads they hold.
+     *
+     * @since 5.7.3
+     */
+    protected <T> Map<SubDirectoryInfo, T> callAll(
+            List<SubDirectoryInfo> dirInfos, SubDirectoryCall<T> call)
+            throws DirectoryException {
+        Map<SubDirectoryInfo, T> results = new HashMap<SubDirectoryInfo, T>();
+        if (!isParallel() || dirInfos.size() < 2 || SubDirectoryTask.isRunning()
+                || isWrittenInTransaction(dirInfos)) {
+            for (SubDirectoryInfo dirInfo : dirInfos) {
+                try {
+                    results.put(dirInfo, call.call(dirInfo,
+                            dirInfo.getSession()));
+                } catch (DirectoryException e) {
+                    throw e;
+                } catch (ClientException e) {
+                    throw new DirectoryException(e);
+                }
+            }
+            return results;
+        }
+        ExecutorService executor = MultiDirectoryFactory.getExecutor();
+        List<Future<T>> futures = new ArrayList<Future<T>>(dirInfos.size());
+        for (SubDirectoryInfo dirInfo : dirInfos) {
+            futures.add(executor.submit(new SubDirectoryTask<T>(
+                    directoryService, dirInfo, call)));
+        }
+        long timeout = descriptor.getSubDirectoryTimeout();
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean done = false;
+        try {
+            for (int i = 0; i < dirInfos.size(); i++) {
+                SubDirectoryInfo dirInfo = dirInfos.get(i);
+                Future<T> future = futures.get(i);
+                T result;
+                try {
+                    if (timeout > 0) {
+                        result = future.get(deadline - System.nanoTime(),
+                                TimeUnit.NANOSECONDS);
+                    } else {
+                        result = future.get();
+                    }
+                } catch (TimeoutException e) {
+                    // the running call closes its session when it returns
+                    future.cancel(false);
+                    if (!dirInfo.isOptional) {
+                        throw new DirectoryException(String.format(
+                                "Directory '%s': timeout after %sms calling "
+                                        + "subdirectory '%s'",
+                                directory.getName(), timeout, dirInfo.dirName));
+                    }
+                    log.warn(String.format(
+                            "Directory '%s': timeout after %sms calling "
+                                    + "optional subdirectory '%s', "
+                                    + "using default values",
+                            directory.getName(), timeout, dirInfo.dirName));
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DirectoryException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DirectoryException) {
+                        throw (DirectoryException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new DirectoryException(cause);
+                }
+                results.put(dirInfo, result);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (Future<T> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks if one of the given sub-directories has uncommitted changes in
+     * the current transaction.
+     *
+     * @since 5.7.3
+     */
+    protected boolean isWrittenInTransaction(List<SubDirectoryInfo> dirInfos) {
+        for (SubDirectoryInfo dirInfo : dirInfos) {
+            if (AbstractDirectory.isWrittenInTransaction(dirInfo.dirName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calls a sub-directory from an executor thread, with a session of its
+     * own: sessions are not shared between threads.
+     */
+    protected static class SubDirectoryTask<T> implements Callable<T> {
+
+        // set while a task runs in the current thread
+        protected static final ThreadLocal<Boolean> running = new ThreadLocal<Boolean>();
+
+        protected final DirectoryService directoryService;
+
+        protected final SubDirectoryInfo dirInfo;
+
+        protected final SubDirectoryCall<T> call;
+
+        protected SubDirectoryTask(DirectoryService directoryService,
+                SubDirectoryInfo dirInfo, SubDirectoryCall<T> call) {
+            this.directoryService = directoryService;
+            this.dirInfo = dirInfo;
+            this.call = call;
+        }
+
+        protected static boolean isRunning() {
+            return running.get() != null;
+        }
+
+        @Override
+        public T call() throws ClientException {
+            // may be run by the caller when the executor is saturated
+            boolean nested = isRunning();
+            running.set(Boolean.TRUE);
+            try {
+                Session session = directoryService.open(dirInfo.dirName);
+                try {
+                    return call.call(dirInfo, session);
+                } finally {
+                    session.close();
+                }
+            } finally {
+                if (!nested) {
+                    running.remove();
+                }
+            }
+        }
+    }
+
     public void close() throws DirectoryException {
         try {
             if (sourceInfos == null) {
@@ -386,24 +599,33 @@ public class MultiDirectorySession extends BaseSession {
     public boolean authenticate(String username, String password)
             throws ClientException {
         init();
+        // always sequential, so that the password is only sent to the
+        // sub-directories until one of them accepts it
         for (SourceInfo sourceInfo : sourceInfos) {
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
                 if (!dirInfo.isAuthenticating) {
                     continue;
                 }
-                if (dirInfo.getSession().authenticate(username, password)) {
+                if (authenticate(dirInfo, dirInfo.getSession(), username,
+                        password)) {
                     return true;
                 }
-                if (dirInfo.isOptional
-                        && dirInfo.getSession().getEntry(username) == null) {
-                    // check if given password equals to default value
-                    String passwordField = dirInfo.getSession().getPasswordField();
-                    String defaultPassword = (String) dirInfo.defaultEntry.get(passwordField);
-                    if (defaultPassword != null
-                            && defaultPassword.equals(password)) {
-                        return true;
-                    }
-                }
+            }
+        }
+        return false;
+    }
+
+    protected boolean authenticate(SubDirectoryInfo dirInfo, Session session,
+            String username, String password) throws ClientException {
+        if (session.authenticate(username, password)) {
+            return true;
+        }
+        if (dirInfo.isOptional && session.getEntry(username) == null) {
+            // check if given password equals to default value
+            String passwordField = session.getPasswordField();
+            String defaultPassword = (String) dirInfo.defaultEntry.get(passwordField);
+            if (defaultPassword != null && defaultPassword.equals(password)) {
+                return true;
             }
         }
         return false;
@@ -413,72 +635,192 @@ public class MultiDirectorySession extends BaseSession {
         return getEntry(id, true);
     }
 
-    public DocumentModel getEntry(String id, boolean fetchReferences)
-            throws DirectoryException {
+    public DocumentModel getEntry(final String id,
+            final boolean fetchReferences) throws DirectoryException {
         init();
+        Map<SubDirectoryInfo, DocumentModel> prefetched = null;
+        if (isParallel()) {
+            // all the sources at once, the first one having the entry wins
+            prefetched = callAll(getAllSubDirectoryInfos(),
+                    new SubDirectoryCall<DocumentModel>() {
+                        @Override
+                        public DocumentModel call(SubDirectoryInfo dirInfo,
+                                Session session) throws ClientException {
+                            return session.getEntry(id, fetchReferences);
+                        }
+                    });
+        }
         source_loop: for (SourceInfo sourceInfo : sourceInfos) {
-            boolean isReadOnlyEntry = true;
-            final Map<String, Object> map = new HashMap<String, Object>();
-
+            List<DocumentModel> subEntries = new ArrayList<DocumentModel>(
+                    sourceInfo.subDirectoryInfos.size());
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
-                final DocumentModel entry = dirInfo.getSession().getEntry(id,
-                        fetchReferences);
-                boolean isOptional = dirInfo.isOptional;
-                if (entry == null && !isOptional) {
+                final DocumentModel entry = prefetched != null ? prefetched.get(dirInfo)
+                        : dirInfo.getSession().getEntry(id, fetchReferences);
+                if (entry == null && !dirInfo.isOptional) {
                     // not in this source
                     continue source_loop;
                 }
-                if (entry != null && !isReadOnlyEntry(entry)) {
-                    // set readonly to false if at least one source is writable
-                    isReadOnlyEntry = false;
-                }
-                try {
-                    if (entry == null && isOptional
-                            && !dirInfo.getSession().isReadOnly()) {
-                        // set readonly to false if null entry is from optional
-                        // and writable directory
-                        isReadOnlyEntry = false;
-                    }
-                } catch (ClientException ce) {
-                    log.error("Cannot get readonly value from directory "
-                            + dirInfo.dirName, ce);
-                }
-                for (Entry<String, String> e : dirInfo.toSource.entrySet()) {
-                    if (entry != null) {
-                        try {
-                            map.put(e.getValue(),
-                                    entry.getProperty(dirInfo.dirSchemaName,
-                                            e.getKey()));
-                        } catch (ClientException e1) {
-                            throw new DirectoryException(e1);
-                        }
-                    } else {
-                        // fill with default values for this directory
-                        if (!map.containsKey(e.getValue())) {
-                            map.put(e.getValue(),
-                                    dirInfo.defaultEntry.get(e.getKey()));
+                subEntries.add(entry);
+            }
+            return mergeEntries(id, sourceInfo, subEntries);
+        }
+        return null;
+    }
+
+    /**
+     * Fetches the entries in bulk from each sub-directory: ids found in a
+     * source are not looked up in the following ones, unless the
+     * sub-directories are queried in parallel.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            final boolean fetchReferences) throws DirectoryException {
+        init();
+        Map<SubDirectoryInfo, Map<String, DocumentModel>> prefetched = null;
+        if (isParallel()) {
+            final Set<String> allIds = new LinkedHashSet<String>(ids);
+            prefetched = callAll(getAllSubDirectoryInfos(),
+                    new SubDirectoryCall<Map<String, DocumentModel>>() {
+                        @Override
+                        public Map<String, DocumentModel> call(
+                                SubDirectoryInfo dirInfo, Session session)
+                                throws ClientException {
+                            return getEntriesById(session, allIds,
+                                    fetchReferences);
                         }
+                    });
+        }
+        Set<String> remaining = new LinkedHashSet<String>(ids);
+        Map<String, DocumentModel> entries = new HashMap<String, DocumentModel>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            if (remaining.isEmpty()) {
+                break;
+            }
+            // ids present in all the required sub-directories so far
+            Set<String> found = new LinkedHashSet<String>(remaining);
+            List<Map<String, DocumentModel>> subEntriesById = new ArrayList<Map<String, DocumentModel>>(
+                    sourceInfo.subDirectoryInfos.size());
+            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                Map<String, DocumentModel> byId;
+                if (prefetched != null) {
+                    byId = prefetched.get(dirInfo);
+                    if (byId == null) {
+                        byId = Collections.emptyMap();
                     }
+                } else if (!found.isEmpty()) {
+                    byId = getEntriesById(dirInfo.getSession(), found,
+                            fetchReferences);
+                } else {
+                    byId = Collections.emptyMap();
+                }
+                if (!dirInfo.isOptional) {
+                    found.retainAll(byId.keySet());
                 }
+                subEntriesById.add(byId);
             }
-            // force the entry in readonly if it's defined on the multidirectory
-            if (isReadOnly()) {
-                isReadOnlyEntry = true;
+            for (String id : found) {
+                List<DocumentModel> subEntries = new ArrayList<DocumentModel>(
+                        subEntriesById.size());
+                for (Map<String, DocumentModel> byId : subEntriesById) {
+                    subEntries.add(byId.get(id));
+                }
+                entries.put(id, mergeEntries(id, sourceInfo, subEntries));
+            }
+            remaining.removeAll(found);
+        }
+        DocumentModelList result = new DocumentModelListImpl(entries.size());
+        for (String id : new LinkedHashSet<String>(ids)) {
+            DocumentModel entry = entries.get(id);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    protected static Map<String, DocumentModel> getEntriesById(
+            Session session, Collection<String> ids, boolean fetchReferences)
+            throws ClientException {
+        Map<String, DocumentModel> byId = new HashMap<String, DocumentModel>();
+        for (DocumentModel entry : session.getEntries(ids, fetchReferences)) {
+            byId.put(entry.getId(), entry);
+        }
+        return byId;
+    }
+
+    /**
+     * Builds the entry of a source from the entries of its sub-directories,
+     * given in the order of {@link SourceInfo#subDirectoryInfos} ({@code
+     * null} for missing optional entries).
+     */
+    protected DocumentModel mergeEntries(String id, SourceInfo sourceInfo,
+            List<DocumentModel> subEntries) throws DirectoryException {
+        boolean isReadOnlyEntry = true;
+        final Map<String, Object> map = new HashMap<String, Object>();
+        Iterator<DocumentModel> it = subEntries.iterator();
+        for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+            final DocumentModel entry = it.next();
+            boolean isOptional = dirInfo.isOptional;
+            if (entry != null && !isReadOnlyEntry(entry)) {
+                // set readonly to false if at least one source is writable
+                isReadOnlyEntry = false;
             }
-            // ok we have the data
             try {
-                return BaseSession.createEntryModel(null, schemaName, id, map,
-                        isReadOnlyEntry);
-            } catch (PropertyException e) {
-                throw new DirectoryException(e);
+                if (entry == null && isOptional
+                        && !dirInfo.getSession().isReadOnly()) {
+                    // set readonly to false if null entry is from optional
+                    // and writable directory
+                    isReadOnlyEntry = false;
+                }
+            } catch (ClientException ce) {
+                log.error("Cannot get readonly value from directory "
+                        + dirInfo.dirName, ce);
+            }
+            for (Entry<String, String> e : dirInfo.toSource.entrySet()) {
+                if (entry != null) {
+                    try {
+                        map.put(e.getValue(),
+                                entry.getProperty(dirInfo.dirSchemaName,
+                                        e.getKey()));
+                    } catch (ClientException e1) {
+                        throw new DirectoryException(e1);
+                    }
+                } else {
+                    // fill with default values for this directory
+                    if (!map.containsKey(e.getValue())) {
+                        map.put(e.getValue(),
+                                dirInfo.defaultEntry.get(e.getKey()));
+                    }
+                }
             }
         }
-        return null;
+        // force the entry in readonly if it's defined on the multidirectory
+        if (isReadOnly()) {
+            isReadOnlyEntry = true;
+        }
+        // ok we have the data
+        try {
+            return BaseSession.createEntryModel(null, schemaName, id, map,
+                    isReadOnlyEntry);
+        } catch (PropertyException e) {
+            throw new DirectoryException(e);
+        }
     }
 
     @SuppressWarnings("boxing")
     public DocumentModelList getEntries() throws ClientException {
         init();
+        Map<SubDirectoryInfo, DocumentModelList> allEntries = callAll(
+                getAllSubDirectoryInfos(),
+                new SubDirectoryCall<DocumentModelList>() {
+                    @Override
+                    public DocumentModelList call(SubDirectoryInfo dirInfo,
+                            Session session) throws ClientException {
+                        return session.getEntries();
+                    }
+                });
 
         // list of entries
         final DocumentModelList results = new DocumentModelListImpl();
@@ -492,7 +834,7 @@ public class MultiDirectorySession extends BaseSession {
             // number of dirs seen for each entry
             final Map<String, Integer> counts = new HashMap<String, Integer>();
             for (SubDirectoryInfo dirInfo : sourceInfo.requiredSubDirectoryInfos) {
-                final DocumentModelList entries = dirInfo.getSession().getEntries();
+                final DocumentModelList entries = allEntries.get(dirInfo);
                 for (DocumentModel entry : entries) {
                     final String id = entry.getId();
                     // find or create map for this entry
@@ -516,7 +858,11 @@ public class MultiDirectorySession extends BaseSession {
                 }
             }
             for (SubDirectoryInfo dirInfo : sourceInfo.optionalSubDirectoryInfos) {
-                final DocumentModelList entries = dirInfo.getSession().getEntries();
+                DocumentModelList entries = allEntries.get(dirInfo);
+                if (entries == null) {
+                    // timed out
+                    entries = new DocumentModelListImpl();
+                }
                 Set<String> existingIds = new HashSet<String>();
                 for (DocumentModel entry : entries) {
                     final String id = entry.getId();
@@ -705,18 +1051,29 @@ public class MultiDirectorySession extends BaseSession {
     }
 
     @SuppressWarnings("boxing")
-    public DocumentModelList query(Map<String, Serializable> filter,
+    public DocumentModelList query(final Map<String, Serializable> filter,
             Set<String> fulltext, Map<String, String> orderBy,
-            boolean fetchReferences) throws ClientException {
+            final boolean fetchReferences) throws ClientException {
         init();
         // list of entries
         final DocumentModelList results = new DocumentModelListImpl();
         // entry ids already seen (mapped to the source name)
         final Map<String, String> seen = new HashMap<String, String>();
-        if (fulltext == null) {
-            fulltext = Collections.emptySet();
-        }
+        final Set<String> queryFulltext = fulltext == null ? Collections.<String> emptySet()
+                : fulltext;
         Set<String> readOnlyEntries = new HashSet<String>();
+        Map<SubDirectoryInfo, SubQueryResult> prefetched = null;
+        if (isParallel()) {
+            prefetched = callAll(getAllSubDirectoryInfos(),
+                    new SubDirectoryCall<SubQueryResult>() {
+                        @Override
+                        public SubQueryResult call(SubDirectoryInfo dirInfo,
+                                Session session) throws ClientException {
+                            return subQuery(dirInfo, session, filter,
+                                    queryFulltext, fetchReferences);
+                        }
+                    });
+        }
 
         for (SourceInfo sourceInfo : sourceInfos) {
             // accumulated map for each entry
@@ -726,45 +1083,30 @@ public class MultiDirectorySession extends BaseSession {
 
             // list of optional dirs where filter matches default values
             List<SubDirectoryInfo> optionalDirsMatching = new ArrayList<SubDirectoryInfo>();
+            // ids present in the optional dirs where filter matches default
+            // values
+            Map<SubDirectoryInfo, Set<String>> optionalDirsIds = new HashMap<SubDirectoryInfo, Set<String>>();
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
-                // compute filter
-                final Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
-                for (Entry<String, Serializable> e : filter.entrySet()) {
-                    final String fieldName = dirInfo.fromSource.get(e.getKey());
-                    if (fieldName == null) {
-                        continue;
-                    }
-                    dirFilter.put(fieldName, e.getValue());
-                }
-                if (dirInfo.isOptional) {
-                    // check if filter matches directory default values
-                    boolean matches = true;
-                    for (Map.Entry<String, Serializable> dirFilterEntry : dirFilter.entrySet()) {
-                        Object defaultValue = dirInfo.defaultEntry.get(dirFilterEntry.getKey());
-                        Object filterValue = dirFilterEntry.getValue();
-                        if (defaultValue == null && filterValue != null) {
-                            matches = false;
-                        } else if (defaultValue != null
-                                && !defaultValue.equals(filterValue)) {
-                            matches = false;
-                        }
-                    }
-                    if (matches) {
-                        optionalDirsMatching.add(dirInfo);
+                SubQueryResult subResult;
+                if (prefetched != null) {
+                    subResult = prefetched.get(dirInfo);
+                    if (subResult == null) {
+                        // optional dir that timed out, use default values
+                        subResult = new SubQueryResult(
+                                new DocumentModelListImpl(),
+                                matchesDefaultEntry(dirInfo,
+                                        getDirFilter(dirInfo, filter)) ? Collections.<String> emptySet()
+                                        : null);
                     }
+                } else {
+                    subResult = subQuery(dirInfo, dirInfo.getSession(), filter,
+                            queryFulltext, fetchReferences);
                 }
-                // compute fulltext
-                Set<String> dirFulltext = new HashSet<String>();
-                for (String sourceFieldName : fulltext) {
-                    final String fieldName = dirInfo.fromSource.get(sourceFieldName);
-                    if (fieldName != null) {
-                        dirFulltext.add(fieldName);
-                    }
+                if (subResult.optionalIds != null) {
+                    optionalDirsMatching.add(dirInfo);
+                    optionalDirsIds.put(dirInfo, subResult.optionalIds);
                 }
-                // make query to subdirectory
-                DocumentModelList l = dirInfo.getSession().query(dirFilter,
-                        dirFulltext, null, fetchReferences);
-                for (DocumentModel entry : l) {
+                for (DocumentModel entry : subResult.entries) {
                     final String id = entry.getId();
                     Map<String, Object> map = maps.get(id);
                     if (map == null) {
@@ -787,10 +1129,7 @@ public class MultiDirectorySession extends BaseSession {
             // add default entry values for optional dirs
             for (SubDirectoryInfo dirInfo : optionalDirsMatching) {
                 // add entry for every data found in other dirs
-                Set<String> existingIds = new HashSet<String>(
-                        dirInfo.getSession().getProjection(
-                                Collections.<String, Serializable> emptyMap(),
-                                dirInfo.idField));
+                Set<String> existingIds = optionalDirsIds.get(dirInfo);
                 for (Entry<String, Map<String, Object>> result : maps.entrySet()) {
                     final String id = result.getKey();
                     if (!existingIds.contains(id)) {
@@ -839,6 +1178,379 @@ public class MultiDirectorySession extends BaseSession {
         return results;
     }
 
+    /**
+     * Result of the query to a sub-directory.
+     */
+    protected static class SubQueryResult {
+
+        final DocumentModelList entries;
+
+        // ids of the entries of an optional sub-directory whose default
+        // values match the filter, null otherwise
+        final Set<String> optionalIds;
+
+        SubQueryResult(DocumentModelList entries, Set<String> optionalIds) {
+            this.entries = entries;
+            this.optionalIds = optionalIds;
+        }
+    }
+
+    protected SubQueryResult subQuery(SubDirectoryInfo dirInfo,
+            Session session, Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences)
+            throws ClientException {
+        Map<String, Serializable> dirFilter = getDirFilter(dirInfo, filter);
+        // compute fulltext
+        Set<String> dirFulltext = new HashSet<String>();
+        for (String sourceFieldName : fulltext) {
+            final String fieldName = dirInfo.fromSource.get(sourceFieldName);
+            if (fieldName != null) {
+                dirFulltext.add(fieldName);
+            }
+        }
+        // make query to subdirectory
+        DocumentModelList entries = session.query(dirFilter, dirFulltext,
+                null, fetchReferences);
+        Set<String> optionalIds = null;
+        if (matchesDefaultEntry(dirInfo, dirFilter)) {
+            optionalIds = new HashSet<String>(session.getProjection(
+                    Collections.<String, Serializable> emptyMap(),
+                    dirInfo.idField));
+        }
+        return new SubQueryResult(entries, optionalIds);
+    }
+
+    protected static Map<String, Serializable> getDirFilter(
+            SubDirectoryInfo dirInfo, Map<String, Serializable> filter) {
+        final Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            final String fieldName = dirInfo.fromSource.get(e.getKey());
+            if (fieldName == null) {
+                continue;
+            }
+            dirFilter.put(fieldName, e.getValue());
+        }
+        return dirFilter;
+    }
+
+    /**
+     * Checks if the filter of an optional sub-directory matches its default
+     * values.
+     */
+    protected static boolean matchesDefaultEntry(SubDirectoryInfo dirInfo,
+            Map<String, Serializable> dirFilter) {
+        if (!dirInfo.isOptional) {
+            return false;
+        }
+        for (Map.Entry<String, Serializable> dirFilterEntry : dirFilter.entrySet()) {
+            Object defaultValue = dirInfo.defaultEntry.get(dirFilterEntry.getKey());
+            Object filterValue = dirFilterEntry.getValue();
+            if (defaultValue == null && filterValue != null) {
+                return false;
+            } else if (defaultValue != null
+                    && !defaultValue.equals(filterValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams the entries of each source from its first required
+     * sub-directory, completing them by batches with the other
+     * sub-directories. When an order is given and it only uses fields of
+     * those first sub-directories, the sorted streams of the sources are
+     * merged; otherwise the sources are streamed one after the other.
+     * <p>
+     * Unlike {@link #query}, the filter is checked in memory on the fields of
+     * the other sub-directories, fulltext fields matching any substring.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public EntryIterator iterate(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) throws ClientException {
+        init();
+        if (fulltext == null) {
+            fulltext = Collections.emptySet();
+        }
+        boolean ordered = orderBy != null && !orderBy.isEmpty();
+        List<SourceEntryIterator> iterators = new ArrayList<SourceEntryIterator>(
+                sourceInfos.size());
+        try {
+            for (int i = 0; i < sourceInfos.size(); i++) {
+                SubDirectoryInfo driver = sourceInfos.get(i).requiredSubDirectoryInfos.get(0);
+                Map<String, String> dirOrderBy = toSubDirectory(driver,
+                        orderBy);
+                if (ordered && dirOrderBy == null) {
+                    log.warn(String.format(
+                            "Cannot order the entries of directory '%s' by %s "
+                                    + "while iterating, ignoring the order",
+                            directory.getName(), orderBy));
+                    ordered = false;
+                }
+                iterators.add(new SourceEntryIterator(i, filter, fulltext,
+                        dirOrderBy, fetchReferences));
+            }
+        } catch (ClientException e) {
+            for (SourceEntryIterator it : iterators) {
+                it.close();
+            }
+            throw e;
+        }
+        return new MergedEntryIterator(iterators,
+                ordered ? new DocumentModelComparator(schemaName, orderBy)
+                        : null);
+    }
+
+    /**
+     * Maps the order on source fields to an order on the fields of the
+     * sub-directory, or returns {@code null} if some field is not in the
+     * sub-directory.
+     */
+    protected Map<String, String> toSubDirectory(SubDirectoryInfo dirInfo,
+            Map<String, String> orderBy) {
+        Map<String, String> dirOrderBy = new LinkedHashMap<String, String>();
+        if (orderBy != null) {
+            for (Entry<String, String> e : orderBy.entrySet()) {
+                String fieldName = dirInfo.fromSource.get(e.getKey());
+                if (fieldName == null) {
+                    return null;
+                }
+                dirOrderBy.put(fieldName, e.getValue());
+            }
+        }
+        return dirOrderBy;
+    }
+
+    /**
+     * Checks the part of the filter on the fields of the sub-directory
+     * against its entry, or its default values if the entry is missing.
+     */
+    protected boolean matches(SubDirectoryInfo dirInfo, DocumentModel entry,
+            Map<String, Serializable> filter, Set<String> fulltext)
+            throws ClientException {
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            String fieldName = dirInfo.fromSource.get(e.getKey());
+            if (fieldName == null) {
+                continue;
+            }
+            Object value = entry != null ? entry.getProperty(
+                    dirInfo.dirSchemaName, fieldName)
+                    : dirInfo.defaultEntry.get(fieldName);
+            Serializable expected = e.getValue();
+            if (expected != null && fulltext.contains(e.getKey())) {
+                if (value == null
+                        || !value.toString().toLowerCase().contains(
+                                expected.toString().toLowerCase())) {
+                    return false;
+                }
+            } else if (expected == null ? value != null
+                    : !expected.equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the entries of the source among the given entries of its first
+     * required sub-directory, completed with the other sub-directories and
+     * matching the filter, keyed by id in the order of the given entries.
+     */
+    protected Map<String, DocumentModel> completeEntries(
+            SourceInfo sourceInfo, List<DocumentModel> driverEntries,
+            Map<String, Serializable> filter, Set<String> fulltext,
+            boolean checkDriver, boolean fetchReferences)
+            throws ClientException {
+        SubDirectoryInfo driver = sourceInfo.requiredSubDirectoryInfos.get(0);
+        List<String> ids = new ArrayList<String>(driverEntries.size());
+        for (DocumentModel entry : driverEntries) {
+            ids.add(entry.getId());
+        }
+        Map<SubDirectoryInfo, Map<String, DocumentModel>> subEntriesByDir = new HashMap<SubDirectoryInfo, Map<String, DocumentModel>>();
+        for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+            if (dirInfo == driver) {
+                continue;
+            }
+            Map<String, DocumentModel> byId = new HashMap<String, DocumentModel>();
+            for (DocumentModel entry : dirInfo.getSession().getEntries(ids,
+                    fetchReferences)) {
+                byId.put(entry.getId(), entry);
+            }
+            subEntriesByDir.put(dirInfo, byId);
+        }
+        Map<String, DocumentModel> entries = new LinkedHashMap<String, DocumentModel>();
+        entry_loop: for (DocumentModel driverEntry : driverEntries) {
+            String id = driverEntry.getId();
+            if (checkDriver
+                    && !matches(driver, driverEntry, filter, fulltext)) {
+                continue;
+            }
+            List<DocumentModel> subEntries = new ArrayList<DocumentModel>(
+                    sourceInfo.subDirectoryInfos.size());
+            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                DocumentModel entry = dirInfo == driver ? driverEntry
+                        : subEntriesByDir.get(dirInfo).get(id);
+                if (entry == null && !dirInfo.isOptional) {
+                    continue entry_loop;
+                }
+                if (dirInfo != driver
+                        && !matches(dirInfo, entry, filter, fulltext)) {
+                    continue entry_loop;
+                }
+                subEntries.add(entry);
+            }
+            entries.put(id, mergeEntries(id, sourceInfo, subEntries));
+        }
+        return entries;
+    }
+
+    /**
+     * Streams the entries of a source by batches of
+     * {@link #ITERATE_BATCH_SIZE}, skipping the entries already provided by a
+     * previous source.
+     */
+    protected class SourceEntryIterator extends AbstractEntryIterator {
+
+        protected final int sourceIndex;
+
+        protected final SourceInfo sourceInfo;
+
+        protected final Map<String, Serializable> filter;
+
+        protected final Set<String> fulltext;
+
+        protected final boolean fetchReferences;
+
+        protected final EntryIterator driverIterator;
+
+        protected final LinkedList<DocumentModel> batch = new LinkedList<DocumentModel>();
+
+        protected SourceEntryIterator(int sourceIndex,
+                Map<String, Serializable> filter, Set<String> fulltext,
+                Map<String, String> dirOrderBy, boolean fetchReferences)
+                throws ClientException {
+            this.sourceIndex = sourceIndex;
+            this.filter = filter;
+            this.fulltext = fulltext;
+            this.fetchReferences = fetchReferences;
+            sourceInfo = sourceInfos.get(sourceIndex);
+            SubDirectoryInfo driver = sourceInfo.requiredSubDirectoryInfos.get(0);
+            Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
+            for (Entry<String, Serializable> e : filter.entrySet()) {
+                String fieldName = driver.fromSource.get(e.getKey());
+                if (fieldName != null) {
+                    dirFilter.put(fieldName, e.getValue());
+                }
+            }
+            Set<String> dirFulltext = new HashSet<String>();
+            for (String sourceFieldName : fulltext) {
+                String fieldName = driver.fromSource.get(sourceFieldName);
+                if (fieldName != null) {
+                    dirFulltext.add(fieldName);
+                }
+            }
+            driverIterator = driver.getSession().iterate(dirFilter,
+                    dirFulltext, dirOrderBy, fetchReferences);
+        }
+
+        @Override
+        protected DocumentModel fetchNext() throws ClientException {
+            while (batch.isEmpty() && driverIterator.hasNext()) {
+                List<DocumentModel> driverEntries = new ArrayList<DocumentModel>(
+                        ITERATE_BATCH_SIZE);
+                while (driverEntries.size() < ITERATE_BATCH_SIZE
+                        && driverIterator.hasNext()) {
+                    driverEntries.add(driverIterator.next());
+                }
+                Map<String, DocumentModel> entries = completeEntries(
+                        sourceInfo, driverEntries, filter, fulltext, false,
+                        fetchReferences);
+                // entries of the previous sources take precedence
+                for (int i = 0; i < sourceIndex && !entries.isEmpty(); i++) {
+                    SourceInfo previous = sourceInfos.get(i);
+                    DocumentModelList previousEntries = previous.requiredSubDirectoryInfos.get(
+                            0).getSession().getEntries(entries.keySet(), false);
+                    for (String id : completeEntries(previous,
+                            previousEntries, filter, fulltext, true, false).keySet()) {
+                        log.warn(String.format(
+                                "Entry '%s' is present in source '%s' but also in source '%s'. "
+                                        + "The second one will be ignored.",
+                                id, previous.source.name,
+                                sourceInfo.source.name));
+                        entries.remove(id);
+                    }
+                }
+                batch.addAll(entries.values());
+            }
+            return batch.poll();
+        }
+
+        @Override
+        protected void doClose() {
+            batch.clear();
+            driverIterator.close();
+        }
+
+    }
+
+    /**
+     * Merges the streams of the sources, in the order of the given comparator
+     * if any, or one after the other.
+     */
+    protected static class MergedEntryIterator extends AbstractEntryIterator {
+
+        protected final List<SourceEntryIterator> iterators;
+
+        protected final Comparator<DocumentModel> comparator;
+
+        protected final DocumentModel[] heads;
+
+        protected MergedEntryIterator(List<SourceEntryIterator> iterators,
+                Comparator<DocumentModel> comparator) {
+            this.iterators = iterators;
+            this.comparator = comparator;
+            heads = new DocumentModel[iterators.size()];
+        }
+
+        @Override
+        protected DocumentModel fetchNext() {
+            int selected = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] == null && iterators.get(i).hasNext()) {
+                    heads[i] = iterators.get(i).next();
+                }
+                if (heads[i] == null) {
+                    continue;
+                }
+                if (comparator == null) {
+                    selected = i;
+                    break;
+                }
+                if (selected == -1
+                        || comparator.compare(heads[i], heads[selected]) < 0) {
+                    selected = i;
+                }
+            }
+            if (selected == -1) {
+                return null;
+            }
+            DocumentModel entry = heads[selected];
+            heads[selected] = null;
+            return entry;
+        }
+
+        @Override
+        protected void doClose() {
+            for (SourceEntryIterator it : iterators) {
+                it.close();
+            }
+        }
+
+    }
+
     public List<String> getProjection(Map<String, Serializable> filter,
             String columnName) throws ClientException {
         return getProjection(filter, Collections.<String> emptySet(),
@@ -20,6 +20,7 @@
 package org.nuxeo.ecm.directory.multi;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -39,6 +40,7 @@ import org.nuxeo.ecm.core.api.DocumentModelComparator;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.directory.memory.MemoryDirectory;
@@ -93,7 +95,7 @@ public class TestMultiDirectory extends NXRuntimeTestCase {
         // dir 1
         Set<String> schema1Set = new HashSet<String>(
                 Arrays.asList("uid", "foo"));
-        memdir1 = new MemoryDirectory("dir1", "schema1", schema1Set, "uid",
+        memdir1 = newMemoryDirectory("dir1", "schema1", schema1Set, "uid",
                 "foo");
         memoryDirectoryFactory.registerDirectory(memdir1);
 
@@ -109,7 +111,7 @@ public class TestMultiDirectory extends NXRuntimeTestCase {
 
         // dir 2
         Set<String> schema2Set = new HashSet<String>(Arrays.asList("id", "bar"));
-        memdir2 = new MemoryDirectory("dir2", "schema2", schema2Set, "id", null);
+        memdir2 = newMemoryDirectory("dir2", "schema2", schema2Set, "id", null);
         memoryDirectoryFactory.registerDirectory(memdir2);
 
         Session dir2 = memdir2.getSession();
@@ -125,7 +127,7 @@ public class TestMultiDirectory extends NXRuntimeTestCase {
         // dir 3
         Set<String> schema3Set = new HashSet<String>(Arrays.asList("uid",
                 "thefoo", "thebar"));
-        memdir3 = new MemoryDirectory("dir3", "schema3", schema3Set, "uid",
+        memdir3 = newMemoryDirectory("dir3", "schema3", schema3Set, "uid",
                 "thefoo");
         memoryDirectoryFactory.registerDirectory(memdir3);
 
@@ -146,6 +148,13 @@ public class TestMultiDirectory extends NXRuntimeTestCase {
         dir = (MultiDirectorySession) multiDir.getSession();
     }
 
+    protected MemoryDirectory newMemoryDirectory(String name,
+            String schemaName, Set<String> schemaSet, String idField,
+            String passwordField) {
+        return new MemoryDirectory(name, schemaName, schemaSet, idField,
+                passwordField);
+    }
+
     @After
     public void tearDown() throws Exception {
         memoryDirectoryFactory.unregisterDirectory(memdir1);
@@ -178,6 +187,63 @@ public class TestMultiDirectory extends NXRuntimeTestCase {
         assertNull(entry);
     }
 
+    @Test
+    public void testGetEntriesByIds() throws Exception {
+        DocumentModelList l = dir.getEntries(Arrays.asList("4",
+                "no-such-entry", "1", "3"), false);
+        assertEquals(3, l.size());
+        assertEquals("4", l.get(0).getId());
+        assertEquals("foo4", l.get(0).getProperty("schema3", "thefoo"));
+        assertEquals("bar4", l.get(0).getProperty("schema3", "thebar"));
+        assertEquals("1", l.get(1).getId());
+        assertEquals("foo1", l.get(1).getProperty("schema3", "thefoo"));
+        assertEquals("bar1", l.get(1).getProperty("schema3", "thebar"));
+        assertEquals("3", l.get(2).getId());
+        assertEquals("foo3", l.get(2).getProperty("schema3", "thefoo"));
+        assertEquals("bar3", l.get(2).getProperty("schema3", "thebar"));
+    }
+
+    protected static List<String> iterate(MultiDirectorySession session,
+            Map<String, Serializable> filter, Map<String, String> orderBy)
+            throws Exception {
+        List<String> ids = new ArrayList<String>();
+        EntryIterator it = session.iterate(filter, null, orderBy, false);
+        try {
+            while (it.hasNext()) {
+                ids.add(it.next().getId());
+            }
+        } finally {
+            it.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void testIterate() throws Exception {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        Map<String, String> orderBy = new HashMap<String, String>();
+        List<String> ids = iterate(dir, filter, orderBy);
+        assertEquals(4, ids.size());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2", "3", "4")),
+                new HashSet<String>(ids));
+
+        // sources are merged in order
+        orderBy.put("thefoo", "desc");
+        assertEquals(Arrays.asList("4", "3", "2", "1"),
+                iterate(dir, filter, orderBy));
+
+        // filter on the first sub-directory of a source
+        filter.put("thefoo", "foo1");
+        assertEquals(Arrays.asList("1"), iterate(dir, filter, orderBy));
+
+        // filter on another sub-directory of the source
+        filter.clear();
+        filter.put("thebar", "bar2");
+        assertEquals(Arrays.asList("2"), iterate(dir, filter, orderBy));
+        filter.put("thefoo", "foo1");
+        assertEquals(Collections.emptyList(), iterate(dir, filter, orderBy));
+    }
+
     @Test
     public void testGetEntries() throws Exception {
         DocumentModelList l;
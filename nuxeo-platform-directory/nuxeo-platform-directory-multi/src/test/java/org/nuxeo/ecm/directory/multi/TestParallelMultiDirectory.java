@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.multi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.memory.MemoryDirectory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectorySession;
+
+/**
+ * Runs the multi-directory tests with the sub-directories queried in
+ * parallel.
+ */
+public class TestParallelMultiDirectory extends TestMultiDirectory {
+
+    private static final Log log = LogFactory.getLog(TestParallelMultiDirectory.class);
+
+    // pause of each read of the memory directories, in milliseconds
+    static volatile long delay;
+
+    // reads of the memory directories in progress
+    static final AtomicInteger inFlight = new AtomicInteger();
+
+    static final AtomicInteger maxInFlight = new AtomicInteger();
+
+    static final AtomicInteger authenticateCalls = new AtomicInteger();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        multiDir.getDescriptor().parallel = Boolean.TRUE;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        delay = 0;
+        super.tearDown();
+    }
+
+    @Override
+    protected MemoryDirectory newMemoryDirectory(String name,
+            String schemaName, Set<String> schemaSet, String idField,
+            String passwordField) {
+        return new SlowMemoryDirectory(name, schemaName, schemaSet, idField,
+                passwordField);
+    }
+
+    @Test
+    public void testRequiredSubDirectoryTimeout() throws Exception {
+        MultiDirectoryDescriptor descriptor = multiDir.getDescriptor();
+        descriptor.subDirectoryTimeout = Long.valueOf(10);
+        delay = 200;
+        try {
+            dir.getEntry("1");
+            fail("Should raise a timeout error");
+        } catch (DirectoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("timeout"));
+        } finally {
+            descriptor.subDirectoryTimeout = null;
+            delay = 0;
+        }
+        // the session can still be used
+        assertEquals("foo1", dir.getEntry("1").getProperty("schema3", "thefoo"));
+    }
+
+    /**
+     * The sub-directories are called concurrently.
+     */
+    @Test
+    public void testParallelCallsOverlap() throws Exception {
+        delay = 100;
+        try {
+            maxInFlight.set(0);
+            assertEquals("foo1", dir.getEntry("1").getProperty("schema3",
+                    "thefoo"));
+            assertTrue(maxInFlight.get() > 1);
+
+            multiDir.getDescriptor().parallel = Boolean.FALSE;
+            maxInFlight.set(0);
+            assertEquals("foo1", dir.getEntry("1").getProperty("schema3",
+                    "thefoo"));
+            assertEquals(1, maxInFlight.get());
+        } finally {
+            multiDir.getDescriptor().parallel = Boolean.TRUE;
+            delay = 0;
+        }
+    }
+
+    /**
+     * The password is only sent to the sub-directories until one of them
+     * accepts it.
+     */
+    @Test
+    public void testAuthenticateIsSequential() throws Exception {
+        authenticateCalls.set(0);
+        assertTrue(dir.authenticate("1", "foo1"));
+        assertEquals(1, authenticateCalls.get());
+        authenticateCalls.set(0);
+        assertTrue(dir.authenticate("3", "foo3"));
+        assertEquals(2, authenticateCalls.get());
+    }
+
+    /**
+     * Compares the latency of a read with the sub-directories called in
+     * sequence, the sum of their latencies, and in parallel, the maximum of
+     * their latencies.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    public void testBenchmarkLatency() throws Exception {
+        int n = 20;
+        delay = 50;
+        try {
+            long parallel = timeGetEntry(n);
+            multiDir.getDescriptor().parallel = Boolean.FALSE;
+            long sequential = timeGetEntry(n);
+            log.info(String.format("getEntry with %s sub-directories of %sms"
+                    + " each: sequential %sms, parallel %sms", 3, delay,
+                    sequential / n, parallel / n));
+        } finally {
+            multiDir.getDescriptor().parallel = Boolean.TRUE;
+            delay = 0;
+        }
+    }
+
+    protected long timeGetEntry(int n) throws Exception {
+        // warm up
+        dir.getEntry("1");
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            dir.getEntry(i % 2 == 0 ? "1" : "3");
+        }
+        return System.currentTimeMillis() - t0;
+    }
+
+    protected static void pause() throws DirectoryException {
+        long millis = delay;
+        if (millis <= 0) {
+            return;
+        }
+        int current = inFlight.incrementAndGet();
+        try {
+            for (;;) {
+                int max = maxInFlight.get();
+                if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                    break;
+                }
+            }
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Memory directory simulating a remote server.
+     */
+    static class SlowMemoryDirectory extends MemoryDirectory {
+
+        SlowMemoryDirectory(String name, String schemaName,
+                Set<String> schemaSet, String idField, String passwordField) {
+            super(name, schemaName, schemaSet, idField, passwordField);
+        }
+
+        @Override
+        public Session getSession() {
+            if (session == null) {
+                session = new SlowMemoryDirectorySession(this);
+            }
+            addSession(session);
+            return session;
+        }
+    }
+
+    static class SlowMemoryDirectorySession extends MemoryDirectorySession {
+
+        SlowMemoryDirectorySession(MemoryDirectory directory) {
+            super(directory);
+        }
+
+        @Override
+        public boolean authenticate(String username, String password)
+                throws DirectoryException {
+            authenticateCalls.incrementAndGet();
+            pause();
+            return super.authenticate(username, password);
+        }
+
+        @Override
+        public DocumentModel getEntry(String id, boolean fetchReferences)
+                throws DirectoryException {
+            pause();
+            return super.getEntry(id, fetchReferences);
+        }
+
+        @Override
+        public DocumentModelList query(Map<String, Serializable> filter,
+                Set<String> fulltext, Map<String, String> orderBy,
+                boolean fetchReferences) throws DirectoryException {
+            pause();
+            return super.query(filter, fulltext, orderBy, fetchReferences);
+        }
+    }
+
+}
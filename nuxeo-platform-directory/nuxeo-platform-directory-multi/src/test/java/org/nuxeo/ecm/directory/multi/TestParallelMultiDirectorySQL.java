@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.multi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.storage.sql.DatabaseHelper;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+/**
+ * Runs a parallel multi-directory over SQL sub-directories, whose sessions
+ * are opened by the executor threads.
+ */
+public class TestParallelMultiDirectorySQL extends NXRuntimeTestCase {
+
+    private static final String TEST_BUNDLE = "org.nuxeo.ecm.directory.multi.tests";
+
+    protected Session dir;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployBundle("org.nuxeo.ecm.core.api");
+        deployBundle("org.nuxeo.ecm.core");
+        deployBundle("org.nuxeo.ecm.directory");
+        deployBundle("org.nuxeo.ecm.directory.sql");
+        deployBundle("org.nuxeo.ecm.directory.multi");
+        deployContrib(TEST_BUNDLE, "schemas-config.xml");
+        DatabaseHelper.DATABASE.setUp();
+        deployContrib(TEST_BUNDLE, "sql-directories-config.xml");
+        dir = Framework.getLocalService(DirectoryService.class).open(
+                "sqlmulti");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dir.close();
+        DatabaseHelper.DATABASE.tearDown();
+        super.tearDown();
+    }
+
+    @Test
+    public void testGetEntry() throws Exception {
+        DocumentModel entry = dir.getEntry("1");
+        assertNotNull(entry);
+        assertEquals("foo1", entry.getProperty("schema3", "thefoo"));
+        assertEquals("bar1", entry.getProperty("schema3", "thebar"));
+        assertNull(dir.getEntry("3"));
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        assertEquals(2, dir.query(filter).size());
+        filter.put("thebar", "bar2");
+        assertEquals(1, dir.query(filter).size());
+    }
+
+    @Test
+    public void testAuthenticate() throws Exception {
+        assertTrue(dir.authenticate("1", "foo1"));
+        assertFalse(dir.authenticate("1", "foo2"));
+        assertFalse(dir.authenticate("3", "foo3"));
+    }
+
+    /**
+     * Entries written through the session of the caller are read by the
+     * sessions of the executor threads.
+     */
+    @Test
+    public void testCreateThenRead() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("uid", "3");
+        map.put("thefoo", "foo3");
+        map.put("thebar", "bar3");
+        dir.createEntry(map);
+        DocumentModel entry = dir.getEntry("3");
+        assertNotNull(entry);
+        assertEquals("foo3", entry.getProperty("schema3", "thefoo"));
+        assertEquals("bar3", entry.getProperty("schema3", "thebar"));
+        assertTrue(dir.authenticate("3", "foo3"));
+    }
+
+}
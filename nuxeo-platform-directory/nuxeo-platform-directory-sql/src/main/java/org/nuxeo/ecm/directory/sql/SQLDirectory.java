@@ -43,6 +43,7 @@ import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.DirectoryServiceImpl;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.runtime.RuntimeService;
@@ -51,6 +52,9 @@ import org.nuxeo.runtime.api.DataSourceHelper;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.transaction.TransactionHelper;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
 public class SQLDirectory extends AbstractDirectory {
 
     protected class TxSessionCleaner implements Synchronization {
@@ -117,6 +121,21 @@ public class SQLDirectory extends AbstractDirectory {
      */
     public static final int MAX_CONNECTION_TRIES = 5;
 
+    /**
+     * Maximum number of generated SQL statements kept by a directory.
+     *
+     * @since 5.7.3
+     */
+    public static final int MAX_STATEMENT_PLANS = 256;
+
+    // values passed to the dialect to find the placeholders of its paging
+    // clause
+    private static final String PAGING_PROBE = "SELECT * FROM T";
+
+    private static final long PAGING_LIMIT_MARKER = 987654321L;
+
+    private static final long PAGING_OFFSET_MARKER = 987654322L;
+
     private final SQLDirectoryDescriptor config;
 
     private final boolean nativeCase;
@@ -135,9 +154,34 @@ public class SQLDirectory extends AbstractDirectory {
 
     private final Dialect dialect;
 
+    // generated SQL statements, keyed by query shape
+    protected final SegmentedLRUCache<String, String> statementPlans;
+
+    protected final Counter statementHits;
+
+    protected final Counter statementMisses;
+
+    // JDBC batches executed to update links
+    protected final Counter linkBatches;
+
+    // paging clause of the dialect with ? placeholders, or null if the limit
+    // and offset have to be inlined
+    private String pagingClause;
+
+    private boolean pagingLimitFirst;
+
     public SQLDirectory(SQLDirectoryDescriptor config) throws ClientException {
         super(config.name);
         this.config = config;
+        statementPlans = new SegmentedLRUCache<String, String>(
+                MAX_STATEMENT_PLANS, 0, registry, MetricRegistry.name("nuxeo",
+                        "directories", name, "sql", "plans"));
+        statementHits = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "sql", "statements", "hits"));
+        statementMisses = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "sql", "statements", "misses"));
+        linkBatches = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "sql", "links", "batches"));
         nativeCase = Boolean.TRUE.equals(config.nativeCase);
 
         // register the references to other directories
@@ -147,10 +191,12 @@ public class SQLDirectory extends AbstractDirectory {
         // cache parameterization
         cache.setMaxSize(config.getCacheMaxSize());
         cache.setTimeout(config.getCacheTimeout());
+        cache.setQueryMaxSize(config.getQueryCacheMaxSize());
 
         Connection sqlConnection = getConnection();
         try {
             dialect = Dialect.createDialect(sqlConnection, null, null);
+            initPagingClause();
 
             if (config.initDependencies != null) {
                 // initialize dependent directories first
@@ -216,6 +262,8 @@ public class SQLDirectory extends AbstractDirectory {
                     config.dataFileName,
                     config.getDataFileCharacterSeparator(),
                     config.createTablePolicy);
+            helper.setBatchSize(config.getDataFileBatchSize());
+            helper.setSkipUnchangedDataFile(config.isSkipUnchangedDataFile());
             helper.setupTable();
 
             try {
@@ -394,6 +442,84 @@ public class SQLDirectory extends AbstractDirectory {
         return dialect;
     }
 
+    /**
+     * Returns the SQL statement for the given query shape, generating it with
+     * the given generator the first time the shape is seen.
+     *
+     * @since 5.7.3
+     */
+    public String getStatementPlan(String shape,
+            SegmentedLRUCache.Loader<String, String> generator)
+            throws DirectoryException {
+        return statementPlans.get(shape, generator);
+    }
+
+    /**
+     * Finds out whether the dialect simply appends a paging clause to the
+     * query, in which case the limit and offset can be bound as parameters.
+     * Dialects that wrap the query or compute other values from the limit and
+     * offset get them inlined.
+     */
+    protected void initPagingClause() {
+        if (!dialect.supportsPaging()) {
+            return;
+        }
+        String dialectName = dialect.getClass().getSimpleName();
+        String sql;
+        try {
+            sql = dialect.addPagingClause(PAGING_PROBE, PAGING_LIMIT_MARKER,
+                    PAGING_OFFSET_MARKER);
+        } catch (RuntimeException e) {
+            log.warn(String.format("Directory '%s': cannot get the paging "
+                    + "clause of %s, limit and offset will be inlined",
+                    getName(), dialectName), e);
+            return;
+        }
+        if (!sql.startsWith(PAGING_PROBE)) {
+            log.debug(String.format("Directory '%s': %s wraps paged queries, "
+                    + "limit and offset will be inlined", getName(),
+                    dialectName));
+            return;
+        }
+        String clause = sql.substring(PAGING_PROBE.length());
+        String limit = String.valueOf(PAGING_LIMIT_MARKER);
+        String offset = String.valueOf(PAGING_OFFSET_MARKER);
+        int limitIndex = clause.indexOf(limit);
+        int offsetIndex = clause.indexOf(offset);
+        if (limitIndex < 0 || offsetIndex < 0
+                || clause.indexOf(limit, limitIndex + 1) >= 0
+                || clause.indexOf(offset, offsetIndex + 1) >= 0
+                || clause.indexOf('?') >= 0) {
+            log.info(String.format("Directory '%s': limit and offset not "
+                    + "found in the paging clause '%s' of %s, they will be "
+                    + "inlined", getName(), clause, dialectName));
+            return;
+        }
+        pagingLimitFirst = limitIndex < offsetIndex;
+        pagingClause = clause.replace(limit, "?").replace(offset, "?");
+    }
+
+    /**
+     * Returns the paging clause to append to a query, with {@code ?}
+     * placeholders for the limit and offset, or {@code null} if the dialect
+     * requires them to be inlined.
+     *
+     * @since 5.7.3
+     */
+    public String getPagingClause() {
+        return pagingClause;
+    }
+
+    /**
+     * Tells whether the limit comes before the offset in the
+     * {@link #getPagingClause paging clause}.
+     *
+     * @since 5.7.3
+     */
+    public boolean isPagingLimitFirst() {
+        return pagingLimitFirst;
+    }
+
     public boolean useNativeCase() {
         return nativeCase;
     }
@@ -88,6 +88,23 @@ public class SQLDirectoryDescriptor {
 
     public String createTablePolicy;
 
+    /**
+     * Number of rows inserted per JDBC batch when loading the data file.
+     *
+     * @since 5.7.3
+     */
+    @XNode("dataFileBatchSize")
+    public Integer dataFileBatchSize;
+
+    /**
+     * Do not recreate and reload the table if the data file did not change
+     * since its last load.
+     *
+     * @since 5.7.3
+     */
+    @XNode("skipUnchangedDataFile")
+    public Boolean skipUnchangedDataFile;
+
     public SubstringMatchType substringMatchType;
 
     @XNode("autoincrementIdField")
@@ -120,6 +137,12 @@ public class SQLDirectoryDescriptor {
     @XNode("cacheMaxSize")
     public int cacheMaxSize = 0;
 
+    /**
+     * @since 5.7.3
+     */
+    @XNode("queryCacheMaxSize")
+    public int queryCacheMaxSize = 0;
+
     @XNodeList(value = "filters/staticFilter", type = SQLStaticFilter[].class, componentType = SQLStaticFilter.class)
     private SQLStaticFilter[] staticFilters;
 
@@ -226,6 +249,21 @@ public class SQLDirectoryDescriptor {
         return idField;
     }
 
+    /**
+     * @since 5.7.3
+     */
+    public int getDataFileBatchSize() {
+        return dataFileBatchSize == null ? SQLHelper.DEFAULT_BATCH_SIZE
+                : dataFileBatchSize.intValue();
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    public boolean isSkipUnchangedDataFile() {
+        return Boolean.TRUE.equals(skipUnchangedDataFile);
+    }
+
     public String getCreateTablePolicy() {
         return createTablePolicy;
     }
@@ -344,6 +382,13 @@ public class SQLDirectoryDescriptor {
         return cacheMaxSize;
     }
 
+    /**
+     * @since 5.7.3
+     */
+    public int getQueryCacheMaxSize() {
+        return queryCacheMaxSize;
+    }
+
     public SubstringMatchType getSubstringMatchType() {
         return substringMatchType == null ? SubstringMatchType.subinitial
                 : substringMatchType;
@@ -420,6 +465,12 @@ public class SQLDirectoryDescriptor {
         if (other.createTablePolicy != null || overwite) {
             createTablePolicy = other.createTablePolicy;
         }
+        if (other.dataFileBatchSize != null || overwite) {
+            dataFileBatchSize = other.dataFileBatchSize;
+        }
+        if (other.skipUnchangedDataFile != null || overwite) {
+            skipUnchangedDataFile = other.skipUnchangedDataFile;
+        }
         if (other.substringMatchType != null || overwite) {
             substringMatchType = other.substringMatchType;
         }
@@ -453,6 +504,7 @@ public class SQLDirectoryDescriptor {
         if (overwite) {
             cacheTimeout = other.cacheTimeout;
             cacheMaxSize = other.cacheMaxSize;
+            queryCacheMaxSize = other.queryCacheMaxSize;
         }
         if ((other.staticFilters != null && other.staticFilters.length != 0)
                 || overwite) {
@@ -483,6 +535,8 @@ public class SQLDirectoryDescriptor {
         clone.dataFileName = dataFileName;
         clone.dataFileCharacterSeparator = dataFileCharacterSeparator;
         clone.createTablePolicy = createTablePolicy;
+        clone.dataFileBatchSize = dataFileBatchSize;
+        clone.skipUnchangedDataFile = skipUnchangedDataFile;
         clone.substringMatchType = substringMatchType;
         clone.autoincrementIdField = autoincrementIdField;
         clone.readOnly = readOnly;
@@ -504,6 +558,7 @@ public class SQLDirectoryDescriptor {
         clone.remove = remove;
         clone.cacheTimeout = cacheTimeout;
         clone.cacheMaxSize = cacheMaxSize;
+        clone.queryCacheMaxSize = queryCacheMaxSize;
         if (staticFilters != null) {
             clone.staticFilters = new SQLStaticFilter[staticFilters.length];
             for (int i = 0; i < staticFilters.length; i++) {
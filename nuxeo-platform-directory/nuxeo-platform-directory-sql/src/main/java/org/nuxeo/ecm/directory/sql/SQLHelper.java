@@ -21,6 +21,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -29,7 +31,9 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.List;
@@ -42,15 +46,24 @@ import org.nuxeo.ecm.core.storage.sql.ColumnSpec;
 import org.nuxeo.ecm.core.storage.sql.ColumnType;
 import org.nuxeo.ecm.core.storage.sql.jdbc.JDBCLogger;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Column;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Delete;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Insert;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Select;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.TableImpl;
 import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
 
 import au.com.bytecode.opencsv.CSVReader;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
 public class SQLHelper {
 
     private static final Log log = LogFactory.getLog(SQLHelper.class);
@@ -61,6 +74,39 @@ public class SQLHelper {
 
     private static final Object DIRECTORY_INIT_LOCK = new Object();
 
+    /**
+     * Default number of rows sent to the database in one JDBC batch when
+     * loading a data file.
+     *
+     * @since 5.7.3
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * Table recording the checksum of the data file last loaded into each
+     * table, used to skip unchanged data files.
+     *
+     * @since 5.7.3
+     */
+    public static final String DATA_FILES_TABLE = "directory_datafiles";
+
+    protected static final String DATA_FILES_TABLE_COL = "tablename";
+
+    protected static final String DATA_FILES_CHECKSUM_COL = "checksum";
+
+    private static final String CHECKSUM_ALGORITHM = "SHA-1";
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected static final Timer loadsTimer = registry.timer(MetricRegistry.name(
+            "nuxeo", "directories", "dataload", "loads"));
+
+    protected static final Meter rowsMeter = registry.meter(MetricRegistry.name(
+            "nuxeo", "directories", "dataload", "rows"));
+
+    protected static final Counter skippedCounter = registry.counter(MetricRegistry.name(
+            "nuxeo", "directories", "dataload", "skipped"));
+
     private final Table table;
 
     private final String tableName;
@@ -73,6 +119,10 @@ public class SQLHelper {
 
     protected final char characterSeparator;
 
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    protected boolean skipUnchangedDataFile;
+
     private JDBCLogger logger = new JDBCLogger("SQLDirectory");
 
     public SQLHelper(Connection connection, Table table, String dataFileName,
@@ -90,6 +140,28 @@ public class SQLHelper {
         this(connection, table, dataFileName, ',', policy);
     }
 
+    /**
+     * Sets the number of rows inserted per JDBC batch when loading the data
+     * file, 1 or less to insert rows one by one.
+     *
+     * @since 5.7.3
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * When set, a table is not recreated and reloaded if its data file did
+     * not change since the last load, as recorded in the
+     * {@link #DATA_FILES_TABLE} table. Rows changed in the table since then
+     * are therefore kept.
+     *
+     * @since 5.7.3
+     */
+    public void setSkipUnchangedDataFile(boolean skipUnchangedDataFile) {
+        this.skipUnchangedDataFile = skipUnchangedDataFile;
+    }
+
     public boolean setupTable() throws DirectoryException {
         log.debug(String.format("setting up table '%s', policy='%s'",
                 tableName, policy));
@@ -115,6 +187,19 @@ public class SQLHelper {
                 }
             }
 
+            String checksum = null;
+            if (skipUnchangedDataFile && dataFileName != null) {
+                checksum = getDataFileChecksum();
+                if (tableExists && checksum.equals(getLoadedChecksum())
+                        && hasMatchingColumns()) {
+                    log.debug(String.format(
+                            "Table '%s': data file %s unchanged, skipping sql setup",
+                            tableName, dataFileName));
+                    skippedCounter.inc();
+                    return false;
+                }
+            }
+
             createTable(tableExists);
 
             if (dataFileName == null) {
@@ -125,6 +210,10 @@ public class SQLHelper {
             }
 
             loadData();
+
+            if (checksum != null) {
+                setLoadedChecksum(checksum);
+            }
         }
 
         return true;
@@ -289,22 +378,31 @@ public class SQLHelper {
         return buffer.toString();
     }
 
+    private InputStream openDataFile() throws DirectoryException {
+        InputStream is = getClass().getClassLoader().getResourceAsStream(
+                dataFileName);
+        if (is == null) {
+            is = Framework.getResourceLoader().getResourceAsStream(
+                    dataFileName);
+            if (is == null) {
+                throw new DirectoryException("data file not found: "
+                        + dataFileName);
+            }
+        }
+        return is;
+    }
+
     private void loadData() throws DirectoryException {
         log.debug("loading data file: " + dataFileName);
         CSVReader csvReader = null;
         String[] columnValues = null;
         PreparedStatement ps = null;
+        int batched = 0;
+        long rows = 0;
+        long start = System.nanoTime();
+        Timer.Context context = loadsTimer.time();
         try {
-            InputStream is = getClass().getClassLoader().getResourceAsStream(
-                    dataFileName);
-            if (is == null) {
-                is = Framework.getResourceLoader().getResourceAsStream(
-                        dataFileName);
-                if (is == null) {
-                    throw new DirectoryException("data file not found: "
-                            + dataFileName);
-                }
-            }
+            InputStream is = openDataFile();
 
             csvReader = new CSVReader(new InputStreamReader(is,
                     SQL_SCRIPT_CHARSET), characterSeparator);
@@ -414,17 +512,39 @@ public class SQLHelper {
                     }
                     column.setToPreparedStatement(ps, i + 1, v);
                 }
-                ps.execute();
+                if (batchSize > 1) {
+                    ps.addBatch();
+                    if (++batched == batchSize) {
+                        ps.executeBatch();
+                        batched = 0;
+                    }
+                } else {
+                    ps.execute();
+                }
+                rows++;
+            }
+            if (batched > 0) {
+                ps.executeBatch();
+                batched = 0;
+            }
+            rowsMeter.mark(rows);
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "Table '%s': loaded %d rows from %s in %d ms",
+                        tableName, Long.valueOf(rows), dataFileName,
+                        Long.valueOf((System.nanoTime() - start) / 1000000)));
             }
         } catch (IOException e) {
             throw new DirectoryException("Read error while reading data file: "
                     + dataFileName, e);
         } catch (SQLException e) {
+            // with batches the failing row may be any of the last ones read
             throw new DirectoryException(String.format(
                     "Table '%s' initialization failed: %s, values: %s",
                     table.getPhysicalName(), e.getMessage(),
                     formatColumnValues(columnValues)), e);
         } finally {
+            context.stop();
             try {
                 if (csvReader != null) {
                     csvReader.close();
@@ -441,6 +561,127 @@ public class SQLHelper {
         }
     }
 
+    /**
+     * Computes the checksum of the data file content and separator.
+     */
+    private String getDataFileChecksum() throws DirectoryException {
+        InputStream is = openDataFile();
+        try {
+            MessageDigest digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+            }
+            digest.update((byte) characterSeparator);
+            StringBuilder buffer = new StringBuilder();
+            for (byte b : digest.digest()) {
+                buffer.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+            }
+            return buffer.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new DirectoryException(e);
+        } catch (IOException e) {
+            throw new DirectoryException("Read error while reading data file: "
+                    + dataFileName, e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                log.warn("Error closing data file: " + dataFileName, e);
+            }
+        }
+    }
+
+    private Table getDataFilesTable() throws DirectoryException {
+        Table dataFilesTable = addTable(DATA_FILES_TABLE, table.getDialect(),
+                false);
+        addColumn(dataFilesTable, DATA_FILES_TABLE_COL, ColumnType.STRING,
+                false);
+        addColumn(dataFilesTable, DATA_FILES_CHECKSUM_COL, ColumnType.STRING,
+                false);
+        new SQLHelper(connection, dataFilesTable, null, "on_missing_columns").setupTable();
+        return dataFilesTable;
+    }
+
+    /**
+     * Returns the checksum of the data file last loaded into the table, or
+     * {@code null} if unknown.
+     */
+    private String getLoadedChecksum() throws DirectoryException {
+        Table dataFilesTable = getDataFilesTable();
+        Select select = new Select(dataFilesTable);
+        select.setWhat(dataFilesTable.getColumn(DATA_FILES_CHECKSUM_COL).getQuotedName());
+        select.setFrom(dataFilesTable.getQuotedName());
+        select.setWhere(dataFilesTable.getColumn(DATA_FILES_TABLE_COL).getQuotedName()
+                + " = ?");
+        String sql = select.getStatement();
+        if (logger.isLogEnabled()) {
+            logger.logSQL(sql, Collections.<Serializable> singletonList(tableName));
+        }
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, tableName);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException e) {
+            throw new DirectoryException(String.format(
+                    "Table '%s' data file checksum lookup failed: %s",
+                    tableName, e.getMessage()), e);
+        } finally {
+            closeStatement(ps);
+        }
+    }
+
+    private void setLoadedChecksum(String checksum) throws DirectoryException {
+        Table dataFilesTable = getDataFilesTable();
+        Column tableColumn = dataFilesTable.getColumn(DATA_FILES_TABLE_COL);
+        Delete delete = new Delete(dataFilesTable);
+        delete.setWhere(tableColumn.getQuotedName() + " = ?");
+        Insert insert = new Insert(dataFilesTable);
+        insert.addColumn(tableColumn);
+        insert.addColumn(dataFilesTable.getColumn(DATA_FILES_CHECKSUM_COL));
+        PreparedStatement ps = null;
+        try {
+            String sql = delete.getStatement();
+            if (logger.isLogEnabled()) {
+                logger.logSQL(sql,
+                        Collections.<Serializable> singletonList(tableName));
+            }
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, tableName);
+            ps.execute();
+            ps.close();
+            sql = insert.getStatement();
+            if (logger.isLogEnabled()) {
+                logger.logSQL(sql,
+                        Arrays.<Serializable> asList(tableName, checksum));
+            }
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, tableName);
+            ps.setString(2, checksum);
+            ps.execute();
+        } catch (SQLException e) {
+            throw new DirectoryException(String.format(
+                    "Table '%s' data file checksum update failed: %s",
+                    tableName, e.getMessage()), e);
+        } finally {
+            closeStatement(ps);
+        }
+    }
+
+    private static void closeStatement(Statement st) {
+        if (st == null) {
+            return;
+        }
+        try {
+            st.close();
+        } catch (SQLException e) {
+            log.warn("Error while trying to close statement", e);
+        }
+    }
+
     public static Table addTable(String name, Dialect dialect,
             boolean nativeCase) {
         String physicalName = dialect.getTableName(name);
@@ -26,6 +26,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -35,6 +36,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -58,24 +60,46 @@ import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Update;
 import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
 import org.nuxeo.ecm.core.utils.SIDGenerator;
+import org.nuxeo.ecm.directory.AbstractEntryIterator;
+import org.nuxeo.ecm.directory.AbstractReference;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.EntrySource;
 import org.nuxeo.ecm.directory.OperationNotAllowedException;
+import org.nuxeo.ecm.directory.QuerySource;
 import org.nuxeo.ecm.directory.Reference;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 import org.nuxeo.ecm.directory.SizeLimitExceededException;
 import org.nuxeo.ecm.directory.sql.filter.SQLComplexFilter;
 
 /**
  * This class represents a session against an SQLDirectory.
  */
-public class SQLSession extends BaseSession implements EntrySource {
+public class SQLSession extends BaseSession implements EntrySource,
+        QuerySource {
 
     private static final String READ_ONLY_VOCABULARY_WARN = "This SQLDirectory is ReadOnly, you are not allowed to modify it.";
 
     private static final Log log = LogFactory.getLog(SQLSession.class);
 
+    /**
+     * Maximum number of ids in the IN clause of a bulk fetch.
+     */
+    protected static final int GET_ENTRIES_BATCH_SIZE = 100;
+
+    /**
+     * Maximum number of prepared statements kept open by a session.
+     */
+    protected static final int MAX_CACHED_STATEMENTS = 32;
+
+    /**
+     * JDBC fetch size, and size of the batches of entries whose references
+     * are fetched together, when iterating over query results.
+     */
+    protected static final int ITERATE_FETCH_SIZE = 500;
+
     protected final Map<String, Field> schemaFieldMap;
 
     protected final List<String> storedFieldNames;
@@ -114,6 +138,24 @@ public class SQLSession extends BaseSession implements EntrySource {
 
     protected JDBCLogger logger = new JDBCLogger("SQLDirectory");;
 
+    // prepared statements of statementsConnection, keyed by SQL, least
+    // recently used first
+    @SuppressWarnings("serial")
+    protected final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= MAX_CACHED_STATEMENTS) {
+                return false;
+            }
+            closeStatement(eldest.getValue());
+            return true;
+        }
+    };
+
+    protected Connection statementsConnection;
+
     public SQLSession(SQLDirectory directory, SQLDirectoryDescriptor config,
             boolean managedSQLSession) throws DirectoryException {
         this.directory = directory;
@@ -150,6 +192,74 @@ public class SQLSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Returns a prepared statement for the given SQL on the current
+     * connection, reusing the one prepared by a previous call if any. To be
+     * released with {@link #releaseStatement}.
+     *
+     * @since 5.7.3
+     */
+    protected PreparedStatement prepareStatement(String sql)
+            throws SQLException {
+        if (statementsConnection != sqlConnection) {
+            closeStatements();
+            statementsConnection = sqlConnection;
+        }
+        PreparedStatement ps = statements.get(sql);
+        if (ps != null) {
+            directory.statementHits.inc();
+            ps.clearParameters();
+            return ps;
+        }
+        directory.statementMisses.inc();
+        ps = sqlConnection.prepareStatement(sql);
+        statements.put(sql, ps);
+        return ps;
+    }
+
+    /**
+     * Closes the statement unless it is kept for reuse.
+     *
+     * @since 5.7.3
+     */
+    protected void releaseStatement(PreparedStatement ps) throws SQLException {
+        if (ps != null && !statements.containsValue(ps)) {
+            ps.close();
+        }
+    }
+
+    protected void closeStatements() {
+        for (PreparedStatement ps : statements.values()) {
+            closeStatement(ps);
+        }
+        statements.clear();
+        statementsConnection = null;
+    }
+
+    protected static void closeStatement(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            log.debug("Cannot close statement", e);
+        }
+    }
+
+    /**
+     * Closes a result set, as cached statements are not closed after use.
+     *
+     * @since 5.7.3
+     */
+    protected static void closeResultSet(ResultSet rs) {
+        if (rs == null) {
+            return;
+        }
+        try {
+            rs.close();
+        } catch (SQLException e) {
+            log.debug("Cannot close result set", e);
+        }
+    }
+
     private void acquireConnection() throws DirectoryException {
         try {
             if (sqlConnection == null || sqlConnection.isClosed()) {
@@ -305,6 +415,12 @@ public class SQLSession extends BaseSession implements EntrySource {
         return directory.getCache().getEntry(id, this, fetchReferences);
     }
 
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException {
+        return directory.getCache().getEntries(ids, this, fetchReferences);
+    }
+
     protected String addFilterWhereClause(String whereClause)
             throws DirectoryException {
         if (staticFilters.length == 0) {
@@ -351,17 +467,21 @@ public class SQLSession extends BaseSession implements EntrySource {
     public DocumentModel getEntryFromSource(String id, boolean fetchReferences)
             throws DirectoryException {
         acquireConnection();
-        // String sql = String.format("SELECT * FROM %s WHERE %s = ?",
-        // tableName, idField);
-        Select select = new Select(table);
-        select.setFrom(table.getQuotedName());
-        select.setWhat("*");
-
-        String whereClause = table.getPrimaryColumn().getQuotedName() + " = ?";
-        whereClause = addFilterWhereClause(whereClause);
-
-        select.setWhere(whereClause);
-        String sql = select.getStatement();
+        String sql = directory.getStatementPlan("getEntry",
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        // String sql = String.format("SELECT * FROM %s WHERE
+                        // %s = ?", tableName, idField);
+                        Select select = new Select(table);
+                        select.setFrom(table.getQuotedName());
+                        select.setWhat("*");
+                        String whereClause = table.getPrimaryColumn().getQuotedName()
+                                + " = ?";
+                        select.setWhere(addFilterWhereClause(whereClause));
+                        return select.getStatement();
+                    }
+                });
 
         if (logger.isLogEnabled()) {
             List<Serializable> values = new ArrayList<Serializable>();
@@ -371,12 +491,13 @@ public class SQLSession extends BaseSession implements EntrySource {
         }
 
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            ps = sqlConnection.prepareStatement(sql);
+            ps = prepareStatement(sql);
             setFieldValue(ps, 1, table.getPrimaryColumn(), id);
             addFilterValues(ps, 2);
 
-            ResultSet rs = ps.executeQuery();
+            rs = ps.executeQuery();
             if (!rs.next()) {
                 return null;
             }
@@ -388,48 +509,189 @@ public class SQLSession extends BaseSession implements EntrySource {
                 fieldMap.put(fieldName, value);
             }
 
-            if (isMultiTenant()) {
-                // check that the entry is from the current tenant, or no tenant
-                // at all
-                String tenantId = getCurrentTenantId();
-                if (!StringUtils.isBlank(tenantId)) {
-                    String entryTenantId = (String) fieldMap.get(TENANT_ID_FIELD);
-                    if (!StringUtils.isBlank(entryTenantId)) {
-                        if (!entryTenantId.equals(tenantId)) {
-                            return null;
-                        }
-                    }
-                }
+            if (!isFromCurrentTenant(fieldMap)) {
+                return null;
             }
 
             DocumentModel entry = fieldMapToDocumentModel(fieldMap);
 
             // fetch the reference fields
             if (fetchReferences) {
-                for (Reference reference : directory.getReferences()) {
-                    List<String> targetIds = reference.getTargetIdsForSource(entry.getId());
-                    try {
-                        entry.setProperty(schemaName, reference.getFieldName(),
-                                targetIds);
-                    } catch (ClientException e) {
-                        throw new DirectoryException(e);
-                    }
-                }
+                fetchReferences(Collections.singletonList(entry));
             }
             return entry;
         } catch (SQLException e) {
             throw new DirectoryException("getEntry failed", e);
         } finally {
+            closeResultSet(rs);
             try {
-                if (ps != null) {
-                    ps.close();
+                releaseStatement(ps);
+            } catch (SQLException sqle) {
+                throw new DirectoryException(sqle);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, DocumentModel> getEntriesFromSource(
+            Collection<String> ids, boolean fetchReferences)
+            throws DirectoryException {
+        acquireConnection();
+        Map<String, DocumentModel> entries = new HashMap<String, DocumentModel>();
+        List<String> batch = new ArrayList<String>(GET_ENTRIES_BATCH_SIZE);
+        for (String id : ids) {
+            batch.add(id);
+            if (batch.size() == GET_ENTRIES_BATCH_SIZE) {
+                getEntriesBatchFromSource(batch, entries);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            getEntriesBatchFromSource(batch, entries);
+        }
+        if (fetchReferences) {
+            fetchReferences(entries.values());
+        }
+        return entries;
+    }
+
+    /**
+     * Fetches the entries with the given ids using a single IN query, without
+     * their references.
+     */
+    protected void getEntriesBatchFromSource(final List<String> ids,
+            Map<String, DocumentModel> entries) throws DirectoryException {
+        String sql = directory.getStatementPlan("getEntries:" + ids.size(),
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Select select = new Select(table);
+                        select.setFrom(table.getQuotedName());
+                        select.setWhat("*");
+                        StringBuilder whereClause = new StringBuilder();
+                        whereClause.append(
+                                table.getPrimaryColumn().getQuotedName()).append(
+                                " IN (");
+                        for (int i = 0; i < ids.size(); i++) {
+                            whereClause.append(i == 0 ? "?" : ", ?");
+                        }
+                        whereClause.append(')');
+                        select.setWhere(addFilterWhereClause(whereClause.toString()));
+                        return select.getStatement();
+                    }
+                });
+
+        if (logger.isLogEnabled()) {
+            List<Serializable> values = new ArrayList<Serializable>(ids);
+            addFilterValuesForLog(values);
+            logger.logSQL(sql, values);
+        }
+
+        // the database may compare ids case-insensitively
+        Map<String, String> requestedIds = new TreeMap<String, String>(
+                String.CASE_INSENSITIVE_ORDER);
+        for (String id : ids) {
+            requestedIds.put(id, id);
+        }
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = prepareStatement(sql);
+            int index = 1;
+            for (String id : ids) {
+                setFieldValue(ps, index++, table.getPrimaryColumn(), id);
+            }
+            addFilterValues(ps, index);
+
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                Map<String, Object> fieldMap = new HashMap<String, Object>();
+                for (String fieldName : storedFieldNames) {
+                    Object value = getFieldValue(rs, fieldName);
+                    fieldMap.put(fieldName, value);
                 }
+                if (!isFromCurrentTenant(fieldMap)) {
+                    continue;
+                }
+                DocumentModel entry = fieldMapToDocumentModel(fieldMap);
+                String id = entry.getId();
+                if (!ids.contains(id)) {
+                    id = requestedIds.get(id);
+                }
+                if (id != null) {
+                    entries.put(id, entry);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DirectoryException("getEntries failed", e);
+        } finally {
+            closeResultSet(rs);
+            try {
+                releaseStatement(ps);
             } catch (SQLException sqle) {
                 throw new DirectoryException(sqle);
             }
         }
     }
 
+    /**
+     * Checks that the entry is from the current tenant, or from no tenant at
+     * all.
+     */
+    protected boolean isFromCurrentTenant(Map<String, Object> fieldMap) {
+        if (!isMultiTenant()) {
+            return true;
+        }
+        String tenantId = getCurrentTenantId();
+        if (StringUtils.isBlank(tenantId)) {
+            return true;
+        }
+        String entryTenantId = (String) fieldMap.get(TENANT_ID_FIELD);
+        return StringUtils.isBlank(entryTenantId)
+                || entryTenantId.equals(tenantId);
+    }
+
+    /**
+     * Fills the reference fields of the given entries, with one bulk lookup
+     * per reference instead of one per entry and reference.
+     *
+     * @since 5.7.3
+     */
+    protected void fetchReferences(Collection<DocumentModel> entries)
+            throws DirectoryException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<String>(entries.size());
+        for (DocumentModel entry : entries) {
+            ids.add(entry.getId());
+        }
+        for (Reference reference : directory.getReferences()) {
+            Map<String, List<String>> targetIds;
+            if (reference instanceof AbstractReference) {
+                targetIds = ((AbstractReference) reference).getTargetIdsForSources(ids);
+            } else {
+                targetIds = new HashMap<String, List<String>>();
+                for (String id : ids) {
+                    targetIds.put(id, reference.getTargetIdsForSource(id));
+                }
+            }
+            for (DocumentModel entry : entries) {
+                List<String> values = targetIds.get(entry.getId());
+                if (values == null) {
+                    values = Collections.emptyList();
+                }
+                try {
+                    entry.setProperty(schemaName, reference.getFieldName(),
+                            values);
+                } catch (ClientException e) {
+                    throw new DirectoryException(e);
+                }
+            }
+        }
+    }
+
     @Override
     public DocumentModelList getEntries() throws ClientException {
         Map<String, Serializable> emptyMap = Collections.emptyMap();
@@ -553,7 +815,12 @@ public class SQLSession extends BaseSession implements EntrySource {
                 reference.setTargetIdsForSource(docModel.getId(), targetIds);
             }
         }
-        directory.invalidateCaches();
+        if (referenceFieldList.isEmpty()) {
+            // linked directories are not impacted
+            directory.invalidateEntries(Collections.singleton(docModel.getId()));
+        } else {
+            directory.invalidateCaches();
+        }
     }
 
     @Override
@@ -737,8 +1004,7 @@ public class SQLSession extends BaseSession implements EntrySource {
             Set<String> fulltext, Map<String, String> orderBy,
             boolean fetchReferences, int limit, int offset)
             throws ClientException, DirectoryException {
-        acquireConnection();
-        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
+        Map<String, Serializable> filterMap = new LinkedHashMap<String, Serializable>(
                 filter);
 
         if (isMultiTenant()) {
@@ -748,210 +1014,437 @@ public class SQLSession extends BaseSession implements EntrySource {
                 filterMap.put(TENANT_ID_FIELD, tenantId);
             }
         }
+        return directory.getCache().query(filterMap, fulltext, orderBy,
+                fetchReferences, limit, offset, this);
+    }
+
+    @Override
+    public DocumentModelList queryFromSource(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset)
+            throws DirectoryException {
+        acquireConnection();
+        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
+                filter);
 
         try {
             // build count query statement
-            StringBuilder whereClause = new StringBuilder();
-            String separator = "";
             List<Column> orderedColumns = new LinkedList<Column>();
-            for (String columnName : filterMap.keySet()) {
+            String where = buildWhereClause(filterMap, fulltext,
+                    orderedColumns);
+            checkQuerySize(where, filterMap, orderedColumns, limit);
 
-                if (directory.isReference(columnName)) {
-                    log.warn(columnName + " is a reference and will be ignored"
-                            + " as a query criterion");
-                    continue;
+            if (limit > 0) {
+                if (!dialect.supportsPaging()) {
+                    throw new UnsupportedOperationException("Trying to use paging with an unsupported dialect: " +
+                            dialect.getClass().getName());
                 }
 
-                Object value = filterMap.get(columnName);
-                Column column = table.getColumn(columnName);
-                if (null == column) {
-                    // this might happen if we have a case like a chain
-                    // selection and a directory without parent column
-                    throw new ClientException("cannot find column '"
-                            + columnName + "' for table: " + table);
+                if (offset < 0) {
+                    offset = 0;
                 }
-                String leftSide = column.getQuotedName();
-                String rightSide = "?";
-                String operator;
-                boolean substring = fulltext != null
-                        && fulltext.contains(columnName);
-                if ("".equals(value) && dialect.hasNullEmptyString()
-                        && !substring) {
-                    // see NXP-6172, empty values are Null in Oracle
-                    value = null;
+            }
+            String query = getQueryStatement(where, orderBy, limit, offset);
+            logQuery(query, filterMap, orderedColumns);
+
+            PreparedStatement ps = null;
+            ResultSet rs = null;
+            try {
+                ps = prepareStatement(query);
+                int index = fillPreparedStatementFields(filterMap,
+                        orderedColumns, ps);
+                if (limit > 0) {
+                    setPagingValues(ps, index, limit, offset);
                 }
-                if (value != null) {
-                    if (value instanceof SQLComplexFilter) {
-                        SQLComplexFilter complexFilter = (SQLComplexFilter) value;
-                        operator = complexFilter.getOperator();
-                        rightSide = complexFilter.getRightSide();
-                    } else if (substring) {
-                        // NB : remove double % in like query NXGED-833
-                        String searchedValue = null;
-                        switch (substringMatchType) {
-                        case subany:
-                            searchedValue = '%' + String.valueOf(value).toLowerCase() + '%';
-                            break;
-                        case subinitial:
-                            searchedValue = String.valueOf(value).toLowerCase() + '%';
-                            break;
-                        case subfinal:
-                            searchedValue = '%' + String.valueOf(value).toLowerCase();
-                            break;
-                        }
-                        filterMap.put(columnName, searchedValue);
-                        if (dialect.supportsIlike()) {
-                            operator = " ILIKE "; // postgresql rules
-                        } else {
-                            leftSide = "LOWER(" + leftSide + ')';
-                            operator = " LIKE ";
-                        }
-                    } else {
-                        operator = " = ";
-                    }
-                } else {
-                    operator = " IS NULL";
+
+                // execute the query and create a documentModel list
+                rs = ps.executeQuery();
+                DocumentModelList list = new DocumentModelListImpl();
+                while (rs.next()) {
+                    list.add(readEntry(rs));
+                }
+                // fetch the reference fields for the whole page at once
+                if (fetchReferences) {
+                    fetchReferences(list);
                 }
-                whereClause.append(separator).append(leftSide).append(operator);
-                if (value != null) {
-                    whereClause.append(rightSide);
-                    orderedColumns.add(column);
+                return list;
+            } finally {
+                closeResultSet(rs);
+                releaseStatement(ps);
+            }
+
+        } catch (SQLException e) {
+            try {
+                sqlConnection.close();
+            } catch (SQLException e1) {
+            }
+            throw new DirectoryException("query failed", e);
+        }
+    }
+
+    /**
+     * Streams the matching rows through a dedicated statement using the JDBC
+     * fetch size, references being fetched in bulk for each batch of rows.
+     * <p>
+     * Some drivers only honor the fetch size inside a transaction (e.g.
+     * PostgreSQL, that otherwise reads all the rows at once). Managed
+     * sessions already run in one; other sessions read the rows from a
+     * dedicated connection with auto-commit off, held until the iterator is
+     * closed.
+     *
+     * @since 5.7.3
+     */
+    @Override
+    public EntryIterator iterate(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences) throws ClientException {
+        acquireConnection();
+        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
+                filter);
+        if (isMultiTenant()) {
+            // filter entries on the tenantId field also
+            String tenantId = getCurrentTenantId();
+            if (!StringUtils.isBlank(tenantId)) {
+                filterMap.put(TENANT_ID_FIELD, tenantId);
+            }
+        }
+        List<Column> orderedColumns = new LinkedList<Column>();
+        String where = buildWhereClause(filterMap, fulltext, orderedColumns);
+        String query = getQueryStatement(where, orderBy, -1, -1);
+        logQuery(query, filterMap, orderedColumns);
+
+        Connection connection = null;
+        PreparedStatement ps = null;
+        try {
+            if (!managedSQLSession) {
+                connection = directory.getConnection();
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+            }
+            Connection queryConnection = connection == null ? sqlConnection
+                    : connection;
+            // not taken from the statement cache as the cursor stays open
+            // while the caller iterates
+            ps = queryConnection.prepareStatement(query);
+            ps.setFetchSize(ITERATE_FETCH_SIZE);
+            fillPreparedStatementFields(filterMap, orderedColumns, ps);
+            ResultSet rs = ps.executeQuery();
+            return new SQLEntryIterator(connection, ps, rs, fetchReferences);
+        } catch (SQLException e) {
+            try {
+                if (ps != null) {
+                    ps.close();
                 }
-                separator = " AND ";
+            } catch (SQLException e1) {
             }
+            closeIterateConnection(connection);
+            throw new DirectoryException("query failed", e);
+        }
+    }
 
-            int queryLimitSize = directory.getConfig().getQuerySizeLimit();
-            if (queryLimitSize != 0 && (limit <= 0 || limit > queryLimitSize)) {
-                PreparedStatement ps = null;
+    /**
+     * Ends the read-only transaction of a connection dedicated to an
+     * iterator, and closes it.
+     */
+    protected static void closeIterateConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            try {
+                connection.rollback();
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.debug("Cannot close connection", e);
+        }
+    }
+
+    /**
+     * Iterates over an open result set, by batches of
+     * {@link SQLSession#ITERATE_FETCH_SIZE} rows.
+     *
+     * @since 5.7.3
+     */
+    protected class SQLEntryIterator extends AbstractEntryIterator {
+
+        // null if the connection of the session is used
+        protected final Connection connection;
+
+        protected final PreparedStatement ps;
+
+        protected final ResultSet rs;
+
+        protected final boolean fetchReferences;
+
+        protected final LinkedList<DocumentModel> batch = new LinkedList<DocumentModel>();
+
+        protected boolean exhausted;
+
+        protected SQLEntryIterator(Connection connection,
+                PreparedStatement ps, ResultSet rs, boolean fetchReferences) {
+            this.connection = connection;
+            this.ps = ps;
+            this.rs = rs;
+            this.fetchReferences = fetchReferences;
+        }
+
+        @Override
+        protected DocumentModel fetchNext() throws ClientException {
+            if (batch.isEmpty() && !exhausted) {
                 try {
-                    // create a preparedStatement for counting and bind the
-                    // values
-                    // String countQuery = new StringBuilder("SELECT count(*)
-                    // FROM ")
-                    // .append(table.getQuotedName(dialect)).append(whereClause).toString();
-                    Select select = new Select(table);
-                    select.setWhat("count(*)");
-                    select.setFrom(table.getQuotedName());
-
-                    String where = whereClause.toString();
-                    where = addFilterWhereClause(where);
-                    select.setWhere(where);
-
-                    String countQuery = select.getStatement();
-                    ps = sqlConnection.prepareStatement(countQuery);
-                    fillPreparedStatementFields(filterMap, orderedColumns, ps);
-
-                    ResultSet rs = ps.executeQuery();
-                    rs.next();
-                    int count = rs.getInt(1);
-                    if (count > queryLimitSize) {
-                        throw new SizeLimitExceededException(
-                                "too many rows in result: " + count);
-                    }
-                } finally {
-                    if (ps != null) {
-                        ps.close();
+                    while (batch.size() < ITERATE_FETCH_SIZE) {
+                        if (!rs.next()) {
+                            exhausted = true;
+                            break;
+                        }
+                        batch.add(readEntry(rs));
                     }
+                } catch (SQLException e) {
+                    throw new DirectoryException("query failed", e);
+                }
+                if (fetchReferences) {
+                    fetchReferences(batch);
                 }
             }
+            return batch.poll();
+        }
 
-            // create a preparedStatement and bind the values
-            // String query = new StringBuilder("SELECT * FROM
-            // ").append(tableName).append(
-            // whereClause).toString();
-
-            Select select = new Select(table);
-            select.setWhat("*");
-            select.setFrom(table.getQuotedName());
-
-            String where = whereClause.toString();
-            where = addFilterWhereClause(where);
-            select.setWhere(where);
-
-            StringBuilder orderby = new StringBuilder(128);
-            if (orderBy != null) {
-                for (Iterator<Map.Entry<String, String>> it = orderBy.entrySet().iterator(); it.hasNext();) {
-                    Entry<String, String> entry = it.next();
-                    orderby.append(dialect.openQuote()).append(entry.getKey()).append(
-                            dialect.closeQuote()).append(' ').append(
-                            entry.getValue());
-                    if (it.hasNext()) {
-                        orderby.append(',');
-                    }
-                }
+        @Override
+        protected void doClose() {
+            batch.clear();
+            closeResultSet(rs);
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                log.debug("Cannot close statement", e);
             }
-            select.setOrderBy(orderby.toString());
-            String query = select.getStatement();
-            if (limit > 0) {
-                if (!dialect.supportsPaging()) {
-                    throw new UnsupportedOperationException("Trying to use paging with an unsupported dialect: " +
-                            dialect.getClass().getName());
-                }
+            closeIterateConnection(connection);
+        }
 
-                if (offset < 0) {
-                    offset = 0;
-                }
+    }
 
-                query = dialect.addPagingClause(query, limit, offset);
+    /**
+     * Builds the where clause matching the filter, without the static
+     * filters. Substring values are rewritten in the filter map, and the
+     * columns to bind are added to the given list in order.
+     *
+     * @since 5.7.3
+     */
+    protected String buildWhereClause(Map<String, Object> filterMap,
+            Set<String> fulltext, List<Column> orderedColumns)
+            throws DirectoryException {
+        StringBuilder whereClause = new StringBuilder();
+        String separator = "";
+        for (String columnName : filterMap.keySet()) {
+
+            if (directory.isReference(columnName)) {
+                log.warn(columnName + " is a reference and will be ignored"
+                        + " as a query criterion");
+                continue;
             }
 
-            if (logger.isLogEnabled()) {
-                List<Serializable> values = new ArrayList<Serializable>(
-                        orderedColumns.size());
-                for (Column column : orderedColumns) {
-                    Object value = filterMap.get(column.getKey());
-                    values.add((Serializable) value);
+            Object value = filterMap.get(columnName);
+            Column column = table.getColumn(columnName);
+            if (null == column) {
+                // this might happen if we have a case like a chain
+                // selection and a directory without parent column
+                throw new DirectoryException("cannot find column '"
+                        + columnName + "' for table: " + table);
+            }
+            String leftSide = column.getQuotedName();
+            String rightSide = "?";
+            String operator;
+            boolean substring = fulltext != null
+                    && fulltext.contains(columnName);
+            if ("".equals(value) && dialect.hasNullEmptyString()
+                    && !substring) {
+                // see NXP-6172, empty values are Null in Oracle
+                value = null;
+            }
+            if (value != null) {
+                if (value instanceof SQLComplexFilter) {
+                    SQLComplexFilter complexFilter = (SQLComplexFilter) value;
+                    operator = complexFilter.getOperator();
+                    rightSide = complexFilter.getRightSide();
+                } else if (substring) {
+                    // NB : remove double % in like query NXGED-833
+                    String searchedValue = null;
+                    switch (substringMatchType) {
+                    case subany:
+                        searchedValue = '%' + String.valueOf(value).toLowerCase() + '%';
+                        break;
+                    case subinitial:
+                        searchedValue = String.valueOf(value).toLowerCase() + '%';
+                        break;
+                    case subfinal:
+                        searchedValue = '%' + String.valueOf(value).toLowerCase();
+                        break;
+                    }
+                    filterMap.put(columnName, searchedValue);
+                    if (dialect.supportsIlike()) {
+                        operator = " ILIKE "; // postgresql rules
+                    } else {
+                        leftSide = "LOWER(" + leftSide + ')';
+                        operator = " LIKE ";
+                    }
+                } else {
+                    operator = " = ";
                 }
-                addFilterValuesForLog(values);
-                logger.logSQL(query, values);
+            } else {
+                operator = " IS NULL";
+            }
+            whereClause.append(separator).append(leftSide).append(operator);
+            if (value != null) {
+                whereClause.append(rightSide);
+                orderedColumns.add(column);
             }
+            separator = " AND ";
+        }
+
+        return whereClause.toString();
+    }
 
+    /**
+     * Checks that the query does not return more entries than the size limit
+     * configured for the directory.
+     *
+     * @since 5.7.3
+     */
+    protected void checkQuerySize(final String where,
+            Map<String, Object> filterMap, List<Column> orderedColumns,
+            int limit) throws SQLException, DirectoryException {
+        int queryLimitSize = directory.getConfig().getQuerySizeLimit();
+        if (queryLimitSize != 0 && (limit <= 0 || limit > queryLimitSize)) {
             PreparedStatement ps = null;
+            ResultSet rs = null;
             try {
-                ps = sqlConnection.prepareStatement(query);
+                // create a preparedStatement for counting and bind the
+                // values
+                // String countQuery = new StringBuilder("SELECT count(*)
+                // FROM ")
+                // .append(table.getQuotedName(dialect)).append(whereClause).toString();
+                String countQuery = directory.getStatementPlan(
+                        "count:" + where,
+                        new SegmentedLRUCache.Loader<String, String>() {
+                            @Override
+                            public String load(String key)
+                                    throws DirectoryException {
+                                Select select = new Select(table);
+                                select.setWhat("count(*)");
+                                select.setFrom(table.getQuotedName());
+                                select.setWhere(addFilterWhereClause(where));
+                                return select.getStatement();
+                            }
+                        });
+                ps = prepareStatement(countQuery);
                 fillPreparedStatementFields(filterMap, orderedColumns, ps);
 
-                // execute the query and create a documentModel list
-                ResultSet rs = ps.executeQuery();
-                DocumentModelList list = new DocumentModelListImpl();
-                while (rs.next()) {
-
-                    // fetch values for stored fields
-                    Map<String, Object> map = new HashMap<String, Object>();
-                    for (String fieldName : storedFieldNames) {
-                        Object o = getFieldValue(rs, fieldName);
-                        map.put(fieldName, o);
-                    }
-
-                    DocumentModel docModel = fieldMapToDocumentModel(map);
-
-                    // fetch the reference fields
-                    if (fetchReferences) {
-                        for (Reference reference : directory.getReferences()) {
-                            List<String> targetIds = reference.getTargetIdsForSource(docModel.getId());
-                            docModel.setProperty(schemaName,
-                                    reference.getFieldName(), targetIds);
-                        }
-                    }
-                    list.add(docModel);
+                rs = ps.executeQuery();
+                rs.next();
+                int count = rs.getInt(1);
+                if (count > queryLimitSize) {
+                    throw new SizeLimitExceededException(
+                            "too many rows in result: " + count);
                 }
-                return list;
             } finally {
-                if (ps != null) {
-                    ps.close();
+                closeResultSet(rs);
+                releaseStatement(ps);
+            }
+        }
+    }
+
+    /**
+     * Returns the select statement for the given where clause, order and
+     * paging, generated once per shape. When the dialect allows it, the limit
+     * and offset are bound by {@link #setPagingValues} instead of being part
+     * of the statement, so that all the pages share the same statement.
+     *
+     * @since 5.7.3
+     */
+    protected String getQueryStatement(final String where,
+            Map<String, String> orderBy, final int limit, final int offset)
+            throws DirectoryException {
+        // String query = new StringBuilder("SELECT * FROM
+        // ").append(tableName).append(
+        // whereClause).toString();
+        StringBuilder orderby = new StringBuilder(128);
+        if (orderBy != null) {
+            for (Iterator<Map.Entry<String, String>> it = orderBy.entrySet().iterator(); it.hasNext();) {
+                Entry<String, String> entry = it.next();
+                orderby.append(dialect.openQuote()).append(entry.getKey()).append(
+                        dialect.closeQuote()).append(' ').append(
+                        entry.getValue());
+                if (it.hasNext()) {
+                    orderby.append(',');
                 }
             }
+        }
 
-        } catch (SQLException e) {
-            try {
-                sqlConnection.close();
-            } catch (SQLException e1) {
+        // same filter columns, operators, order and paging => same SQL
+        final String order = orderby.toString();
+        final String pagingClause = directory.getPagingClause();
+        String shape = "query:" + where + "|" + order;
+        if (limit > 0) {
+            shape += pagingClause != null ? "|paged" : "|" + limit + "|"
+                    + offset;
+        }
+        return directory.getStatementPlan(shape,
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Select select = new Select(table);
+                        select.setWhat("*");
+                        select.setFrom(table.getQuotedName());
+                        select.setWhere(addFilterWhereClause(where));
+                        select.setOrderBy(order);
+                        String sql = select.getStatement();
+                        if (limit > 0) {
+                            sql = pagingClause != null ? sql + pagingClause
+                                    : dialect.addPagingClause(sql, limit,
+                                            offset);
+                        }
+                        return sql;
+                    }
+                });
+    }
+
+    protected void logQuery(String query, Map<String, Object> filterMap,
+            List<Column> orderedColumns) {
+        if (logger.isLogEnabled()) {
+            List<Serializable> values = new ArrayList<Serializable>(
+                    orderedColumns.size());
+            for (Column column : orderedColumns) {
+                Object value = filterMap.get(column.getKey());
+                values.add((Serializable) value);
             }
-            throw new DirectoryException("query failed", e);
+            addFilterValuesForLog(values);
+            logger.logSQL(query, values);
         }
     }
 
-    protected void fillPreparedStatementFields(Map<String, Object> filterMap,
+    /**
+     * Reads the entry of the current row.
+     *
+     * @since 5.7.3
+     */
+    protected DocumentModel readEntry(ResultSet rs) throws DirectoryException {
+        // fetch values for stored fields
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (String fieldName : storedFieldNames) {
+            Object o = getFieldValue(rs, fieldName);
+            map.put(fieldName, o);
+        }
+        return fieldMapToDocumentModel(map);
+    }
+
+    /**
+     * Binds the filter values.
+     *
+     * @return the index of the next parameter
+     */
+    protected int fillPreparedStatementFields(Map<String, Object> filterMap,
             List<Column> orderedColumns, PreparedStatement ps)
             throws DirectoryException {
         int index = 1;
@@ -966,6 +1459,23 @@ public class SQLSession extends BaseSession implements EntrySource {
             }
         }
         addFilterValues(ps, index);
+        return index + staticFilters.length;
+    }
+
+    /**
+     * Binds the limit and offset of a statement generated by
+     * {@link #getQueryStatement}, if not inlined.
+     *
+     * @since 5.7.3
+     */
+    protected void setPagingValues(PreparedStatement ps, int index,
+            int limit, int offset) throws SQLException {
+        if (directory.getPagingClause() == null) {
+            return;
+        }
+        boolean limitFirst = directory.isPagingLimitFirst();
+        ps.setInt(index, limitFirst ? limit : offset);
+        ps.setInt(index + 1, limitFirst ? offset : limit);
     }
 
     @Override
@@ -1042,6 +1552,7 @@ public class SQLSession extends BaseSession implements EntrySource {
 
     @Override
     public void close() throws DirectoryException {
+        closeStatements();
         try {
             if (!sqlConnection.isClosed()) {
                 sqlConnection.close();
@@ -1136,29 +1647,36 @@ public class SQLSession extends BaseSession implements EntrySource {
     @Override
     public boolean hasEntry(String id) throws ClientException {
         acquireConnection();
-        Select select = new Select(table);
-        select.setFrom(table.getQuotedName());
-        select.setWhat("*");
-        select.setWhere(table.getPrimaryColumn().getQuotedName() + " = ?");
-        String sql = select.getStatement();
+        String sql = directory.getStatementPlan("hasEntry",
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) {
+                        Select select = new Select(table);
+                        select.setFrom(table.getQuotedName());
+                        select.setWhat("*");
+                        select.setWhere(table.getPrimaryColumn().getQuotedName()
+                                + " = ?");
+                        return select.getStatement();
+                    }
+                });
 
         if (logger.isLogEnabled()) {
             logger.logSQL(sql, Collections.<Serializable> singleton(id));
         }
 
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            ps = sqlConnection.prepareStatement(sql);
+            ps = prepareStatement(sql);
             setFieldValue(ps, 1, table.getPrimaryColumn(), id);
-            ResultSet rs = ps.executeQuery();
+            rs = ps.executeQuery();
             return rs.next();
         } catch (SQLException e) {
             throw new DirectoryException("hasEntry failed", e);
         } finally {
+            closeResultSet(rs);
             try {
-                if (ps != null) {
-                    ps.close();
-                }
+                releaseStatement(ps);
             } catch (SQLException sqle) {
                 throw new DirectoryException(sqle);
             }
@@ -21,12 +21,17 @@ import java.io.Serializable;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XObject;
@@ -37,13 +42,22 @@ import org.nuxeo.ecm.core.storage.sql.jdbc.db.Select;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table.IndexType;
 import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
+import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.AbstractReference;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 
 @XObject(value = "tableReference")
 public class TableReference extends AbstractReference {
 
+    /**
+     * Number of link inserts or deletes sent at once to the database.
+     *
+     * @since 5.7.3
+     */
+    public static final int LINKS_BATCH_SIZE = 500;
+
     @XNode("@field")
     public void setFieldName(String fieldName) {
         this.fieldName = fieldName;
@@ -86,10 +100,12 @@ public class TableReference extends AbstractReference {
 
     private void initialize(SQLSession sqlSession) throws DirectoryException {
         SQLDirectory directory = getSQLSourceDirectory();
-        String createTablePolicy = directory.getConfig().createTablePolicy;
+        SQLDirectoryDescriptor config = directory.getConfig();
         Table table = getTable();
         SQLHelper helper = new SQLHelper(sqlSession.sqlConnection, table,
-                dataFileName, createTablePolicy);
+                dataFileName, config.createTablePolicy);
+        helper.setBatchSize(config.getDataFileBatchSize());
+        helper.setSkipUnchangedDataFile(config.isSkipUnchangedDataFile());
         helper.setupTable();
     }
 
@@ -128,9 +144,7 @@ public class TableReference extends AbstractReference {
         if (targetIds == null) {
             return;
         }
-        for (String targetId : targetIds) {
-            addLink(sourceId, targetId, session, true);
-        }
+        addLinksFor(targetColumn, targetIds, sourceColumn, sourceId, session);
     }
 
     public void addLinks(List<String> sourceIds, String targetId,
@@ -138,9 +152,26 @@ public class TableReference extends AbstractReference {
         if (sourceIds == null) {
             return;
         }
-        for (String sourceId : sourceIds) {
-            addLink(sourceId, targetId, session, true);
+        addLinksFor(sourceColumn, sourceIds, targetColumn, targetId, session);
+    }
+
+    /**
+     * Adds the links between the filter value and the given ids that do not
+     * exist yet, reading the existing links with a single query instead of
+     * checking each link.
+     *
+     * @since 5.7.3
+     */
+    protected void addLinksFor(String idsColumn, List<String> ids,
+            String filterColumn, String filterValue, SQLSession session)
+            throws DirectoryException {
+        Set<String> idsToAdd = new LinkedHashSet<String>(ids);
+        if (idsToAdd.isEmpty()) {
+            return;
         }
+        idsToAdd.removeAll(getIdsFor(session, idsColumn, filterColumn,
+                filterValue));
+        insertLinks(filterColumn, filterValue, idsToAdd, session);
     }
 
     public boolean exists(String sourceId, String targetId, SQLSession session)
@@ -149,38 +180,42 @@ public class TableReference extends AbstractReference {
         // "SELECT COUNT(*) FROM %s WHERE %s = ? AND %s = ?", tableName,
         // sourceColumn, targetColumn);
 
-        Table table = getTable();
-        Select select = new Select(table);
-        select.setFrom(table.getQuotedName());
-        select.setWhat("count(*)");
-        String whereString = String.format("%s = ? and %s = ?",
-                table.getColumn(sourceColumn).getQuotedName(),
-                table.getColumn(targetColumn).getQuotedName());
-
-        select.setWhere(whereString);
-
-        String selectSql = select.getStatement();
+        String selectSql = getStatementPlan("exists",
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Table table = getTable();
+                        Select select = new Select(table);
+                        select.setFrom(table.getQuotedName());
+                        select.setWhat("count(*)");
+                        String whereString = String.format("%s = ? and %s = ?",
+                                table.getColumn(sourceColumn).getQuotedName(),
+                                table.getColumn(targetColumn).getQuotedName());
+                        select.setWhere(whereString);
+                        return select.getStatement();
+                    }
+                });
         if (session.logger.isLogEnabled()) {
             session.logger.logSQL(selectSql,
                     Arrays.<Serializable> asList(sourceId, targetId));
         }
 
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            ps = session.sqlConnection.prepareStatement(selectSql);
+            ps = session.prepareStatement(selectSql);
             ps.setString(1, sourceId);
             ps.setString(2, targetId);
-            ResultSet rs = ps.executeQuery();
+            rs = ps.executeQuery();
             rs.next();
             return rs.getInt(1) > 0;
         } catch (SQLException e) {
             throw new DirectoryException(String.format(
                     "error reading link from %s to %s", sourceId, targetId), e);
         } finally {
+            SQLSession.closeResultSet(rs);
             try {
-                if (ps != null) {
-                    ps.close();
-                }
+                session.releaseStatement(ps);
             } catch (SQLException sqle) {
                 throw new DirectoryException(sqle);
             }
@@ -204,15 +239,7 @@ public class TableReference extends AbstractReference {
         }
 
         // second step: add the link
-
-        // String insertSql = String.format(
-        // "INSERT INTO %s (%s, %s) VALUES (?, ?)", tableName,
-        // sourceColumn, targetColumn);
-        Table table = getTable();
-        Insert insert = new Insert(table);
-        insert.addColumn(table.getColumn(sourceColumn));
-        insert.addColumn(table.getColumn(targetColumn));
-        String insertSql = insert.getStatement();
+        String insertSql = getInsertSql();
         if (session.logger.isLogEnabled()) {
             session.logger.logSQL(insertSql,
                     Arrays.<Serializable> asList(sourceId, targetId));
@@ -220,7 +247,7 @@ public class TableReference extends AbstractReference {
 
         PreparedStatement ps = null;
         try {
-            ps = session.sqlConnection.prepareStatement(insertSql);
+            ps = session.prepareStatement(insertSql);
             ps.setString(1, sourceId);
             ps.setString(2, targetId);
             ps.execute();
@@ -229,9 +256,7 @@ public class TableReference extends AbstractReference {
                     "error adding link from %s to %s", sourceId, targetId), e);
         } finally {
             try {
-                if (ps != null) {
-                    ps.close();
-                }
+                session.releaseStatement(ps);
             } catch (SQLException sqle) {
                 throw new DirectoryException(sqle);
             }
@@ -241,16 +266,37 @@ public class TableReference extends AbstractReference {
     protected List<String> getIdsFor(String valueColumn, String filterColumn,
             String filterValue) throws DirectoryException {
         SQLSession session = getSQLSession();
+        try {
+            return getIdsFor(session, valueColumn, filterColumn, filterValue);
+        } finally {
+            session.close();
+        }
+    }
 
+    /**
+     * Fetches the values linked to the given filter value using the given
+     * session.
+     *
+     * @since 5.7.3
+     */
+    protected List<String> getIdsFor(SQLSession session,
+            final String valueColumn, final String filterColumn,
+            String filterValue) throws DirectoryException {
         // String sql = String.format("SELECT %s FROM %s WHERE %s = ?",
         // table.getColumn(valueColumn), tableName, filterColumn);
-        Table table = getTable();
-        Select select = new Select(table);
-        select.setWhat(table.getColumn(valueColumn).getQuotedName());
-        select.setFrom(table.getQuotedName());
-        select.setWhere(table.getColumn(filterColumn).getQuotedName() + " = ?");
-
-        String sql = select.getStatement();
+        String sql = getStatementPlan(valueColumn + ":" + filterColumn,
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Table table = getTable();
+                        Select select = new Select(table);
+                        select.setWhat(table.getColumn(valueColumn).getQuotedName());
+                        select.setFrom(table.getQuotedName());
+                        select.setWhere(table.getColumn(filterColumn).getQuotedName()
+                                + " = ?");
+                        return select.getStatement();
+                    }
+                });
         if (session.logger.isLogEnabled()) {
             session.logger.logSQL(sql,
                     Collections.<Serializable> singleton(filterValue));
@@ -258,11 +304,12 @@ public class TableReference extends AbstractReference {
 
         List<String> ids = new LinkedList<String>();
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            ps = session.sqlConnection.prepareStatement(sql);
+            ps = session.prepareStatement(sql);
             ps.setString(1, filterValue);
 
-            ResultSet rs = ps.executeQuery();
+            rs = ps.executeQuery();
             while (rs.next()) {
                 ids.add(rs.getString(valueColumn));
             }
@@ -270,18 +317,138 @@ public class TableReference extends AbstractReference {
         } catch (SQLException e) {
             throw new DirectoryException("error fetching reference values: ", e);
         } finally {
+            SQLSession.closeResultSet(rs);
             try {
-                if (ps != null) {
-                    ps.close();
+                session.releaseStatement(ps);
+            } catch (SQLException sqle) {
+                throw new DirectoryException(sqle);
+            }
+        }
+    }
+
+    /**
+     * Fetches the values linked to each of the given filter values, with one
+     * query per batch of filter values and a single session.
+     *
+     * @return the linked values, keyed by filter value, for all the given
+     *         filter values
+     * @since 5.7.3
+     */
+    protected Map<String, List<String>> getIdsFor(String valueColumn,
+            String filterColumn, Collection<String> filterValues)
+            throws DirectoryException {
+        Map<String, List<String>> ids = new HashMap<String, List<String>>();
+        for (String filterValue : filterValues) {
+            ids.put(filterValue, new LinkedList<String>());
+        }
+        if (ids.isEmpty()) {
+            return ids;
+        }
+        SQLSession session = getSQLSession();
+        try {
+            List<String> batch = new ArrayList<String>(
+                    SQLSession.GET_ENTRIES_BATCH_SIZE);
+            for (String filterValue : ids.keySet()) {
+                batch.add(filterValue);
+                if (batch.size() == SQLSession.GET_ENTRIES_BATCH_SIZE) {
+                    getIdsFor(session, valueColumn, filterColumn, batch, ids);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                getIdsFor(session, valueColumn, filterColumn, batch, ids);
+            }
+        } finally {
+            session.close();
+        }
+        return ids;
+    }
+
+    protected void getIdsFor(SQLSession session, final String valueColumn,
+            final String filterColumn, final List<String> filterValues,
+            Map<String, List<String>> ids) throws DirectoryException {
+        // SELECT filterColumn, valueColumn FROM table WHERE filterColumn IN
+        // (?, ...)
+        String shape = valueColumn + ":" + filterColumn + ":"
+                + filterValues.size();
+        String sql = getStatementPlan(shape,
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Table table = getTable();
+                        String quotedFilterColumn = table.getColumn(
+                                filterColumn).getQuotedName();
+                        Select select = new Select(table);
+                        select.setWhat(quotedFilterColumn + ", "
+                                + table.getColumn(valueColumn).getQuotedName());
+                        select.setFrom(table.getQuotedName());
+                        StringBuilder where = new StringBuilder(
+                                quotedFilterColumn);
+                        where.append(" IN (");
+                        for (int i = 0; i < filterValues.size(); i++) {
+                            where.append(i == 0 ? "?" : ", ?");
+                        }
+                        where.append(')');
+                        select.setWhere(where.toString());
+                        return select.getStatement();
+                    }
+                });
+        if (session.logger.isLogEnabled()) {
+            session.logger.logSQL(sql, new ArrayList<Serializable>(
+                    filterValues));
+        }
+
+        // the database may compare ids case-insensitively
+        Map<String, List<String>> idsIgnoreCase = new TreeMap<String, List<String>>(
+                String.CASE_INSENSITIVE_ORDER);
+        for (String filterValue : filterValues) {
+            idsIgnoreCase.put(filterValue, ids.get(filterValue));
+        }
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = session.prepareStatement(sql);
+            int index = 1;
+            for (String filterValue : filterValues) {
+                ps.setString(index++, filterValue);
+            }
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                String filterValue = rs.getString(filterColumn);
+                List<String> values = ids.get(filterValue);
+                if (values == null) {
+                    values = idsIgnoreCase.get(filterValue);
+                }
+                if (values != null) {
+                    values.add(rs.getString(valueColumn));
                 }
+            }
+        } catch (SQLException e) {
+            throw new DirectoryException("error fetching reference values: ", e);
+        } finally {
+            SQLSession.closeResultSet(rs);
+            try {
+                session.releaseStatement(ps);
             } catch (SQLException sqle) {
                 throw new DirectoryException(sqle);
-            } finally {
-                session.close();
             }
         }
     }
 
+    /**
+     * Returns the SQL statement for the given shape of query on the link
+     * table, cached by the source directory.
+     *
+     * @since 5.7.3
+     */
+    protected String getStatementPlan(String shape,
+            SegmentedLRUCache.Loader<String, String> generator)
+            throws DirectoryException {
+        return getSQLSourceDirectory().getStatementPlan(
+                "ref:" + tableName + ":" + shape, generator);
+    }
+
     @Override
     public List<String> getSourceIdsForTarget(String targetId)
             throws DirectoryException {
@@ -294,27 +461,50 @@ public class TableReference extends AbstractReference {
         return getIdsFor(targetColumn, sourceColumn, sourceId);
     }
 
-    public void removeLinksFor(String column, String entryId, SQLSession session)
-            throws DirectoryException {
-        Table table = getTable();
-        String sql = String.format("DELETE FROM %s WHERE %s = ?",
-                table.getQuotedName(), table.getColumn(column).getQuotedName());
+    /**
+     * @since 5.7.3
+     */
+    @Override
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException {
+        return getIdsFor(sourceColumn, targetColumn, targetIds);
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    @Override
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException {
+        return getIdsFor(targetColumn, sourceColumn, sourceIds);
+    }
+
+    public void removeLinksFor(final String column, String entryId,
+            SQLSession session) throws DirectoryException {
+        String sql = getStatementPlan("delete:" + column,
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Table table = getTable();
+                        return String.format("DELETE FROM %s WHERE %s = ?",
+                                table.getQuotedName(),
+                                table.getColumn(column).getQuotedName());
+                    }
+                });
         if (session.logger.isLogEnabled()) {
             session.logger.logSQL(sql,
                     Collections.<Serializable> singleton(entryId));
         }
         PreparedStatement ps = null;
         try {
-            ps = session.sqlConnection.prepareStatement(sql);
+            ps = session.prepareStatement(sql);
             ps.setString(1, entryId);
             ps.execute();
         } catch (SQLException e) {
             throw new DirectoryException("error remove links to " + entryId, e);
         } finally {
             try {
-                if (ps != null) {
-                    ps.close();
-                }
+                session.releaseStatement(ps);
             } catch (SQLException sqle) {
                 throw new DirectoryException(sqle);
             }
@@ -358,96 +548,171 @@ public class TableReference extends AbstractReference {
             throws DirectoryException {
 
         List<String> idsToDelete = new LinkedList<String>();
-        Set<String> idsToAdd = new HashSet<String>();
+        Set<String> idsToAdd = new LinkedHashSet<String>();
         if (ids != null) { // ids may be null
             idsToAdd.addAll(ids);
         }
-        Table table = getTable();
 
         // iterate over existing links to find what to add and what to remove
-        String selectSql = String.format("SELECT %s FROM %s WHERE %s = ?",
-                table.getColumn(idsColumn).getQuotedName(),
-                table.getQuotedName(),
-                table.getColumn(filterColumn).getQuotedName());
-        PreparedStatement ps = null;
-        try {
-            ps = session.sqlConnection.prepareStatement(selectSql);
-            ps.setString(1, filterValue);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                String existingId = rs.getString(1);
-                if (idsToAdd.contains(existingId)) {
-                    // to not add already existing ids
-                    idsToAdd.remove(existingId);
-                } else {
-                    // delete unwanted existing ids
-                    idsToDelete.add(existingId);
-                }
+        for (String existingId : getIdsFor(session, idsColumn, filterColumn,
+                filterValue)) {
+            if (idsToAdd.contains(existingId)) {
+                // to not add already existing ids
+                idsToAdd.remove(existingId);
+            } else {
+                // delete unwanted existing ids
+                idsToDelete.add(existingId);
             }
+        }
+
+        // remove unwanted links
+        deleteLinks(filterColumn, filterValue, idsColumn, idsToDelete, session);
+        // add missing links, without checking again that they do not exist
+        insertLinks(filterColumn, filterValue, idsToAdd, session);
+
+        if (!idsToDelete.isEmpty() || !idsToAdd.isEmpty()) {
+            // cached entries on both sides hold the links as reference fields
+            invalidateEntries(filterColumn,
+                    Collections.singleton(filterValue));
+            List<String> changedIds = new ArrayList<String>(idsToDelete);
+            changedIds.addAll(idsToAdd);
+            invalidateEntries(idsColumn, changedIds);
+        }
+    }
+
+    /**
+     * Deletes the links between the filter value and the given ids, using
+     * JDBC batches.
+     *
+     * @since 5.7.3
+     */
+    protected void deleteLinks(final String filterColumn, String filterValue,
+            final String idsColumn, Collection<String> ids, SQLSession session)
+            throws DirectoryException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        // String deleteSql = String.format(
+        // "DELETE FROM %s WHERE %s = ? AND %s = ?", tableName,
+        // filterColumn, idsColumn);
+        String deleteSql = getStatementPlan("deleteLinks:" + filterColumn,
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Table table = getTable();
+                        Delete delete = new Delete(table);
+                        String whereString = String.format("%s = ? AND %s = ?",
+                                table.getColumn(filterColumn).getQuotedName(),
+                                table.getColumn(idsColumn).getQuotedName());
+                        delete.setWhere(whereString);
+                        return delete.getStatement();
+                    }
+                });
+        List<String[]> links = new ArrayList<String[]>(ids.size());
+        for (String id : ids) {
+            links.add(new String[] { filterValue, id });
+        }
+        try {
+            executeBatch(deleteSql, links, session);
         } catch (SQLException e) {
-            throw new DirectoryException("failed to fetch existing links for "
+            throw new DirectoryException("failed to remove unwanted links for "
                     + filterValue, e);
-        } finally {
-            try {
-                if (ps != null) {
-                    ps.close();
-                }
-            } catch (SQLException sqle) {
-                throw new DirectoryException(sqle);
-            }
         }
+    }
 
-        if (!idsToDelete.isEmpty()) {
-            // remove unwanted links
-
-            // String deleteSql = String.format(
-            // "DELETE FROM %s WHERE %s = ? AND %s = ?", tableName,
-            // filterColumn, idsColumn);
-            Delete delete = new Delete(table);
-            String whereString = String.format("%s = ? AND %s = ?",
-                    table.getColumn(filterColumn).getQuotedName(),
-                    table.getColumn(idsColumn).getQuotedName());
-            delete.setWhere(whereString);
-            String deleteSql = delete.getStatement();
+    /**
+     * Inserts the links between the filter value and the given ids, using
+     * JDBC batches. The links are expected not to exist yet.
+     *
+     * @since 5.7.3
+     */
+    protected void insertLinks(String filterColumn, String filterValue,
+            Collection<String> ids, SQLSession session)
+            throws DirectoryException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        String insertSql = getInsertSql();
+        boolean filterIsSource = filterColumn.equals(sourceColumn);
+        List<String[]> links = new ArrayList<String[]>(ids.size());
+        for (String id : ids) {
+            links.add(filterIsSource ? new String[] { filterValue, id }
+                    : new String[] { id, filterValue });
+        }
+        try {
+            executeBatch(insertSql, links, session);
+        } catch (SQLException e) {
+            throw new DirectoryException("failed to add links for "
+                    + filterValue, e);
+        }
+    }
 
-            try {
-                ps = session.sqlConnection.prepareStatement(deleteSql);
-                for (String unwantedId : idsToDelete) {
-                    if (session.logger.isLogEnabled()) {
-                        session.logger.logSQL(deleteSql,
-                                Arrays.<Serializable> asList(filterValue,
-                                        unwantedId));
+    protected String getInsertSql() throws DirectoryException {
+        // String insertSql = String.format(
+        // "INSERT INTO %s (%s, %s) VALUES (?, ?)", tableName,
+        // sourceColumn, targetColumn);
+        return getStatementPlan("insert",
+                new SegmentedLRUCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws DirectoryException {
+                        Table table = getTable();
+                        Insert insert = new Insert(table);
+                        insert.addColumn(table.getColumn(sourceColumn));
+                        insert.addColumn(table.getColumn(targetColumn));
+                        return insert.getStatement();
                     }
-                    ps.setString(1, filterValue);
-                    ps.setString(2, unwantedId);
-                    ps.execute();
+                });
+    }
+
+    /**
+     * Executes the given two-parameter statement once per link, sending them
+     * to the database in batches of {@link #LINKS_BATCH_SIZE}.
+     *
+     * @since 5.7.3
+     */
+    protected void executeBatch(String sql, List<String[]> links,
+            SQLSession session) throws SQLException {
+        PreparedStatement ps = session.prepareStatement(sql);
+        try {
+            int count = 0;
+            for (String[] link : links) {
+                if (session.logger.isLogEnabled()) {
+                    session.logger.logSQL(sql,
+                            Arrays.<Serializable> asList(link));
                 }
-            } catch (SQLException e) {
-                throw new DirectoryException(
-                        "failed to remove unwanted links for " + filterValue, e);
-            } finally {
-                try {
-                    if (ps != null) {
-                        ps.close();
-                    }
-                } catch (SQLException sqle) {
-                    throw new DirectoryException(sqle);
+                ps.setString(1, link[0]);
+                ps.setString(2, link[1]);
+                ps.addBatch();
+                if (++count % LINKS_BATCH_SIZE == 0) {
+                    ps.executeBatch();
+                    session.directory.linkBatches.inc();
                 }
             }
+            if (count % LINKS_BATCH_SIZE != 0) {
+                ps.executeBatch();
+                session.directory.linkBatches.inc();
+            }
+        } finally {
+            ps.clearBatch();
+            session.releaseStatement(ps);
         }
+    }
 
-        if (!idsToAdd.isEmpty()) {
-            // add missing links
-            if (filterColumn.equals(sourceColumn)) {
-                for (String missingId : idsToAdd) {
-                    addLink(filterValue, missingId, session, false);
-                }
-            } else {
-                for (String missingId : idsToAdd) {
-                    addLink(missingId, filterValue, session, false);
-                }
-            }
+    /**
+     * Invalidates the cached entries of the directory stored in the given
+     * column, and notifies the other cluster nodes.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidateEntries(String column, Collection<String> ids)
+            throws DirectoryException {
+        Directory dir = column.equals(sourceColumn) ? getSourceDirectory()
+                : getTargetDirectory();
+        if (dir == null) {
+            return;
         }
+        dir.getCache().invalidate(new ArrayList<String>(ids));
+        AbstractDirectory.publishInvalidation(dir.getName(), ids);
     }
 
     public void setSourceIdsForTarget(String targetId, List<String> sourceIds,
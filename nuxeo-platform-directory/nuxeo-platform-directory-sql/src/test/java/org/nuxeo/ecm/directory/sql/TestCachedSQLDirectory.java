@@ -19,8 +19,23 @@
 
 package org.nuxeo.ecm.directory.sql;
 
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.DirectoryCache;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 
 public class TestCachedSQLDirectory extends TestSQLDirectory {
 
@@ -31,6 +46,43 @@ public class TestCachedSQLDirectory extends TestSQLDirectory {
         DirectoryCache cache = dir.getCache();
         cache.setMaxSize(2);
         cache.setTimeout(10);
+        cache.setQueryMaxSize(10);
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        Counter hits = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "userDirectory", "cache", "queries", "hits"));
+        long initialHits = hits.getCount();
+        Session session = getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("username", "user_1");
+            DocumentModelList list = session.query(filter);
+            assertEquals(1, list.size());
+            assertEquals(initialHits, hits.getCount());
+
+            // same query, served from the cache
+            list = session.query(filter);
+            assertEquals(1, list.size());
+            assertEquals(initialHits + 1, hits.getCount());
+
+            // modifying a result does not alter the cached one
+            DocumentModel entry = list.get(0);
+            entry.setProperty("user", "company", "foo");
+            list = session.query(filter);
+            assertEquals(initialHits + 2, hits.getCount());
+            assertEquals(null, list.get(0).getProperty("user", "company"));
+
+            // a write flushes the query cache
+            session.updateEntry(entry);
+            list = session.query(filter);
+            assertEquals(initialHits + 2, hits.getCount());
+            assertEquals("foo", list.get(0).getProperty("user", "company"));
+        } finally {
+            session.close();
+        }
     }
 
 }
@@ -75,6 +75,35 @@ public class TestPagingComplexFilterDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testPagesShareStatement() throws Exception {
+        SQLDirectory dir = (SQLDirectory) getDirectory("pagingDirectory");
+        if (dir.getPagingClause() == null) {
+            // paging values inlined by this dialect
+            return;
+        }
+        Session session = getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("label", "Label");
+            Map<String, String> order = new HashMap<String, String>();
+            order.put("id", "ASC");
+
+            session.query(filter, filter.keySet(), order, false, 5, 0);
+            long misses = dir.statementMisses.getCount();
+            List<DocumentModel> entries = session.query(filter,
+                    filter.keySet(), order, false, 5, 5);
+            assertEquals("6", entries.get(0).getId());
+            entries = session.query(filter, filter.keySet(), order, false, 5,
+                    10);
+            assertEquals(2, entries.size());
+            // the following pages reuse the statement of the first one
+            assertEquals(misses, dir.statementMisses.getCount());
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testComplexFilter() throws ClientException {
         Session session = getSession();
@@ -20,14 +20,21 @@
 package org.nuxeo.ecm.directory.sql;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
 import org.junit.Ignore;
 
@@ -40,6 +47,8 @@ import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
+import org.nuxeo.ecm.directory.InverseReference;
 import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
 
@@ -49,6 +58,8 @@ import org.nuxeo.ecm.directory.Session;
  */
 public class TestSQLDirectory extends SQLDirectoryTestCase {
 
+    private static final Log log = LogFactory.getLog(TestSQLDirectory.class);
+
     private static final String SCHEMA = "user";
 
     public static Calendar getCalendar(int year, int month, int day,
@@ -172,6 +183,168 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testTableReferenceBulk() throws Exception {
+        TableReference groupsRef = (TableReference) getDirectory(
+                "userDirectory").getReference("groups");
+        Map<String, List<String>> groups = groupsRef.getTargetIdsForSources(Arrays.asList(
+                "user_1", "Administrator", "no_such_user"));
+        assertEquals(3, groups.size());
+        assertEquals(2, groups.get("user_1").size());
+        assertTrue(groups.get("user_1").contains("group_1"));
+        assertTrue(groups.get("user_1").contains("members"));
+        assertEquals(Arrays.asList("administrators"),
+                groups.get("Administrator"));
+        assertTrue(groups.get("no_such_user").isEmpty());
+
+        // through the inverse reference
+        InverseReference membersRef = (InverseReference) getDirectory(
+                "groupDirectory").getReference("members");
+        Map<String, List<String>> members = membersRef.getTargetIdsForSources(Arrays.asList(
+                "members", "administrators"));
+        assertEquals(Arrays.asList("user_1"), members.get("members"));
+        assertEquals(Arrays.asList("Administrator"),
+                members.get("administrators"));
+    }
+
+    @Test
+    public void testSetIdsForLargeGroup() throws Exception {
+        SQLDirectory dir = getSQLDirectory();
+        TableReference groupsRef = (TableReference) dir.getReference("groups");
+        int size = 5000;
+        List<String> members = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            members.add("bulk_user_" + i);
+        }
+
+        long batches = dir.linkBatches.getCount();
+        groupsRef.setSourceIdsForTarget("group_1", members);
+        // one batch to remove user_1, the additions in full batches
+        assertEquals(batches + 1 + size / TableReference.LINKS_BATCH_SIZE,
+                dir.linkBatches.getCount());
+        List<String> sourceIds = groupsRef.getSourceIdsForTarget("group_1");
+        assertEquals(size, sourceIds.size());
+        assertFalse(sourceIds.contains("user_1"));
+
+        // replace half of the members
+        List<String> newMembers = new ArrayList<String>(members.subList(0,
+                size / 2));
+        for (int i = 0; i < size / 2; i++) {
+            newMembers.add("other_user_" + i);
+        }
+        batches = dir.linkBatches.getCount();
+        groupsRef.setSourceIdsForTarget("group_1", newMembers);
+        // only the replaced half is deleted then inserted
+        assertEquals(batches + 2 * (size / 2)
+                / TableReference.LINKS_BATCH_SIZE, dir.linkBatches.getCount());
+        sourceIds = groupsRef.getSourceIdsForTarget("group_1");
+        assertEquals(size, sourceIds.size());
+        assertTrue(sourceIds.contains("bulk_user_0"));
+        assertFalse(sourceIds.contains("bulk_user_" + (size - 1)));
+        assertTrue(sourceIds.contains("other_user_0"));
+
+        // adding existing links is a no-op
+        groupsRef.addLinks(Arrays.asList("bulk_user_0", "user_1"), "group_1");
+        sourceIds = groupsRef.getSourceIdsForTarget("group_1");
+        assertEquals(size + 1, sourceIds.size());
+    }
+
+    /**
+     * Measures the throughput of link updates on a large group, one link at
+     * a time as before and in batches.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    public void testBenchmarkSetIdsForLargeGroup() throws Exception {
+        TableReference groupsRef = (TableReference) getSQLDirectory().getReference(
+                "groups");
+        int size = 10000;
+        List<String> members = new ArrayList<String>(size);
+        List<String> newMembers = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            members.add("bulk_user_" + i);
+            newMembers.add(i % 2 == 0 ? "bulk_user_" + i : "other_user_" + i);
+        }
+
+        long t0 = System.currentTimeMillis();
+        SQLSession session = groupsRef.getSQLSession();
+        try {
+            for (String member : members) {
+                groupsRef.addLink(member, "group_2", session, true);
+            }
+            session.commit();
+        } finally {
+            session.close();
+        }
+        long singleTime = System.currentTimeMillis() - t0;
+
+        t0 = System.currentTimeMillis();
+        groupsRef.setSourceIdsForTarget("group_1", members);
+        long addTime = System.currentTimeMillis() - t0;
+        t0 = System.currentTimeMillis();
+        groupsRef.setSourceIdsForTarget("group_1", newMembers);
+        long replaceTime = System.currentTimeMillis() - t0;
+        log.info(String.format("%s links added one by one in %sms, "
+                + "set in batches in %sms, half of them replaced in %sms",
+                size, singleTime, addTime, replaceTime));
+    }
+
+    @Test
+    public void testStatementReuse() throws Exception {
+        SQLDirectory dir = getSQLDirectory();
+        Session session = getSession();
+        try {
+            assertTrue(session.hasEntry("user_1"));
+            long hits = dir.statementHits.getCount();
+            assertTrue(session.hasEntry("Administrator"));
+            assertFalse(session.hasEntry("no_such_user"));
+            assertEquals(hits + 2, dir.statementHits.getCount());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testDataFileReload() throws Exception {
+        SQLDirectory dir = getSQLDirectory();
+        Connection connection = dir.getConnection();
+        try {
+            SQLHelper helper = new SQLHelper(connection, dir.getTable(),
+                    "test-users.csv", "always");
+            helper.setBatchSize(2);
+            helper.setSkipUnchangedDataFile(true);
+            // first load records the checksum
+            assertTrue(helper.setupTable());
+            assertEquals(3, countUsers(connection));
+            Statement st = connection.createStatement();
+            st.execute("DELETE FROM users WHERE username = 'user_1'");
+            st.close();
+
+            // unchanged data file, the table is kept as is
+            assertFalse(helper.setupTable());
+            assertEquals(2, countUsers(connection));
+
+            // without the option the table is always reloaded
+            helper.setSkipUnchangedDataFile(false);
+            assertTrue(helper.setupTable());
+            assertEquals(3, countUsers(connection));
+        } finally {
+            connection.close();
+        }
+    }
+
+    protected static int countUsers(Connection connection) throws Exception {
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM users");
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        } finally {
+            st.close();
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testCreateEntry() throws Exception {
@@ -279,6 +452,44 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testGetEntriesByIds() throws Exception {
+        Session session = getSession();
+        try {
+            DocumentModelList entries = session.getEntries(Arrays.asList(
+                    "user_1", "no_such_user", "Administrator", "user_1"),
+                    true);
+            assertEquals(2, entries.size());
+            DocumentModel dm = entries.get(0);
+            assertEquals("user_1", dm.getId());
+            assertEquals("pass_1", dm.getProperty(SCHEMA, "password"));
+            List<String> groups = (List<String>) dm.getProperty(SCHEMA,
+                    "groups");
+            assertEquals(2, groups.size());
+            assertTrue(groups.contains("group_1"));
+            assertTrue(groups.contains("members"));
+            dm = entries.get(1);
+            assertEquals("Administrator", dm.getId());
+            groups = (List<String>) dm.getProperty(SCHEMA, "groups");
+            assertEquals(Arrays.asList("administrators"), groups);
+
+            // same again, possibly from the cache, without references
+            entries = session.getEntries(Arrays.asList("Administrator",
+                    "user_1"), false);
+            assertEquals(2, entries.size());
+            assertEquals("Administrator", entries.get(0).getId());
+            assertEquals("user_1", entries.get(1).getId());
+            groups = (List<String>) entries.get(1).getProperty(SCHEMA,
+                    "groups");
+            assertTrue(groups == null || groups.isEmpty());
+
+            assertEquals(0, session.getEntries(
+                    Collections.<String> emptyList(), true).size());
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testGetEntries() throws Exception {
         Session session = getSession();
@@ -334,6 +545,54 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testIterate() throws Exception {
+        Session session = getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            Map<String, String> orderBy = new HashMap<String, String>();
+            orderBy.put("username", "asc");
+            List<String> expected = new ArrayList<String>();
+            for (DocumentModel entry : session.query(filter, null, orderBy)) {
+                expected.add(entry.getId());
+            }
+            assertEquals(3, expected.size());
+
+            List<String> ids = new ArrayList<String>();
+            EntryIterator it = session.iterate(filter, null, orderBy, true);
+            try {
+                while (it.hasNext()) {
+                    DocumentModel entry = it.next();
+                    ids.add(entry.getId());
+                    if ("user_1".equals(entry.getId())) {
+                        List<String> groups = (List<String>) entry.getProperty(
+                                SCHEMA, "groups");
+                        assertEquals(2, groups.size());
+                        assertTrue(groups.contains("group_1"));
+                        assertTrue(groups.contains("members"));
+                    }
+                }
+            } finally {
+                it.close();
+            }
+            assertEquals(expected, ids);
+
+            // filtered
+            filter.put("username", "user_1");
+            it = session.iterate(filter, null, null, false);
+            try {
+                assertTrue(it.hasNext());
+                assertEquals("user_1", it.next().getId());
+                assertFalse(it.hasNext());
+            } finally {
+                it.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testUpdateEntry() throws Exception {
@@ -0,0 +1,183 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.AbstractDirectory;
+import org.nuxeo.ecm.directory.DirectoryInvalidation;
+import org.nuxeo.ecm.directory.DirectoryInvalidationTransport;
+import org.nuxeo.ecm.directory.DirectoryServiceImpl;
+import org.nuxeo.ecm.directory.LocalDirectoryInvalidationTransport;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Checks that directory changes are published to the other cluster nodes and
+ * that invalidations from other nodes are applied.
+ */
+public class TestSQLDirectoryInvalidation extends SQLDirectoryTestCase {
+
+    private static final String SCHEMA = "user";
+
+    /** Another node of the cluster, in the same JVM. */
+    protected LocalDirectoryInvalidationTransport peer;
+
+    protected final List<DirectoryInvalidation> received = new ArrayList<DirectoryInvalidation>();
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployContrib("org.nuxeo.ecm.directory.sql.tests",
+                "test-sql-directories-invalidation-contrib.xml");
+        AbstractDirectory dir = (AbstractDirectory) getDirectory("userDirectory");
+        dir.getCache().setMaxSize(100);
+        dir.getCache().setTimeout(3600);
+        peer = new LocalDirectoryInvalidationTransport();
+        peer.activate("peer", new DirectoryInvalidationTransport.Listener() {
+            @Override
+            public void invalidationReceived(DirectoryInvalidation invalidation) {
+                received.add(invalidation);
+            }
+        });
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        peer.deactivate();
+        super.tearDown();
+    }
+
+    protected DirectoryInvalidation getReceived(String directoryName) {
+        for (DirectoryInvalidation invalidation : received) {
+            if (directoryName.equals(invalidation.getDirectoryName())) {
+                return invalidation;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testUpdatePublishesEntryInvalidation() throws Exception {
+        Session session = getSession("userDirectory");
+        try {
+            DocumentModel dm = session.getEntry("user_1");
+            dm.setProperty(SCHEMA, "company", "foo");
+            session.updateEntry(dm);
+        } finally {
+            session.close();
+        }
+        DirectoryInvalidation invalidation = getReceived("userDirectory");
+        assertNotNull(invalidation);
+        assertEquals(Arrays.asList("user_1"), invalidation.getEntryIds());
+    }
+
+    @Test
+    public void testReferenceUpdatePublishesInvalidations() throws Exception {
+        Session session = getSession("userDirectory");
+        try {
+            DocumentModel dm = session.getEntry("user_1");
+            dm.setProperty(SCHEMA, "groups", Arrays.asList("members"));
+            session.updateEntry(dm);
+        } finally {
+            session.close();
+        }
+        // the group user_1 left
+        DirectoryInvalidation invalidation = getReceived("groupDirectory");
+        assertNotNull(invalidation);
+        assertTrue(invalidation.getEntryIds().contains("group_1"));
+        // the whole user directory, as references were updated
+        boolean all = false;
+        for (DirectoryInvalidation inv : received) {
+            if ("userDirectory".equals(inv.getDirectoryName()) && inv.isAll()) {
+                all = true;
+            }
+        }
+        assertTrue(all);
+    }
+
+    @Test
+    public void testDeletePublishesInvalidation() throws Exception {
+        Session session = getSession("userDirectory");
+        try {
+            session.deleteEntry("user_1");
+        } finally {
+            session.close();
+        }
+        assertNotNull(getReceived("userDirectory"));
+    }
+
+    @Test
+    public void testPeerInvalidationIsApplied() throws Exception {
+        Session session = getSession("userDirectory");
+        try {
+            // cache the entry
+            DocumentModel dm = session.getEntry("user_1");
+            assertNull(dm.getProperty(SCHEMA, "company"));
+
+            // another node changes the row behind our cache
+            SQLDirectory dir = (SQLDirectory) getDirectory("userDirectory");
+            Connection connection = dir.getConnection();
+            try {
+                Statement st = connection.createStatement();
+                st.execute("UPDATE users SET company = 'bar' WHERE username = 'user_1'");
+                st.close();
+            } finally {
+                connection.close();
+            }
+            dm = session.getEntry("user_1");
+            assertNull(dm.getProperty(SCHEMA, "company"));
+
+            // our own invalidations are ignored
+            DirectoryServiceImpl service = (DirectoryServiceImpl) Framework.getRuntime().getComponent(
+                    DirectoryService.NAME);
+            DirectoryInvalidation invalidation = new DirectoryInvalidation(
+                    "userDirectory", Arrays.asList("user_1"));
+            invalidation.setNodeId(service.getNodeId());
+            service.invalidationReceived(invalidation);
+            dm = session.getEntry("user_1");
+            assertNull(dm.getProperty(SCHEMA, "company"));
+
+            // the ones from the other node are applied
+            invalidation = new DirectoryInvalidation("userDirectory",
+                    Arrays.asList("user_1"));
+            invalidation.setNodeId("peer");
+            service.invalidationReceived(invalidation);
+            dm = session.getEntry("user_1");
+            assertEquals("bar", dm.getProperty(SCHEMA, "company"));
+        } finally {
+            session.close();
+        }
+    }
+
+}
@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,12 +32,20 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.DefaultComponent;
 
 /**
  * Implementation of the {@link OAuthConsumerRegistry} Service. It's basically
  * a simple Storage API on top of an SQL Directory.
+ * <p>
+ * The directory entries are cached (unknown consumers as well), and removed
+ * from the cache when the consumer is stored or deleted through this service.
+ * The cache is local to each instance: in a cluster, a consumer deleted on
+ * another node is still known here until it expires from the cache, so the
+ * cache TTL is kept short.
  *
  * @author tiry
  */
@@ -46,6 +56,74 @@ public class OAuthConsumerRegistryImpl extends DefaultComponent implements
 
     public static final String DIRECTORY_NAME = "oauthConsumers";
 
+    /**
+     * Framework property holding the number of seconds a consumer read from
+     * the directory is cached, 0 to disable the cache. This is also how long
+     * a consumer deleted on another node of a cluster stays known on this one.
+     *
+     * @since 5.7.3
+     */
+    public static final String CACHE_TTL_PROPERTY = "org.nuxeo.ecm.platform.oauth.consumerCacheTTL";
+
+    /**
+     * @since 5.7.3
+     */
+    public static final long DEFAULT_CACHE_TTL = 10;
+
+    /**
+     * @since 5.7.3
+     */
+    public static final int CACHE_SIZE = 1000;
+
+    /**
+     * Cache of the directory entries by consumer key, {@code null} if
+     * disabled. The entries are cached rather than the consumers, as callers
+     * may modify the returned consumer and the key type changes its
+     * properties.
+     *
+     * @since 5.7.3
+     */
+    protected ConcurrentLRUCache<String, CachedEntry> cache;
+
+    // bumped on each invalidation so that entries read from the directory
+    // before it are not cached afterwards
+    protected final AtomicLong invalidations = new AtomicLong();
+
+    @Override
+    public void activate(ComponentContext context) throws Exception {
+        long ttl = DEFAULT_CACHE_TTL;
+        String value = Framework.getProperty(CACHE_TTL_PROPERTY);
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                ttl = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.error("Invalid value for " + CACHE_TTL_PROPERTY + ": "
+                        + value);
+            }
+        }
+        if (ttl > 0) {
+            cache = new ConcurrentLRUCache<String, CachedEntry>(CACHE_SIZE,
+                    TimeUnit.SECONDS.toNanos(ttl), "nuxeo.oauth.consumers.cache");
+        }
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) throws Exception {
+        cache = null;
+    }
+
+    /**
+     * Removes a consumer from the cache.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidate(String consumerKey) {
+        invalidations.incrementAndGet();
+        if (cache != null && consumerKey != null) {
+            cache.remove(consumerKey);
+        }
+    }
+
     public NuxeoOAuthConsumer getConsumer(String consumerKey, String keyType) {
         try {
             NuxeoOAuthConsumer consumer = getEntry(consumerKey, keyType);
@@ -64,17 +142,49 @@ public class OAuthConsumerRegistryImpl extends DefaultComponent implements
 
     protected NuxeoOAuthConsumer getEntry(String consumerKey, String keyType)
             throws Exception {
+        if (consumerKey == null) {
+            return null;
+        }
+        ConcurrentLRUCache<String, CachedEntry> cache = this.cache;
+        if (cache == null) {
+            return getEntryFromDirectory(consumerKey, keyType);
+        }
+        CachedEntry cached = cache.get(consumerKey);
+        if (cached == null) {
+            long stamp = invalidations.get();
+            cached = new CachedEntry(readEntry(consumerKey));
+            if (invalidations.get() == stamp) {
+                cache.put(consumerKey, cached);
+            }
+        }
+        if (cached.entry == null) {
+            return null;
+        }
+        return NuxeoOAuthConsumer.createFromDirectoryEntry(cached.entry,
+                keyType);
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    protected NuxeoOAuthConsumer getEntryFromDirectory(String consumerKey,
+            String keyType) throws Exception {
+        DocumentModel entry = readEntry(consumerKey);
+        if (entry == null) {
+            return null;
+        }
+        return NuxeoOAuthConsumer.createFromDirectoryEntry(entry, keyType);
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    protected DocumentModel readEntry(String consumerKey) throws Exception {
         DirectoryService ds = Framework.getService(DirectoryService.class);
         Session session = null;
         try {
             session = ds.open(DIRECTORY_NAME);
-            DocumentModel entry = session.getEntry(consumerKey);
-            if (entry == null) {
-                return null;
-            }
-            NuxeoOAuthConsumer consumer = NuxeoOAuthConsumer.createFromDirectoryEntry(
-                    entry, keyType);
-            return consumer;
+            return session.getEntry(consumerKey);
         } finally {
             if (session != null) {
                 session.close();
@@ -95,6 +205,7 @@ public class OAuthConsumerRegistryImpl extends DefaultComponent implements
             consumer.asDocumentModel(entry);
             session.updateEntry(entry);
             session.commit();
+            invalidate(consumer.consumerKey);
             if (entry == null) {
                 return null;
             }
@@ -117,6 +228,7 @@ public class OAuthConsumerRegistryImpl extends DefaultComponent implements
                 session.deleteEntry(consumerKey);
                 session.commit();
             } finally {
+                invalidate(consumerKey);
                 if (session != null) {
                     session.close();
                 }
@@ -151,4 +263,18 @@ public class OAuthConsumerRegistryImpl extends DefaultComponent implements
         return result;
     }
 
+    /**
+     * Directory entry of a consumer, {@code null} if there is no such
+     * consumer.
+     */
+    protected static class CachedEntry {
+
+        protected final DocumentModel entry;
+
+        protected CachedEntry(DocumentModel entry) {
+            this.entry = entry;
+        }
+
+    }
+
 }
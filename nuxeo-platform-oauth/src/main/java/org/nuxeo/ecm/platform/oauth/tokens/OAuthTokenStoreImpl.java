@@ -25,6 +25,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,7 +35,9 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.DefaultComponent;
 
 /**
@@ -42,6 +46,13 @@ import org.nuxeo.runtime.model.DefaultComponent;
  * This service is responsible for managing storage of the {@link OAuthToken}.
  * A simple SQL Directory is used for ACCESS Token whereas a simple in memory
  * storage is used for REQUEST Tokens.
+ * <p>
+ * ACCESS Tokens read from the directory are cached, so that validating the
+ * signed requests does not hit the directory; they are removed from the cache
+ * when revoked through {@link #removeAccessToken}. The cache is local to each
+ * instance: in a cluster, a token revoked on another node is still accepted
+ * here until it expires from the cache, so the cache TTL is kept short. The
+ * REQUEST Tokens store is bounded and its tokens expire.
  *
  * @author tiry
  */
@@ -52,7 +63,104 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
 
     public static final String DIRECTORY_NAME = "oauthTokens";
 
-    protected Map<String, OAuthToken> requestTokenStore = new HashMap<String, OAuthToken>();
+    /**
+     * Framework property holding the number of seconds an ACCESS Token read
+     * from the directory is cached, 0 to disable the cache. This is also how
+     * long a token revoked on another node of a cluster stays usable on this
+     * one.
+     *
+     * @since 5.7.3
+     */
+    public static final String ACCESS_TOKEN_CACHE_TTL_PROPERTY = "org.nuxeo.ecm.platform.oauth.accessTokenCacheTTL";
+
+    /**
+     * Framework property holding the number of seconds a REQUEST Token can be
+     * used to get an ACCESS Token.
+     *
+     * @since 5.7.3
+     */
+    public static final String REQUEST_TOKEN_TTL_PROPERTY = "org.nuxeo.ecm.platform.oauth.requestTokenTTL";
+
+    /**
+     * @since 5.7.3
+     */
+    public static final long DEFAULT_ACCESS_TOKEN_CACHE_TTL = 10;
+
+    /**
+     * @since 5.7.3
+     */
+    public static final long DEFAULT_REQUEST_TOKEN_TTL = 3600;
+
+    /**
+     * @since 5.7.3
+     */
+    public static final int ACCESS_TOKEN_CACHE_SIZE = 5000;
+
+    /**
+     * @since 5.7.3
+     */
+    public static final int MAX_REQUEST_TOKENS = 10000;
+
+    protected ConcurrentLRUCache<String, OAuthToken> requestTokenStore;
+
+    /**
+     * Cache of the ACCESS Tokens directory entries, {@code null} if disabled.
+     * The entries are cached rather than the tokens, as callers may modify the
+     * returned token.
+     *
+     * @since 5.7.3
+     */
+    protected ConcurrentLRUCache<String, DocumentModel> accessTokenCache;
+
+    // bumped on each invalidation so that tokens read from the directory
+    // before it are not cached afterwards
+    protected final AtomicLong accessTokenInvalidations = new AtomicLong();
+
+    @Override
+    public void activate(ComponentContext context) throws Exception {
+        requestTokenStore = new ConcurrentLRUCache<String, OAuthToken>(
+                MAX_REQUEST_TOKENS, TimeUnit.SECONDS.toNanos(getSeconds(
+                        REQUEST_TOKEN_TTL_PROPERTY, DEFAULT_REQUEST_TOKEN_TTL)),
+                "nuxeo.oauth.requesttokens");
+        long ttl = getSeconds(ACCESS_TOKEN_CACHE_TTL_PROPERTY,
+                DEFAULT_ACCESS_TOKEN_CACHE_TTL);
+        if (ttl > 0) {
+            accessTokenCache = new ConcurrentLRUCache<String, DocumentModel>(
+                    ACCESS_TOKEN_CACHE_SIZE, TimeUnit.SECONDS.toNanos(ttl),
+                    "nuxeo.oauth.accesstokens.cache");
+        }
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) throws Exception {
+        requestTokenStore = null;
+        accessTokenCache = null;
+    }
+
+    protected static long getSeconds(String property, long defaultValue) {
+        String value = Framework.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for " + property + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Removes an ACCESS Token from the cache.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidateAccessToken(String token) {
+        accessTokenInvalidations.incrementAndGet();
+        if (accessTokenCache != null && token != null) {
+            accessTokenCache.remove(token);
+        }
+    }
 
     @Override
     public OAuthToken addVerifierToRequestToken(String token, Long duration) {
@@ -125,7 +233,9 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
             if (entries.size() > 1) {
                 log.error("Found several tokens");
             }
-            session.deleteEntry(entries.get(0));
+            DocumentModel entry = entries.get(0);
+            session.deleteEntry(entry);
+            invalidateAccessToken(entry.getId());
         } finally {
             if (session != null) {
                 session.close();
@@ -170,6 +280,23 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
         }
     }
 
+    /**
+     * @since 5.7.3
+     */
+    protected DocumentModel getTokenEntryFromDirectory(String token)
+            throws Exception {
+        DirectoryService ds = Framework.getService(DirectoryService.class);
+        Session session = null;
+        try {
+            session = ds.open(DIRECTORY_NAME);
+            return session.getEntry(token);
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
     protected NuxeoOAuthToken getTokenFromDirectoryEntry(DocumentModel entry)
             throws ClientException {
         return new NuxeoOAuthToken(entry);
@@ -191,6 +318,7 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
             aToken.updateEntry(entry);
             session.updateEntry(entry);
             session.commit();
+            invalidateAccessToken(aToken.getToken());
 
             return getTokenFromDirectoryEntry(session.getEntry(aToken.getToken()));
         } finally {
@@ -217,9 +345,26 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
 
     @Override
     public OAuthToken getAccessToken(String token) {
-
+        if (token == null) {
+            return null;
+        }
+        ConcurrentLRUCache<String, DocumentModel> cache = accessTokenCache;
         try {
-            return getTokenFromDirectory(token);
+            if (cache == null) {
+                return getTokenFromDirectory(token);
+            }
+            DocumentModel entry = cache.get(token);
+            if (entry == null) {
+                long invalidations = accessTokenInvalidations.get();
+                entry = getTokenEntryFromDirectory(token);
+                if (entry == null) {
+                    return null;
+                }
+                if (accessTokenInvalidations.get() == invalidations) {
+                    cache.put(token, entry);
+                }
+            }
+            return getTokenFromDirectoryEntry(entry);
         } catch (Exception e) {
             log.error("Error while accessing Token SQL storage", e);
             return null;
@@ -228,6 +373,9 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
 
     @Override
     public OAuthToken getRequestToken(String token) {
+        if (token == null) {
+            return null;
+        }
         return requestTokenStore.get(token);
     }
 
@@ -296,6 +444,8 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
             session.deleteEntry(token);
             session.commit();
         } finally {
+            // also when the deletion failed, as the entry may be gone anyway
+            invalidateAccessToken(token);
             if (session != null) {
                 session.close();
             }
@@ -304,7 +454,9 @@ public class OAuthTokenStoreImpl extends DefaultComponent implements
 
     @Override
     public void removeRequestToken(String token) {
-        requestTokenStore.remove(token);
+        if (token != null) {
+            requestTokenStore.remove(token);
+        }
     }
 
 }
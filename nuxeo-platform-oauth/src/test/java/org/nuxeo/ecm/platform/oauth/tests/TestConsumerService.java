@@ -25,8 +25,11 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 import org.nuxeo.ecm.core.storage.sql.DatabaseHelper;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.platform.oauth.consumers.NuxeoOAuthConsumer;
 import org.nuxeo.ecm.platform.oauth.consumers.OAuthConsumerRegistry;
+import org.nuxeo.ecm.platform.oauth.consumers.OAuthConsumerRegistryImpl;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.NXRuntimeTestCase;
 
@@ -91,4 +94,35 @@ public class TestConsumerService extends NXRuntimeTestCase {
         assertNotNull(consumerRegistry.getConsumer("foo2"));
 
     }
+
+    @Test
+    public void testConsumerCache() throws Exception {
+        OAuthConsumerRegistry consumerRegistry = Framework.getLocalService(OAuthConsumerRegistry.class);
+
+        // unknown consumers are cached too
+        assertNull(consumerRegistry.getConsumer("foo"));
+        consumerRegistry.storeConsumer(new NuxeoOAuthConsumer(null, "foo",
+                "bar", null));
+        NuxeoOAuthConsumer consumer = consumerRegistry.getConsumer("foo");
+        assertNotNull(consumer);
+        assertEquals("bar", consumer.consumerSecret);
+
+        // remove the entry behind the back of the registry: the cached
+        // consumer is still returned
+        DirectoryService ds = Framework.getService(DirectoryService.class);
+        Session session = ds.open(OAuthConsumerRegistryImpl.DIRECTORY_NAME);
+        try {
+            session.deleteEntry("foo");
+            session.commit();
+        } finally {
+            session.close();
+        }
+        consumer = consumerRegistry.getConsumer("foo");
+        assertNotNull(consumer);
+        // each caller gets its own instance
+        assertNotSame(consumer, consumerRegistry.getConsumer("foo"));
+
+        consumerRegistry.deleteConsumer("foo");
+        assertNull(consumerRegistry.getConsumer("foo"));
+    }
 }
@@ -23,6 +23,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 import org.nuxeo.ecm.core.storage.sql.DatabaseHelper;
+import org.nuxeo.ecm.platform.oauth.tokens.NuxeoOAuthToken;
 import org.nuxeo.ecm.platform.oauth.tokens.OAuthToken;
 import org.nuxeo.ecm.platform.oauth.tokens.OAuthTokenStore;
 import org.nuxeo.runtime.api.Framework;
@@ -85,4 +86,36 @@ public class TestTokenService extends NXRuntimeTestCase {
 
     }
 
+    @Test
+    public void testAccessTokenCache() throws Exception {
+        OAuthTokenStore tokenStore = Framework.getLocalService(OAuthTokenStore.class);
+        OAuthToken rToken = tokenStore.createRequestToken("toto", null);
+        rToken = tokenStore.addVerifierToRequestToken(rToken.getToken(),
+                Long.valueOf(0));
+        String token = tokenStore.createAccessTokenFromRequestToken(rToken).getToken();
+
+        NuxeoOAuthToken aToken = (NuxeoOAuthToken) tokenStore.getAccessToken(token);
+        assertNotNull(aToken);
+        // each caller gets its own token, changes are not seen by the others
+        aToken.setNuxeoLogin("somebody");
+        OAuthToken other = tokenStore.getAccessToken(token);
+        assertNotSame(aToken, other);
+        assertNull(other.getNuxeoLogin());
+
+        // revocation is visible at once
+        tokenStore.removeAccessToken(token);
+        assertNull(tokenStore.getAccessToken(token));
+        assertNull(tokenStore.getAccessToken(null));
+    }
+
+    @Test
+    public void testRequestTokenRemoval() throws Exception {
+        OAuthTokenStore tokenStore = Framework.getLocalService(OAuthTokenStore.class);
+        OAuthToken rToken = tokenStore.createRequestToken("toto", null);
+        assertSame(rToken, tokenStore.getRequestToken(rToken.getToken()));
+        tokenStore.removeRequestToken(rToken.getToken());
+        assertNull(tokenStore.getRequestToken(rToken.getToken()));
+        assertNull(tokenStore.getRequestToken(null));
+    }
+
 }
@@ -19,6 +19,7 @@
 
 package org.nuxeo.ecm.platform.usermanager;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.nuxeo.ecm.core.api.ClientException;
@@ -41,7 +42,10 @@ public class DetachedNuxeoPrincipal implements NuxeoPrincipal {
         detachedPrincipal.password = principal.getPassword();
         detachedPrincipal.company = principal.getCompany();
         detachedPrincipal.groups = principal.getGroups();
-        detachedPrincipal.allGroups = principal.getAllGroups();
+        List<String> allGroups = principal.getAllGroups();
+        if (allGroups != null) {
+            detachedPrincipal.allGroups = HashedGroupList.of(allGroups);
+        }
         detachedPrincipal.roles = principal.getRoles();
         detachedPrincipal.isAdministrator = principal.isAdministrator();
         detachedPrincipal.isAnonymous = principal.isAnonymous();
@@ -126,11 +130,11 @@ public class DetachedNuxeoPrincipal implements NuxeoPrincipal {
     }
 
     public List<String> getAllGroups() {
-        return allGroups;
+        return allGroups == null ? null : new ArrayList<String>(allGroups);
     }
 
     public boolean isMemberOf(String group) {
-        throw new UnsupportedOperationException();
+        return allGroups != null && allGroups.contains(group);
     }
 
     public List<String> getRoles() {
@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.util.List;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Optional interface of a {@link UserManager} able to resolve the transitive
+ * closures of the group hierarchy without loading each group of the path.
+ * <p>
+ * {@link NuxeoPrincipalImpl} walks the parent groups one by one when the user
+ * manager does not implement it.
+ *
+ * @since 5.7.3
+ */
+public interface GroupHierarchyResolver {
+
+    /**
+     * Returns the groups the given group belongs to, directly or through
+     * other groups.
+     *
+     * @param groupId ID of the group
+     * @return the ancestor groups, nearest first
+     */
+    List<String> getAncestorGroups(String groupId) throws ClientException;
+
+    /**
+     * Returns the sub-groups of the given group, direct or not.
+     *
+     * @param groupId ID of the group
+     * @return the descendant groups, nearest first
+     */
+    List<String> getDescendantGroups(String groupId) throws ClientException;
+
+}
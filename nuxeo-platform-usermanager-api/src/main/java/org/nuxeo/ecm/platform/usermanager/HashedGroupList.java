@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Immutable list of group names backed by a hash set, used to hold the
+ * transitive groups of a principal.
+ * <p>
+ * {@link #contains} is a constant time lookup that does not allocate, which
+ * matters as security checks test the membership of a principal for each ACE
+ * of each document. Names are interned, so that the many principals sharing
+ * the same groups do not each keep their own copy of the strings.
+ *
+ * @since 5.7.3
+ */
+public final class HashedGroupList extends AbstractList<String> implements
+        RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final HashedGroupList EMPTY = new HashedGroupList(
+            new String[0]);
+
+    private final String[] groups;
+
+    private final transient Set<String> set;
+
+    private HashedGroupList(String[] groups) {
+        this.groups = groups;
+        set = new HashSet<String>(Math.max(16, groups.length * 2));
+        for (String group : groups) {
+            set.add(group);
+        }
+    }
+
+    /**
+     * Returns an immutable hashed list of the given groups, in iteration
+     * order. Duplicates and {@code null} names are skipped.
+     */
+    public static HashedGroupList of(Collection<String> groups) {
+        if (groups instanceof HashedGroupList) {
+            return (HashedGroupList) groups;
+        }
+        if (groups == null || groups.isEmpty()) {
+            return EMPTY;
+        }
+        Set<String> seen = new HashSet<String>(groups.size() * 2);
+        String[] array = new String[groups.size()];
+        int size = 0;
+        for (String group : groups) {
+            if (group != null && seen.add(group)) {
+                array[size++] = group.intern();
+            }
+        }
+        if (size < array.length) {
+            String[] trimmed = new String[size];
+            System.arraycopy(array, 0, trimmed, 0, size);
+            array = trimmed;
+        }
+        return new HashedGroupList(array);
+    }
+
+    @Override
+    public String get(int index) {
+        return groups[index];
+    }
+
+    @Override
+    public int size() {
+        return groups.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return set.contains(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!set.contains(o)) {
+            return -1;
+        }
+        return super.indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // no duplicates
+        return indexOf(o);
+    }
+
+    // the hash set is not serialized, rebuild it
+    private Object readResolve() throws ObjectStreamException {
+        String[] array = new String[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            array[i] = groups[i].intern();
+        }
+        return new HashedGroupList(array);
+    }
+
+}
@@ -23,6 +23,7 @@ import java.security.Principal;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -45,7 +46,7 @@ import org.nuxeo.runtime.api.Framework;
 /**
  * @author <a href="mailto:glefter@nuxeo.com">George Lefter</a>
  */
-public class NuxeoPrincipalImpl implements NuxeoPrincipal {
+public class NuxeoPrincipalImpl implements NuxeoPrincipal, Cloneable {
 
     private static final long serialVersionUID = 1791676740406045594L;
 
@@ -53,12 +54,13 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
 
     protected UserConfig config = UserConfig.DEFAULT;
 
-    public final List<String> roles = new LinkedList<String>();
+    public List<String> roles = new ArrayList<String>();
 
     // group not stored in the backend and added at login time
-    public List<String> virtualGroups = new LinkedList<String>();
+    public List<String> virtualGroups = new ArrayList<String>();
 
-    // transitive closure of the "member of group" relation
+    // transitive closure of the "member of group" relation, a
+    // HashedGroupList once computed
     public List<String> allGroups;
 
     public final boolean isAnonymous;
@@ -114,6 +116,31 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
         this.isAdministrator = isAdministrator;
     }
 
+    /**
+     * Returns a copy of this principal that can be modified independently,
+     * without recomputing its groups. The copy has the same class as this
+     * principal.
+     * <p>
+     * Subclasses holding mutable state should override this method to copy
+     * it as well.
+     *
+     * @since 5.7.3
+     */
+    public NuxeoPrincipalImpl copy() throws ClientException {
+        NuxeoPrincipalImpl copy;
+        try {
+            copy = (NuxeoPrincipalImpl) clone();
+            copy.setModel(model.clone(), false);
+        } catch (CloneNotSupportedException e) {
+            // will never happen as long a DocumentModelImpl is used
+            throw new ClientException(e);
+        }
+        copy.roles = new ArrayList<String>(roles);
+        copy.virtualGroups = new ArrayList<String>(virtualGroups);
+        // allGroups is immutable, it is shared
+        return copy;
+    }
+
     public void setConfig(UserConfig config) {
         this.config = config;
     }
@@ -216,7 +243,7 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
 
     @SuppressWarnings("unchecked")
     public List<String> getGroups() {
-        List<String> groups = new LinkedList<String>();
+        List<String> groups = new ArrayList<String>();
         List<String> storedGroups;
         try {
             storedGroups = (List<String>) dataModel.getData(config.groupsKey);
@@ -304,11 +331,16 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
     }
 
     public boolean isMemberOf(String group) {
+        // constant time for a HashedGroupList
         return allGroups.contains(group);
     }
 
+    /**
+     * Returns a copy of the transitive groups of the principal, callers may
+     * modify it.
+     */
     public List<String> getAllGroups() {
-        return allGroups;
+        return allGroups == null ? null : new ArrayList<String>(allGroups);
     }
 
     public void updateAllGroups() throws ClientException {
@@ -318,57 +350,65 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
         } catch (Exception e) {
             throw new ClientException(e);
         }
+        // parent groups are resolved in memory when the user manager can,
+        // otherwise they are loaded one by one
+        GroupHierarchyResolver resolver = userManager instanceof GroupHierarchyResolver ? (GroupHierarchyResolver) userManager
+                : null;
         Set<String> checkedGroups = new HashSet<String>();
-        List<String> groupsToProcess = new ArrayList<String>();
-        List<String> resultingGroups = new ArrayList<String>();
-        groupsToProcess.addAll(getGroups());
-
+        Set<String> resultingGroups = new LinkedHashSet<String>();
+        List<String> groupsToProcess = new LinkedList<String>(getGroups());
         while (!groupsToProcess.isEmpty()) {
             String groupName = groupsToProcess.remove(0);
-            if (!checkedGroups.contains(groupName)) {
-                checkedGroups.add(groupName);
-                NuxeoGroup nxGroup = null;
-                if (userManager != null) {
-                    try {
-                        nxGroup = userManager.getGroup(groupName);
-                    } catch (DirectoryException de) {
-                        if (virtualGroups.contains(groupName)) {
-                            // do not fail while retrieving a virtual group
-                            log.warn("Failed to get group '"
-                                    + groupName
-                                    + "' due to '"
-                                    + de.getMessage()
-                                    + "': permission resolution involving groups may not be correct");
-                            nxGroup = null;
-                        } else {
-                            throw de;
-                        }
-                    }
-                }
-                if (nxGroup == null) {
+            if (!checkedGroups.add(groupName)
+                    || resultingGroups.contains(groupName)) {
+                // already reached through another group
+                continue;
+            }
+            NuxeoGroup nxGroup = null;
+            if (userManager != null) {
+                try {
+                    nxGroup = userManager.getGroup(groupName);
+                } catch (DirectoryException de) {
                     if (virtualGroups.contains(groupName)) {
-                        // just add the virtual group as is
-                        resultingGroups.add(groupName);
-                    } else if (userManager != null) {
-                        // XXX this should only happens in case of
-                        // inconsistency in DB
-                        log.error("User " + getName() + " references the "
-                                + groupName + " group that does not exists");
+                        // do not fail while retrieving a virtual group
+                        log.warn("Failed to get group '"
+                                + groupName
+                                + "' due to '"
+                                + de.getMessage()
+                                + "': permission resolution involving groups may not be correct");
+                        nxGroup = null;
+                    } else {
+                        throw de;
                     }
+                }
+            }
+            if (nxGroup == null) {
+                if (virtualGroups.contains(groupName)) {
+                    // just add the virtual group as is
+                    resultingGroups.add(groupName);
+                } else if (userManager != null) {
+                    // XXX this should only happens in case of
+                    // inconsistency in DB
+                    log.error("User " + getName() + " references the "
+                            + groupName + " group that does not exists");
+                }
+            } else {
+                // fetch the group name from the returned entry in case
+                // it does not have the same case than the actual entry in
+                // directory (for case insensitive directories)
+                resultingGroups.add(nxGroup.getName());
+                if (resolver != null) {
+                    resultingGroups.addAll(resolver.getAncestorGroups(nxGroup.getName()));
                 } else {
                     groupsToProcess.addAll(nxGroup.getParentGroups());
-                    // fetch the group name from the returned entry in case
-                    // it does not have the same case than the actual entry in
-                    // directory (for case insensitive directories)
-                    resultingGroups.add(nxGroup.getName());
-                    // XXX: maybe remove group from virtual groups if it
-                    // actually exists? otherwise it would be ignored when
-                    // setting groups
                 }
+                // XXX: maybe remove group from virtual groups if it
+                // actually exists? otherwise it would be ignored when
+                // setting groups
             }
         }
 
-        allGroups = new ArrayList<String>(resultingGroups);
+        allGroups = HashedGroupList.of(resultingGroups);
 
         // set isAdministrator boolean according to groups declared on user
         // manager
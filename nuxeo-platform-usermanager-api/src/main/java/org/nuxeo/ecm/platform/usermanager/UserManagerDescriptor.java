@@ -187,6 +187,42 @@ public class UserManagerDescriptor implements Serializable {
     @XNode("digestAuthRealm")
     public String digestAuthRealm;
 
+    /**
+     * Maximum number of principals kept in cache, 0 (the default) to disable
+     * the cache.
+     *
+     * @since 5.7.3
+     */
+    @XNode("principalCacheMaxSize")
+    public Integer principalCacheMaxSize;
+
+    /**
+     * Time in seconds after which a cached principal is recomputed, 0 for no
+     * expiration.
+     *
+     * @since 5.7.3
+     */
+    @XNode("principalCacheTimeout")
+    public Integer principalCacheTimeout;
+
+    /**
+     * Maximum number of successful authentications kept in cache, 0 (the
+     * default) to disable the cache.
+     *
+     * @since 5.7.3
+     */
+    @XNode("authenticationCacheMaxSize")
+    public Integer authenticationCacheMaxSize;
+
+    /**
+     * Time in seconds during which a successful authentication is reused
+     * without asking the directory again.
+     *
+     * @since 5.7.3
+     */
+    @XNode("authenticationCacheTimeout")
+    public Integer authenticationCacheTimeout;
+
     /**
      * Merge with data from another descriptor.
      */
@@ -297,6 +333,18 @@ public class UserManagerDescriptor implements Serializable {
         if (other.digestAuthRealm != null) {
             digestAuthRealm = other.digestAuthRealm;
         }
+        if (other.principalCacheMaxSize != null) {
+            principalCacheMaxSize = other.principalCacheMaxSize;
+        }
+        if (other.principalCacheTimeout != null) {
+            principalCacheTimeout = other.principalCacheTimeout;
+        }
+        if (other.authenticationCacheMaxSize != null) {
+            authenticationCacheMaxSize = other.authenticationCacheMaxSize;
+        }
+        if (other.authenticationCacheTimeout != null) {
+            authenticationCacheTimeout = other.authenticationCacheTimeout;
+        }
     }
 
 }
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class TestHashedGroupList {
+
+    private static final Log log = LogFactory.getLog(TestHashedGroupList.class);
+
+    @Test
+    public void testList() throws Exception {
+        List<String> groups = HashedGroupList.of(Arrays.asList("a", "b", null,
+                "a", "c"));
+        assertEquals(Arrays.asList("a", "b", "c"), groups);
+        assertTrue(groups.contains("b"));
+        assertFalse(groups.contains("d"));
+        assertFalse(groups.contains(null));
+        assertEquals(2, groups.indexOf("c"));
+        assertEquals(-1, groups.indexOf("d"));
+        assertSame(groups, HashedGroupList.of(groups));
+        assertSame(HashedGroupList.EMPTY,
+                HashedGroupList.of(new ArrayList<String>()));
+        // names are interned
+        assertSame("b", groups.get(1));
+        assertSame("b", HashedGroupList.of(Arrays.asList(new String("b"))).get(0));
+        try {
+            groups.add("d");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        List<String> groups = HashedGroupList.of(Arrays.asList("a", "b"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(groups);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                baos.toByteArray()));
+        @SuppressWarnings("unchecked")
+        List<String> read = (List<String>) ois.readObject();
+        assertEquals(groups, read);
+        assertTrue(read.contains("b"));
+        assertSame("b", read.get(1));
+    }
+
+    /**
+     * Probe standing for a group name, counting the comparisons done to find
+     * it.
+     */
+    static class CountingProbe {
+
+        final String name;
+
+        int comparisons;
+
+        CountingProbe(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            comparisons++;
+            return name.equals(other);
+        }
+    }
+
+    @Test
+    public void testMembershipCheckDoesNotScan() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            names.add("group-" + i);
+        }
+        List<String> hashed = HashedGroupList.of(names);
+
+        CountingProbe member = new CountingProbe("group-200");
+        assertTrue(hashed.contains(member));
+        // a list would have compared it with the 200 previous groups
+        assertEquals(1, member.comparisons);
+
+        CountingProbe other = new CountingProbe("group-1000");
+        assertFalse(hashed.contains(other));
+        assertEquals(0, other.comparisons);
+    }
+
+    /**
+     * Compares membership checks of a principal in 250 groups, as done for
+     * each ACE during security checks, against the previous ArrayList.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    public void testBenchmarkMembershipCheck() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            names.add("group-" + i);
+        }
+        List<String> list = new ArrayList<String>(names);
+        List<String> hashed = HashedGroupList.of(names);
+        // ACEs mostly reference groups the principal is not a member of
+        String[] aces = new String[20];
+        for (int i = 0; i < aces.length; i++) {
+            aces[i] = "group-" + (i % 2 == 0 ? i * 10 : 1000 + i);
+        }
+        int checks = 200000;
+        // warm up
+        assertEquals(countMatches(list, aces, checks),
+                countMatches(hashed, aces, checks));
+
+        long t0 = System.nanoTime();
+        countMatches(list, aces, checks);
+        long listTime = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        countMatches(hashed, aces, checks);
+        long hashedTime = System.nanoTime() - t0;
+        log.info(String.format("%s ACE checks against 250 groups: "
+                + "ArrayList %sms, HashedGroupList %sms", checks
+                * aces.length, listTime / 1000000, hashedTime / 1000000));
+    }
+
+    protected int countMatches(List<String> groups, String[] aces, int checks) {
+        int count = 0;
+        for (int i = 0; i < checks; i++) {
+            for (String ace : aces) {
+                if (groups.contains(ace)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+}
@@ -19,6 +19,8 @@
 
 package org.nuxeo.ecm.platform.usermanager;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -63,4 +65,32 @@ public class TestNuxeoPrincipalImpl extends NXRuntimeTestCase {
         // different names, as that doesn't have to be true
     }
 
+    @Test
+    public void testCopy() throws Exception {
+        NuxeoPrincipalImpl a = new CustomPrincipal("foo");
+        a.setRoles(Arrays.asList("regular"));
+        a.setFirstName("Foo");
+        NuxeoPrincipalImpl b = a.copy();
+        assertSame(CustomPrincipal.class, b.getClass());
+        assertEquals(a, b);
+        assertEquals("Foo", b.getFirstName());
+
+        b.setFirstName("Bar");
+        b.setRoles(Arrays.asList("other"));
+        b.getVirtualGroups().add("vgroup");
+        assertEquals("Foo", a.getFirstName());
+        assertEquals(Arrays.asList("regular"), a.getRoles());
+        assertTrue(a.getVirtualGroups().isEmpty());
+    }
+
+    protected static class CustomPrincipal extends NuxeoPrincipalImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        public CustomPrincipal(String name) throws ClientException {
+            super(name, false, false, false);
+        }
+
+    }
+
 }
@@ -19,6 +19,7 @@
 package org.nuxeo.ecm.platform.computedgroups;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,6 +46,38 @@ public interface ComputedGroupsService {
      */
     void updateGroupsForUser(NuxeoPrincipalImpl nuxeoPrincipal);
 
+    /**
+     * Returns the computed groups of several users, keyed by user name.
+     * Computers implementing {@link BatchGroupComputer} are called once for
+     * all the users.
+     *
+     * @since 5.7.3
+     */
+    Map<String, List<String>> computeGroupsForUsers(
+            Collection<NuxeoPrincipalImpl> nuxeoPrincipals);
+
+    /**
+     * Updates the virtual groups of several users with their computed groups.
+     *
+     * @since 5.7.3
+     */
+    void updateGroupsForUsers(Collection<NuxeoPrincipalImpl> nuxeoPrincipals);
+
+    /**
+     * Removes the cached computed groups of the given user.
+     *
+     * @since 5.7.3
+     */
+    void invalidateComputedGroups(String username);
+
+    /**
+     * Removes all the cached computed groups, for instance after a bulk change
+     * of the documents or metadata the groups are computed from.
+     *
+     * @since 5.7.3
+     */
+    void invalidateAllComputedGroups();
+
     /**
      * Resolves a computed group by it's name.
      */
@@ -20,22 +20,33 @@ package org.nuxeo.ecm.platform.computedgroups;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.NuxeoGroup;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
 /**
  * {@link ComputedGroupsService} implementation
  *
@@ -55,6 +66,17 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
 
     protected boolean allowOverride = true;
 
+    /** @since 5.7.3 */
+    public static final int CACHE_MAX_SIZE = 1000;
+
+    /**
+     * Computed groups caches, keyed by computer name, for the computers
+     * having a cache timeout.
+     *
+     * @since 5.7.3
+     */
+    protected final Map<String, SegmentedLRUCache<String, List<String>>> caches = new ConcurrentHashMap<String, SegmentedLRUCache<String, List<String>>>();
+
     protected static Log log = LogFactory.getLog(ComputedGroupsServiceImpl.class);
 
     @Override
@@ -62,6 +84,7 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
         super.activate(context);
         computers = new HashMap<String, GroupComputerDescriptor>();
         computerNames = new ArrayList<String>();
+        caches.clear();
     }
 
     @Override
@@ -72,6 +95,7 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
         if (COMPUTER_EP.equals(extensionPoint)) {
             if (contribution instanceof GroupComputerDescriptor) {
                 GroupComputerDescriptor desc = (GroupComputerDescriptor) contribution;
+                caches.remove(desc.getName());
 
                 if (desc.isEnabled()) {
                     log.debug("Add " + desc.getName() + " from component " + contributor.getName());
@@ -111,8 +135,8 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
         List<String> userGroups = new ArrayList<String>();
         try {
             for (String computerName : computerNames) {
-                userGroups.addAll(computers.get(computerName).getComputer().getGroupsForUser(
-                        nuxeoPrincipal));
+                userGroups.addAll(getGroupsForUser(
+                        computers.get(computerName), nuxeoPrincipal));
             }
         } catch (Exception e) {
             log.error("Error while getting virtual groups for user "
@@ -121,6 +145,159 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
         return userGroups;
     }
 
+    protected List<String> getGroupsForUser(final GroupComputerDescriptor desc,
+            final NuxeoPrincipalImpl nuxeoPrincipal) throws Exception {
+        SegmentedLRUCache<String, List<String>> cache = getCache(desc);
+        if (cache == null) {
+            return nonNull(desc.getComputer().getGroupsForUser(nuxeoPrincipal));
+        }
+        return cache.get(nuxeoPrincipal.getName(),
+                new SegmentedLRUCache.Loader<String, List<String>>() {
+                    @Override
+                    public List<String> load(String username)
+                            throws DirectoryException {
+                        try {
+                            return immutable(desc.getComputer().getGroupsForUser(
+                                    nuxeoPrincipal));
+                        } catch (DirectoryException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new DirectoryException(e);
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public Map<String, List<String>> computeGroupsForUsers(
+            Collection<NuxeoPrincipalImpl> nuxeoPrincipals) {
+        Map<String, NuxeoPrincipalImpl> principals = new LinkedHashMap<String, NuxeoPrincipalImpl>();
+        Map<String, List<String>> usersGroups = new LinkedHashMap<String, List<String>>();
+        for (NuxeoPrincipalImpl nuxeoPrincipal : nuxeoPrincipals) {
+            principals.put(nuxeoPrincipal.getName(), nuxeoPrincipal);
+            usersGroups.put(nuxeoPrincipal.getName(), new ArrayList<String>());
+        }
+        try {
+            for (String computerName : computerNames) {
+                Map<String, List<String>> groups = getGroupsForUsers(
+                        computers.get(computerName), principals);
+                for (Entry<String, List<String>> entry : groups.entrySet()) {
+                    List<String> userGroups = usersGroups.get(entry.getKey());
+                    if (userGroups != null && entry.getValue() != null) {
+                        userGroups.addAll(entry.getValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error while getting virtual groups for users "
+                    + principals.keySet(), e);
+        }
+        return usersGroups;
+    }
+
+    protected Map<String, List<String>> getGroupsForUsers(
+            final GroupComputerDescriptor desc,
+            final Map<String, NuxeoPrincipalImpl> principals) throws Exception {
+        SegmentedLRUCache<String, List<String>> cache = getCache(desc);
+        if (cache == null) {
+            return loadGroupsForUsers(desc, principals.values());
+        }
+        return cache.getAll(principals.keySet(),
+                new SegmentedLRUCache.BulkLoader<String, List<String>>() {
+                    @Override
+                    public Map<String, List<String>> loadAll(
+                            Collection<String> usernames)
+                            throws DirectoryException {
+                        List<NuxeoPrincipalImpl> missing = new ArrayList<NuxeoPrincipalImpl>(
+                                usernames.size());
+                        for (String username : usernames) {
+                            missing.add(principals.get(username));
+                        }
+                        try {
+                            Map<String, List<String>> groups = loadGroupsForUsers(
+                                    desc, missing);
+                            for (String username : usernames) {
+                                // cache users without groups as well
+                                groups.put(username,
+                                        immutable(groups.get(username)));
+                            }
+                            return groups;
+                        } catch (DirectoryException e) {
+                            throw e;
+                        } catch (Exception e) {
+                            throw new DirectoryException(e);
+                        }
+                    }
+                });
+    }
+
+    protected Map<String, List<String>> loadGroupsForUsers(
+            GroupComputerDescriptor desc,
+            Collection<NuxeoPrincipalImpl> nuxeoPrincipals) throws Exception {
+        GroupComputer computer = desc.getComputer();
+        Map<String, List<String>> groups;
+        if (computer instanceof BatchGroupComputer) {
+            groups = new HashMap<String, List<String>>(
+                    ((BatchGroupComputer) computer).getGroupsForUsers(nuxeoPrincipals));
+        } else {
+            groups = new HashMap<String, List<String>>();
+            for (NuxeoPrincipalImpl nuxeoPrincipal : nuxeoPrincipals) {
+                groups.put(nuxeoPrincipal.getName(),
+                        nonNull(computer.getGroupsForUser(nuxeoPrincipal)));
+            }
+        }
+        return groups;
+    }
+
+    protected SegmentedLRUCache<String, List<String>> getCache(
+            GroupComputerDescriptor desc) {
+        int timeout = desc.getCacheTimeout();
+        if (timeout <= 0) {
+            return null;
+        }
+        String name = desc.getName();
+        SegmentedLRUCache<String, List<String>> cache = caches.get(name);
+        if (cache == null) {
+            synchronized (caches) {
+                cache = caches.get(name);
+                if (cache == null) {
+                    MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+                    cache = new SegmentedLRUCache<String, List<String>>(
+                            CACHE_MAX_SIZE, TimeUnit.SECONDS.toNanos(timeout),
+                            registry, MetricRegistry.name("nuxeo",
+                                    "computedgroups", name, "cache"));
+                    caches.put(name, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    protected static List<String> nonNull(List<String> groups) {
+        return groups == null ? Collections.<String> emptyList() : groups;
+    }
+
+    protected static List<String> immutable(List<String> groups) {
+        if (groups == null || groups.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(groups));
+    }
+
+    @Override
+    public void invalidateComputedGroups(String username) {
+        for (SegmentedLRUCache<String, List<String>> cache : caches.values()) {
+            cache.remove(username);
+        }
+    }
+
+    @Override
+    public void invalidateAllComputedGroups() {
+        for (SegmentedLRUCache<String, List<String>> cache : caches.values()) {
+            cache.clear();
+        }
+    }
+
     @Override
     public void updateGroupsForUser(
             NuxeoPrincipalImpl nuxeoPrincipal) {
@@ -136,6 +313,27 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
         }
     }
 
+    @Override
+    public void updateGroupsForUsers(
+            Collection<NuxeoPrincipalImpl> nuxeoPrincipals) {
+        Map<String, List<String>> computedGroups = computeGroupsForUsers(nuxeoPrincipals);
+        for (NuxeoPrincipalImpl nuxeoPrincipal : nuxeoPrincipals) {
+            try {
+                Set<String> virtualGroups = new HashSet<String>(
+                        nuxeoPrincipal.getVirtualGroups());
+                List<String> groups = computedGroups.get(nuxeoPrincipal.getName());
+                if (groups != null) {
+                    virtualGroups.addAll(groups);
+                }
+                nuxeoPrincipal.setVirtualGroups(new ArrayList<String>(
+                        virtualGroups));
+            } catch (ClientException e) {
+                log.error("Error while updating the virtual groups for user "
+                        + nuxeoPrincipal.getName(), e);
+            }
+        }
+    }
+
     public boolean allowGroupOverride() {
         return allowOverride;
     }
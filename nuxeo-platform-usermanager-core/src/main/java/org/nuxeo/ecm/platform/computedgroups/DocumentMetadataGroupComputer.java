@@ -19,8 +19,15 @@ package org.nuxeo.ecm.platform.computedgroups;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,19 +35,37 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.IterableQueryResult;
 import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
 import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.SimpleType;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.ecm.core.schema.types.primitives.StringType;
 import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
 import org.nuxeo.runtime.api.Framework;
 
 /**
  * Configurable Group Computer based on Metadata of Documents. Documents
  * Selection is managed by NXQL where clause.
+ * <p>
+ * When the where clause is a simple equality on the user name held by a
+ * scalar string property (for instance {@code dc:creator = '%s'}), the
+ * groups of several users are computed with a single query.
  *
  * @since 5.7.3
  */
-public class DocumentMetadataGroupComputer extends AbstractGroupComputer {
+public class DocumentMetadataGroupComputer extends AbstractGroupComputer
+        implements BatchGroupComputer {
 
     public static final Log log = LogFactory.getLog(DocumentMetadataGroupComputer.class);
 
+    // where clause of the form "[WHERE] prop = '%s'"
+    protected static final Pattern USER_EQUALITY = Pattern.compile(
+            "^\\s*(?:WHERE\\s+)?([\\w:]+)\\s*=\\s*'%s'\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    // maximum number of user names in a single IN clause
+    protected static final int BATCH_SIZE = 100;
+
     private String groupPattern;
 
     private String whereClause;
@@ -91,6 +116,29 @@ public class DocumentMetadataGroupComputer extends AbstractGroupComputer {
         return groupIds;
     }
 
+    @Override
+    public Map<String, List<String>> getGroupsForUsers(
+            Collection<NuxeoPrincipalImpl> users) throws Exception {
+        List<String> usernames = new ArrayList<String>(users.size());
+        for (NuxeoPrincipalImpl user : users) {
+            usernames.add(user.getName());
+        }
+        GetDocumentsFromUsernames runner = new GetDocumentsFromUsernames(
+                getRepository(), whereClause, usernames, xpath);
+        runner.runUnrestricted();
+
+        Map<String, List<String>> groups = new HashMap<String, List<String>>();
+        for (Entry<String, Set<String>> entry : runner.result.entrySet()) {
+            List<String> groupIds = new ArrayList<String>(
+                    entry.getValue().size());
+            for (String value : entry.getValue()) {
+                groupIds.add(getGroupIdFromValue(value));
+            }
+            groups.put(entry.getKey(), groupIds);
+        }
+        return groups;
+    }
+
     @Override
     public List<String> getParentsGroupNames(String groupID) throws Exception {
         return new ArrayList<String>();
@@ -132,16 +180,129 @@ public class DocumentMetadataGroupComputer extends AbstractGroupComputer {
             String whereClause = String.format(whereClausePattern, username);
             String query = String.format(QUERY_PATTERN, xpath, whereClause);
 
+            Set<String> values = new LinkedHashSet<String>();
             IterableQueryResult docs = session.queryAndFetch(query, "NXQL");
-            for (Map<String, Serializable> doc : docs) {
-                String value = (String) doc.get(xpath);
-                if (value != null && !value.isEmpty()
-                        && !result.contains(value)) {
-                    result.add(value);
+            try {
+                for (Map<String, Serializable> doc : docs) {
+                    String value = (String) doc.get(xpath);
+                    if (value != null && !value.isEmpty()) {
+                        values.add(value);
+                    }
                 }
+            } finally {
+                docs.close();
             }
+            result.addAll(values);
+        }
+    }
+
+    /**
+     * Fetches the values of several users in a single unrestricted session,
+     * with one query per {@link #BATCH_SIZE} users when the where clause is
+     * a simple equality on a scalar string property, one query per user
+     * otherwise.
+     */
+    protected class GetDocumentsFromUsernames extends
+            UnrestrictedSessionRunner {
+
+        private static final String BATCH_QUERY_PATTERN = "SELECT %s, %s "
+                + "FROM Document WHERE %s IN (%s)";
+
+        protected final List<String> usernames;
+
+        protected final String xpath;
 
+        protected final String whereClausePattern;
+
+        public final Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+
+        protected GetDocumentsFromUsernames(String repositoryName,
+                String whereClause, List<String> usernames, String xpath)
+                throws Exception {
+            super(repositoryName);
+            this.usernames = usernames;
+            whereClausePattern = whereClause;
+            this.xpath = xpath;
+        }
+
+        @Override
+        public void run() throws ClientException {
+            Matcher matcher = USER_EQUALITY.matcher(whereClausePattern);
+            // the user of each row can only be read back from a scalar
+            // property, and list properties do not compare the same way
+            if (!matcher.matches()
+                    || !isScalarStringProperty(matcher.group(1))) {
+                for (String username : usernames) {
+                    String query = String.format(
+                            GetDocumentsFromUsername.QUERY_PATTERN, xpath,
+                            String.format(whereClausePattern, username));
+                    fetch(query, username, null);
+                }
+                return;
+            }
+            String userProperty = matcher.group(1);
+            for (int i = 0; i < usernames.size(); i += BATCH_SIZE) {
+                StringBuilder in = new StringBuilder();
+                for (String username : usernames.subList(i,
+                        Math.min(i + BATCH_SIZE, usernames.size()))) {
+                    if (in.length() > 0) {
+                        in.append(", ");
+                    }
+                    in.append('\'').append(escape(username)).append('\'');
+                }
+                String query = String.format(BATCH_QUERY_PATTERN, xpath,
+                        userProperty, userProperty, in);
+                fetch(query, null, userProperty);
+            }
+        }
+
+        /**
+         * Collects the values of the query, for the given user or for the
+         * user held by the given property.
+         */
+        protected void fetch(String query, String username, String userProperty)
+                throws ClientException {
+            IterableQueryResult docs = session.queryAndFetch(query, "NXQL");
+            try {
+                for (Map<String, Serializable> doc : docs) {
+                    String value = (String) doc.get(xpath);
+                    if (value == null || value.isEmpty()) {
+                        continue;
+                    }
+                    String user = username != null ? username
+                            : (String) doc.get(userProperty);
+                    Set<String> values = result.get(user);
+                    if (values == null) {
+                        values = new LinkedHashSet<String>();
+                        result.put(user, values);
+                    }
+                    values.add(value);
+                }
+            } finally {
+                docs.close();
+            }
+        }
+    }
+
+    /**
+     * Tells whether the property is a schema field holding a single string.
+     */
+    protected static boolean isScalarStringProperty(String property) {
+        SchemaManager schemaManager = Framework.getLocalService(SchemaManager.class);
+        if (schemaManager == null) {
+            return false;
+        }
+        Field field = schemaManager.getField(property);
+        if (field == null) {
+            return false;
         }
+        Type type = field.getType();
+        return type.isSimpleType()
+                && ((SimpleType) type).getPrimitiveType() instanceof StringType;
+    }
+
+    protected static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
     }
 
     private String getRepository() {
@@ -47,6 +47,15 @@ public class GroupComputerDescriptor implements Serializable {
     @XNode("@enabled")
     protected boolean enabled = true;
 
+    /**
+     * Time in seconds during which the groups computed for a user are
+     * reused, 0 to compute them each time.
+     *
+     * @since 5.7.3
+     */
+    @XNode("cacheTimeout")
+    protected int cacheTimeout;
+
     public String getName() {
         if (name != null) {
             return name;
@@ -58,6 +67,13 @@ public class GroupComputerDescriptor implements Serializable {
         return enabled;
     }
 
+    /**
+     * @since 5.7.3
+     */
+    public int getCacheTimeout() {
+        return cacheTimeout;
+    }
+
     public GroupComputer getComputer() throws ClientException {
         if (groupComputer == null) {
             if (computerClass != null) {
@@ -45,6 +45,10 @@ public class UserMetadataGroupComputerDescriptor extends
     @XNode("@enabled")
     public boolean enabled = true;
 
+    /** @since 5.7.3 */
+    @XNode("@cacheTimeout")
+    public int cacheTimeout;
+
     @Override
     public String getName() {
         if (name != null) {
@@ -58,6 +62,11 @@ public class UserMetadataGroupComputerDescriptor extends
         return enabled;
     }
 
+    @Override
+    public int getCacheTimeout() {
+        return cacheTimeout;
+    }
+
     @Override
     public GroupComputer getComputer() throws ClientException {
         return new UserMetadataGroupComputer(xpath, groupPattern);
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.nuxeo.ecm.core.api.ClientRuntimeException;
+
+/**
+ * Password that was successfully checked against a directory for a user
+ * name, kept in the authentication cache of the {@link UserManagerImpl}.
+ * <p>
+ * Only a salted PBKDF2 hash of the password is kept, never the password
+ * itself, so that a heap dump does not disclose the credentials of the
+ * recently authenticated users.
+ *
+ * @since 5.7.3
+ */
+public class CachedCredential {
+
+    protected static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    protected static final int ITERATIONS = 1000;
+
+    protected static final int SALT_LENGTH = 16;
+
+    protected static final int KEY_LENGTH = 160;
+
+    protected static final SecureRandom RANDOM = new SecureRandom();
+
+    // as given at login, the cache being keyed by the lowercase name
+    protected final String username;
+
+    protected final byte[] salt;
+
+    protected final byte[] hash;
+
+    public CachedCredential(String username, String password) {
+        this.username = username;
+        salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        hash = hash(password, salt);
+    }
+
+    /**
+     * Checks if the given user name and password are the ones this
+     * credential was created with.
+     */
+    public boolean matches(String username, String password) {
+        return this.username.equals(username)
+                && MessageDigest.isEqual(hash, hash(password, salt));
+    }
+
+    protected static byte[] hash(String password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+                ITERATIONS, KEY_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new ClientRuntimeException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+}
@@ -0,0 +1,423 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.NuxeoGroup;
+
+/**
+ * In-memory index of the group hierarchy, answering the transitive closure of
+ * the parent groups (ancestors) and of the sub-groups (descendants) of a
+ * group.
+ * <p>
+ * Each group is loaded once through the {@link GroupLoader} and kept with its
+ * direct parents and sub-groups, group ids being shared with the ids of the
+ * loaded groups so that the closures of the different groups do not hold
+ * copies of them. The closures are computed in memory from these nodes and
+ * memoized.
+ * <p>
+ * When a group changes, only its node and the nodes linked to it are dropped
+ * and reloaded on demand, and only the memoized closures going through them
+ * are recomputed. Nodes and closures also expire after the configured
+ * timeout, to take into account changes made directly in the directories.
+ * <p>
+ * The number of nodes is bounded: beyond the maximum size, the expired nodes
+ * and then arbitrary ones are dropped, and reloaded when needed.
+ *
+ * @since 5.7.3
+ */
+public class GroupClosureIndex {
+
+    private static final Log log = LogFactory.getLog(GroupClosureIndex.class);
+
+    /**
+     * Loads a group, or returns {@code null} if it does not exist.
+     */
+    public interface GroupLoader {
+
+        NuxeoGroup getGroup(String groupId) throws ClientException;
+
+    }
+
+    protected static final String[] NO_IDS = new String[0];
+
+    protected final GroupLoader loader;
+
+    // maximum number of nodes, <= 0 means no limit
+    protected final int maxSize;
+
+    // time to live in nanoseconds, <= 0 means no expiration
+    protected volatile long ttlNanos;
+
+    protected final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+
+    // bumped on each change, so that the nodes and closures computed
+    // concurrently with it are not kept
+    protected final AtomicLong changes = new AtomicLong();
+
+    public GroupClosureIndex(GroupLoader loader, int maxSize, long ttlNanos) {
+        this.loader = loader;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+    }
+
+    public void setTimeToLive(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * Returns the groups the given group belongs to, directly or through
+     * other groups, nearest first. The group itself is not included.
+     */
+    public List<String> getAncestors(String groupId) throws ClientException {
+        return getClosure(groupId, true);
+    }
+
+    /**
+     * Returns the sub-groups of the given group, direct or not, nearest
+     * first. The group itself is not included.
+     */
+    public List<String> getDescendants(String groupId) throws ClientException {
+        return getClosure(groupId, false);
+    }
+
+    /**
+     * Drops the given group and the groups linked to it, and the closures of
+     * the other groups going through them.
+     */
+    public void invalidate(String groupId) {
+        if (groupId == null) {
+            return;
+        }
+        changes.incrementAndGet();
+        Set<String> dropped = new HashSet<String>();
+        dropped.add(groupId);
+        for (Iterator<Map.Entry<String, Node>> it = nodes.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Node> entry = it.next();
+            Node node = entry.getValue();
+            if (groupId.equals(entry.getKey()) || groupId.equals(node.id)
+                    || contains(node.parents, groupId)
+                    || contains(node.children, groupId)) {
+                it.remove();
+                dropped.add(entry.getKey());
+                if (node.id != null) {
+                    dropped.add(node.id);
+                }
+            }
+        }
+        dropClosures(dropped);
+    }
+
+    public void invalidateAll() {
+        changes.incrementAndGet();
+        nodes.clear();
+    }
+
+    /**
+     * Drops the memoized closures including one of the given groups: the
+     * ancestors of their descendants and the descendants of their ancestors.
+     */
+    protected void dropClosures(Set<String> groupIds) {
+        for (Node node : nodes.values()) {
+            if (includesAny(node.ancestors, groupIds)) {
+                node.ancestors = null;
+            }
+            if (includesAny(node.descendants, groupIds)) {
+                node.descendants = null;
+            }
+        }
+    }
+
+    protected static boolean includesAny(Closure closure, Set<String> groupIds) {
+        if (closure == null) {
+            return false;
+        }
+        for (String id : closure.ids) {
+            if (groupIds.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    protected List<String> getClosure(String groupId, boolean ancestors)
+            throws ClientException {
+        if (groupId == null) {
+            return Collections.emptyList();
+        }
+        Node node = getNode(groupId);
+        if (node.id == null) {
+            return Collections.emptyList();
+        }
+        long now = System.nanoTime();
+        Closure closure = ancestors ? node.ancestors : node.descendants;
+        if (closure == null || closure.isExpired(now, ttlNanos)) {
+            long stamp = changes.get();
+            closure = new Closure(computeClosure(node, ancestors), now);
+            node.setClosure(ancestors, closure);
+            if (changes.get() != stamp) {
+                // the groups changed meanwhile, it may not have been dropped
+                node.setClosure(ancestors, null);
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(closure.ids));
+    }
+
+    protected String[] computeClosure(Node start, boolean ancestors)
+            throws ClientException {
+        Set<String> result = new LinkedHashSet<String>();
+        Set<String> seen = new HashSet<String>();
+        seen.add(start.id);
+        Queue<String> queue = new ArrayDeque<String>();
+        queue.addAll(Arrays.asList(ancestors ? start.parents : start.children));
+        while (!queue.isEmpty()) {
+            String id = queue.poll();
+            if (!seen.add(id)) {
+                continue;
+            }
+            Node node = getNode(id);
+            if (node.id == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Group " + start.id + " is linked to group " + id
+                            + " that does not exist");
+                }
+                continue;
+            }
+            if (node.id.equals(start.id) || !result.add(node.id)) {
+                continue;
+            }
+            seen.add(node.id);
+            queue.addAll(Arrays.asList(ancestors ? node.parents
+                    : node.children));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    protected Node getNode(String groupId) throws ClientException {
+        long now = System.nanoTime();
+        Node node = nodes.get(groupId);
+        if (node != null && !node.isExpired(now, ttlNanos)) {
+            return node;
+        }
+        long stamp = changes.get();
+        NuxeoGroup group = loader.getGroup(groupId);
+        if (group == null) {
+            node = new Node(null, NO_IDS, NO_IDS, now);
+        } else {
+            node = new Node(intern(group.getName()),
+                    intern(group.getParentGroups()),
+                    intern(group.getMemberGroups()), now);
+        }
+        Node old = nodes.put(groupId, node);
+        if (changes.get() != stamp) {
+            // invalidated while loading
+            nodes.remove(groupId, node);
+            return node;
+        }
+        if (node.id != null) {
+            checkLinks(node, old);
+        } else if (old != null && old.id != null) {
+            // deleted
+            changes.incrementAndGet();
+            dropClosures(Collections.singleton(old.id));
+        }
+        if (old == null) {
+            evict(groupId, now);
+        }
+        return node;
+    }
+
+    /**
+     * Drops nodes if there are more than the maximum size, the expired ones
+     * first. The memoized closures of the remaining nodes stay valid, as the
+     * groups did not change.
+     */
+    protected void evict(String keep, long now) {
+        if (maxSize <= 0 || nodes.size() <= maxSize) {
+            return;
+        }
+        for (Iterator<Node> it = nodes.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now, ttlNanos)) {
+                it.remove();
+            }
+        }
+        // leave some room to not evict again on the next load
+        int target = maxSize - maxSize / 4;
+        for (Iterator<String> it = nodes.keySet().iterator(); it.hasNext()
+                && nodes.size() > target;) {
+            if (!keep.equals(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the linked nodes that were not updated when the given node
+     * changed, for instance the parent of a group having a new parent group.
+     */
+    protected void checkLinks(Node node, Node old) {
+        Set<String> dropped = new HashSet<String>();
+        for (String id : node.parents) {
+            Node parent = nodes.get(id);
+            if (parent != null && parent.id != null
+                    && !contains(parent.children, node.id)) {
+                nodes.remove(id, parent);
+                dropped.add(id);
+            }
+        }
+        for (String id : node.children) {
+            Node child = nodes.get(id);
+            if (child != null && child.id != null
+                    && !contains(child.parents, node.id)) {
+                nodes.remove(id, child);
+                dropped.add(id);
+            }
+        }
+        if (old != null && old.id != null) {
+            // links that disappeared
+            for (String id : old.parents) {
+                if (!contains(node.parents, id)) {
+                    nodes.remove(id);
+                    dropped.add(id);
+                }
+            }
+            for (String id : old.children) {
+                if (!contains(node.children, id)) {
+                    nodes.remove(id);
+                    dropped.add(id);
+                }
+            }
+        }
+        boolean changed = old != null
+                && (!Arrays.equals(node.parents, old.parents) || !Arrays.equals(
+                        node.children, old.children));
+        if (changed || !dropped.isEmpty()) {
+            changes.incrementAndGet();
+            dropped.add(node.id);
+            dropClosures(dropped);
+        }
+    }
+
+    protected String intern(String id) {
+        if (id == null) {
+            return null;
+        }
+        // no table of its own, that would keep the ids of the groups no
+        // longer indexed
+        Node node = nodes.get(id);
+        return node != null && id.equals(node.id) ? node.id : id;
+    }
+
+    protected String[] intern(Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return NO_IDS;
+        }
+        Set<String> set = new LinkedHashSet<String>(ids.size());
+        for (String id : ids) {
+            if (id != null) {
+                set.add(intern(id));
+            }
+        }
+        return set.toArray(new String[set.size()]);
+    }
+
+    protected static boolean contains(String[] ids, String id) {
+        for (String i : ids) {
+            if (i.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static class Node {
+
+        // canonical group name, null if the group does not exist
+        protected final String id;
+
+        protected final String[] parents;
+
+        protected final String[] children;
+
+        protected final long loaded;
+
+        protected volatile Closure ancestors;
+
+        protected volatile Closure descendants;
+
+        protected Node(String id, String[] parents, String[] children,
+                long loaded) {
+            this.id = id;
+            this.parents = parents;
+            this.children = children;
+            this.loaded = loaded;
+        }
+
+        protected boolean isExpired(long now, long ttl) {
+            return ttl > 0 && now - loaded > ttl;
+        }
+
+        protected void setClosure(boolean ancestors, Closure closure) {
+            if (ancestors) {
+                this.ancestors = closure;
+            } else {
+                descendants = closure;
+            }
+        }
+
+    }
+
+    protected static class Closure {
+
+        protected final String[] ids;
+
+        protected final long computed;
+
+        protected Closure(String[] ids, long computed) {
+            this.ids = ids;
+            this.computed = computed;
+        }
+
+        protected boolean isExpired(long now, long ttl) {
+            // the nodes it was computed from may have expired
+            return ttl > 0 && now - computed > ttl;
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventListener;
+
+/**
+ * Event listener that invalidates the principal and authentication caches and
+ * the group hierarchy index of the {@link UserManagerImpl} when a user or a
+ * group changes.
+ *
+ * @since 5.7.3
+ */
+public class PrincipalCacheFlusher implements EventListener {
+
+    @Override
+    public boolean aboutToHandleEvent(Event event) {
+        return false;
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        String id = event.getId();
+        boolean userChanged = UserManagerImpl.USERCHANGED_EVENT_ID.equals(id);
+        if (!userChanged && !UserManagerImpl.GROUPCHANGED_EVENT_ID.equals(id)) {
+            return;
+        }
+        UserManager userManager = Framework.getLocalService(UserManager.class);
+        if (!(userManager instanceof UserManagerImpl)) {
+            return;
+        }
+        UserManagerImpl userManagerImpl = (UserManagerImpl) userManager;
+        if (userChanged && event.getData() instanceof String) {
+            userManagerImpl.invalidatePrincipal((String) event.getData());
+            userManagerImpl.invalidateAuthentication((String) event.getData());
+        } else {
+            if (event.getData() instanceof String) {
+                userManagerImpl.invalidateGroup((String) event.getData());
+            }
+            // group membership is inherited, all the principals may change
+            userManagerImpl.invalidateAllPrincipals();
+        }
+    }
+
+}
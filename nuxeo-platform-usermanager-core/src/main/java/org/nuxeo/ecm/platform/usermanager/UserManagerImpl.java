@@ -31,6 +31,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,19 +54,27 @@ import org.nuxeo.ecm.core.api.security.ACP;
 import org.nuxeo.ecm.core.api.security.PermissionProvider;
 import org.nuxeo.ecm.core.api.security.SecurityConstants;
 import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.SegmentedLRUCache;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.platform.usermanager.exceptions.GroupAlreadyExistsException;
 import org.nuxeo.ecm.platform.usermanager.exceptions.UserAlreadyExistsException;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.services.event.Event;
 import org.nuxeo.runtime.services.event.EventService;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
 /**
  * Standard implementation of the Nuxeo UserManager.
  */
-public class UserManagerImpl implements UserManager, MultiTenantUserManager {
+public class UserManagerImpl implements UserManager, MultiTenantUserManager,
+        GroupHierarchyResolver {
 
     private static final long serialVersionUID = 1L;
 
@@ -94,6 +104,33 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     public static final String VIRTUAL_FIELD_FILTER_PREFIX = "__";
 
+    /**
+     * Opt-in, as the principals computed by subclasses (computed groups for
+     * instance) are then only refreshed when their entry expires.
+     *
+     * @since 5.7.3
+     */
+    public static final int DEFAULT_PRINCIPAL_CACHE_MAX_SIZE = 0;
+
+    /** @since 5.7.3 */
+    public static final int DEFAULT_PRINCIPAL_CACHE_TIMEOUT = 60;
+
+    protected static final String PRINCIPAL_CACHE_METRIC_NAME = MetricRegistry.name(
+            "nuxeo", "usermanager", "principals", "cache");
+
+    /** @since 5.7.3 */
+    public static final int DEFAULT_AUTHENTICATION_CACHE_TIMEOUT = 30;
+
+    protected static final String AUTHENTICATION_CACHE_METRIC_NAME = MetricRegistry.name(
+            "nuxeo", "usermanager", "authentication", "cache");
+
+    /**
+     * Maximum number of groups kept in the group hierarchy index.
+     *
+     * @since 5.7.3
+     */
+    public static final int GROUP_INDEX_MAX_SIZE = 10000;
+
     protected final DirectoryService dirService;
 
     public UserMultiTenantManagement multiTenantManagement = new DefaultUserMultiTenantManagement();
@@ -157,10 +194,54 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected final Map<String, VirtualUserDescriptor> virtualUsers;
 
+    /**
+     * Principals keyed by user directory name and username, null if the
+     * cache is disabled.
+     *
+     * @since 5.7.3
+     */
+    protected transient SegmentedLRUCache<String, NuxeoPrincipal> principalCache;
+
+    /**
+     * Names of the user directories (one per tenant) having principals in
+     * cache.
+     */
+    protected final Set<String> principalCacheDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Hashes of the passwords successfully checked, keyed by username, null
+     * if the cache is disabled.
+     *
+     * @since 5.7.3
+     */
+    protected transient SegmentedLRUCache<String, CachedCredential> authenticationCache;
+
+    /**
+     * Number of authentications answered by the cache instead of the
+     * directory.
+     */
+    protected transient Counter savedAuthenticationsCounter;
+
+    /**
+     * Transitive closures of the group hierarchy.
+     *
+     * @since 5.7.3
+     */
+    protected final transient GroupClosureIndex groupClosureIndex;
+
     public UserManagerImpl() {
         dirService = Framework.getLocalService(DirectoryService.class);
         virtualUsers = new HashMap<String, VirtualUserDescriptor>();
         userConfig = new UserConfig();
+        groupClosureIndex = new GroupClosureIndex(
+                new GroupClosureIndex.GroupLoader() {
+                    @Override
+                    public NuxeoGroup getGroup(String groupId)
+                            throws ClientException {
+                        return UserManagerImpl.this.getGroup(groupId);
+                    }
+                }, GROUP_INDEX_MAX_SIZE,
+                TimeUnit.SECONDS.toNanos(DEFAULT_PRINCIPAL_CACHE_TIMEOUT));
     }
 
     @Override
@@ -204,6 +285,46 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         digestAuthDirectory = descriptor.digestAuthDirectory;
         digestAuthRealm = descriptor.digestAuthRealm;
 
+        int cacheMaxSize = descriptor.principalCacheMaxSize == null ? DEFAULT_PRINCIPAL_CACHE_MAX_SIZE
+                : descriptor.principalCacheMaxSize.intValue();
+        int cacheTimeout = descriptor.principalCacheTimeout == null ? DEFAULT_PRINCIPAL_CACHE_TIMEOUT
+                : descriptor.principalCacheTimeout.intValue();
+        if (principalCache != null) {
+            principalCache.clear();
+        }
+        // the group hierarchy is refreshed as often as the principals
+        groupClosureIndex.setTimeToLive(TimeUnit.SECONDS.toNanos(cacheTimeout));
+        groupClosureIndex.invalidateAll();
+        if (cacheMaxSize > 0) {
+            MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+            principalCache = new SegmentedLRUCache<String, NuxeoPrincipal>(
+                    cacheMaxSize, TimeUnit.SECONDS.toNanos(cacheTimeout),
+                    registry, PRINCIPAL_CACHE_METRIC_NAME);
+        } else {
+            principalCache = null;
+        }
+
+        // opt-in, as a password changed directly in the directory is still
+        // accepted until the entry expires
+        int authCacheMaxSize = descriptor.authenticationCacheMaxSize == null ? 0
+                : descriptor.authenticationCacheMaxSize.intValue();
+        int authCacheTimeout = descriptor.authenticationCacheTimeout == null ? DEFAULT_AUTHENTICATION_CACHE_TIMEOUT
+                : descriptor.authenticationCacheTimeout.intValue();
+        if (authenticationCache != null) {
+            authenticationCache.clear();
+        }
+        if (authCacheMaxSize > 0 && authCacheTimeout > 0) {
+            MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+            authenticationCache = new SegmentedLRUCache<String, CachedCredential>(
+                    authCacheMaxSize,
+                    TimeUnit.SECONDS.toNanos(authCacheTimeout), registry,
+                    AUTHENTICATION_CACHE_METRIC_NAME);
+            savedAuthenticationsCounter = registry.counter(MetricRegistry.name(
+                    AUTHENTICATION_CACHE_METRIC_NAME, "saved"));
+        } else {
+            authenticationCache = null;
+        }
+
         userConfig = new UserConfig();
         userConfig.emailKey = userEmailField;
         userConfig.schemaName = userSchemaName;
@@ -361,17 +482,24 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             return expected.equals(password);
         }
 
-        Session userDir = null;
-        try {
-            String userDirName;
-            // BBB backward compat for userDirectory + userAuthentication
-            if ("userDirectory".equals(userDirectoryName)
-                    && dirService.getDirectory("userAuthentication") != null) {
-                userDirName = "userAuthentication";
-            } else {
-                userDirName = userDirectoryName;
+        SegmentedLRUCache<String, CachedCredential> cache = authenticationCache;
+        String cacheKey = getAuthenticationCacheKey(username);
+        CachedCredential credential = null;
+        long stamp = 0;
+        if (cache != null) {
+            // taken before reading the directory, so that a password changed
+            // meanwhile does not let the old one be cached
+            stamp = cache.getStamp(cacheKey);
+            credential = cache.getIfPresent(cacheKey);
+            if (credential != null && credential.matches(username, password)) {
+                savedAuthenticationsCounter.inc();
+                return true;
             }
+        }
 
+        Session userDir = null;
+        try {
+            String userDirName = getAuthenticationDirectoryName();
             userDir = dirService.open(userDirName);
             if (!userDir.isAuthenticating()) {
                 log.error("Trying to authenticate against a non authenticating "
@@ -382,6 +510,13 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             boolean authenticated = userDir.authenticate(username, password);
             if (authenticated) {
                 syncDigestAuthPassword(username, password);
+                if (cache != null) {
+                    cache.put(cacheKey,
+                            new CachedCredential(username, password), stamp);
+                }
+            } else if (credential != null) {
+                // the password changed
+                cache.remove(cacheKey);
             }
             return authenticated;
         } finally {
@@ -391,6 +526,41 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         }
     }
 
+    protected String getAuthenticationDirectoryName() throws ClientException {
+        // BBB backward compat for userDirectory + userAuthentication
+        if ("userDirectory".equals(userDirectoryName)
+                && dirService.getDirectory("userAuthentication") != null) {
+            return "userAuthentication";
+        }
+        return userDirectoryName;
+    }
+
+    /**
+     * Removes the cached authentication of the given user, so that the next
+     * authentication is checked against the directory.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidateAuthentication(String username) {
+        SegmentedLRUCache<String, CachedCredential> cache = authenticationCache;
+        if (cache != null && username != null) {
+            cache.remove(getAuthenticationCacheKey(username));
+        }
+    }
+
+    /**
+     * Returns the key of the cached authentication of the given user. It is
+     * the same whatever the case of the name, as the user directory may
+     * ignore it, so that invalidating the authentication of a user also
+     * drops the one cached under another case; the cached credential still
+     * holds the name as given at login.
+     *
+     * @since 5.7.3
+     */
+    protected String getAuthenticationCacheKey(String username) {
+        return username == null ? null : username.toLowerCase();
+    }
+
     protected void syncDigestAuthPassword(String username, String password)
             throws ClientException {
         if (StringUtils.isEmpty(digestAuthDirectory)
@@ -503,6 +673,22 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         return makePrincipal(userEntry, false, null);
     }
 
+    /**
+     * Creates the principals of several user entries, subclasses may override
+     * it to compute what the principals need in bulk.
+     *
+     * @since 5.7.3
+     */
+    protected List<NuxeoPrincipal> makePrincipals(
+            List<DocumentModel> userEntries) throws ClientException {
+        List<NuxeoPrincipal> principals = new ArrayList<NuxeoPrincipal>(
+                userEntries.size());
+        for (DocumentModel userEntry : userEntries) {
+            principals.add(makePrincipal(userEntry));
+        }
+        return principals;
+    }
+
     protected NuxeoPrincipal makePrincipal(DocumentModel userEntry,
             boolean anonymous, List<String> groups) throws ClientException {
         boolean admin = false;
@@ -644,16 +830,39 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected void appendSubgroups(String groupId, Set<String> groups,
             DocumentModel context) throws ClientException {
+        if (context == null) {
+            groups.addAll(getDescendantGroups(groupId));
+            return;
+        }
+        // the index is not tenant aware, walk the sub-groups in the context
         List<String> groupsToAppend = getGroupsInGroup(groupId, context);
-        groups.addAll(groupsToAppend);
         for (String subgroupId : groupsToAppend) {
-            groups.add(subgroupId);
             // avoiding infinite loop
-            if (!groups.contains(subgroupId)) {
+            if (groups.add(subgroupId)) {
                 appendSubgroups(subgroupId, groups, context);
             }
         }
+    }
+
+    @Override
+    public List<String> getAncestorGroups(String groupId)
+            throws ClientException {
+        return groupClosureIndex.getAncestors(groupId);
+    }
 
+    @Override
+    public List<String> getDescendantGroups(String groupId)
+            throws ClientException {
+        return groupClosureIndex.getDescendants(groupId);
+    }
+
+    /**
+     * Drops the given group from the group hierarchy index.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidateGroup(String groupId) {
+        groupClosureIndex.invalidate(groupId);
     }
 
     protected boolean isAnonymousMatching(Map<String, Serializable> filter,
@@ -694,13 +903,7 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
     @Override
     public List<NuxeoPrincipal> searchPrincipals(String pattern)
             throws ClientException {
-        DocumentModelList entries = searchUsers(pattern);
-        List<NuxeoPrincipal> principals = new ArrayList<NuxeoPrincipal>(
-                entries.size());
-        for (DocumentModel entry : entries) {
-            principals.add(makePrincipal(entry));
-        }
-        return principals;
+        return makePrincipals(searchUsers(pattern));
     }
 
     @Override
@@ -975,14 +1178,8 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     @Override
     public List<NuxeoPrincipal> getAvailablePrincipals() throws ClientException {
-        DocumentModelList userModels = searchUsers(
-                Collections.<String, Serializable> emptyMap(), null);
-        List<NuxeoPrincipal> users = new ArrayList<NuxeoPrincipal>(
-                userModels.size());
-        for (DocumentModel userModel : userModels) {
-            users.add(makePrincipal(userModel));
-        }
-        return users;
+        return makePrincipals(searchUsers(
+                Collections.<String, Serializable> emptyMap(), null));
     }
 
     @Override
@@ -998,12 +1195,8 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             userDir = dirService.open(userDirectoryName);
             removeVirtualFilters(filter);
 
-            DocumentModelList entries = userDir.query(filter, pattern);
-            List<NuxeoPrincipal> principals = new ArrayList<NuxeoPrincipal>(
-                    entries.size());
-            for (DocumentModel entry : entries) {
-                principals.add(makePrincipal(entry));
-            }
+            List<NuxeoPrincipal> principals = makePrincipals(userDir.query(
+                    filter, pattern));
             if (isAnonymousMatching(filter, pattern)) {
                 principals.add(makeAnonymousPrincipal());
             }
@@ -1281,12 +1474,87 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         return result;
     }
 
+    /**
+     * Returns the principal, from the principal cache if enabled. The cached
+     * principals are copied before being returned, so that callers can
+     * modify them.
+     */
     @Override
-    public NuxeoPrincipal getPrincipal(String username, DocumentModel context)
-            throws ClientException {
+    public NuxeoPrincipal getPrincipal(final String username,
+            final DocumentModel context) throws ClientException {
         if (username == null) {
             return null;
         }
+        SegmentedLRUCache<String, NuxeoPrincipal> cache = principalCache;
+        if (cache == null) {
+            return computePrincipal(username, context);
+        }
+        String directoryName = userDirectoryName;
+        if (context != null) {
+            // one entry per tenant
+            Directory directory = dirService.getDirectory(userDirectoryName,
+                    context);
+            if (directory != null) {
+                directoryName = directory.getName();
+            }
+        }
+        principalCacheDirectories.add(directoryName);
+        NuxeoPrincipal principal = cache.get(
+                getPrincipalCacheKey(directoryName, username),
+                new SegmentedLRUCache.Loader<String, NuxeoPrincipal>() {
+                    @Override
+                    public NuxeoPrincipal load(String key)
+                            throws DirectoryException {
+                        try {
+                            return computePrincipal(username, context);
+                        } catch (DirectoryException e) {
+                            throw e;
+                        } catch (ClientException e) {
+                            throw new DirectoryException(e);
+                        }
+                    }
+                });
+        if (principal instanceof NuxeoPrincipalImpl) {
+            principal = ((NuxeoPrincipalImpl) principal).copy();
+        }
+        return principal;
+    }
+
+    protected static String getPrincipalCacheKey(String directoryName,
+            String username) {
+        return directoryName + '/' + username;
+    }
+
+    /**
+     * Removes the given user from the principal cache, for all the tenants.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidatePrincipal(String username) {
+        SegmentedLRUCache<String, NuxeoPrincipal> cache = principalCache;
+        if (cache == null || username == null) {
+            return;
+        }
+        for (String directoryName : principalCacheDirectories) {
+            cache.remove(getPrincipalCacheKey(directoryName, username));
+        }
+    }
+
+    /**
+     * Removes all the principals from the principal cache, for instance
+     * because a group changed.
+     *
+     * @since 5.7.3
+     */
+    protected void invalidateAllPrincipals() {
+        SegmentedLRUCache<String, NuxeoPrincipal> cache = principalCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    protected NuxeoPrincipal computePrincipal(String username,
+            DocumentModel context) throws ClientException {
         String anonymousUserId = getAnonymousUserId();
         if (username.equals(anonymousUserId)) {
             return makeAnonymousPrincipal();
@@ -1415,6 +1683,7 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
             userDir.updateEntry(userModel);
             userDir.commit();
+            invalidateAuthentication(userId);
 
             syncDigestAuthPassword(clearUsername, clearPassword);
 
@@ -1446,6 +1715,7 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             }
             userDir.deleteEntry(userId);
             userDir.commit();
+            invalidateAuthentication(userId);
             notifyUserChanged(userId);
             notify(userId, USERDELETED_EVENT_ID);
 
@@ -1548,7 +1818,10 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
         Set<String> users = new HashSet<String>();
         for (String groupid : groups) {
-            users.addAll(getGroup(groupid, context).getMemberUsers());
+            NuxeoGroup group = getGroup(groupid, context);
+            if (group != null) {
+                users.addAll(group.getMemberUsers());
+            }
         }
 
         return new ArrayList<String>(users);
@@ -19,6 +19,7 @@ package org.nuxeo.ecm.platform.computedgroups.test;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -41,8 +42,13 @@ import org.nuxeo.ecm.platform.computedgroups.UserManagerWithComputedGroups;
 import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
 import org.nuxeo.ecm.platform.usermanager.UserManager;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.test.NXRuntimeTestCase;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
 public class TestComputedGroupService extends NXRuntimeTestCase {
 
     @Before
@@ -113,6 +119,60 @@ public class TestComputedGroupService extends NXRuntimeTestCase {
         assertTrue(vGroups.contains("Grp2"));
     }
 
+    @Test
+    public void testCacheAndBatch() throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests", "computedgroups-contrib.xml");
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployBundle("org.nuxeo.ecm.core.api");
+        deployBundle("org.nuxeo.ecm.core");
+        deployBundle("org.nuxeo.ecm.platform.usermanager.api");
+        deployBundle("org.nuxeo.ecm.platform.usermanager");
+        deployBundle("org.nuxeo.ecm.directory.api");
+        deployBundle("org.nuxeo.ecm.directory.types.contrib");
+        deployBundle("org.nuxeo.ecm.directory");
+        deployBundle("org.nuxeo.ecm.directory.sql");
+
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/directory-config.xml");
+
+        ComputedGroupsService cgs = Framework.getLocalService(ComputedGroupsService.class);
+        ComputedGroupsServiceImpl component = (ComputedGroupsServiceImpl) cgs;
+        assertEquals(120,
+                component.getComputerDescriptors().get(0).getCacheTimeout());
+        MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        Counter hits = metrics.counter("nuxeo.computedgroups.dummy.cache.hits");
+
+        NuxeoPrincipalImpl user1 = new NuxeoPrincipalImpl("User1");
+        NuxeoPrincipalImpl user2 = new NuxeoPrincipalImpl("User2");
+        NuxeoPrincipalImpl user12 = new NuxeoPrincipalImpl("User12");
+        assertEquals(Arrays.asList("Grp1"), cgs.computeGroupsForUser(user1));
+        long initialHits = hits.getCount();
+        assertEquals(Arrays.asList("Grp1"), cgs.computeGroupsForUser(user1));
+        assertEquals(initialHits + 1, hits.getCount());
+
+        // User1 is cached, the others are computed together
+        Map<String, List<String>> groups = cgs.computeGroupsForUsers(Arrays.asList(
+                user1, user2, user12));
+        assertEquals(initialHits + 2, hits.getCount());
+        assertEquals(3, groups.size());
+        assertEquals(Arrays.asList("Grp1"), groups.get("User1"));
+        assertEquals(Arrays.asList("Grp2"), groups.get("User2"));
+        assertEquals(Arrays.asList("Grp1", "Grp2"), groups.get("User12"));
+        cgs.computeGroupsForUser(user12);
+        assertEquals(initialHits + 3, hits.getCount());
+
+        cgs.invalidateComputedGroups("User1");
+        cgs.computeGroupsForUser(user1);
+        assertEquals(initialHits + 3, hits.getCount());
+        cgs.invalidateAllComputedGroups();
+        cgs.computeGroupsForUser(user12);
+        assertEquals(initialHits + 3, hits.getCount());
+
+        cgs.updateGroupsForUsers(Arrays.asList(user1, user12));
+        assertEquals(Arrays.asList("Grp1"), user1.getVirtualGroups());
+        assertTrue(user12.isMemberOf("Grp2"));
+    }
+
     @Test
     public void testUserManagerIntegration() throws Exception {
 
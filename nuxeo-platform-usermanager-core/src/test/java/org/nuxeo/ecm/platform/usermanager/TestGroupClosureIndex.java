@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.NuxeoGroup;
+import org.nuxeo.ecm.core.api.impl.NuxeoGroupImpl;
+
+public class TestGroupClosureIndex {
+
+    protected final Map<String, NuxeoGroup> groups = new HashMap<String, NuxeoGroup>();
+
+    protected int loads;
+
+    protected GroupClosureIndex index;
+
+    @Before
+    public void setUp() {
+        // a <- b <- c, a <- d
+        addGroup("a", Collections.<String> emptyList(), Arrays.asList("b", "d"));
+        addGroup("b", Arrays.asList("a"), Arrays.asList("c"));
+        addGroup("c", Arrays.asList("b"), Collections.<String> emptyList());
+        addGroup("d", Arrays.asList("a"), Collections.<String> emptyList());
+        index = newIndex(0);
+    }
+
+    protected GroupClosureIndex newIndex(int maxSize) {
+        return new GroupClosureIndex(new GroupClosureIndex.GroupLoader() {
+            @Override
+            public NuxeoGroup getGroup(String groupId) {
+                loads++;
+                return groups.get(groupId);
+            }
+        }, maxSize, 0);
+    }
+
+    protected void addGroup(String name, List<String> parents,
+            List<String> children) {
+        NuxeoGroup group = new NuxeoGroupImpl(name);
+        group.setParentGroups(parents);
+        group.setMemberGroups(children);
+        groups.put(name, group);
+    }
+
+    @Test
+    public void testClosures() throws Exception {
+        assertEquals(Arrays.asList("b", "a"), index.getAncestors("c"));
+        assertEquals(Arrays.asList("b", "d", "c"), index.getDescendants("a"));
+        assertEquals(Collections.emptyList(), index.getAncestors("a"));
+        assertEquals(Collections.emptyList(), index.getAncestors("nosuchgroup"));
+        // each group is loaded once
+        int count = loads;
+        assertEquals(5, count);
+        assertEquals(Arrays.asList("b", "a"), index.getAncestors("c"));
+        assertEquals(Arrays.asList("a"), index.getAncestors("d"));
+        assertEquals(count, loads);
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        index = newIndex(4);
+        // a chain g0 <- g1 <- ... <- g19
+        for (int i = 0; i < 20; i++) {
+            addGroup("g" + i,
+                    i == 0 ? Collections.<String> emptyList()
+                            : Arrays.asList("g" + (i - 1)),
+                    i == 19 ? Collections.<String> emptyList()
+                            : Arrays.asList("g" + (i + 1)));
+        }
+        List<String> ancestors = index.getAncestors("g19");
+        assertEquals(19, ancestors.size());
+        assertEquals("g18", ancestors.get(0));
+        assertEquals("g0", ancestors.get(18));
+        assertTrue(index.size() <= 4);
+        assertEquals(Arrays.asList("g1", "g0"), index.getAncestors("g2"));
+        assertTrue(index.size() <= 4);
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        addGroup("a", Arrays.asList("c"), Arrays.asList("b", "d"));
+        addGroup("c", Arrays.asList("b"), Arrays.asList("a"));
+        assertEquals(Arrays.asList("b", "a"), index.getAncestors("c"));
+        assertEquals(Arrays.asList("c", "b"), index.getAncestors("a"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        assertEquals(Arrays.asList("b", "a"), index.getAncestors("c"));
+        assertEquals(Arrays.asList("a"), index.getAncestors("d"));
+
+        // move c from b to d
+        addGroup("b", Arrays.asList("a"), Collections.<String> emptyList());
+        addGroup("c", Arrays.asList("d"), Collections.<String> emptyList());
+        addGroup("d", Arrays.asList("a"), Arrays.asList("c"));
+        int count = loads;
+        index.invalidate("c");
+        assertEquals(Arrays.asList("d", "a"), index.getAncestors("c"));
+        assertEquals(Arrays.asList("b", "d", "c"), index.getDescendants("a"));
+        assertTrue(index.getDescendants("b").isEmpty());
+        // only c and its neighbours are reloaded
+        assertEquals(count + 3, loads);
+    }
+
+    @Test
+    public void testInvalidateKeepsUnrelatedClosures() throws Exception {
+        // a <- b <- c, a <- d, e <- f
+        addGroup("e", Collections.<String> emptyList(), Arrays.asList("f"));
+        addGroup("f", Arrays.asList("e"), Collections.<String> emptyList());
+        assertEquals(Arrays.asList("b", "a"), index.getAncestors("c"));
+        assertEquals(Arrays.asList("a"), index.getAncestors("d"));
+        assertEquals(Arrays.asList("e"), index.getAncestors("f"));
+        assertEquals(Arrays.asList("b", "d", "c"), index.getDescendants("a"));
+
+        index.invalidate("f");
+        assertNotNull(index.nodes.get("a").descendants);
+        assertNotNull(index.nodes.get("c").ancestors);
+        assertNotNull(index.nodes.get("d").ancestors);
+
+        // c moves out of b: the closures through b or c are dropped
+        addGroup("b", Arrays.asList("a"), Collections.<String> emptyList());
+        addGroup("c", Collections.<String> emptyList(),
+                Collections.<String> emptyList());
+        index.invalidate("c");
+        assertNull(index.nodes.get("a").descendants);
+        assertNotNull(index.nodes.get("d").ancestors);
+        assertEquals(Collections.emptyList(), index.getAncestors("c"));
+        assertEquals(Arrays.asList("b", "d"), index.getDescendants("a"));
+    }
+
+}
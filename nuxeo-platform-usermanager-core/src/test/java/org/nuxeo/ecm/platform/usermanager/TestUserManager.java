@@ -47,8 +47,13 @@ import org.nuxeo.ecm.core.storage.sql.DatabaseHelper;
 import org.nuxeo.ecm.platform.usermanager.exceptions.GroupAlreadyExistsException;
 import org.nuxeo.ecm.platform.usermanager.exceptions.UserAlreadyExistsException;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.test.NXRuntimeTestCase;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
 /**
  * @author George Lefter
  * @author Florent Guillaume
@@ -648,6 +653,98 @@ public class TestUserManager extends NXRuntimeTestCase {
         assertTrue(gotException);
     }
 
+    @Test
+    public void testPrincipalCache() throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/userservice-principalcache-config.xml");
+        userManager = userService.getUserManager();
+        deleteTestObjects();
+        MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        Counter hits = metrics.counter(MetricRegistry.name(
+                UserManagerImpl.PRINCIPAL_CACHE_METRIC_NAME, "hits"));
+        userManager.createUser(getUser("test_u1"));
+
+        NuxeoPrincipal principal = userManager.getPrincipal("test_u1");
+        long initialHits = hits.getCount();
+        NuxeoPrincipal cached = userManager.getPrincipal("test_u1");
+        assertEquals(initialHits + 1, hits.getCount());
+        assertNotSame(principal, cached);
+        assertEquals(principal.getAllGroups(), cached.getAllGroups());
+
+        // modifying a cached principal does not alter the cache
+        cached.setFirstName("foo");
+        ((NuxeoPrincipalImpl) cached).setVirtualGroups(Arrays.asList("foo"));
+        assertTrue(cached.isMemberOf("foo"));
+        principal = userManager.getPrincipal("test_u1");
+        assertFalse("foo".equals(principal.getFirstName()));
+        assertFalse(principal.isMemberOf("foo"));
+
+        // a group change invalidates the cache
+        NuxeoGroup g1 = new NuxeoGroupImpl("test_g1");
+        g1.setMemberUsers(Arrays.asList("test_u1"));
+        userManager.createGroup(g1);
+        principal = userManager.getPrincipal("test_u1");
+        assertTrue(principal.isMemberOf("test_g1"));
+
+        // a user change as well
+        DocumentModel user = userManager.getUserModel("test_u1");
+        user.setProperty("user", "firstName", "fname2");
+        userManager.updateUser(user);
+        assertEquals("fname2",
+                userManager.getPrincipal("test_u1").getFirstName());
+    }
+
+    @Test
+    public void testAuthenticationCache() throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/userservice-authcache-config.xml");
+        userManager = userService.getUserManager();
+        deleteTestObjects();
+        MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        Counter saved = metrics.counter(MetricRegistry.name(
+                UserManagerImpl.AUTHENTICATION_CACHE_METRIC_NAME, "saved"));
+        DocumentModel user = getUser("test_u1");
+        user.setProperty("user", "password", "secret");
+        userManager.createUser(user);
+
+        assertTrue(userManager.checkUsernamePassword("test_u1", "secret"));
+        long initialSaved = saved.getCount();
+        assertTrue(userManager.checkUsernamePassword("test_u1", "secret"));
+        assertEquals(initialSaved + 1, saved.getCount());
+        // a wrong password still goes to the directory
+        assertFalse(userManager.checkUsernamePassword("test_u1", "wrong"));
+        assertEquals(initialSaved + 1, saved.getCount());
+
+        // a password change invalidates the cache
+        user = userManager.getUserModel("test_u1");
+        user.setProperty("user", "password", "secret2");
+        userManager.updateUser(user);
+        assertFalse(userManager.checkUsernamePassword("test_u1", "secret"));
+        assertTrue(userManager.checkUsernamePassword("test_u1", "secret2"));
+        assertEquals(initialSaved + 1, saved.getCount());
+
+        // the cached name must match as given, the directory deciding
+        // whether its case matters
+        assertTrue(userManager.checkUsernamePassword("test_u1", "secret2"));
+        assertEquals(initialSaved + 2, saved.getCount());
+        userManager.checkUsernamePassword("TEST_U1", "secret2");
+        assertEquals(initialSaved + 2, saved.getCount());
+
+        // as cached with a case-insensitive directory
+        UserManagerImpl impl = (UserManagerImpl) userManager;
+        impl.authenticationCache.put(
+                impl.getAuthenticationCacheKey("TEST_U1"),
+                new CachedCredential("TEST_U1", "secret2"));
+        assertTrue(userManager.checkUsernamePassword("TEST_U1", "secret2"));
+        assertEquals(initialSaved + 3, saved.getCount());
+        // the password change of the user invalidates it anyway
+        user = userManager.getUserModel("test_u1");
+        user.setProperty("user", "password", "secret3");
+        userManager.updateUser(user);
+        assertFalse(userManager.checkUsernamePassword("TEST_U1", "secret2"));
+        assertEquals(initialSaved + 3, saved.getCount());
+    }
+
     @Test
     public void testDeleteGroup() throws Exception {
         deleteTestObjects();
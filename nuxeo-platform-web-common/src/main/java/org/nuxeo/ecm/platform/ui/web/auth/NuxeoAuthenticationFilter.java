@@ -46,6 +46,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.security.auth.callback.CallbackHandler;
@@ -79,6 +81,7 @@ import org.nuxeo.ecm.platform.login.PrincipalImpl;
 import org.nuxeo.ecm.platform.login.TrustingLoginPlugin;
 import org.nuxeo.ecm.platform.ui.web.auth.interfaces.LoginResponseHandler;
 import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthPreFilter;
+import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthenticationIdentityCache;
 import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthenticationPlugin;
 import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthenticationPluginLogoutExtension;
 import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthenticationPropagator;
@@ -123,8 +126,35 @@ public class NuxeoAuthenticationFilter implements Filter {
 
     protected static final String LOGIN_JMS_CATEGORY = "NuxeoAuthentication";
 
+    /**
+     * If set to "true", logins are not serialized at all, even for a same
+     * user.
+     */
     public static final String IS_LOGIN_NOT_SYNCHRONIZED_PROPERTY_KEY = "org.nuxeo.ecm.platform.ui.web.auth.NuxeoAuthenticationFilter.isLoginNotSynchronized";
 
+    /**
+     * If set to "true", all the logins are serialized on a global lock, as
+     * in previous versions. By default, only the logins of a same user are
+     * serialized, so that login modules provisioning the user on its first
+     * login do not race with themselves.
+     *
+     * @since 5.7.3
+     */
+    public static final String IS_LOGIN_SYNCHRONIZED_PROPERTY_KEY = "org.nuxeo.ecm.platform.ui.web.auth.NuxeoAuthenticationFilter.isLoginSynchronized";
+
+    // number of locks the logins of a same user are serialized on
+    protected static final int LOGIN_LOCKS = 64;
+
+    protected static final Lock globalLoginLock = new ReentrantLock();
+
+    protected static final Lock[] loginLocks = new Lock[LOGIN_LOCKS];
+
+    static {
+        for (int i = 0; i < LOGIN_LOCKS; i++) {
+            loginLocks[i] = new ReentrantLock();
+        }
+    }
+
     /** Used internally as a marker. */
     protected static final Principal DIRECTORY_ERROR_PRINCIPAL = new PrincipalImpl(
             "__DIRECTORY_ERROR__\0\0\0");
@@ -164,6 +194,22 @@ public class NuxeoAuthenticationFilter implements Filter {
     protected final Counter loginCount = registry.counter(MetricRegistry.name(
             "nuxeo", "web", "authentication", "logged-users"));
 
+    // @since 5.7.3, static for loginAs
+    protected static final Timer loginTimer = SharedMetricRegistries.getOrCreate(
+            MetricsService.class.getName()).timer(
+            MetricRegistry.name("nuxeo", "web", "authentication", "login"));
+
+    // time spent waiting for another login to complete
+    protected static final Timer loginWaitTimer = SharedMetricRegistries.getOrCreate(
+            MetricsService.class.getName()).timer(
+            MetricRegistry.name("nuxeo", "web", "authentication", "login",
+                    "wait"));
+
+    protected static final Counter loginWaitingCount = SharedMetricRegistries.getOrCreate(
+            MetricsService.class.getName()).counter(
+            MetricRegistry.name("nuxeo", "web", "authentication", "login",
+                    "waiting"));
+
     @Override
     public void destroy() {
     }
@@ -265,14 +311,7 @@ public class NuxeoAuthenticationFilter implements Filter {
         try {
             CallbackHandler handler = service.getCallbackHandler(cachableUserIdent.getUserInfo());
             loginContext = new LoginContext(securityDomain, handler);
-
-            if (Boolean.parseBoolean(Framework.getProperty(IS_LOGIN_NOT_SYNCHRONIZED_PROPERTY_KEY))) {
-                loginContext.login();
-            } else {
-                synchronized (NuxeoAuthenticationFilter.class) {
-                    loginContext.login();
-                }
-            }
+            login(loginContext, cachableUserIdent.getUserInfo().getUserName());
 
             Principal principal = (Principal) loginContext.getSubject().getPrincipals().toArray()[0];
             cachableUserIdent.setPrincipal(principal);
@@ -311,6 +350,51 @@ public class NuxeoAuthenticationFilter implements Filter {
         return cachableUserIdent.getPrincipal();
     }
 
+    /**
+     * Logs in the given login context, serializing the logins as configured
+     * by {@link #IS_LOGIN_SYNCHRONIZED_PROPERTY_KEY} and
+     * {@link #IS_LOGIN_NOT_SYNCHRONIZED_PROPERTY_KEY}.
+     *
+     * @param userName the name of the user logging in, if known
+     * @since 5.7.3
+     */
+    protected static void login(LoginContext loginContext, String userName)
+            throws LoginException {
+        Lock lock = getLoginLock(userName);
+        if (lock != null && !lock.tryLock()) {
+            loginWaitingCount.inc();
+            Timer.Context waitContext = loginWaitTimer.time();
+            try {
+                lock.lock();
+            } finally {
+                waitContext.stop();
+                loginWaitingCount.dec();
+            }
+        }
+        Timer.Context context = loginTimer.time();
+        try {
+            loginContext.login();
+        } finally {
+            context.stop();
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    protected static Lock getLoginLock(String userName) {
+        if (Boolean.parseBoolean(Framework.getProperty(IS_LOGIN_SYNCHRONIZED_PROPERTY_KEY))) {
+            return globalLoginLock;
+        }
+        if (userName == null
+                || Boolean.parseBoolean(Framework.getProperty(IS_LOGIN_NOT_SYNCHRONIZED_PROPERTY_KEY))) {
+            return null;
+        }
+        int h = userName.hashCode();
+        h ^= (h >>> 16);
+        return loginLocks[(h & 0x7fffffff) % LOGIN_LOCKS];
+    }
+
     private boolean switchUser(ServletRequest request,
             ServletResponse response, FilterChain chain) throws IOException {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
@@ -446,6 +530,9 @@ public class NuxeoAuthenticationFilter implements Filter {
                 if (avoidReauthenticate) {
                     log.debug("Try getting authentication from cache");
                     cachableUserIdent = retrieveIdentityFromCache(httpRequest);
+                    if (cachableUserIdent == null) {
+                        cachableUserIdent = retrieveIdentityFromIdentityCaches(httpRequest);
+                    }
                 } else {
                     log.debug("Principal cache is NOT activated");
                 }
@@ -535,6 +622,10 @@ public class NuxeoAuthenticationFilter implements Filter {
                                 httpRequest);
                         if (principal != null
                                 && principal != DIRECTORY_ERROR_PRINCIPAL) {
+                            for (NuxeoAuthenticationIdentityCache identityCache : getIdentityCaches(httpRequest)) {
+                                identityCache.onAuthenticated(httpRequest,
+                                        httpResponse, cachableUserIdent);
+                            }
                             // Do the propagation too ????
                             propagatedAuthCb = service.propagateUserIdentificationInformation(cachableUserIdent);
                             // setPrincipalToSession(httpRequest, principal);
@@ -631,6 +722,38 @@ public class NuxeoAuthenticationFilter implements Filter {
         return null;
     }
 
+    /**
+     * Returns the identity kept for the request by the
+     * {@link NuxeoAuthenticationIdentityCache} plugins of its chain, if any.
+     *
+     * @since 5.7.3
+     */
+    protected CachableUserIdentificationInfo retrieveIdentityFromIdentityCaches(
+            HttpServletRequest httpRequest) {
+        for (NuxeoAuthenticationIdentityCache identityCache : getIdentityCaches(httpRequest)) {
+            CachableUserIdentificationInfo cachableUserIdent = identityCache.retrieveCachedIdentity(httpRequest);
+            if (cachableUserIdent != null) {
+                return cachableUserIdent;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @since 5.7.3
+     */
+    protected List<NuxeoAuthenticationIdentityCache> getIdentityCaches(
+            HttpServletRequest httpRequest) {
+        List<NuxeoAuthenticationIdentityCache> identityCaches = new ArrayList<NuxeoAuthenticationIdentityCache>();
+        for (String pluginName : service.getAuthChain(httpRequest)) {
+            NuxeoAuthenticationPlugin plugin = service.getPlugin(pluginName);
+            if (plugin instanceof NuxeoAuthenticationIdentityCache) {
+                identityCaches.add((NuxeoAuthenticationIdentityCache) plugin);
+            }
+        }
+        return identityCaches;
+    }
+
     protected static CachableUserIdentificationInfo retrieveIdentityFromCache(
             HttpServletRequest httpRequest) {
 
@@ -829,6 +952,10 @@ public class NuxeoAuthenticationFilter implements Filter {
             throws ServletException {
         logLogout(cachedUserInfo.getUserInfo());
 
+        for (NuxeoAuthenticationIdentityCache identityCache : getIdentityCaches((HttpServletRequest) request)) {
+            identityCache.onLogout((HttpServletRequest) request, cachedUserInfo);
+        }
+
         // invalidate Session !
         service.invalidateSession(request);
 
@@ -1085,14 +1212,7 @@ public class NuxeoAuthenticationFilter implements Filter {
         }
         LoginContext loginContext = new LoginContext(LOGIN_DOMAIN,
                 callbackHandler);
-
-        if (Boolean.parseBoolean(Framework.getProperty(IS_LOGIN_NOT_SYNCHRONIZED_PROPERTY_KEY))) {
-            loginContext.login();
-        } else {
-            synchronized (NuxeoAuthenticationFilter.class) {
-                loginContext.login();
-            }
-        }
+        login(loginContext, username);
         return loginContext;
     }
 
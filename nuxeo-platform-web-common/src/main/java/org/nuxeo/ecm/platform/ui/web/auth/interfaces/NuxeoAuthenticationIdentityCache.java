@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.ui.web.auth.interfaces;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.nuxeo.ecm.platform.ui.web.auth.CachableUserIdentificationInfo;
+
+/**
+ * Authentication plugin keeping the identities authenticated by the chain
+ * outside of the HTTP session, so that stateless clients are not
+ * authenticated again on each request.
+ * <p>
+ * Only the plugins of the authentication chain of the request are used.
+ *
+ * @since 5.7.3
+ */
+public interface NuxeoAuthenticationIdentityCache {
+
+    /**
+     * Returns the identity already authenticated for this request, with its
+     * principal, or {@code null} if none is known.
+     */
+    CachableUserIdentificationInfo retrieveCachedIdentity(
+            HttpServletRequest httpRequest);
+
+    /**
+     * Called after a successful authentication by any plugin of the chain.
+     */
+    void onAuthenticated(HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse,
+            CachableUserIdentificationInfo cachableUserIdent);
+
+    /**
+     * Called when an identity logs out.
+     */
+    void onLogout(HttpServletRequest httpRequest,
+            CachableUserIdentificationInfo cachableUserIdent);
+
+}
@@ -0,0 +1,556 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.ui.web.auth.plugins;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.platform.api.login.UserIdentificationInfo;
+import org.nuxeo.ecm.platform.ui.web.auth.CachableUserIdentificationInfo;
+import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthenticationIdentityCache;
+import org.nuxeo.ecm.platform.ui.web.auth.interfaces.NuxeoAuthenticationPlugin;
+import org.nuxeo.ecm.platform.usermanager.UserManager;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Authentication plugin issuing signed identity tokens to stateless clients,
+ * such as REST clients not keeping cookies.
+ * <p>
+ * After a successful authentication by any plugin of the chain, for a
+ * request without HTTP session, a token is returned in the
+ * {@code X-Authentication-Token} response header. The token holds the user
+ * name, its issue time, the id of the running instance of the plugin and a
+ * serial number, signed with HMAC-SHA256. Clients send it back in the same
+ * request header: once its signature and expiration are checked, the
+ * principal is taken from an in-memory cache without any login nor
+ * directory call. If the principal is no longer cached, the user is logged
+ * in again with the login module plugin of this plugin, which should be
+ * {@code Trusting_LM}, provided it still exists.
+ * <p>
+ * Revocations are kept in memory, so a token is only accepted by the
+ * instance that issued it: after a restart or on another node of a cluster,
+ * the client has to authenticate again and gets a new token. Clusters need
+ * sticky load balancing to benefit from the tokens.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li>Secret: the HMAC key; the plugin is disabled when missing</li>
+ * <li>TokenTTL: the validity of the tokens in seconds (defaults to
+ * 3600)</li>
+ * <li>CacheSize: the maximum number of cached principals (defaults to
+ * 1000)</li>
+ * <li>TokenHeader: the name of the header holding the token</li>
+ * </ul>
+ * Tokens are revoked when their user logs out or is changed through the user
+ * manager, or through {@link #revokeToken} and {@link #revokeTokens}.
+ *
+ * @since 5.7.3
+ */
+public class SignedTokenAuthenticator implements NuxeoAuthenticationPlugin,
+        NuxeoAuthenticationIdentityCache {
+
+    private static final Log log = LogFactory.getLog(SignedTokenAuthenticator.class);
+
+    public static final String SECRET_KEY = "Secret";
+
+    public static final String TOKEN_TTL_KEY = "TokenTTL";
+
+    public static final String CACHE_SIZE_KEY = "CacheSize";
+
+    public static final String TOKEN_HEADER_KEY = "TokenHeader";
+
+    public static final String DEFAULT_TOKEN_HEADER = "X-Authentication-Token";
+
+    public static final long DEFAULT_TOKEN_TTL = 3600;
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    protected static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    // request attribute holding the valid token of the request
+    protected static final String TOKEN_ATTRIBUTE = SignedTokenAuthenticator.class.getName()
+            + ".token";
+
+    protected static final String SEP = ".";
+
+    protected String tokenHeader = DEFAULT_TOKEN_HEADER;
+
+    protected long tokenTTLMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TOKEN_TTL);
+
+    // null if no secret is configured, the plugin is then disabled
+    protected SecretKeySpec secretKey;
+
+    // logged on first use, as the plugin may not be in any chain
+    protected volatile boolean missingSecretLogged;
+
+    protected ConcurrentLRUCache<String, CachedIdentity> identities;
+
+    // ids of the tokens revoked before their expiration, with their issue
+    // time
+    protected final ConcurrentMap<String, Long> revokedTokens = new ConcurrentHashMap<String, Long>();
+
+    // serial before which the tokens of a user are revoked
+    protected final ConcurrentMap<String, Revocation> revokedUsers = new ConcurrentHashMap<String, Revocation>();
+
+    // serial before which the cached principals of a user are stale
+    protected final ConcurrentMap<String, Revocation> invalidatedPrincipals = new ConcurrentHashMap<String, Revocation>();
+
+    // orders the tokens, the cached principals and the revocations, whose
+    // times may be equal
+    protected final AtomicLong serials = new AtomicLong();
+
+    // the tokens of other instances are not accepted, as their revocations
+    // are not known here
+    protected final String instanceId;
+
+    // Mac instances are not thread-safe
+    protected final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter issuedCounter = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "token", "issued"));
+
+    protected final Counter rejectedCounter = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "token", "rejected"));
+
+    public SignedTokenAuthenticator() {
+        byte[] id = new byte[8];
+        new SecureRandom().nextBytes(id);
+        instanceId = DatatypeConverter.printHexBinary(id);
+    }
+
+    @Override
+    public void initPlugin(Map<String, String> parameters) {
+        String value = parameters.get(TOKEN_HEADER_KEY);
+        if (value != null && value.trim().length() > 0) {
+            tokenHeader = value.trim();
+        }
+        value = parameters.get(TOKEN_TTL_KEY);
+        if (value != null && value.trim().length() > 0) {
+            tokenTTLMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        }
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        value = parameters.get(CACHE_SIZE_KEY);
+        if (value != null && value.trim().length() > 0) {
+            cacheSize = Integer.parseInt(value.trim());
+        }
+        value = parameters.get(SECRET_KEY);
+        if (value != null && value.trim().length() > 0) {
+            secretKey = new SecretKeySpec(getBytes(value.trim()),
+                    HMAC_ALGORITHM);
+        }
+        identities = new ConcurrentLRUCache<String, CachedIdentity>(cacheSize,
+                TimeUnit.MILLISECONDS.toNanos(tokenTTLMillis), MetricRegistry.name(
+                        "nuxeo", "web", "authentication", "token", "cache"));
+    }
+
+    @Override
+    public Boolean handleLoginPrompt(HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse, String baseURL) {
+        return Boolean.FALSE;
+    }
+
+    @Override
+    public Boolean needLoginPrompt(HttpServletRequest httpRequest) {
+        return Boolean.FALSE;
+    }
+
+    @Override
+    public List<String> getUnAuthenticatedURLPrefix() {
+        return null;
+    }
+
+    /**
+     * Returns a trusted identity for a valid token whose principal is not
+     * cached.
+     */
+    @Override
+    public UserIdentificationInfo handleRetrieveIdentity(
+            HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+        Token token = getToken(httpRequest);
+        // the token may have been revoked since it was parsed
+        if (token == null || !isValid(token, System.currentTimeMillis())) {
+            return null;
+        }
+        // the identity is trusted, check the user was not deleted
+        if (!userExists(token.userName)) {
+            log.debug("Rejected authentication token of unknown user");
+            rejectedCounter.inc();
+            revokeTokens(token.userName);
+            return null;
+        }
+        return new UserIdentificationInfo(token.userName, "");
+    }
+
+    protected boolean userExists(String userName) {
+        UserManager userManager = Framework.getLocalService(UserManager.class);
+        if (userManager == null) {
+            return false;
+        }
+        try {
+            return userManager.getPrincipal(userName) != null;
+        } catch (ClientException e) {
+            log.error("Cannot check user " + userName, e);
+            return false;
+        }
+    }
+
+    @Override
+    public CachableUserIdentificationInfo retrieveCachedIdentity(
+            HttpServletRequest httpRequest) {
+        Token token = getToken(httpRequest);
+        if (token == null) {
+            return null;
+        }
+        CachedIdentity cached = identities.get(token.id);
+        if (cached == null) {
+            return null;
+        }
+        Revocation invalidated = invalidatedPrincipals.get(token.userName);
+        if (invalidated != null && cached.serial < invalidated.serial) {
+            identities.remove(token.id);
+            return null;
+        }
+        return cached.identity;
+    }
+
+    @Override
+    public void onAuthenticated(HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse,
+            CachableUserIdentificationInfo cachableUserIdent) {
+        Principal principal = cachableUserIdent.getPrincipal();
+        if (!hasSecret() || principal == null
+                || (principal instanceof NuxeoPrincipal && ((NuxeoPrincipal) principal).isAnonymous())) {
+            return;
+        }
+        Token token = getToken(httpRequest);
+        if (token == null) {
+            if (httpRequest.getSession(false) != null) {
+                // the identity is already kept in the session
+                return;
+            }
+            token = newToken(principal.getName());
+            httpResponse.setHeader(tokenHeader, token.value);
+            issuedCounter.inc();
+        } else if (!token.userName.equals(principal.getName())) {
+            return;
+        }
+        identities.put(token.id, new CachedIdentity(cachableUserIdent,
+                serials.incrementAndGet()));
+    }
+
+    @Override
+    public void onLogout(HttpServletRequest httpRequest,
+            CachableUserIdentificationInfo cachableUserIdent) {
+        Token token = getToken(httpRequest);
+        if (token != null) {
+            revoke(token);
+        }
+    }
+
+    /**
+     * Revokes the given token.
+     *
+     * @return {@code true} if the token is valid and was revoked
+     */
+    public boolean revokeToken(String value) {
+        Token token = parse(value);
+        if (token == null || !isValid(token, System.currentTimeMillis())) {
+            return false;
+        }
+        revoke(token);
+        return true;
+    }
+
+    /**
+     * Revokes all the tokens issued so far to the given user.
+     */
+    public void revokeTokens(String userName) {
+        mark(revokedUsers, userName);
+        invalidatePrincipal(userName);
+        purgeRevocations();
+    }
+
+    /**
+     * Drops the cached principals of the given user, that will be logged in
+     * again on their next request.
+     */
+    public void invalidatePrincipal(String userName) {
+        mark(invalidatedPrincipals, userName);
+        purgeInvalidations();
+    }
+
+    /**
+     * Drops all the cached principals.
+     */
+    public void invalidateAllPrincipals() {
+        identities.clear();
+        invalidatedPrincipals.clear();
+    }
+
+    /**
+     * Records a revocation of the given user with a new serial, unless a
+     * later one is recorded concurrently.
+     */
+    protected void mark(ConcurrentMap<String, Revocation> revocations,
+            String userName) {
+        Revocation revocation = new Revocation(serials.incrementAndGet());
+        for (;;) {
+            Revocation previous = revocations.putIfAbsent(userName, revocation);
+            if (previous == null || previous.serial > revocation.serial
+                    || revocations.replace(userName, previous, revocation)) {
+                return;
+            }
+        }
+    }
+
+    protected void revoke(Token token) {
+        revokedTokens.put(token.id, Long.valueOf(token.issued));
+        identities.remove(token.id);
+        purgeRevocations();
+    }
+
+    /**
+     * Forgets the revocations of the tokens that have expired since.
+     */
+    protected void purgeRevocations() {
+        long limit = System.currentTimeMillis() - tokenTTLMillis;
+        for (Iterator<Long> it = revokedTokens.values().iterator(); it.hasNext();) {
+            if (it.next().longValue() < limit) {
+                it.remove();
+            }
+        }
+        for (Iterator<Revocation> it = revokedUsers.values().iterator(); it.hasNext();) {
+            if (it.next().time < limit) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the invalidations older than the cached principals, which
+     * expire with their token.
+     */
+    protected void purgeInvalidations() {
+        long limit = System.currentTimeMillis() - tokenTTLMillis;
+        for (Iterator<Revocation> it = invalidatedPrincipals.values().iterator(); it.hasNext();) {
+            if (it.next().time < limit) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the valid token of the request, or {@code null}.
+     */
+    protected Token getToken(HttpServletRequest httpRequest) {
+        Token token = (Token) httpRequest.getAttribute(TOKEN_ATTRIBUTE);
+        if (token != null) {
+            return token;
+        }
+        String value = httpRequest.getHeader(tokenHeader);
+        if (value == null || !hasSecret()) {
+            return null;
+        }
+        token = parse(value);
+        if (token == null || !isValid(token, System.currentTimeMillis())) {
+            log.debug("Rejected authentication token");
+            rejectedCounter.inc();
+            return null;
+        }
+        httpRequest.setAttribute(TOKEN_ATTRIBUTE, token);
+        return token;
+    }
+
+    /**
+     * Checks that a secret is configured, the plugin being disabled
+     * otherwise.
+     */
+    protected boolean hasSecret() {
+        if (secretKey != null) {
+            return true;
+        }
+        if (!missingSecretLogged) {
+            missingSecretLogged = true;
+            log.error("No " + SECRET_KEY
+                    + " parameter configured, signed tokens are disabled");
+        }
+        return false;
+    }
+
+    protected Token newToken(String userName) {
+        String payload = DatatypeConverter.printBase64Binary(getBytes(userName))
+                + SEP + System.currentTimeMillis() + SEP + instanceId + SEP
+                + serials.incrementAndGet();
+        String value = payload + SEP
+                + DatatypeConverter.printBase64Binary(sign(payload));
+        return parse(value);
+    }
+
+    /**
+     * Parses a token and checks its signature.
+     *
+     * @return the token, or {@code null} if malformed or wrongly signed
+     */
+    protected Token parse(String value) {
+        if (secretKey == null) {
+            return null;
+        }
+        String[] parts = value.trim().split("\\.");
+        if (parts.length != 5) {
+            return null;
+        }
+        try {
+            String payload = parts[0] + SEP + parts[1] + SEP + parts[2] + SEP
+                    + parts[3];
+            byte[] signature = DatatypeConverter.parseBase64Binary(parts[4]);
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+            String userName = new String(
+                    DatatypeConverter.parseBase64Binary(parts[0]), "UTF-8");
+            return new Token(value.trim(), userName,
+                    Long.parseLong(parts[1]), parts[2],
+                    Long.parseLong(parts[3]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected boolean isValid(Token token, long now) {
+        if (!instanceId.equals(token.instanceId)) {
+            return false;
+        }
+        if (now - token.issued > tokenTTLMillis) {
+            return false;
+        }
+        if (revokedTokens.containsKey(token.id)) {
+            return false;
+        }
+        Revocation revoked = revokedUsers.get(token.userName);
+        return revoked == null || token.serial > revoked.serial;
+    }
+
+    protected byte[] sign(String payload) {
+        Mac mac = macs.get();
+        try {
+            if (mac == null) {
+                mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(secretKey);
+                macs.set(mac);
+            }
+            return mac.doFinal(getBytes(payload));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static class Token {
+
+        protected final String value;
+
+        protected final String userName;
+
+        // System.currentTimeMillis() based
+        protected final long issued;
+
+        protected final String instanceId;
+
+        protected final long serial;
+
+        // unique among the tokens of the instance
+        protected final String id;
+
+        protected Token(String value, String userName, long issued,
+                String instanceId, long serial) {
+            this.value = value;
+            this.userName = userName;
+            this.issued = issued;
+            this.instanceId = instanceId;
+            this.serial = serial;
+            id = String.valueOf(serial);
+        }
+
+    }
+
+    protected static class CachedIdentity {
+
+        protected final CachableUserIdentificationInfo identity;
+
+        protected final long serial;
+
+        protected CachedIdentity(CachableUserIdentificationInfo identity,
+                long serial) {
+            this.identity = identity;
+            this.serial = serial;
+        }
+
+    }
+
+    protected static class Revocation {
+
+        protected final long serial;
+
+        // System.currentTimeMillis() based, to forget it once the tokens
+        // have expired
+        protected final long time = System.currentTimeMillis();
+
+        protected Revocation(long serial) {
+            this.serial = serial;
+        }
+
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.ui.web.auth.plugins;
+
+import org.nuxeo.ecm.platform.ui.web.auth.service.PluggableAuthenticationService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventListener;
+
+/**
+ * Event listener dropping the principals cached by the
+ * {@link SignedTokenAuthenticator} plugins when a user or a group changes.
+ * The tokens of a changed user are revoked, as its password may have changed
+ * or it may have been deleted.
+ *
+ * @since 5.7.3
+ */
+public class SignedTokenCacheFlusher implements EventListener {
+
+    // events of the "usermanager" topic sent by the user manager
+    public static final String USERCHANGED_EVENT_ID = "user_changed";
+
+    public static final String GROUPCHANGED_EVENT_ID = "group_changed";
+
+    @Override
+    public boolean aboutToHandleEvent(Event event) {
+        return false;
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        String id = event.getId();
+        boolean userChanged = USERCHANGED_EVENT_ID.equals(id);
+        if (!userChanged && !GROUPCHANGED_EVENT_ID.equals(id)) {
+            return;
+        }
+        PluggableAuthenticationService service = (PluggableAuthenticationService) Framework.getRuntime().getComponent(
+                PluggableAuthenticationService.NAME);
+        if (service == null) {
+            return;
+        }
+        for (SignedTokenAuthenticator plugin : service.getPlugins(SignedTokenAuthenticator.class)) {
+            if (userChanged && event.getData() instanceof String) {
+                plugin.revokeTokens((String) event.getData());
+            } else {
+                // group membership is inherited, all the principals may
+                // change
+                plugin.invalidateAllPrincipals();
+            }
+        }
+    }
+
+}
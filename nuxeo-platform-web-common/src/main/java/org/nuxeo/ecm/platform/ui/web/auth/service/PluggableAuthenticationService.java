@@ -339,6 +339,23 @@ public class PluggableAuthenticationService extends DefaultComponent {
         return result;
     }
 
+    /**
+     * Returns the enabled plugins implementing the given interface, whether
+     * they are part of an authentication chain or not.
+     *
+     * @since 5.7.3
+     */
+    public <T> List<T> getPlugins(Class<T> klass) {
+        List<T> result = new ArrayList<T>();
+        for (String pluginName : authenticators.keySet()) {
+            NuxeoAuthenticationPlugin plugin = getPlugin(pluginName);
+            if (klass.isInstance(plugin)) {
+                result.add(klass.cast(plugin));
+            }
+        }
+        return result;
+    }
+
     public NuxeoAuthenticationPlugin getPlugin(String pluginName) {
         if (authenticatorsDescriptors.containsKey(pluginName)
                 && authenticatorsDescriptors.get(pluginName).getEnabled()) {
@@ -21,7 +21,6 @@ package org.nuxeo.ecm.platform.web.common.ajax;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -41,7 +40,7 @@ import org.nuxeo.ecm.platform.ui.web.cache.SimpleCacheFilter;
 import org.nuxeo.ecm.platform.web.common.ajax.service.AjaxProxyComponent;
 import org.nuxeo.ecm.platform.web.common.ajax.service.AjaxProxyService;
 import org.nuxeo.ecm.platform.web.common.ajax.service.ProxyURLConfigEntry;
-import org.nuxeo.ecm.platform.web.common.requestcontroller.service.LRUCachingMap;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -60,9 +59,8 @@ public class AjaxProxyServlet extends HttpServlet {
 
     protected static AjaxProxyService service;
 
-    protected static Map<String, String> requestsCache = new LRUCachingMap<String, String>(250);
-
-    protected static final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    protected static ConcurrentLRUCache<String, String> requestsCache = new ConcurrentLRUCache<String, String>(
+            250, 0, "nuxeo.web.ajaxproxy.requests.cache");
 
     private static final long serialVersionUID = 1L;
 
@@ -116,12 +114,7 @@ public class AjaxProxyServlet extends HttpServlet {
             if (entry.useCache()) {
                 cacheKey += getSessionId(req);
             }
-            try {
-                cacheLock.readLock().lock();
-                body = requestsCache.get(cacheKey);
-            } finally {
-                cacheLock.readLock().unlock();
-            }
+            body = requestsCache.get(cacheKey);
         }
 
         boolean foundInCache = true;
@@ -130,13 +123,8 @@ public class AjaxProxyServlet extends HttpServlet {
             body = doRequest(method, targetURL, req);
         }
 
-        if (!foundInCache && entry.useCache()) {
-            try {
-                cacheLock.writeLock().lock();
-                requestsCache.put(cacheKey, body);
-            } finally {
-                cacheLock.writeLock().unlock();
-            }
+        if (!foundInCache && entry.useCache() && body != null) {
+            requestsCache.put(cacheKey, body);
         }
 
         if (requestType.equals("text")) {
@@ -21,13 +21,12 @@ package org.nuxeo.ecm.platform.web.common.ajax.service;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.nuxeo.ecm.platform.web.common.requestcontroller.service.LRUCachingMap;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 
@@ -42,10 +41,8 @@ public class AjaxProxyComponent extends DefaultComponent implements AjaxProxySer
 
     protected static final Map<String, ProxyableURLDescriptor> urlDescriptors = new HashMap<String, ProxyableURLDescriptor>();
 
-    protected static final Map<String, ProxyURLConfigEntry> urlCache = new LRUCachingMap<String, ProxyURLConfigEntry>(
-            250);
-
-    protected static final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    protected static final ConcurrentLRUCache<String, ProxyURLConfigEntry> urlCache = new ConcurrentLRUCache<String, ProxyURLConfigEntry>(
+            250, 0, "nuxeo.web.ajaxproxy.urls.cache");
 
     private static final Log log = LogFactory.getLog(AjaxProxyComponent.class);
 
@@ -67,25 +64,14 @@ public class AjaxProxyComponent extends DefaultComponent implements AjaxProxySer
         } else {
             urlDescriptors.put(desc.getName(), desc);
         }
+        urlCache.clear();
     }
 
     public ProxyURLConfigEntry getConfigForURL(String targetUrl) {
-        ProxyURLConfigEntry entry = null;
-
-        try {
-            cacheLock.readLock().lock();
-            entry = urlCache.get(targetUrl);
-        } finally {
-            cacheLock.readLock().unlock();
-        }
+        ProxyURLConfigEntry entry = urlCache.get(targetUrl);
         if (entry == null) {
             entry = computeConfigForURL(targetUrl);
-            try {
-                cacheLock.writeLock().lock();
-                urlCache.put(targetUrl, entry);
-            } finally {
-                cacheLock.writeLock().unlock();
-            }
+            urlCache.put(targetUrl, entry);
         }
         return entry;
     }
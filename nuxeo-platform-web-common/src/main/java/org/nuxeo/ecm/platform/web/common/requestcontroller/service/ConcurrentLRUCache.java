@@ -0,0 +1,266 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Bounded cache safe for concurrent use, replacing {@link LRUCachingMap}
+ * without any global lock.
+ * <p>
+ * Entries are kept in a {@link ConcurrentHashMap} and stamped with the time
+ * of their last access, so that reads only write a field of the entry they
+ * hit. When the cache grows beyond its maximum size, the thread that gets
+ * the eviction lock (others do not wait for it) drops the least recently
+ * used eighth of the entries. Eviction is thus approximately LRU: accesses
+ * racing with it are not taken into account.
+ * <p>
+ * Entries can expire after a time to live, checked when they are read.
+ * {@code null} keys and values are not supported.
+ * <p>
+ * When a metric name is given, the following counters are maintained below
+ * it in the shared metrics registry: {@code hits}, {@code misses},
+ * {@code evictions} and {@code size}.
+ *
+ * @since 5.7.3
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    protected final ConcurrentMap<K, Entry<V>> map;
+
+    protected final int maxSize;
+
+    // time to live in nanoseconds, <= 0 means no expiration
+    protected final long ttlNanos;
+
+    // tracked separately as ConcurrentHashMap.size() walks all the segments
+    protected final AtomicInteger size = new AtomicInteger();
+
+    protected final ReentrantLock evictionLock = new ReentrantLock();
+
+    protected final Counter hitsCounter;
+
+    protected final Counter missesCounter;
+
+    protected final Counter evictionsCounter;
+
+    protected final Counter sizeCounter;
+
+    /**
+     * Creates a cache without expiration nor metrics.
+     */
+    public ConcurrentLRUCache(int maxSize) {
+        this(maxSize, 0, null);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries
+     * @param ttlNanos the time to live of the entries in nanoseconds, 0 for
+     *            no expiration
+     * @param metricName the prefix of the metrics of this cache, or
+     *            {@code null} for no metrics
+     */
+    public ConcurrentLRUCache(int maxSize, long ttlNanos, String metricName) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: "
+                    + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        map = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+        if (metricName == null) {
+            hitsCounter = new Counter();
+            missesCounter = new Counter();
+            evictionsCounter = new Counter();
+            sizeCounter = new Counter();
+        } else {
+            MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+            hitsCounter = registry.counter(MetricRegistry.name(metricName,
+                    "hits"));
+            missesCounter = registry.counter(MetricRegistry.name(metricName,
+                    "misses"));
+            evictionsCounter = registry.counter(MetricRegistry.name(
+                    metricName, "evictions"));
+            sizeCounter = registry.counter(MetricRegistry.name(metricName,
+                    "size"));
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the cached value, or {@code null} if absent or expired.
+     */
+    public V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry != null) {
+            long now = System.nanoTime();
+            if (!entry.isExpired(now)) {
+                entry.accessed = now;
+                hitsCounter.inc();
+                return entry.value;
+            }
+            if (map.remove(key, entry)) {
+                removed(1);
+            }
+        }
+        missesCounter.inc();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        long now = System.nanoTime();
+        long expiration = ttlNanos > 0 ? now + ttlNanos : 0;
+        if (map.put(key, new Entry<V>(value, now, expiration)) == null) {
+            sizeCounter.inc();
+            if (size.incrementAndGet() > maxSize) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the cache.
+     *
+     * @return {@code true} if an entry was actually removed
+     */
+    public boolean remove(K key) {
+        if (map.remove(key) == null) {
+            return false;
+        }
+        removed(1);
+        return true;
+    }
+
+    /**
+     * Removes all the entries of the cache.
+     */
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    protected void removed(int count) {
+        size.addAndGet(-count);
+        sizeCounter.dec(count);
+    }
+
+    /**
+     * Drops the least recently used entries, unless another thread is
+     * already doing it.
+     */
+    protected void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int excess = size.get() - maxSize;
+            if (excess <= 0) {
+                return;
+            }
+            // evict a bit more than needed so that the sort is amortized
+            // over the following puts
+            int count = excess + maxSize / 8;
+            // access stamps are copied as they change during the sort
+            List<Candidate<K, V>> candidates = new ArrayList<>(size.get());
+            for (Map.Entry<K, Entry<V>> e : map.entrySet()) {
+                candidates.add(new Candidate<K, V>(e.getKey(), e.getValue()));
+            }
+            Collections.sort(candidates);
+            int evicted = 0;
+            for (Candidate<K, V> candidate : candidates) {
+                if (evicted == count) {
+                    break;
+                }
+                if (map.remove(candidate.key, candidate.entry)) {
+                    evicted++;
+                }
+            }
+            removed(evicted);
+            evictionsCounter.inc(evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    protected static class Entry<V> {
+
+        protected final V value;
+
+        // System.nanoTime() based, 0 means never
+        protected final long expiration;
+
+        // System.nanoTime() of the last access, racy writes are fine
+        protected volatile long accessed;
+
+        protected Entry(V value, long accessed, long expiration) {
+            this.value = value;
+            this.accessed = accessed;
+            this.expiration = expiration;
+        }
+
+        protected boolean isExpired(long now) {
+            return expiration != 0 && now - expiration > 0;
+        }
+
+    }
+
+    protected static class Candidate<K, V> implements
+            Comparable<Candidate<K, V>> {
+
+        protected final K key;
+
+        protected final Entry<V> entry;
+
+        protected final long accessed;
+
+        protected Candidate(K key, Entry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            accessed = entry.accessed;
+        }
+
+        @Override
+        public int compareTo(Candidate<K, V> other) {
+            long diff = accessed - other.accessed;
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+
+    }
+
+}
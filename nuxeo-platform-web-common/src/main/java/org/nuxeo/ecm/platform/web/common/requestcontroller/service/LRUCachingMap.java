@@ -24,7 +24,10 @@ import java.util.Map;
 
 /**
  * @author tiry
+ * @deprecated since 5.7.3, not thread-safe even for reads as it is
+ *             access-ordered, use {@link ConcurrentLRUCache} instead
  */
+@Deprecated
 public class LRUCachingMap<K, V> extends LinkedHashMap<K, V> {
 
     private static final long serialVersionUID = 1L;
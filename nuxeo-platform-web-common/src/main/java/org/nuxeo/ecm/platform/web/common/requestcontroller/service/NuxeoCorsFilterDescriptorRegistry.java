@@ -17,10 +17,14 @@
 
 package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import javax.servlet.FilterConfig;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.runtime.model.ContributionFragmentRegistry;
@@ -34,7 +38,18 @@ import org.nuxeo.runtime.model.ContributionFragmentRegistry;
 public class NuxeoCorsFilterDescriptorRegistry extends
         ContributionFragmentRegistry<NuxeoCorsFilterDescriptor> {
 
-    protected Map<String, NuxeoCorsFilterDescriptor> descs = new HashMap<>();
+    // registration order gives the matching priority
+    protected Map<String, NuxeoCorsFilterDescriptor> descs = new LinkedHashMap<>();
+
+    /**
+     * Prefix of the metrics of the cache of URI filter configurations.
+     *
+     * @since 5.7.3
+     */
+    public static final String CACHE_METRIC_NAME = "nuxeo.web.cors.cache";
+
+    // rebuilt when null
+    protected volatile Matchers matchers;
 
     @Override
     public String getContributionId(NuxeoCorsFilterDescriptor contrib) {
@@ -42,7 +57,7 @@ public class NuxeoCorsFilterDescriptorRegistry extends
     }
 
     @Override
-    public void contributionUpdated(String id, NuxeoCorsFilterDescriptor contrib, NuxeoCorsFilterDescriptor newOrigContrib) {
+    public synchronized void contributionUpdated(String id, NuxeoCorsFilterDescriptor contrib, NuxeoCorsFilterDescriptor newOrigContrib) {
         if (descs.containsKey(id)) {
             descs.remove(id);
         }
@@ -50,13 +65,15 @@ public class NuxeoCorsFilterDescriptorRegistry extends
         if (contrib.enabled) {
             descs.put(id, contrib);
         }
+        resetMatchers();
     }
 
     @Override
-    public void contributionRemoved(String id, NuxeoCorsFilterDescriptor origContrib) {
+    public synchronized void contributionRemoved(String id, NuxeoCorsFilterDescriptor origContrib) {
         if (descs.containsKey(id)) {
             descs.remove(id);
         }
+        resetMatchers();
     }
 
     @Override
@@ -75,12 +92,63 @@ public class NuxeoCorsFilterDescriptorRegistry extends
     }
 
     public NuxeoCorsFilterDescriptor getFirstMatchingDescriptor(String uri) {
-        for (NuxeoCorsFilterDescriptor filterDesc : descs.values()) {
-            Pattern pattern = Pattern.compile(filterDesc.pattern);
-            if (pattern.matcher(uri).matches()) {
-                return filterDesc;
+        Matchers m = getMatchers();
+        int index = m.filterConfigs.computeIndexOf(uri);
+        return index < 0 ? null : m.descriptors.get(index);
+    }
+
+    /**
+     * Returns the filter config of the first descriptor matching the URI, or
+     * {@code null} if none matches; results are cached.
+     *
+     * @since 5.7.3
+     */
+    public FilterConfig getFirstMatchingFilterConfig(String uri) {
+        return getMatchers().filterConfigs.match(uri);
+    }
+
+    protected void resetMatchers() {
+        Matchers m = matchers;
+        matchers = null;
+        if (m != null) {
+            m.filterConfigs.clearCache();
+        }
+    }
+
+    protected Matchers getMatchers() {
+        Matchers m = matchers;
+        if (m == null) {
+            synchronized (this) {
+                m = matchers;
+                if (m == null) {
+                    m = new Matchers(new ArrayList<>(descs.values()));
+                    matchers = m;
+                }
             }
         }
-        return null;
+        return m;
+    }
+
+    /**
+     * Matchers built from a snapshot of the enabled descriptors.
+     */
+    protected static class Matchers {
+
+        protected final List<NuxeoCorsFilterDescriptor> descriptors;
+
+        protected final UrlPatternMatcher<FilterConfig> filterConfigs;
+
+        protected Matchers(List<NuxeoCorsFilterDescriptor> descs) {
+            List<Pattern> patterns = new ArrayList<>(descs.size());
+            List<FilterConfig> configs = new ArrayList<>(descs.size());
+            for (NuxeoCorsFilterDescriptor desc : descs) {
+                patterns.add(Pattern.compile(desc.pattern));
+                configs.add(desc.buildFilterConfig());
+            }
+            descriptors = descs;
+            filterConfigs = new UrlPatternMatcher<>(patterns, configs,
+                    RequestControllerService.CACHE_SIZE, CACHE_METRIC_NAME);
+        }
+
     }
 }
@@ -19,9 +19,10 @@
 
 package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.servlet.FilterConfig;
@@ -52,11 +53,25 @@ public class RequestControllerService extends DefaultComponent implements
 
     protected static final Map<String, FilterConfigDescriptor> denyPatterns = new LinkedHashMap<String, FilterConfigDescriptor>();
 
-    // @GuardedBy("itself")
-    protected static final Map<String, RequestFilterConfig> configCache = new LRUCachingMap<String, RequestFilterConfig>(
-            250);
+    /**
+     * Maximum number of URIs whose configuration is cached.
+     *
+     * @since 5.7.3
+     */
+    public static final int CACHE_SIZE = 1000;
 
-    protected static final Map<String, FilterConfig> filterConfigCache = new LRUCachingMap<>(250);
+    /**
+     * Prefix of the metrics of the cache of URI configurations.
+     *
+     * @since 5.7.3
+     */
+    public static final String CACHE_METRIC_NAME = "nuxeo.web.requestcontroller.cache";
+
+    protected static final RequestFilterConfig DENY_CONFIG = new RequestFilterConfigImpl(
+            false, false, false, false, false, "");
+
+    // deny patterns then grant patterns, rebuilt when null
+    protected static volatile UrlPatternMatcher<RequestFilterConfig> configMatcher;
 
     protected static final NuxeoCorsFilterDescriptorRegistry corsFilterRegistry = new NuxeoCorsFilterDescriptorRegistry();
 
@@ -83,15 +98,54 @@ public class RequestControllerService extends DefaultComponent implements
     }
 
     public void registerFilterConfig(FilterConfigDescriptor desc) {
-        if (desc.isGrantRule()) {
-            grantPatterns.put(desc.getName(), desc);
-            log.debug("Registered grant filter config");
-        } else {
-            denyPatterns.put(desc.getName(), desc);
-            log.debug("Registered deny filter config");
+        synchronized (RequestControllerService.class) {
+            if (desc.isGrantRule()) {
+                grantPatterns.put(desc.getName(), desc);
+                log.debug("Registered grant filter config");
+            } else {
+                denyPatterns.put(desc.getName(), desc);
+                log.debug("Registered deny filter config");
+            }
+            resetConfigMatcher();
+        }
+    }
+
+    protected static void resetConfigMatcher() {
+        UrlPatternMatcher<RequestFilterConfig> matcher = configMatcher;
+        configMatcher = null;
+        if (matcher != null) {
+            matcher.clearCache();
         }
     }
 
+    protected static UrlPatternMatcher<RequestFilterConfig> getConfigMatcher() {
+        UrlPatternMatcher<RequestFilterConfig> matcher = configMatcher;
+        if (matcher == null) {
+            synchronized (RequestControllerService.class) {
+                matcher = configMatcher;
+                if (matcher == null) {
+                    List<Pattern> patterns = new ArrayList<Pattern>();
+                    List<RequestFilterConfig> configs = new ArrayList<RequestFilterConfig>();
+                    for (FilterConfigDescriptor desc : denyPatterns.values()) {
+                        patterns.add(desc.getCompiledPattern());
+                        configs.add(DENY_CONFIG);
+                    }
+                    for (FilterConfigDescriptor desc : grantPatterns.values()) {
+                        patterns.add(desc.getCompiledPattern());
+                        configs.add(new RequestFilterConfigImpl(
+                                desc.useSync(), desc.useTx(),
+                                desc.useTxBuffered(), desc.isCached(),
+                                desc.isPrivate(), desc.getCacheTime()));
+                    }
+                    matcher = new UrlPatternMatcher<RequestFilterConfig>(
+                            patterns, configs, CACHE_SIZE, CACHE_METRIC_NAME);
+                    configMatcher = matcher;
+                }
+            }
+        }
+        return matcher;
+    }
+
     @Override
     public void unregisterContribution(Object contribution,
             String extensionPoint, ComponentInstance contributor)
@@ -105,20 +159,7 @@ public class RequestControllerService extends DefaultComponent implements
 
     @Override
     public FilterConfig getCorsConfigForRequest(HttpServletRequest request) {
-        String uri = request.getRequestURI();
-        FilterConfig filterConfig = null;
-        synchronized (filterConfigCache) {
-            filterConfig = filterConfigCache.get(uri);
-        }
-
-        if (filterConfig == null) {
-            filterConfig = computeCorsFilterConfigForUri(uri);
-            synchronized (filterConfigCache) {
-                filterConfigCache.put(uri, filterConfig);
-            }
-        }
-
-        return filterConfig;
+        return corsFilterRegistry.getFirstMatchingFilterConfig(request.getRequestURI());
     }
 
     public FilterConfig computeCorsFilterConfigForUri(String uri) {
@@ -127,46 +168,17 @@ public class RequestControllerService extends DefaultComponent implements
     }
 
     public RequestFilterConfig getConfigForRequest(HttpServletRequest request) {
-        String uri = request.getRequestURI();
-        RequestFilterConfig config = null;
-
-        synchronized (configCache) {
-            config = configCache.get(uri);
-        }
-        if (config == null) {
-            config = computeConfigForRequest(uri);
-            synchronized (configCache) {
-                configCache.put(uri, config);
-            }
-        }
-        return config;
+        RequestFilterConfig config = getConfigMatcher().match(
+                request.getRequestURI());
+        // deny by default
+        return config == null ? DENY_CONFIG : config;
     }
 
     public RequestFilterConfig computeConfigForRequest(String uri) {
-        // handle deny patterns
-        for (FilterConfigDescriptor desc : denyPatterns.values()) {
-            Pattern pat = desc.getCompiledPattern();
-            Matcher m = pat.matcher(uri);
-            if (m.matches()) {
-                return new RequestFilterConfigImpl(false, false, false, false,
-                        false, "");
-            }
-        }
-
-        // handle grant patterns
-        for (FilterConfigDescriptor desc : grantPatterns.values()) {
-            Pattern pat = desc.getCompiledPattern();
-            Matcher m = pat.matcher(uri);
-            if (m.matches()) {
-                return new RequestFilterConfigImpl(desc.useSync(),
-                        desc.useTx(), desc.useTxBuffered(), desc.isCached(),
-                        desc.isPrivate(), desc.getCacheTime());
-            }
-        }
-
-        // return deny by default
-        return new RequestFilterConfigImpl(false, false, false, false, false,
-                "");
+        UrlPatternMatcher<RequestFilterConfig> matcher = getConfigMatcher();
+        int index = matcher.computeIndexOf(uri);
+        // deny by default
+        return index < 0 ? DENY_CONFIG : matcher.getValue(index);
     }
 
 }
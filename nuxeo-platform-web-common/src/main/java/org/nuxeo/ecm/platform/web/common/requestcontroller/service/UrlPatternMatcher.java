@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable matcher of URIs against an ordered list of regular expressions,
+ * returning the value associated to the first matching one.
+ * <p>
+ * The literal prefix of each pattern (the characters before the first
+ * regular expression construct) is stored in a trie, so that a URI is only
+ * checked against the patterns whose prefix it starts with, in declaration
+ * order. The results are kept in a {@link ConcurrentLRUCache}.
+ *
+ * @since 5.7.3
+ */
+public class UrlPatternMatcher<T> {
+
+    // flags for which the pattern string is not a regular expression
+    // matching its literal prefix case-sensitively
+    protected static final int INEXACT_FLAGS = Pattern.CASE_INSENSITIVE
+            | Pattern.COMMENTS | Pattern.LITERAL;
+
+    protected final Pattern[] patterns;
+
+    protected final List<T> values;
+
+    protected final Node root = new Node();
+
+    protected final ConcurrentLRUCache<String, Integer> cache;
+
+    /**
+     * @param patterns the regular expressions, by decreasing priority
+     * @param values the value returned for each pattern
+     * @param cacheSize the maximum number of cached URIs, 0 to disable the
+     *            cache
+     */
+    public UrlPatternMatcher(List<Pattern> patterns, List<T> values,
+            int cacheSize) {
+        this(patterns, values, cacheSize, null);
+    }
+
+    /**
+     * @param patterns the regular expressions, by decreasing priority
+     * @param values the value returned for each pattern
+     * @param cacheSize the maximum number of cached URIs, 0 to disable the
+     *            cache
+     * @param metricName the prefix of the cache metrics, or {@code null}
+     */
+    public UrlPatternMatcher(List<Pattern> patterns, List<T> values,
+            int cacheSize, String metricName) {
+        if (patterns.size() != values.size()) {
+            throw new IllegalArgumentException(
+                    "patterns and values differ in size");
+        }
+        this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+        this.values = new ArrayList<T>(values);
+        for (int i = 0; i < this.patterns.length; i++) {
+            Pattern pattern = this.patterns[i];
+            String prefix;
+            if ((pattern.flags() & INEXACT_FLAGS) != 0) {
+                prefix = "";
+            } else {
+                prefix = getLiteralPrefix(pattern.pattern());
+            }
+            root.add(prefix, 0, i);
+        }
+        cache = cacheSize > 0 ? new ConcurrentLRUCache<String, Integer>(
+                cacheSize, 0, metricName) : null;
+    }
+
+    /**
+     * Returns the value of the first pattern matching the whole URI, or
+     * {@code null} if none matches.
+     */
+    public T match(String uri) {
+        int index = indexOf(uri);
+        return index < 0 ? null : values.get(index);
+    }
+
+    /**
+     * Returns the index of the first pattern matching the whole URI, or -1
+     * if none matches.
+     */
+    public int indexOf(String uri) {
+        if (cache == null) {
+            return computeIndexOf(uri);
+        }
+        Integer index = cache.get(uri);
+        if (index == null) {
+            index = Integer.valueOf(computeIndexOf(uri));
+            cache.put(uri, index);
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Empties the cache, to be called when this matcher is discarded so that
+     * the cache metrics stay accurate.
+     */
+    public void clearCache() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Computes the index of the first pattern matching the whole URI,
+     * without using the cache.
+     */
+    public int computeIndexOf(String uri) {
+        BitSet candidates = getCandidates(uri);
+        for (int p = candidates.nextSetBit(0); p >= 0; p = candidates.nextSetBit(p + 1)) {
+            if (patterns[p].matcher(uri).matches()) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the indexes of the patterns whose literal prefix starts the
+     * URI, the only ones that may match it.
+     */
+    protected BitSet getCandidates(String uri) {
+        BitSet candidates = new BitSet(patterns.length);
+        Node node = root;
+        int length = uri.length();
+        for (int i = 0; node != null; i++) {
+            if (node.patterns != null) {
+                for (int p : node.patterns) {
+                    candidates.set(p);
+                }
+            }
+            if (i == length || node.children == null) {
+                break;
+            }
+            node = node.children.get(Character.valueOf(uri.charAt(i)));
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the value associated to the pattern at the given index.
+     */
+    public T getValue(int index) {
+        return values.get(index);
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * Returns the characters that any string matching the whole regular
+     * expression starts with.
+     */
+    public static String getLiteralPrefix(String regex) {
+        if (hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        int length = regex.length();
+        while (i < length) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next == length
+                        || Character.isLetterOrDigit(regex.charAt(next))) {
+                    // character class, back reference or quote
+                    break;
+                }
+                c = regex.charAt(next);
+                next++;
+            } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                break;
+            }
+            if (next < length && "*?{".indexOf(regex.charAt(next)) >= 0) {
+                // optional character
+                break;
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    protected static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static class Node {
+
+        protected Map<Character, Node> children;
+
+        // indexes of the patterns whose literal prefix ends here
+        protected int[] patterns;
+
+        protected void add(String prefix, int pos, int pattern) {
+            if (pos == prefix.length()) {
+                if (patterns == null) {
+                    patterns = new int[] { pattern };
+                } else {
+                    int[] newPatterns = new int[patterns.length + 1];
+                    System.arraycopy(patterns, 0, newPatterns, 0,
+                            patterns.length);
+                    newPatterns[patterns.length] = pattern;
+                    patterns = newPatterns;
+                }
+                return;
+            }
+            if (children == null) {
+                children = new HashMap<Character, Node>();
+            }
+            Character c = Character.valueOf(prefix.charAt(pos));
+            Node child = children.get(c);
+            if (child == null) {
+                child = new Node();
+                children.put(c, child);
+            }
+            child.add(prefix, pos + 1, pattern);
+        }
+
+    }
+
+}
@@ -25,10 +25,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -38,14 +34,16 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
 import org.nuxeo.runtime.api.Framework;
 
 public class AggregatedJSProvider extends HttpServlet {
 
     public static final String MINIMIZER_IMPL_KEY = "org.nuxeo.ecm.platform.web.common.resources.JSMinimizer";
 
-    protected static final ReadWriteLock cacheLock = new ReentrantReadWriteLock();
-    protected static final Map<String, String> cachedResponses = new HashMap<String, String>();
+    // bounded, as the cache key comes from the request
+    protected static final ConcurrentLRUCache<String, String> cachedResponses = new ConcurrentLRUCache<String, String>(
+            100, 0, "nuxeo.web.aggregatedjs.cache");
 
     protected static JSMinimizer minimizer;
 
@@ -73,12 +71,7 @@ public class AggregatedJSProvider extends HttpServlet {
 
         String resultScript = null;
         if (!refresh && !Framework.isDevModeSet()) {
-            cacheLock.readLock().lock();
-            try {
-                resultScript = cachedResponses.get(cacheKey);
-            } finally {
-                cacheLock.readLock().unlock();
-            }
+            resultScript = cachedResponses.get(cacheKey);
         }
 
         if (resultScript == null) {
@@ -86,12 +79,7 @@ public class AggregatedJSProvider extends HttpServlet {
             resultScript = computeResult(scripts, minimize);
 
             if (!Framework.isDevModeSet()) {
-                cacheLock.writeLock().lock();
-                try {
-                    cachedResponses.put(cacheKey, resultScript);
-                } finally {
-                    cacheLock.writeLock().unlock();
-                }
+                cachedResponses.put(cacheKey, resultScript);
             }
         }
 
@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.junit.Test;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+public class TestLoginSynchronization extends NXRuntimeTestCase {
+
+    protected static final int THREADS = 4;
+
+    @Test
+    public void testLoginLocks() {
+        assertNull(NuxeoAuthenticationFilter.getLoginLock(null));
+        assertSame(NuxeoAuthenticationFilter.getLoginLock("bob"),
+                NuxeoAuthenticationFilter.getLoginLock("bob"));
+        assertNotSame(NuxeoAuthenticationFilter.globalLoginLock,
+                NuxeoAuthenticationFilter.getLoginLock("bob"));
+
+        String key = NuxeoAuthenticationFilter.IS_LOGIN_SYNCHRONIZED_PROPERTY_KEY;
+        Framework.getProperties().setProperty(key, "true");
+        try {
+            assertSame(NuxeoAuthenticationFilter.globalLoginLock,
+                    NuxeoAuthenticationFilter.getLoginLock("bob"));
+        } finally {
+            Framework.getProperties().remove(key);
+        }
+
+        key = NuxeoAuthenticationFilter.IS_LOGIN_NOT_SYNCHRONIZED_PROPERTY_KEY;
+        Framework.getProperties().setProperty(key, "true");
+        try {
+            assertNull(NuxeoAuthenticationFilter.getLoginLock("bob"));
+        } finally {
+            Framework.getProperties().remove(key);
+        }
+    }
+
+    /**
+     * Each login waits for all the others to be in progress, which would
+     * time out if they were serialized.
+     */
+    @Test
+    public void testConcurrentLoginsOfDifferentUsers() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        List<String> userNames = new ArrayList<String>();
+        for (int i = 0; i < THREADS; i++) {
+            userNames.add("user" + i);
+        }
+        runLogins(userNames, new LoginAction() {
+            @Override
+            public void login() throws LoginException {
+                latch.countDown();
+                try {
+                    if (!latch.await(10, TimeUnit.SECONDS)) {
+                        throw new LoginException("logins are serialized");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LoginException(e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testSerializedLoginsOfSameUser() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<String> userNames = new ArrayList<String>();
+        for (int i = 0; i < THREADS; i++) {
+            userNames.add("bob");
+        }
+        runLogins(userNames, new LoginAction() {
+            @Override
+            public void login() throws LoginException {
+                int count = running.incrementAndGet();
+                if (count > maxRunning.get()) {
+                    maxRunning.set(count);
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LoginException(e.getMessage());
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        });
+        assertEquals(1, maxRunning.get());
+    }
+
+    protected interface LoginAction {
+        void login() throws LoginException;
+    }
+
+    protected static void runLogins(List<String> userNames,
+            final LoginAction action) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(userNames.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final String userName : userNames) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        NuxeoAuthenticationFilter.login(new TestLoginContext(
+                                action), userName);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected static class TestLoginContext extends LoginContext {
+
+        protected final LoginAction action;
+
+        protected TestLoginContext(LoginAction action) throws LoginException {
+            super("test", null, null, new Configuration() {
+                @Override
+                public AppConfigurationEntry[] getAppConfigurationEntry(
+                        String name) {
+                    return new AppConfigurationEntry[0];
+                }
+            });
+            this.action = action;
+        }
+
+        @Override
+        public void login() throws LoginException {
+            action.login();
+        }
+
+    }
+
+}
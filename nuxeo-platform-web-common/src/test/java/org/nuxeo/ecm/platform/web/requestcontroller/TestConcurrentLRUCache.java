@@ -0,0 +1,217 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.web.requestcontroller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.ConcurrentLRUCache;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.LRUCachingMap;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+public class TestConcurrentLRUCache {
+
+    private static final Log log = LogFactory.getLog(TestConcurrentLRUCache.class);
+
+    protected static final int THREADS = 8;
+
+    @Test
+    public void testGetPut() {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+                10);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        cache.put("a", "3");
+        assertEquals("3", cache.get("a"));
+        assertEquals(2, cache.size());
+        assertTrue(cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>(
+                8, 0, "nuxeo.web.test.lru");
+        for (int i = 0; i < 8; i++) {
+            cache.put(Integer.valueOf(i), "v" + i);
+        }
+        Thread.sleep(2);
+        for (int i = 0; i < 4; i++) {
+            cache.get(Integer.valueOf(i));
+        }
+        Thread.sleep(2);
+        cache.put(Integer.valueOf(8), "v8");
+        // one entry over the size, plus one eighth
+        assertEquals(7, cache.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("v" + i, cache.get(Integer.valueOf(i)));
+        }
+        assertEquals("v8", cache.get(Integer.valueOf(8)));
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        assertEquals(2,
+                registry.counter("nuxeo.web.test.lru.evictions").getCount());
+        assertEquals(7, registry.counter("nuxeo.web.test.lru.size").getCount());
+        assertEquals(9, registry.counter("nuxeo.web.test.lru.hits").getCount());
+        assertEquals(0,
+                registry.counter("nuxeo.web.test.lru.misses").getCount());
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        ConcurrentLRUCache<String, String> cache = new ConcurrentLRUCache<String, String>(
+                10, 1000000, null);
+        cache.put("a", "1");
+        Thread.sleep(10);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Checks that concurrent reads and writes keep the cache bounded and its
+     * size metric accurate.
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int size = 500;
+        final ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>(
+                size, 0, "nuxeo.web.test.concurrent");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            run(executor, new Access() {
+                @Override
+                public void access(Integer key) {
+                    String value = cache.get(key);
+                    if (value == null) {
+                        cache.put(key, key.toString());
+                    } else {
+                        assertEquals(key.toString(), value);
+                    }
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+        // puts racing with an eviction may leave a few extra entries
+        assertTrue(cache.size() <= size + THREADS);
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        assertEquals(cache.size(),
+                registry.counter("nuxeo.web.test.concurrent.size").getCount());
+    }
+
+    /**
+     * Compares concurrent reads and writes on a synchronized
+     * {@link LRUCachingMap} and on the concurrent cache.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkSynchronizedVersusConcurrent() throws Exception {
+        final int size = 500;
+        final Map<Integer, String> map = new LRUCachingMap<Integer, String>(
+                size);
+        final ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<Integer, String>(
+                size, 0, "nuxeo.web.test.benchmark");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < 2; round++) {
+                // second round with a warm JIT
+                long t0 = System.nanoTime();
+                run(executor, new Access() {
+                    @Override
+                    public void access(Integer key) {
+                        synchronized (map) {
+                            if (map.get(key) == null) {
+                                map.put(key, key.toString());
+                            }
+                        }
+                    }
+                });
+                long synchronizedTime = System.nanoTime() - t0;
+                t0 = System.nanoTime();
+                run(executor, new Access() {
+                    @Override
+                    public void access(Integer key) {
+                        if (cache.get(key) == null) {
+                            cache.put(key, key.toString());
+                        }
+                    }
+                });
+                long concurrentTime = System.nanoTime() - t0;
+                log.info(String.format("%s threads on a cache of %s "
+                        + "entries: synchronized %sms, concurrent %sms",
+                        THREADS, size, synchronizedTime / 1000000,
+                        concurrentTime / 1000000));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected interface Access {
+        void access(Integer key);
+    }
+
+    protected static void run(ExecutorService executor, final Access access)
+            throws Exception {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < 50000; i++) {
+                        // mostly hot keys, with a tail of cold ones
+                        int key = random.nextInt(10) < 8 ? random.nextInt(400)
+                                : random.nextInt(5000);
+                        access.access(Integer.valueOf(key));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+
+package org.nuxeo.ecm.platform.web.requestcontroller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.UrlPatternMatcher;
+
+public class TestUrlPatternMatcher {
+
+    private static final Log log = LogFactory.getLog(TestUrlPatternMatcher.class);
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("/nuxeo/site/",
+                UrlPatternMatcher.getLiteralPrefix("/nuxeo/site/.*"));
+        assertEquals("/nuxeo/TestServlet",
+                UrlPatternMatcher.getLiteralPrefix("/nuxeo/TestServlet.*"));
+        assertEquals("/nuxeo/",
+                UrlPatternMatcher.getLiteralPrefix("^/nuxeo/(api|site)/.*"));
+        assertEquals("/a.b/",
+                UrlPatternMatcher.getLiteralPrefix("/a\\.b/\\d+"));
+        // optional last character
+        assertEquals("/fo", UrlPatternMatcher.getLiteralPrefix("/foo?"));
+        assertEquals("/fo", UrlPatternMatcher.getLiteralPrefix("/foo*"));
+        assertEquals("/foo", UrlPatternMatcher.getLiteralPrefix("/foo+"));
+        assertEquals("", UrlPatternMatcher.getLiteralPrefix("/a/.*|/b/.*"));
+        assertEquals("", UrlPatternMatcher.getLiteralPrefix("(?i)/nuxeo"));
+        assertEquals("", UrlPatternMatcher.getLiteralPrefix(".*\\.js"));
+        assertEquals("", UrlPatternMatcher.getLiteralPrefix("\\Q/a\\E.*"));
+    }
+
+    @Test
+    public void testFirstMatch() {
+        UrlPatternMatcher<String> matcher = newMatcher(Arrays.asList(
+                "/nuxeo/Cache.*", "/nuxeo/CacheDefault.*", ".*\\.js",
+                "/nuxeo/site/(a|b)/.*", "/nuxeo/site/.*"), 10);
+        assertEquals("0", matcher.match("/nuxeo/CacheDefault"));
+        assertEquals("2", matcher.match("/nuxeo/site/foo.js"));
+        assertEquals("3", matcher.match("/nuxeo/site/a/foo"));
+        assertEquals("4", matcher.match("/nuxeo/site/c/foo"));
+        assertNull(matcher.match("/nuxeo/sit"));
+        assertNull(matcher.match(""));
+        // cached
+        assertEquals("3", matcher.match("/nuxeo/site/a/foo"));
+        assertEquals(-1, matcher.indexOf("/other"));
+
+        // case-insensitive patterns are always checked
+        matcher = new UrlPatternMatcher<String>(Arrays.asList(Pattern.compile(
+                "/Nuxeo/.*", Pattern.CASE_INSENSITIVE)),
+                Arrays.asList("ci"), 0);
+        assertEquals("ci", matcher.match("/nuxeo/foo"));
+    }
+
+    @Test
+    public void testSameAsSequentialMatching() {
+        List<String> regexes = getPatterns(150);
+        UrlPatternMatcher<String> matcher = newMatcher(regexes, 100);
+        List<Pattern> patterns = compile(regexes);
+        for (String uri : getUris(20000, new Random(1))) {
+            assertEquals(uri, sequentialIndexOf(patterns, uri),
+                    matcher.indexOf(uri));
+        }
+    }
+
+    /**
+     * Matcher recording the number of patterns a URI is checked against.
+     */
+    static class CountingMatcher extends UrlPatternMatcher<String> {
+
+        int maxCandidates;
+
+        CountingMatcher(List<Pattern> patterns, List<String> values) {
+            super(patterns, values, 0);
+        }
+
+        @Override
+        protected BitSet getCandidates(String uri) {
+            BitSet candidates = super.getCandidates(uri);
+            maxCandidates = Math.max(maxCandidates, candidates.cardinality());
+            return candidates;
+        }
+    }
+
+    @Test
+    public void testOnlyCandidatePatternsAreChecked() {
+        List<String> regexes = getPatterns(150);
+        CountingMatcher matcher = new CountingMatcher(compile(regexes),
+                regexes);
+        for (String uri : getUris(10000, new Random(2))) {
+            matcher.indexOf(uri);
+        }
+        // at most ".*\\.js", "/nuxeo/.*" and the patterns of the URI
+        // module (e.g. module1 and module12 for /nuxeo/site/module12/...)
+        assertTrue(String.valueOf(matcher.maxCandidates),
+                matcher.maxCandidates <= 4);
+        matcher.maxCandidates = 0;
+        matcher.indexOf("/other/foo");
+        assertEquals(1, matcher.maxCandidates);
+    }
+
+    /**
+     * Compares matching 150 patterns one by one and through the matcher,
+     * for URIs holding document ids that defeat any result cache.
+     */
+    // benchmark, disabled by default
+    @Test
+    @Ignore
+    public void testBenchmarkMatcherVersusSequential() {
+        List<String> regexes = getPatterns(150);
+        List<Pattern> patterns = compile(regexes);
+        UrlPatternMatcher<String> matcher = newMatcher(regexes, 1000);
+        List<String> uris = getUris(100000, new Random(2));
+        for (int i = 0; i < 2; i++) {
+            // second round with a warm JIT
+            int sequentialMatches = 0;
+            long t0 = System.nanoTime();
+            for (String uri : uris) {
+                if (sequentialIndexOf(patterns, uri) >= 0) {
+                    sequentialMatches++;
+                }
+            }
+            long sequentialTime = System.nanoTime() - t0;
+            int matcherMatches = 0;
+            t0 = System.nanoTime();
+            for (String uri : uris) {
+                if (matcher.indexOf(uri) >= 0) {
+                    matcherMatches++;
+                }
+            }
+            long matcherTime = System.nanoTime() - t0;
+            assertEquals(sequentialMatches, matcherMatches);
+            log.info(String.format("%s URIs against %s patterns: "
+                    + "sequential %sms, matcher %sms", uris.size(),
+                    patterns.size(), sequentialTime / 1000000,
+                    matcherTime / 1000000));
+        }
+    }
+
+    protected static UrlPatternMatcher<String> newMatcher(
+            List<String> regexes, int cacheSize) {
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < regexes.size(); i++) {
+            values.add(String.valueOf(i));
+        }
+        return new UrlPatternMatcher<String>(compile(regexes), values,
+                cacheSize);
+    }
+
+    protected static List<Pattern> compile(List<String> regexes) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String regex : regexes) {
+            patterns.add(Pattern.compile(regex));
+        }
+        return patterns;
+    }
+
+    protected static int sequentialIndexOf(List<Pattern> patterns, String uri) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(uri).matches()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static List<String> getPatterns(int count) {
+        List<String> regexes = new ArrayList<String>();
+        regexes.add("/nuxeo/site/files/.*");
+        regexes.add(".*\\.js");
+        for (int i = 0; regexes.size() < count; i++) {
+            regexes.add("/nuxeo/app" + i + "/.*");
+            regexes.add("/nuxeo/api/v1/path" + i + "/@\\w+");
+            regexes.add("/nuxeo/site/module" + i + "(/.*)?");
+        }
+        regexes.add("/nuxeo/.*");
+        return regexes;
+    }
+
+    protected static List<String> getUris(int count, Random random) {
+        String[] prefixes = { "/nuxeo/site/files/", "/nuxeo/api/v1/path",
+                "/nuxeo/site/module", "/nuxeo/app", "/nuxeo/nxfile/",
+                "/other/" };
+        List<String> uris = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            String prefix = prefixes[random.nextInt(prefixes.length)];
+            StringBuilder uri = new StringBuilder(prefix);
+            uri.append(random.nextInt(60));
+            switch (random.nextInt(3)) {
+            case 0:
+                uri.append("/@children");
+                break;
+            case 1:
+                uri.append('/').append(Long.toHexString(random.nextLong()));
+                break;
+            default:
+                uri.append("/lib.js");
+            }
+            uris.add(uri.toString());
+        }
+        return uris;
+    }
+
+}